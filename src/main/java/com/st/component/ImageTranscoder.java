@@ -0,0 +1,288 @@
+package com.st.component;
+
+import com.st.exceptions.CustomServiceUnavailableException;
+import com.st.model.ImageTranscoderMetrics;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.PostConstruct;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+/**
+ * Runs the image decoding and encoding of requests on a small bounded pool,
+ * so that bursts of requests cannot exhaust the heap. Each task declares the
+ * memory it is estimated to need (width x height x 4 bytes of the rasters it
+ * decodes), and is admitted only if that fits in what is left of a memory
+ * budget. Requests that are not admitted, or whose task is not done in time,
+ * fail at once with 503 Service Unavailable and a Retry-After header, rather
+ * than queue up and hold their threads.
+ *
+ * Background jobs, such as tile generation, reserve their memory from a
+ * separate budget, so a large image being processed never makes requests
+ * fail. They wait for the memory instead of being refused, run on their own
+ * thread and have no timeout.
+ */
+public class ImageTranscoder {
+
+    private static final Logger logger = Logger.getLogger(ImageTranscoder.class);
+
+    /** Bytes of one decoded pixel, as ARGB. */
+    public static final int BYTES_PER_PIXEL = 4;
+
+    // The budget is counted in KiB, so that it fits in the permits of a semaphore.
+    private static final int PERMIT_BYTES = 1024;
+
+    @Autowired
+    ThreadPoolTaskExecutor imageTaskExecutor;
+
+    private int memoryMegabytes = 512;
+
+    private int backgroundMemoryMegabytes = 512;
+
+    private int timeoutSeconds = 30;
+
+    private int retryAfterSeconds = 5;
+
+    private Semaphore memory;
+
+    private Semaphore backgroundMemory;
+
+    private final AtomicInteger running = new AtomicInteger();
+
+    private final AtomicLong completed = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    private final AtomicLong timedOut = new AtomicLong();
+
+    private final AtomicLong started = new AtomicLong();
+
+    private final AtomicLong totalWaitMillis = new AtomicLong();
+
+    private final AtomicLong totalRunMillis = new AtomicLong();
+
+    private final AtomicLong maxRunMillis = new AtomicLong();
+
+    /**
+     * Sets the memory budget. Set from the bean property.
+     * @param memoryMegabytes the budget, in MiB.
+     */
+    public void setMemoryMegabytes(int memoryMegabytes) {
+        this.memoryMegabytes = memoryMegabytes;
+    }
+
+    /**
+     * Sets the memory budget of background jobs. Set from the bean property.
+     * @param backgroundMemoryMegabytes the budget, in MiB.
+     */
+    public void setBackgroundMemoryMegabytes(int backgroundMemoryMegabytes) {
+        this.backgroundMemoryMegabytes = backgroundMemoryMegabytes;
+    }
+
+    /**
+     * Returns the memory budget of background jobs.
+     * @return the budget, in bytes.
+     */
+    public long getBackgroundMemoryBytes() {
+        return backgroundMemoryMegabytes * 1024L * 1024;
+    }
+
+    /**
+     * Sets how long a request waits for its task. Set from the bean property.
+     * @param timeoutSeconds the timeout, in seconds.
+     */
+    public void setTimeoutSeconds(int timeoutSeconds) {
+        this.timeoutSeconds = timeoutSeconds;
+    }
+
+    /**
+     * Sets the Retry-After of refused requests. Set from the bean property.
+     * @param retryAfterSeconds the time, in seconds.
+     */
+    public void setRetryAfterSeconds(int retryAfterSeconds) {
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    @PostConstruct
+    public void init() {
+        memory = new Semaphore(memoryMegabytes * 1024);
+        // Fair, so that a large job is not starved by smaller ones.
+        backgroundMemory = new Semaphore(backgroundMemoryMegabytes * 1024, true);
+    }
+
+    /**
+     * Returns the estimated memory of decoding an image.
+     * @param width the decoded width.
+     * @param height the decoded height.
+     * @return the estimate, in bytes.
+     */
+    public static long estimateBytes(int width, int height) {
+        return (long) width * height * BYTES_PER_PIXEL;
+    }
+
+    /**
+     * Runs a task on the pool, and waits for it. A task estimated to need
+     * more than the whole budget is admitted only when no other task runs.
+     * @param <T> the result type.
+     * @param estimatedBytes the estimated memory of the task.
+     * @param task the task.
+     * @return the result of the task.
+     * @throws IOException thrown by the task, or wrapping its checked exceptions.
+     * @throws CustomServiceUnavailableException if the pool or the budget is
+     * full, or the task is not done in time.
+     */
+    public <T> T execute(long estimatedBytes, final Callable<T> task) throws IOException {
+        final int permits = permits(estimatedBytes, memoryMegabytes);
+        if (!memory.tryAcquire(permits)) {
+            rejected.incrementAndGet();
+            logger.warn("Refused image task of " + estimatedBytes + " bytes: memory budget full");
+            throw busy("Too many image requests, please retry later.");
+        }
+        final long queuedAt = System.currentTimeMillis();
+        // Set by whichever comes first of the task starting or the request giving up on it.
+        final AtomicBoolean claimed = new AtomicBoolean();
+        Future<T> future;
+        try {
+            future = imageTaskExecutor.submit(new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    if (!claimed.compareAndSet(false, true)) {
+                        return null;
+                    }
+                    long start = System.currentTimeMillis();
+                    started.incrementAndGet();
+                    totalWaitMillis.addAndGet(start - queuedAt);
+                    running.incrementAndGet();
+                    try {
+                        return task.call();
+                    } finally {
+                        running.decrementAndGet();
+                        memory.release(permits);
+                        long millis = System.currentTimeMillis() - start;
+                        totalRunMillis.addAndGet(millis);
+                        updateMax(millis);
+                    }
+                }
+            });
+        } catch (TaskRejectedException ex) {
+            memory.release(permits);
+            rejected.incrementAndGet();
+            logger.warn("Refused image task: queue full");
+            throw busy("Too many image requests, please retry later.");
+        }
+        try {
+            T result = future.get(timeoutSeconds, TimeUnit.SECONDS);
+            completed.incrementAndGet();
+            return result;
+        } catch (ExecutionException ex) {
+            failed.incrementAndGet();
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        } catch (TimeoutException ex) {
+            giveUp(future, claimed, permits);
+            timedOut.incrementAndGet();
+            logger.warn("Image task not done in " + timeoutSeconds + " s");
+            throw busy("Timed out processing the image, please retry later.");
+        } catch (InterruptedException ex) {
+            giveUp(future, claimed, permits);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for image task", ex);
+        }
+    }
+
+    /**
+     * Runs a background task on the calling thread, once its estimated memory
+     * fits in the background budget. A task estimated to need more than the
+     * whole budget runs when no other background task does.
+     * @param <T> the result type.
+     * @param estimatedBytes the estimated memory of the task.
+     * @param task the task.
+     * @return the result of the task.
+     * @throws IOException thrown by the task, or wrapping its checked exceptions.
+     */
+    public <T> T executeInBackground(long estimatedBytes, Callable<T> task) throws IOException {
+        int permits = permits(estimatedBytes, backgroundMemoryMegabytes);
+        try {
+            backgroundMemory.acquire(permits);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for memory", ex);
+        }
+        try {
+            return task.call();
+        } catch (IOException | RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new IOException(ex);
+        } finally {
+            backgroundMemory.release(permits);
+        }
+    }
+
+    /**
+     * Returns the state of the pool and the counts since startup.
+     * @return the metrics.
+     */
+    public ImageTranscoderMetrics getMetrics() {
+        ImageTranscoderMetrics m = new ImageTranscoderMetrics();
+        m.setQueued(imageTaskExecutor.getThreadPoolExecutor().getQueue().size());
+        m.setRunning(running.get());
+        long budget = (long) memoryMegabytes * 1024 * PERMIT_BYTES;
+        m.setMemory_budget(budget);
+        m.setMemory_reserved(budget - (long) memory.availablePermits() * PERMIT_BYTES);
+        m.setCompleted(completed.get());
+        m.setFailed(failed.get());
+        m.setRejected(rejected.get());
+        m.setTimed_out(timedOut.get());
+        long n = started.get();
+        m.setMean_wait_millis(n == 0 ? 0 : totalWaitMillis.get() / n);
+        m.setMean_run_millis(n == 0 ? 0 : totalRunMillis.get() / n);
+        m.setMax_run_millis(maxRunMillis.get());
+        return m;
+    }
+
+    // A task not yet started is dropped along with its reservation. A running
+    // one is interrupted, and releases its reservation when it ends.
+    private void giveUp(Future<?> future, AtomicBoolean claimed, int permits) {
+        if (claimed.compareAndSet(false, true)) {
+            memory.release(permits);
+        }
+        future.cancel(true);
+    }
+
+    private static int permits(long bytes, int budgetMegabytes) {
+        long permits = (bytes + PERMIT_BYTES - 1) / PERMIT_BYTES;
+        return (int) Math.max(1, Math.min(permits, budgetMegabytes * 1024L));
+    }
+
+    private void updateMax(long millis) {
+        long max = maxRunMillis.get();
+        while (millis > max && !maxRunMillis.compareAndSet(max, millis)) {
+            max = maxRunMillis.get();
+        }
+    }
+
+    private CustomServiceUnavailableException busy(String message) {
+        return new CustomServiceUnavailableException(message, retryAfterSeconds);
+    }
+
+}
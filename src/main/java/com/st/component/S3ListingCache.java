@@ -0,0 +1,94 @@
+package com.st.component;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.st.util.S3Operations;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.springframework.beans.factory.annotation.Autowired;
+
+/**
+ * Short-lived cache of the top-level objects of S3 buckets. Listing a bucket
+ * takes one request per 1000 objects, so lookups by key and listings are
+ * served from a snapshot that is reused for ttlSeconds. Services that write
+ * to a bucket invalidate its snapshot, so their own changes are seen at once.
+ */
+public class S3ListingCache {
+
+    @Autowired
+    AmazonS3Client s3Client;
+
+    private long ttlMillis = 60 * 1000;
+
+    private final Map<String, Snapshot> snapshots = new ConcurrentHashMap<>();
+
+    // Incremented on every write, so a listing that started before a write is not kept.
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * Sets how long a listing is reused. Set from the bean property.
+     * @param ttlSeconds the time to live, in seconds.
+     */
+    public void setTtlSeconds(int ttlSeconds) {
+        this.ttlMillis = ttlSeconds * 1000L;
+    }
+
+    /**
+     * Returns the top-level objects of a bucket.
+     * @param bucket the bucket.
+     * @return the object summaries by key, in key order. Not modifiable.
+     */
+    public Map<String, S3ObjectSummary> listTopLevelObjects(String bucket) {
+        Snapshot snapshot = snapshots.get(bucket);
+        if (snapshot == null || snapshot.generation != generation.get()
+                || System.currentTimeMillis() - snapshot.listedAt > ttlMillis) {
+            long gen = generation.get();
+            long listedAt = System.currentTimeMillis();
+            Map<String, S3ObjectSummary> objects = new LinkedHashMap<>();
+            for (S3ObjectSummary o : S3Operations.listTopLevelObjects(s3Client, bucket)) {
+                objects.put(o.getKey(), o);
+            }
+            snapshot = new Snapshot(gen, listedAt, Collections.unmodifiableMap(objects));
+            snapshots.put(bucket, snapshot);
+        }
+        return snapshot.objects;
+    }
+
+    /**
+     * Returns a top-level object of a bucket.
+     * @param bucket the bucket.
+     * @param key the object key.
+     * @return the object summary, or null if there is no such object.
+     */
+    public S3ObjectSummary get(String bucket, String key) {
+        return listTopLevelObjects(bucket).get(key);
+    }
+
+    /**
+     * Discards the listing of a bucket, after it has been written to.
+     * @param bucket the bucket.
+     */
+    public void invalidate(String bucket) {
+        generation.incrementAndGet();
+        snapshots.remove(bucket);
+    }
+
+    private static class Snapshot {
+
+        final long generation;
+
+        final long listedAt;
+
+        final Map<String, S3ObjectSummary> objects;
+
+        Snapshot(long generation, long listedAt, Map<String, S3ObjectSummary> objects) {
+            this.generation = generation;
+            this.listedAt = listedAt;
+            this.objects = objects;
+        }
+    }
+
+}
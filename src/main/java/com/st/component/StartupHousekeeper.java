@@ -1,7 +1,9 @@
 package com.st.component;
 
+import com.st.serviceImpl.ImageServiceImpl;
 import org.apache.log4j.Logger;
 import org.joda.time.DateTimeZone;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.ApplicationListener;
 import org.springframework.context.event.ContextRefreshedEvent;
 import org.springframework.stereotype.Component;
@@ -13,6 +15,9 @@ import org.springframework.stereotype.Component;
 public class StartupHousekeeper implements ApplicationListener<ContextRefreshedEvent> {
 
     private static final Logger logger = Logger.getLogger(StartupHousekeeper.class);
+
+    @Autowired
+    ImageServiceImpl imageService;
     
     /**
      * (Hopefully) invoked once at app startup (more or less).
@@ -24,6 +29,10 @@ public class StartupHousekeeper implements ApplicationListener<ContextRefreshedE
         // Set the default timezone to UTC.
         logger.info("Setting the default time zone to UTC.");
         DateTimeZone.setDefault(DateTimeZone.UTC);
+
+        // Record the metadata of images stored under their name, if enabled.
+        logger.info("Scheduling recording the metadata of images stored under their name.");
+        imageService.migrateInBackground();
     }
 
 }
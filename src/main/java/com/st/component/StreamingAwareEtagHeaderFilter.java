@@ -0,0 +1,39 @@
+package com.st.component;
+
+import java.util.regex.Pattern;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import org.springframework.web.filter.ShallowEtagHeaderFilter;
+
+/**
+ * ETag filter that skips streamed responses. The ShallowEtagHeaderFilter
+ * buffers the whole response to hash it, which defeats writing large
+ * responses incrementally. Requests whose path (within the application)
+ * matches the "excludedPaths" init-param regex are not filtered, nor are
+ * streamed listings, requested with "stream=true".
+ */
+public class StreamingAwareEtagHeaderFilter extends ShallowEtagHeaderFilter {
+
+    private Pattern excludedPaths;
+
+    /**
+     * Sets the regex of the paths to exclude. Set from the filter init-param.
+     * @param excludedPaths the regex, e.g. "/rest/features/[^/]+/matrix".
+     */
+    public void setExcludedPaths(String excludedPaths) {
+        this.excludedPaths = Pattern.compile(excludedPaths.trim());
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) throws ServletException {
+        if ("true".equals(request.getParameter("stream"))) {
+            return true;
+        }
+        if (excludedPaths == null) {
+            return false;
+        }
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        return excludedPaths.matcher(path).matches();
+    }
+
+}
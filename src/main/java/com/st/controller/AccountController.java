@@ -19,11 +19,18 @@ import com.st.serviceImpl.DatasetServiceImpl;
 import com.st.serviceImpl.FeaturesServiceImpl;
 import com.st.serviceImpl.SelectionServiceImpl;
 import com.st.util.DateOperations;
+import com.st.util.FieldProjection;
+import com.st.util.ModelHandler;
+import com.st.util.JsonArrayWriter;
+import com.st.util.KeysetPage;
+import com.st.util.PageQuery;
 import static com.st.util.DateOperations.checkIfModified;
 import static com.st.util.HTTPOperations.getHTTPHeaderWithCache;
+import java.io.IOException;
 import java.security.Principal;
 import java.util.Iterator;
 import java.util.List;
+import javax.servlet.http.HttpServletResponse;
 import javax.validation.Valid;
 import org.apache.log4j.Logger;
 import org.joda.time.DateTime;
@@ -77,16 +84,41 @@ public class AccountController {
 
     /**
      * GET|HEAD /account/
+     * GET|HEAD /account/?limit={limit}&sort={field}&cursor={cursor}
      * 
      * Lists enabled/disabled accounts.
+     * With fields=a,b,c only these fields are returned. The password is never
+     * returned; updates keep it unless a new one is given.
+     * Paginated with limit, sort and cursor, the next page cursor is returned
+     * in the X-Next-Cursor header. Without limit, at most PageQuery.LEGACY_LIMIT
+     * are returned.
      * @param onlyEnabled when true filter out disabled accounts
-     * @return the list.
+     * @param fields the fields to return, or all.
+     * @param limit the page size, at most PageQuery.MAX_LIMIT.
+     * @param sort the sort field, "-" prefixed for descending order.
+     * @param cursor the X-Next-Cursor of the previous page.
+     * @return the page.
      */
     @Secured({"ROLE_CM", "ROLE_ADMIN"})
     @RequestMapping(method = {RequestMethod.GET, RequestMethod.HEAD})
-    public @ResponseBody List<Account> list(
-            @RequestParam(value = "onlyEnabled", required = false, defaultValue = "false") boolean onlyEnabled) {     
-        List<Account> accounts = accountService.list();
+    public @ResponseBody HttpEntity<List<?>> list(
+            @RequestParam(value = "onlyEnabled", required = false, defaultValue = "false") boolean onlyEnabled,
+            @RequestParam(value = "fields", required = false) String fields,
+            @RequestParam(value = "limit", required = false) Integer limit,
+            @RequestParam(value = "sort", required = false) String sort,
+            @RequestParam(value = "cursor", required = false) String cursor) {     
+        FieldProjection projection = FieldProjection.parse(fields).exclude("password");
+        PageQuery page;
+        try {
+            page = PageQuery.parse(limit, sort, cursor);
+        } catch (IllegalArgumentException ex) {
+            throw new CustomBadRequestException(ex.getMessage());
+        }
+        if (page.getSort().equals("password")) {
+            throw new CustomBadRequestException("Accounts cannot be sorted by password.");
+        }
+        KeysetPage<Account> accountPage = accountService.list(projection, page);
+        List<Account> accounts = accountPage.getItems();
         if (accounts == null) {
             logger.info("Returning empty list of accounts");
             throw new CustomNotFoundException("No accounts found or you don't have permissions to access");
@@ -102,7 +134,51 @@ public class AccountController {
             }
         }
         logger.info("Returning list of accounts");
-        return accounts;
+        return new HttpEntity<List<?>>(projection.filter(accounts), accountPage.headers());
+    }
+
+    /**
+     * GET /account/?stream=true
+     *
+     * Streams all accounts as a JSON array for full exports, each written as soon
+     * as it is read from the database, without holding the list in memory.
+     * @param onlyEnabled when true filter out disabled accounts
+     * @param fields the fields to return, or all, never the password.
+     * @param response HTTP response containing the array.
+     */
+    @Secured({"ROLE_CM", "ROLE_ADMIN"})
+    @RequestMapping(method = RequestMethod.GET, params = "stream=true")
+    public void stream(
+            @RequestParam(value = "onlyEnabled", required = false, defaultValue = "false") boolean onlyEnabled,
+            @RequestParam(value = "fields", required = false) String fields,
+            HttpServletResponse response) {
+        FieldProjection projection = FieldProjection.parse(fields).exclude("password");
+        response.setContentType("application/json;charset=UTF-8");
+        response.addHeader("Cache-Control", "private, no-transform");
+        try {
+            final JsonArrayWriter<Account> writer = new JsonArrayWriter<>(response.getOutputStream(), projection);
+            ModelHandler<Account> handler = writer;
+            if (onlyEnabled) {
+                handler = new ModelHandler<Account>() {
+                    @Override
+                    public void handle(Account account) {
+                        if (account.isEnabled()) {
+                            writer.handle(account);
+                        }
+                    }
+                };
+            }
+            if (!accountService.stream(projection, handler)) {
+                logger.info("Failed to stream accounts. Permission denied.");
+                throw new CustomNotFoundException("No accounts found or you don't have permissions to access");
+            }
+            writer.close();
+            logger.info("Streamed " + writer.getCount() + " accounts");
+            response.flushBuffer();
+        } catch (IOException ex) {
+            logger.error("Error streaming accounts to output stream");
+            throw new RuntimeException("IOError writing accounts to HTTP response", ex);
+        }
     }
     
     
@@ -264,7 +340,7 @@ public class AccountController {
     /**
      * PUT /account/{id}
      * 
-     * Updates an account
+     * Updates an account. Without a password, the account keeps its own.
      * @param id the account ID.
      * @param account the account.
      * @param result binding.
@@ -293,7 +369,10 @@ public class AccountController {
                     "Another account with this username exists already. Usernames are unique.");
         }
         Account oldAcc = accountService.find(id);
-        if (!oldAcc.getPassword().equals(account.getPassword())) {
+        if (account.getPassword() == null) {
+            // Lists do not return the password, so it is kept unless given.
+            account.setPassword(oldAcc.getPassword());
+        } else if (!oldAcc.getPassword().equals(account.getPassword())) {
             // Update password only on change (and encrypt cleartext if updated!).
             account.setPassword(passwordEncoder.encode(account.getPassword()));
         }
@@ -0,0 +1,86 @@
+package com.st.controller;
+
+import com.st.exceptions.CustomInternalServerErrorException;
+import com.st.exceptions.CustomInternalServerErrorResponse;
+import com.st.model.MongoUserDetails;
+import com.st.serviceImpl.ChangeFeedServiceImpl;
+import com.st.serviceImpl.MongoUserDetailsServiceImpl;
+import java.io.IOException;
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.security.access.annotation.Secured;
+import org.springframework.stereotype.Controller;
+import org.springframework.stereotype.Repository;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * This class is Spring MVC controller class for the API endpoint "rest/changes".
+ * It implements the methods available at this endpoint.
+ */
+@Repository
+@Controller
+@RequestMapping("/rest/changes")
+public class ChangeFeedController {
+
+    private static final Logger logger = Logger.getLogger(ChangeFeedController.class);
+
+    @Autowired
+    ChangeFeedServiceImpl changeFeedService;
+
+    @Autowired
+    MongoUserDetailsServiceImpl customUserDetailsService;
+
+    /**
+     * GET /changes
+     *
+     * Subscribes to the changes of the resources visible to the user, as
+     * Server-Sent Events (text/event-stream), instead of polling. Each event
+     * holds a JSON object with the type ("dataset", "selection",
+     * "imagealignment", "chip", "account", "features" or "image"), action
+     * ("added", "updated" or "deleted") and ID of a resource. The stream ends
+     * after a while and the client reconnects, sending Last-Event-ID to
+     * continue where it left off. A "reset" event tells that events have been
+     * missed and the client should resync. Only the changes made through the
+     * server the client is connected to are sent. Clients that cannot keep
+     * up are disconnected, and catch up when they reconnect.
+     * @param request the request.
+     * @param response the response, which stays open.
+     * @param lastEventId the ID of the last event received, when reconnecting.
+     * @throws IOException on failure to start the stream.
+     */
+    @Secured({"ROLE_CM", "ROLE_USER", "ROLE_ADMIN"})
+    @RequestMapping(method = RequestMethod.GET)
+    public void subscribe(HttpServletRequest request, HttpServletResponse response,
+            @RequestHeader(value="Last-Event-ID", required=false) String lastEventId) throws IOException {
+        if (!request.isAsyncSupported()) {
+            logger.error("Failed to subscribe to changes: asynchronous requests not supported");
+            throw new CustomInternalServerErrorException("The change feed is not available.");
+        }
+        MongoUserDetails user = customUserDetailsService.loadCurrentUser();
+        response.setContentType("text/event-stream;charset=UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        // Tells proxies such as nginx not to buffer the stream.
+        response.setHeader("X-Accel-Buffering", "no");
+        response.flushBuffer();
+        // Events are written to the unwrapped response of the async context, from another thread.
+        AsyncContext async = request.startAsync();
+        changeFeedService.subscribe(async, user, lastEventId);
+    }
+
+    @ExceptionHandler(CustomInternalServerErrorException.class)
+    @ResponseStatus(value = HttpStatus.INTERNAL_SERVER_ERROR)
+    public @ResponseBody
+    CustomInternalServerErrorResponse handleInternalServerException(CustomInternalServerErrorException ex) {
+        return new CustomInternalServerErrorResponse(ex.getMessage());
+    }
+
+}
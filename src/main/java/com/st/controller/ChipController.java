@@ -15,7 +15,15 @@ import com.st.serviceImpl.ChipServiceImpl;
 import com.st.serviceImpl.DatasetServiceImpl;
 import com.st.serviceImpl.ImageAlignmentServiceImpl;
 import com.st.util.DateOperations;
+import com.st.util.FieldProjection;
+import com.st.util.HTTPOperations;
+import com.st.util.JsonArrayWriter;
+import com.st.util.KeysetPage;
+import com.st.util.PageQuery;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import javax.servlet.http.HttpServletResponse;
 import javax.validation.Valid;
 import org.apache.log4j.Logger;
 import org.joda.time.DateTime;
@@ -61,24 +69,96 @@ public class ChipController {
 
     /**
      * GET|HEAD /chip/
+     * GET|HEAD /chip/?limit={limit}&sort={field}&cursor={cursor}
      *
      * Lists chips.
-     * @return the list.
+     * With fields=a,b,c only these fields are returned.
+     * Paginated with limit, sort and cursor, the next page cursor is returned
+     * in the X-Next-Cursor header. Without limit, at most PageQuery.LEGACY_LIMIT
+     * are returned.
+     * @param fields the fields to return, or all.
+     * @param limit the page size, at most PageQuery.MAX_LIMIT.
+     * @param sort the sort field, "-" prefixed for descending order.
+     * @param cursor the X-Next-Cursor of the previous page.
+     * @return the page.
      */
     @Secured({"ROLE_CM", "ROLE_ADMIN"})
     @RequestMapping(method = {RequestMethod.GET, RequestMethod.HEAD})
     public @ResponseBody
-    List<Chip> list() {
-        List<Chip> chips = chipService.list();
+    HttpEntity<List<?>> list(@RequestParam(value = "fields", required = false) String fields,
+            @RequestParam(value = "limit", required = false) Integer limit,
+            @RequestParam(value = "sort", required = false) String sort,
+            @RequestParam(value = "cursor", required = false) String cursor) {
+        FieldProjection projection = FieldProjection.parse(fields);
+        PageQuery page;
+        try {
+            page = PageQuery.parse(limit, sort, cursor);
+        } catch (IllegalArgumentException ex) {
+            throw new CustomBadRequestException(ex.getMessage());
+        }
+        KeysetPage<Chip> chipPage = chipService.list(projection, page);
+        List<Chip> chips = chipPage.getItems();
         if (chips == null) {
             logger.info("Returning empty list of chips");
             throw new CustomNotFoundException("No chips found or you dont "
                     + "have permissions to access them.");
         }
         logger.info("Returning list of chips");
+        return new HttpEntity<List<?>>(projection.filter(chips), chipPage.headers());
+    }
+
+    /**
+     * GET|HEAD /chip/?ids={id1},{id2},...
+     *
+     * Finds several chips in one request. Missing chips are left out.
+     * @param ids comma-separated chip IDs.
+     * @return the list.
+     */
+    @Secured({"ROLE_CM", "ROLE_USER", "ROLE_ADMIN"})
+    @RequestMapping(method = {RequestMethod.GET, RequestMethod.HEAD}, params = "ids")
+    public @ResponseBody
+    List<Chip> getByIds(@RequestParam(value = "ids") String ids) {
+        List<String> idList = HTTPOperations.parseCommaList(ids);
+        if (idList.isEmpty() || idList.size() > PageQuery.MAX_LIMIT) {
+            logger.info("Failed to return chips by ID. Invalid number of IDs.");
+            throw new CustomBadRequestException("Between 1 and " + PageQuery.MAX_LIMIT
+                    + " comma-separated IDs must be given.");
+        }
+        List<Chip> chips = chipService.findByIds(idList);
+        logger.info("Returning " + chips.size() + " chips by ID");
         return chips;
     }
 
+    /**
+     * GET /chip/?stream=true
+     *
+     * Streams all chips as a JSON array for full exports, each written as soon
+     * as it is read from the database, without holding the list in memory.
+     * @param fields the fields to return, or all.
+     * @param response HTTP response containing the array.
+     */
+    @Secured({"ROLE_CM", "ROLE_ADMIN"})
+    @RequestMapping(method = RequestMethod.GET, params = "stream=true")
+    public void stream(@RequestParam(value = "fields", required = false) String fields,
+            HttpServletResponse response) {
+        FieldProjection projection = FieldProjection.parse(fields);
+        response.setContentType("application/json;charset=UTF-8");
+        response.addHeader("Cache-Control", "private, no-transform");
+        try {
+            JsonArrayWriter<Chip> writer = new JsonArrayWriter<>(response.getOutputStream(), projection);
+            if (!chipService.stream(projection, writer)) {
+                logger.info("Failed to stream chips. Permission denied.");
+                throw new CustomNotFoundException("No chips found or you dont have permissions to access them.");
+            }
+            writer.close();
+            logger.info("Streamed " + writer.getCount() + " chips");
+            response.flushBuffer();
+        } catch (IOException ex) {
+            logger.error("Error streaming chips to output stream");
+            throw new RuntimeException("IOError writing chips to HTTP response", ex);
+        }
+    }
+
     /**
      * GET|HEAD /chip/{id}
      *
@@ -230,9 +310,11 @@ public class ChipController {
         if (cascade) {
             List<ImageAlignment> imals = imageAlignmentService.deleteForChip(id);
             if (imals != null) {
+                List<String> imalIds = new ArrayList<>(imals.size());
                 for (ImageAlignment imal : imals) {
-                    datasetService.setUnabledForImageAlignment(imal.getId());
+                    imalIds.add(imal.getId());
                 }
+                datasetService.setUnabledForImageAlignments(imalIds);
             }
             logger.info("Successfully cascade-deleted dependencies for chip " + id);
         }
@@ -9,17 +9,33 @@ import com.st.exceptions.CustomNotFoundException;
 import com.st.exceptions.CustomNotModifiedException;
 import com.st.exceptions.NotFoundResponse;
 import com.st.exceptions.NotModifiedResponse;
+import com.st.model.Chip;
 import com.st.model.Dataset;
+import com.st.model.DatasetBundle;
+import com.st.model.ImageAlignment;
+import com.st.model.ImageMetadata;
 import com.st.model.LastModifiedDate;
+import com.st.serviceImpl.ChipServiceImpl;
 import com.st.serviceImpl.DatasetInfoServiceImpl;
 import com.st.serviceImpl.DatasetServiceImpl;
 import com.st.serviceImpl.FeaturesServiceImpl;
+import com.st.serviceImpl.ImageAlignmentServiceImpl;
+import com.st.serviceImpl.ImageServiceImpl;
 import com.st.serviceImpl.SelectionServiceImpl;
 import com.st.util.DateOperations;
+import com.st.util.FieldProjection;
+import com.st.util.HTTPOperations;
+import com.st.util.ModelHandler;
+import com.st.util.JsonArrayWriter;
+import com.st.util.KeysetPage;
+import com.st.util.PageQuery;
 import static com.st.util.DateOperations.checkIfModified;
 import static com.st.util.HTTPOperations.getHTTPHeaderWithCache;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import javax.servlet.http.HttpServletResponse;
 import javax.validation.Valid;
 import org.apache.log4j.Logger;
 import org.joda.time.DateTime;
@@ -66,27 +82,57 @@ public class DatasetController {
     @Autowired
     DatasetInfoServiceImpl datasetInfoService;
 
+    @Autowired
+    ImageAlignmentServiceImpl imageAlignmentService;
+
+    @Autowired
+    ChipServiceImpl chipService;
+
+    @Autowired
+    ImageServiceImpl imageService;
+
     /**
      * GET|HEAD /dataset/
      * GET|HEAD /dataset/?account={accountId}
+     * GET|HEAD /dataset/?limit={limit}&sort={field}&cursor={cursor}
      * 
      * Lists enabled/disabled datasets.
+     * With fields=a,b,c only these fields are returned.
+     * Paginated with limit, sort and cursor, the next page cursor is returned
+     * in the X-Next-Cursor header. Without limit, at most PageQuery.LEGACY_LIMIT
+     * are returned.
      * @param accountId the account ID.
      * @param onlyEnabled when true filters out disabled datasets
-     * @return the list.
+     * @param fields the fields to return, or all.
+     * @param limit the page size, at most PageQuery.MAX_LIMIT.
+     * @param sort the sort field, "-" prefixed for descending order.
+     * @param cursor the X-Next-Cursor of the previous page.
+     * @return the page.
      */
     @Secured({"ROLE_CM", "ROLE_USER", "ROLE_ADMIN"})
     @RequestMapping(method = {RequestMethod.GET, RequestMethod.HEAD})
-    public @ResponseBody List<Dataset> list(
+    public @ResponseBody HttpEntity<List<?>> list(
             @RequestParam(value = "account", required = false) String accountId,
-            @RequestParam(value = "onlyEnabled", required = false, defaultValue = "true") boolean onlyEnabled) {
+            @RequestParam(value = "onlyEnabled", required = false, defaultValue = "true") boolean onlyEnabled,
+            @RequestParam(value = "fields", required = false) String fields,
+            @RequestParam(value = "limit", required = false) Integer limit,
+            @RequestParam(value = "sort", required = false) String sort,
+            @RequestParam(value = "cursor", required = false) String cursor) {
         
-        List<Dataset> datasets;
+        FieldProjection projection = FieldProjection.parse(fields);
+        PageQuery page;
+        try {
+            page = PageQuery.parse(limit, sort, cursor);
+        } catch (IllegalArgumentException ex) {
+            throw new CustomBadRequestException(ex.getMessage());
+        }
+        KeysetPage<Dataset> datasetPage;
         if (accountId != null) {
-            datasets = datasetService.findByAccount(accountId);
+            datasetPage = datasetService.findByAccount(accountId, projection, page);
         } else {
-            datasets = datasetService.list();
+            datasetPage = datasetService.list(projection, page);
         }
+        List<Dataset> datasets = datasetPage.getItems();
         
         if (datasets == null) {
             logger.info("Returning empty list of datasets");
@@ -105,8 +151,142 @@ public class DatasetController {
         }
         
         logger.info("Returning list of datasets");
+        return new HttpEntity<List<?>>(projection.filter(datasets), datasetPage.headers());
+    }
+
+    /**
+     * GET|HEAD /dataset/?ids={id1},{id2},...
+     *
+     * Finds several enabled/disabled datasets in one request. Datasets that
+     * are missing, disabled or not granted are left out.
+     * @param ids comma-separated dataset IDs.
+     * @param onlyEnabled when true filters out disabled datasets
+     * @return the list.
+     */
+    @Secured({"ROLE_CM", "ROLE_USER", "ROLE_ADMIN"})
+    @RequestMapping(method = {RequestMethod.GET, RequestMethod.HEAD}, params = "ids")
+    public @ResponseBody List<Dataset> getByIds(
+            @RequestParam(value = "ids") String ids,
+            @RequestParam(value = "onlyEnabled", required = false, defaultValue = "true") boolean onlyEnabled) {
+        List<String> idList = HTTPOperations.parseCommaList(ids);
+        if (idList.isEmpty() || idList.size() > PageQuery.MAX_LIMIT) {
+            logger.info("Failed to return datasets by ID. Invalid number of IDs.");
+            throw new CustomBadRequestException("Between 1 and " + PageQuery.MAX_LIMIT
+                    + " comma-separated IDs must be given.");
+        }
+        List<Dataset> datasets = datasetService.findByIds(idList);
+        if (onlyEnabled) {
+            Iterator<Dataset> it = datasets.iterator();
+            while (it.hasNext()) {
+                Dataset dataset = it.next(); // must be called before you can call i.remove()
+                if (!dataset.getEnabled()) {
+                    it.remove();
+                }
+            }
+        }
+        logger.info("Returning " + datasets.size() + " datasets by ID");
         return datasets;
     }
+
+    /**
+     * GET|HEAD /dataset/bundle/{id}
+     *
+     * Finds an enabled/disabled dataset together with its image alignment,
+     * the chip of the alignment and the metadata of the alignment images,
+     * which clients otherwise fetch one after another to open a dataset.
+     * @param id the dataset ID.
+     * @param onlyEnabled if true only a dataset that is enabled can be returned
+     * @return the bundle, with null alignment or chip if missing.
+     */
+    @Secured({"ROLE_CM", "ROLE_USER", "ROLE_ADMIN"})
+    @RequestMapping(value = "/bundle/{id}", method = {RequestMethod.GET, RequestMethod.HEAD})
+    public @ResponseBody HttpEntity<DatasetBundle> getBundle(
+            @PathVariable String id,
+            @RequestParam(value = "onlyEnabled", required = false, defaultValue = "true") boolean onlyEnabled) {
+        Dataset dataset = datasetService.find(id);
+        if (dataset == null || (onlyEnabled && !dataset.getEnabled())) {
+            logger.error("Failed to return bundle of enabled dataset " + id);
+            throw new CustomNotFoundException("A dataset with ID " + id + " doesn't exist, "
+                    + "is disabled, or you don't have permissions to access");
+        }
+        DatasetBundle bundle = new DatasetBundle();
+        bundle.setDataset(dataset);
+        List<ImageMetadata> images = new ArrayList<>(2);
+        DateTime lastModified = dataset.getLast_modified();
+        ImageAlignment imal = (dataset.getImage_alignment_id() == null) ? null
+                : imageAlignmentService.find(dataset.getImage_alignment_id());
+        if (imal != null) {
+            bundle.setImage_alignment(imal);
+            lastModified = latest(lastModified, imal.getLast_modified());
+            Chip chip = (imal.getChip_id() == null) ? null : chipService.find(imal.getChip_id());
+            if (chip != null) {
+                bundle.setChip(chip);
+                lastModified = latest(lastModified, chip.getLast_modified());
+            }
+            for (String figure : new String[] {imal.getFigure_red(), imal.getFigure_blue()}) {
+                ImageMetadata im = (figure == null) ? null : imageService.getImageMetadata(figure);
+                if (im != null) {
+                    images.add(im);
+                    lastModified = latest(lastModified, im.getLastModified());
+                }
+            }
+        }
+        bundle.setImages(images);
+        logger.info("Returning bundle of dataset " + id);
+        return new HttpEntity<>(bundle, getHTTPHeaderWithCache(lastModified));
+    }
+
+    // The later of two optional times.
+    private static DateTime latest(DateTime a, DateTime b) {
+        if (a == null || (b != null && b.isAfter(a))) {
+            return b;
+        }
+        return a;
+    }
+
+    /**
+     * GET /dataset/?stream=true
+     *
+     * Streams all datasets as a JSON array for full exports, each written as soon
+     * as it is read from the database, without holding the list in memory.
+     * @param onlyEnabled when true filters out disabled datasets
+     * @param fields the fields to return, or all.
+     * @param response HTTP response containing the array.
+     */
+    @Secured({"ROLE_CM", "ROLE_USER", "ROLE_ADMIN"})
+    @RequestMapping(method = RequestMethod.GET, params = "stream=true")
+    public void stream(
+            @RequestParam(value = "onlyEnabled", required = false, defaultValue = "true") boolean onlyEnabled,
+            @RequestParam(value = "fields", required = false) String fields,
+            HttpServletResponse response) {
+        FieldProjection projection = FieldProjection.parse(fields);
+        response.setContentType("application/json;charset=UTF-8");
+        response.addHeader("Cache-Control", "private, no-transform");
+        try {
+            final JsonArrayWriter<Dataset> writer = new JsonArrayWriter<>(response.getOutputStream(), projection);
+            ModelHandler<Dataset> handler = writer;
+            if (onlyEnabled) {
+                handler = new ModelHandler<Dataset>() {
+                    @Override
+                    public void handle(Dataset dataset) {
+                        if (dataset.getEnabled()) {
+                            writer.handle(dataset);
+                        }
+                    }
+                };
+            }
+            if (!datasetService.stream(projection, handler)) {
+                logger.info("Failed to stream datasets. Permission denied.");
+                throw new CustomNotFoundException("No datasets found or you don't have permissions to access");
+            }
+            writer.close();
+            logger.info("Streamed " + writer.getCount() + " datasets");
+            response.flushBuffer();
+        } catch (IOException ex) {
+            logger.error("Error streaming datasets to output stream");
+            throw new RuntimeException("IOError writing datasets to HTTP response", ex);
+        }
+    }
     
     /**
      * GET|HEAD /dataset/{id}
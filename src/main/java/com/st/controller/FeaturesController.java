@@ -8,15 +8,25 @@ import com.st.exceptions.CustomNotFoundException;
 import com.st.exceptions.CustomNotModifiedException;
 import com.st.exceptions.NotFoundResponse;
 import com.st.exceptions.NotModifiedResponse;
+import com.st.model.FeaturesDelta;
 import com.st.model.FeaturesMetadata;
+import com.st.model.GenePresence;
 import com.st.model.S3Resource;
 import com.st.model.LastModifiedDate;
 import com.st.serviceImpl.FeaturesServiceImpl;
+import com.st.serviceImpl.FeaturesTileServiceImpl;
+import com.st.serviceImpl.GenePresenceServiceImpl;
 import com.st.serviceImpl.MongoUserDetailsServiceImpl;
 import com.st.util.DateOperations;
+import com.st.util.FeaturesMatrixWriter;
+import com.st.util.HTTPOperations;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
 import javax.servlet.http.HttpServletResponse;
 import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
@@ -34,6 +44,7 @@ import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.ResponseStatus;
 
@@ -51,6 +62,12 @@ public class FeaturesController {
     @Autowired
     FeaturesServiceImpl featuresService;
 
+    @Autowired
+    FeaturesTileServiceImpl featuresTileService;
+
+    @Autowired
+    GenePresenceServiceImpl genePresenceService;
+
     @Autowired
     MongoUserDetailsServiceImpl customUserDetailsService;
 
@@ -129,19 +146,36 @@ public class FeaturesController {
     
     
     /**
-     * Returns the zipped features payload as a file.
+     * Returns the zipped features payload as a file. If the client accepts it,
+     * a precompressed alternative encoding (e.g. xz) is returned instead of gzip.
      *
      * @param id dataset ID.
      * @param response HTTP response containing the file.
      * @param ifModifiedSince last modified tag.
+     * @param acceptEncoding accepted content encodings.
      */
     @Secured({"ROLE_CM", "ROLE_USER", "ROLE_ADMIN"})
     @RequestMapping(value = "{id}", method = {RequestMethod.GET, RequestMethod.HEAD})
     public void getAsFile(@PathVariable String id, HttpServletResponse response,
-            @RequestHeader(value="If-Modified-Since", defaultValue="") String ifModifiedSince) {
+            @RequestHeader(value="If-Modified-Since", defaultValue="") String ifModifiedSince,
+            @RequestHeader(value="Accept-Encoding", defaultValue="") String acceptEncoding) {
         try {
             FeaturesMetadata meta = featuresService.getMetadata(id);
-            InputStream is = featuresService.find(id);
+            // Serve the preferred precompressed encoding the client accepts, else gzip.
+            String encoding = "gzip";
+            InputStream is = null;
+            for (String alternative : FeaturesServiceImpl.ALTERNATIVE_ENCODINGS) {
+                if (meta != null && HTTPOperations.acceptsEncoding(acceptEncoding, alternative)) {
+                    is = featuresService.find(id, alternative);
+                    if (is != null) {
+                        encoding = alternative;
+                        break;
+                    }
+                }
+            }
+            if (is == null) {
+                is = featuresService.find(id);
+            }
             if (meta == null || is == null) {
                 logger.info("Failed to return features as JSON for dataset " + id);
                 throw new CustomNotFoundException("A features file for a dataset with "
@@ -164,11 +198,11 @@ public class FeaturesController {
             // Copy raw stream into response.
             IOUtils.copy(is, response.getOutputStream());
             response.setContentType("application/json");
-            response.addHeader("Content-Encoding", "gzip");
+            response.addHeader("Content-Encoding", encoding);
             response.addHeader("Cache-Control", "public, must-revalidate, no-transform");
             response.addHeader("Vary", "Accept-Encoding");
             response.addHeader("Last-modified", DateOperations.getHTTPDateSafely(meta.getLastModified()));
-            logger.info("Returning features as raw gzip file for dataset " + id);
+            logger.info("Returning features as raw " + encoding + " file for dataset " + id);
             response.flushBuffer();
         } catch (IOException ex) {
             logger.error("Error writing features file to output stream with file " + id);
@@ -176,6 +210,80 @@ public class FeaturesController {
         }
     }
 
+    /**
+     * GET|HEAD /features/{id}/matrix
+     *
+     * Returns the features as a sparse gene-by-spot matrix of hits, streamed
+     * from the stored features file. Formats are "mtx" (MatrixMarket
+     * coordinate) and "csr" (JSON with indptr, indices and data arrays).
+     *
+     * @param id dataset ID.
+     * @param format the matrix format, "mtx" or "csr".
+     * @param genes comma-separated genes to include, or all if omitted.
+     * @param spots comma-separated barcodes of the spots to include, or all if omitted.
+     * @param acceptEncoding accepted content encodings.
+     * @param response HTTP response containing the matrix.
+     */
+    @Secured({"ROLE_CM", "ROLE_USER", "ROLE_ADMIN"})
+    @RequestMapping(value = "/{id}/matrix", method = {RequestMethod.GET, RequestMethod.HEAD})
+    public void getAsMatrix(@PathVariable String id,
+            @RequestParam(value = "format", required = false, defaultValue = "mtx") String format,
+            @RequestParam(value = "genes", required = false) String genes,
+            @RequestParam(value = "spots", required = false) String spots,
+            @RequestHeader(value="Accept-Encoding", defaultValue="") String acceptEncoding,
+            HttpServletResponse response) {
+        if (!format.equals("mtx") && !format.equals("csr")) {
+            logger.info("Failed to return features matrix for dataset " + id + ". Unknown format " + format);
+            throw new CustomBadRequestException("The matrix format must be mtx or csr.");
+        }
+        InputStream is = featuresService.find(id);
+        if (is == null) {
+            logger.info("Failed to return features matrix for dataset " + id);
+            throw new CustomNotFoundException("A features file for a dataset with "
+                    + "this ID does not exist, or you dont have permissions to access it.");
+        }
+        FeaturesMatrixWriter writer = new FeaturesMatrixWriter(parseSubset(genes), parseSubset(spots));
+        try {
+            response.setContentType(format.equals("csr") ? "application/json" : "text/plain;charset=UTF-8");
+            response.addHeader("Content-Disposition", "attachment; filename=\"" + id + "." + format + "\"");
+            response.addHeader("Cache-Control", "private, no-transform");
+            response.addHeader("Vary", "Accept-Encoding");
+            OutputStream out = response.getOutputStream();
+            GZIPOutputStream gz = null;
+            if (HTTPOperations.acceptsEncoding(acceptEncoding, "gzip")) {
+                response.addHeader("Content-Encoding", "gzip");
+                out = gz = new GZIPOutputStream(out, 64 * 1024);
+            }
+            if (format.equals("csr")) {
+                writer.writeCsr(is, out);
+            } else {
+                writer.writeMatrixMarket(is, out);
+            }
+            if (gz != null) {
+                gz.finish();
+            }
+            logger.info("Returning features as " + format + " matrix for dataset " + id);
+            response.flushBuffer();
+        } catch (IOException ex) {
+            logger.error("Error writing features matrix to output stream for dataset " + id);
+            throw new RuntimeException("IOError writing features matrix to HTTP response", ex);
+        }
+    }
+
+    // Parses a comma-separated request parameter into a set, or null if absent.
+    private static Set<String> parseSubset(String param) {
+        if (param == null || param.trim().isEmpty()) {
+            return null;
+        }
+        Set<String> subset = new HashSet<>();
+        for (String s : param.split(",")) {
+            if (!s.trim().isEmpty()) {
+                subset.add(s.trim());
+            }
+        }
+        return subset;
+    }
+
     /**
      * PUT /features/
      * 
@@ -197,6 +305,48 @@ public class FeaturesController {
         }
     }
 
+    /**
+     * PATCH /features/{id}
+     * 
+     * Applies added, removed and changed features (keyed by barcode and gene)
+     * to a stored features file. The previous version is kept for rollback.
+     * @param id the dataset ID.
+     * @param delta the changes.
+     */
+    @Secured({"ROLE_CM", "ROLE_ADMIN"})
+    @RequestMapping(value = "{id}", method = RequestMethod.PATCH)
+    public @ResponseBody
+    void patch(@PathVariable String id, @RequestBody FeaturesDelta delta) {
+        if (delta.getAdded() == null || delta.getRemoved() == null || delta.getChanged() == null) {
+            logger.error("Failed to patch features for dataset " + id + ". Missing fields?");
+            throw new CustomBadRequestException("The features delta must contain "
+                    + "added, removed and changed features.");
+        }
+        if (!featuresService.patch(id, delta)) {
+            logger.info("Failed to patch features for dataset " + id + ". Missing file.");
+            throw new CustomNotFoundException("A features file for a dataset with this ID does not exist.");
+        }
+        logger.info("Patched features file for dataset " + id);
+    }
+
+    /**
+     * POST /features/rollback/{id}
+     * 
+     * Restores the features file version preceding the last patch.
+     * @param id the dataset ID.
+     */
+    @Secured({"ROLE_CM", "ROLE_ADMIN"})
+    @RequestMapping(value = "/rollback/{id}", method = RequestMethod.POST)
+    public @ResponseBody
+    void rollback(@PathVariable String id) {
+        if (!featuresService.rollback(id)) {
+            logger.info("Failed to roll back features for dataset " + id + ". No previous version.");
+            throw new CustomNotFoundException("There is no previous version of the "
+                    + "features file for a dataset with this ID.");
+        }
+        logger.info("Rolled back features file for dataset " + id);
+    }
+
     /**
      * DELETE /features/{id}
      * 
@@ -232,6 +382,86 @@ public class FeaturesController {
         return new LastModifiedDate(feat.getLastModified());
     }
 
+    /**
+     * GET|HEAD /features/genes/{gene}
+     * 
+     * Finds the granted datasets expressing a gene, with the total hits and
+     * spot count of the gene in each, most hits first.
+     * @param gene the gene.
+     * @return the list.
+     */
+    @Secured({"ROLE_CM", "ROLE_USER", "ROLE_ADMIN"})
+    @RequestMapping(value = "/genes/{gene:.+}", method = {RequestMethod.GET, RequestMethod.HEAD})
+    public @ResponseBody
+    List<GenePresence> listByGene(@PathVariable String gene) {
+        List<GenePresence> l = genePresenceService.findByGene(gene);
+        logger.info("Returning " + l.size() + " datasets expressing gene " + gene);
+        return l;
+    }
+
+    /**
+     * GET|HEAD /features/{id}/tiles
+     * 
+     * Returns the description of the level-of-detail tile pyramid of a
+     * features file (number of levels, bins per tile side and origin).
+     * @param id the dataset ID.
+     * @param response HTTP response containing the gzipped JSON.
+     */
+    @Secured({"ROLE_CM", "ROLE_USER", "ROLE_ADMIN"})
+    @RequestMapping(value = "/{id}/tiles", method = {RequestMethod.GET, RequestMethod.HEAD})
+    public void getTilePyramid(@PathVariable String id, HttpServletResponse response) {
+        S3Resource pyramid = featuresTileService.findPyramid(id);
+        if (pyramid == null) {
+            logger.info("Failed to return tile pyramid for dataset " + id);
+            throw new CustomNotFoundException("A tile pyramid for a dataset with this ID does not exist "
+                    + "(yet), or you dont have permissions to access it.");
+        }
+        writeTile(pyramid, response);
+        logger.info("Returning tile pyramid for dataset " + id);
+    }
+
+    /**
+     * GET|HEAD /features/{id}/tiles/{z}/{x}/{y}
+     * 
+     * Returns a tile of aggregated features. Level 0 is a single tile covering
+     * the whole dataset, and every following level doubles the resolution.
+     * Tiles without features do not exist.
+     * @param id the dataset ID.
+     * @param z the zoom level.
+     * @param x the tile column.
+     * @param y the tile row.
+     * @param response HTTP response containing the gzipped JSON.
+     */
+    @Secured({"ROLE_CM", "ROLE_USER", "ROLE_ADMIN"})
+    @RequestMapping(value = "/{id}/tiles/{z}/{x}/{y}", method = {RequestMethod.GET, RequestMethod.HEAD})
+    public void getTile(@PathVariable String id, @PathVariable int z, @PathVariable int x,
+            @PathVariable int y, HttpServletResponse response) {
+        S3Resource tile = featuresTileService.findTile(id, z, x, y);
+        if (tile == null) {
+            logger.info("Failed to return tile " + z + "/" + x + "/" + y + " for dataset " + id);
+            throw new CustomNotFoundException("This tile does not exist, or you dont "
+                    + "have permissions to access it.");
+        }
+        writeTile(tile, response);
+        logger.info("Returning tile " + z + "/" + x + "/" + y + " for dataset " + id);
+    }
+
+    // Copies a stored gzipped tile as is into the response.
+    // Tile URLs are not versioned, so caches revalidate tiles by ETag on every use.
+    private void writeTile(S3Resource tile, HttpServletResponse response) {
+        try {
+            response.setContentType("application/json");
+            response.addHeader("Content-Encoding", "gzip");
+            response.addHeader("Cache-Control", "public, must-revalidate, no-transform");
+            response.addHeader("Vary", "Accept-Encoding");
+            response.getOutputStream().write(tile.getFile());
+            response.flushBuffer();
+        } catch (IOException ex) {
+            logger.error("Error writing tile " + tile.getFilename() + " to output stream");
+            throw new RuntimeException("IOError writing tile to HTTP response", ex);
+        }
+    }
+
     @ExceptionHandler(CustomNotModifiedException.class)
     @ResponseStatus(value = HttpStatus.NOT_MODIFIED)
     public @ResponseBody
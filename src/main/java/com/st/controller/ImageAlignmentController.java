@@ -6,17 +6,30 @@ import com.st.exceptions.CustomInternalServerErrorException;
 import com.st.exceptions.CustomInternalServerErrorResponse;
 import com.st.exceptions.CustomNotFoundException;
 import com.st.exceptions.CustomNotModifiedException;
+import com.st.exceptions.CustomServiceUnavailableException;
 import com.st.exceptions.NotFoundResponse;
 import com.st.exceptions.NotModifiedResponse;
+import com.st.exceptions.ServiceUnavailableResponse;
+import com.st.model.Chip;
 import com.st.model.ImageAlignment;
+import com.st.model.ImageMetadata;
 import com.st.model.LastModifiedDate;
+import com.st.model.S3Resource;
+import com.st.serviceImpl.AlignedImageServiceImpl;
+import com.st.serviceImpl.ChipServiceImpl;
 import com.st.serviceImpl.DatasetServiceImpl;
 import com.st.serviceImpl.ImageAlignmentServiceImpl;
 import com.st.serviceImpl.ImageServiceImpl;
 import com.st.util.DateOperations;
-import java.util.ArrayList;
+import com.st.util.FieldProjection;
+import com.st.util.HTTPOperations;
+import com.st.util.JsonArrayWriter;
+import com.st.util.KeysetPage;
+import com.st.util.PageQuery;
+import java.io.IOException;
 import java.util.HashSet;
 import java.util.List;
+import javax.servlet.http.HttpServletResponse;
 import javax.validation.Valid;
 import org.apache.log4j.Logger;
 import org.joda.time.DateTime;
@@ -60,34 +73,113 @@ public class ImageAlignmentController {
     @Autowired
     DatasetServiceImpl datasetService;
 
+    @Autowired
+    AlignedImageServiceImpl alignedImageService;
+
+    @Autowired
+    ChipServiceImpl chipService;
+
     /**
      * GET|HEAD /imagealignment/
      * GET|HEAD /imagealignment/?chip={chipId}
+     * GET|HEAD /imagealignment/?limit={limit}&sort={field}&cursor={cursor}
      * 
      * List and list for chip.
+     * With fields=a,b,c only these fields are returned.
+     * Paginated with limit, sort and cursor, the next page cursor is returned
+     * in the X-Next-Cursor header. Without limit, at most PageQuery.LEGACY_LIMIT
+     * are returned.
      * @param chipId chip ID.
-     * @return the list
+     * @param fields the fields to return, or all.
+     * @param limit the page size, at most PageQuery.MAX_LIMIT.
+     * @param sort the sort field, "-" prefixed for descending order.
+     * @param cursor the X-Next-Cursor of the previous page.
+     * @return the page.
      */
     @Secured({"ROLE_CM", "ROLE_ADMIN"})
     @RequestMapping(method = {RequestMethod.GET, RequestMethod.HEAD})
     public @ResponseBody
-    List<ImageAlignment> list(@RequestParam(value = "chip", required = false) String chipId) {
-        List<ImageAlignment> imagealignments = null;
+    HttpEntity<List<?>> list(@RequestParam(value = "chip", required = false) String chipId,
+            @RequestParam(value = "fields", required = false) String fields,
+            @RequestParam(value = "limit", required = false) Integer limit,
+            @RequestParam(value = "sort", required = false) String sort,
+            @RequestParam(value = "cursor", required = false) String cursor) {
+        FieldProjection projection = FieldProjection.parse(fields);
+        PageQuery page;
+        try {
+            page = PageQuery.parse(limit, sort, cursor);
+        } catch (IllegalArgumentException ex) {
+            throw new CustomBadRequestException(ex.getMessage());
+        }
+        KeysetPage<ImageAlignment> imalPage;
         if (chipId != null) {
             logger.info("Returning list of image alignments for chip " + chipId);
-            imagealignments = imagealignmentService.findByChip(chipId);
+            imalPage = imagealignmentService.findByChip(chipId, projection, page);
         } else {
             logger.info("Returning list of image alignments");
-            imagealignments = imagealignmentService.list();
+            imalPage = imagealignmentService.list(projection, page);
         }
+        List<ImageAlignment> imagealignments = imalPage.getItems();
         if (imagealignments == null) {
             logger.info("Returning empty list of image alignments");
             throw new CustomNotFoundException("No imagealignments found or you "
                     + "dont have permissions to access them.");
         }
+        return new HttpEntity<List<?>>(projection.filter(imagealignments), imalPage.headers());
+    }
+
+    /**
+     * GET|HEAD /imagealignment/?ids={id1},{id2},...
+     *
+     * Finds several alignments in one request. Missing alignments are left out.
+     * @param ids comma-separated alignment IDs.
+     * @return the list.
+     */
+    @Secured({"ROLE_USER", "ROLE_CM", "ROLE_ADMIN"})
+    @RequestMapping(method = {RequestMethod.GET, RequestMethod.HEAD}, params = "ids")
+    public @ResponseBody
+    List<ImageAlignment> getByIds(@RequestParam(value = "ids") String ids) {
+        List<String> idList = HTTPOperations.parseCommaList(ids);
+        if (idList.isEmpty() || idList.size() > PageQuery.MAX_LIMIT) {
+            logger.info("Failed to return image alignments by ID. Invalid number of IDs.");
+            throw new CustomBadRequestException("Between 1 and " + PageQuery.MAX_LIMIT
+                    + " comma-separated IDs must be given.");
+        }
+        List<ImageAlignment> imagealignments = imagealignmentService.findByIds(idList);
+        logger.info("Returning " + imagealignments.size() + " image alignments by ID");
         return imagealignments;
     }
 
+    /**
+     * GET /imagealignment/?stream=true
+     *
+     * Streams all image alignments as a JSON array for full exports, each written as soon
+     * as it is read from the database, without holding the list in memory.
+     * @param fields the fields to return, or all.
+     * @param response HTTP response containing the array.
+     */
+    @Secured({"ROLE_CM", "ROLE_ADMIN"})
+    @RequestMapping(method = RequestMethod.GET, params = "stream=true")
+    public void stream(@RequestParam(value = "fields", required = false) String fields,
+            HttpServletResponse response) {
+        FieldProjection projection = FieldProjection.parse(fields);
+        response.setContentType("application/json;charset=UTF-8");
+        response.addHeader("Cache-Control", "private, no-transform");
+        try {
+            JsonArrayWriter<ImageAlignment> writer = new JsonArrayWriter<>(response.getOutputStream(), projection);
+            if (!imagealignmentService.stream(projection, writer)) {
+                logger.info("Failed to stream image alignments. Permission denied.");
+                throw new CustomNotFoundException("No imagealignments found or you dont have permissions to access them.");
+            }
+            writer.close();
+            logger.info("Streamed " + writer.getCount() + " image alignments");
+            response.flushBuffer();
+        } catch (IOException ex) {
+            logger.error("Error streaming image alignments to output stream");
+            throw new RuntimeException("IOError writing image alignments to HTTP response", ex);
+        }
+    }
+
     /**
      * GET|HEAD /imagealignment/{id}
      * 
@@ -155,6 +247,112 @@ public class ImageAlignmentController {
         return new LastModifiedDate(imagealignment.getLast_modified());
     }
 
+    /**
+     * GET|HEAD /imagealignment/{id}/aligned/{figure}?size={size}
+     * 
+     * Returns the red or blue figure of an alignment as JPEG, warped by the
+     * alignment matrix into the coordinate space of the chip, so that the
+     * client need not transform the image. The result covers the total area
+     * of the chip, with chip coordinates mapping linearly to its pixels, and
+     * its longest side is size pixels (1024 by default, at most 2048).
+     * 
+     * @param id the alignment ID.
+     * @param figure "red" or "blue".
+     * @param size the longest side, in pixels.
+     * @param ifModifiedSince request mod date info.
+     * @param ifNoneMatch request entity tags.
+     * @param response HTTP response containing the JPEG.
+     */
+    @Secured({"ROLE_USER", "ROLE_CM", "ROLE_ADMIN"})
+    @RequestMapping(value = "{id}/aligned/{figure}", method = {RequestMethod.GET, RequestMethod.HEAD})
+    public void getAligned(@PathVariable String id, @PathVariable String figure,
+            @RequestParam(value = "size", required = false, defaultValue = "1024") int size,
+            @RequestHeader(value="If-Modified-Since", defaultValue="") String ifModifiedSince,
+            @RequestHeader(value="If-None-Match", defaultValue="") String ifNoneMatch,
+            HttpServletResponse response) {
+        if (!figure.equals("red") && !figure.equals("blue")) {
+            throw new CustomBadRequestException("Figure must be red or blue.");
+        }
+        if (size < 1 || size > AlignedImageServiceImpl.MAX_SIZE) {
+            throw new CustomBadRequestException("Size must be between 1 and " + AlignedImageServiceImpl.MAX_SIZE + ".");
+        }
+        ImageAlignment imagealignment = imagealignmentService.find(id);
+        if (imagealignment == null) {
+            logger.info("Failed to return aligned figure of image alignment " + id);
+            throw new CustomNotFoundException("An image alignment with this "
+                    + "ID does not exist or you dont have permissions to access it.");
+        }
+        Chip chip = chipService.find(imagealignment.getChip_id());
+        ImageMetadata image = imageService.getImageMetadata(
+                figure.equals("red") ? imagealignment.getFigure_red() : imagealignment.getFigure_blue());
+        if (chip == null || image == null) {
+            logger.info("Failed to return aligned figure of image alignment " + id);
+            throw new CustomNotFoundException("The figure of this image alignment does not exist "
+                    + "or you dont have permissions to access it.");
+        }
+        // The result changes with the alignment, its chip and the contents of the figure.
+        String etag = AlignedImageServiceImpl.etag(imagealignment, chip, image);
+        DateTime lastModified = latest(imagealignment.getLast_modified(), chip.getLast_modified(),
+                image.getLastModified());
+        response.addHeader("Cache-Control", "public, must-revalidate, no-transform");
+        response.addHeader("Last-modified", DateOperations.getHTTPDateSafely(lastModified));
+        response.addHeader("ETag", etag);
+        // Check if already newest. If-None-Match takes precedence.
+        if (!ifNoneMatch.isEmpty()) {
+            for (String tag : HTTPOperations.parseCommaList(ifNoneMatch)) {
+                if (tag.equals("*") || tag.replaceFirst("^W/", "").equals(etag)) {
+                    logger.info("Not returning aligned figure of image alignment " + id + " since not modified");
+                    throw new CustomNotModifiedException("This image alignment has not been modified");
+                }
+            }
+        }
+        DateTime reqTime = ifNoneMatch.isEmpty() ? DateOperations.parseHTTPDate(ifModifiedSince) : null;
+        if (reqTime != null) {
+            DateTime resTime = lastModified == null 
+                    ? new DateTime(2012,1,1,0,0) : lastModified;
+            // NOTE: Only precision within day.
+            resTime = new DateTime(resTime.getYear(), resTime.getMonthOfYear(), 
+                    resTime.getDayOfMonth(), resTime.getHourOfDay(), 
+                    resTime.getMinuteOfHour(), resTime.getSecondOfMinute());
+            if (!resTime.isAfter(reqTime)) {
+                logger.info("Not returning aligned figure of image alignment " + id + " since not modified");
+                throw new CustomNotModifiedException("This image alignment has not been modified");
+            }
+        }
+        S3Resource aligned;
+        try {
+            aligned = alignedImageService.findAligned(imagealignment, chip, image, size);
+        } catch (IllegalArgumentException ex) {
+            logger.info("Failed to return aligned figure of image alignment " + id + ": " + ex.getMessage());
+            throw new CustomBadRequestException(ex.getMessage());
+        }
+        if (aligned == null) {
+            logger.info("Failed to return aligned figure of image alignment " + id);
+            throw new CustomNotFoundException("The figure of this image alignment does not exist "
+                    + "or you dont have permissions to access it.");
+        }
+        try {
+            response.setContentType(aligned.getContentType());
+            response.getOutputStream().write(aligned.getFile());
+            response.flushBuffer();
+        } catch (IOException ex) {
+            logger.error("Error writing aligned figure of image alignment " + id + " to output stream");
+            throw new RuntimeException("IOError writing image to HTTP response", ex);
+        }
+        logger.info("Returning aligned " + figure + " figure of image alignment " + id);
+    }
+
+    // The latest of some times, any of which may be null.
+    private static DateTime latest(DateTime... times) {
+        DateTime latest = null;
+        for (DateTime t : times) {
+            if (t != null && (latest == null || t.isAfter(latest))) {
+                latest = t;
+            }
+        }
+        return latest;
+    }
+
     /**
      * POST /imagealignment/
      * 
@@ -242,19 +440,13 @@ public class ImageAlignmentController {
         imagealignmentService.delete(id);
         logger.info("Successfully deleted image alignment " + id);
         if (cascade && imal != null) {
-            imagealignmentService.delete(id);
             datasetService.setUnabledForImageAlignment(id);
-            HashSet<String> todel = new HashSet<>(1024);
+            // Figures still used by other alignments are kept.
+            HashSet<String> todel = new HashSet<>(2);
             todel.add(imal.getFigure_blue());
             todel.add(imal.getFigure_red());
-            List<ImageAlignment> imals = imagealignmentService.list();
-            for (ImageAlignment ia : imals) {
-                if (!ia.getId().equals(id)) {
-                    todel.remove(ia.getFigure_blue());
-                    todel.remove(ia.getFigure_red());
-                }
-            }
-            for (String sid : new ArrayList<>(todel)) {
+            todel.removeAll(imagealignmentService.findReferencedFigures(todel));
+            for (String sid : todel) {
                 imageService.delete(sid);
             }
             logger.info("Successfully cascade-deleted dependencies for image alignment " + id);
@@ -282,6 +474,15 @@ public class ImageAlignmentController {
         return new BadRequestResponse(ex.getMessage());
     }
 
+    @ExceptionHandler(CustomServiceUnavailableException.class)
+    @ResponseStatus(value = HttpStatus.SERVICE_UNAVAILABLE)
+    public @ResponseBody
+    ServiceUnavailableResponse handleServiceUnavailableException(CustomServiceUnavailableException ex,
+            HttpServletResponse response) {
+        response.setHeader("Retry-After", String.valueOf(ex.getRetryAfterSeconds()));
+        return new ServiceUnavailableResponse(ex.getMessage());
+    }
+
     @ExceptionHandler(RuntimeException.class)
     @ResponseStatus(value = HttpStatus.INTERNAL_SERVER_ERROR)
     public @ResponseBody
@@ -1,26 +1,39 @@
 package com.st.controller;
 
+import com.amazonaws.services.s3.model.S3Object;
 import com.st.exceptions.BadRequestResponse;
 import com.st.exceptions.CustomBadRequestException;
 import com.st.exceptions.CustomInternalServerErrorException;
 import com.st.exceptions.CustomInternalServerErrorResponse;
 import com.st.exceptions.CustomNotFoundException;
 import com.st.exceptions.CustomNotModifiedException;
+import com.st.exceptions.CustomServiceUnavailableException;
 import com.st.exceptions.NotFoundResponse;
 import com.st.exceptions.NotModifiedResponse;
+import com.st.exceptions.ServiceUnavailableResponse;
+import com.st.component.ImageTranscoder;
 import com.st.model.ImageMetadata;
+import com.st.model.ImageTranscoderMetrics;
 import com.st.model.LastModifiedDate;
 import com.st.model.S3Resource;
+import com.st.serviceImpl.ImageRenditionServiceImpl;
 import com.st.serviceImpl.ImageServiceImpl;
+import com.st.serviceImpl.ImageTileServiceImpl;
+import com.st.util.Base64EncodingOutputStream;
 import com.st.util.DateOperations;
-import java.awt.image.BufferedImage;
+import com.st.util.HTTPOperations;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.List;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.validation.Valid;
 import org.apache.log4j.Logger;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
 import org.joda.time.DateTime;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.http.HttpEntity;
-import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.security.access.annotation.Secured;
@@ -32,6 +45,7 @@ import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.ResponseStatus;
 
@@ -47,9 +61,20 @@ public class ImageController {
     @Autowired
     ImageServiceImpl imageService;
 
+    @Autowired
+    ImageTileServiceImpl imageTileService;
+
+    @Autowired
+    ImageRenditionServiceImpl imageRenditionService;
+
+    @Autowired
+    ImageTranscoder imageTranscoder;
+
     private static final Logger logger = Logger
             .getLogger(ImageController.class);
 
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
     /**
      * GET|HEAD /image/
      *
@@ -71,30 +96,46 @@ public class ImageController {
         return list;
     }
 
+    /**
+     * GET|HEAD /image/transcoder/metrics
+     *
+     * Returns the state of the pool that decodes and encodes images for
+     * requests: queue depth, memory reserved, counts of refused and timed out
+     * requests, and task timings.
+     *
+     * @return the metrics.
+     */
+    @Secured({"ROLE_ADMIN"})
+    @RequestMapping(value = "/transcoder/metrics", method = {RequestMethod.GET, RequestMethod.HEAD})
+    public @ResponseBody
+    ImageTranscoderMetrics getTranscoderMetrics() {
+        return imageTranscoder.getMetrics();
+    }
+
     /**
      * GET|HEAD /image/{id}
      * 
-     * Returns image payload as a decompressed BufferedImage. NOTE: When
+     * Returns image payload decoded and encoded again as JPEG. NOTE: When
      * possible, use getCompressed() or getCompressedAsJSON instead, due to size
      * limitations.
      *
      * @param id the image name.
-     * @return the image as a BufferedImage.
+     * @return the image as JPEG.
      */
     @Secured({"ROLE_CM", "ROLE_USER", "ROLE_ADMIN"})
     @RequestMapping(value = "{id:.+}", produces = MediaType.IMAGE_JPEG_VALUE, 
             method = {RequestMethod.GET, RequestMethod.HEAD})
     public @ResponseBody
-    BufferedImage get(@PathVariable String id) {
+    byte[] get(@PathVariable String id) {
         // this {id:.+} is a workaround for a spring bug that truncates path
         // variables containing a dot
-        BufferedImage img = imageService.getBufferedImage(id);
+        byte[] img = imageService.getDecodedImage(id);
         if (img == null) {
-            logger.info("Returning empty BufferedImage image");
+            logger.info("Returning empty decoded image");
             throw new CustomNotFoundException("No image found or you dont "
                     + "have permissions to access them.");
         }
-        logger.info("Returning BufferedImage image " + id);
+        logger.info("Returning decoded image " + id);
         return img;
     }
 
@@ -126,57 +167,150 @@ public class ImageController {
     /**
      * GET|HEAD /image/compressed/{id}
      * 
-     * Returns image payload as a compressed JPEG.
+     * Returns image payload as a compressed JPEG. The image is copied from
+     * Amazon S3 into the response as it is read, and not read at all if the
+     * client's copy is current (If-None-Match or If-Modified-Since).
      *
      * @param id the image name.
-     * @return the image as a JPEG.
+     * @param ifModifiedSince request mod date info.
+     * @param ifNoneMatch request entity tags.
+     * @param request HTTP request.
+     * @param response HTTP response containing the JPEG.
      */
     @Secured({"ROLE_CM", "ROLE_USER", "ROLE_ADMIN"})
     @RequestMapping(value = "/compressed/{id:.+}", produces = MediaType.IMAGE_JPEG_VALUE, 
             method = {RequestMethod.GET, RequestMethod.HEAD})
-    public @ResponseBody
-    byte[] getCompressed(@PathVariable String id) {
+    public void getCompressed(@PathVariable String id,
+            @RequestHeader(value="If-Modified-Since", defaultValue="") String ifModifiedSince,
+            @RequestHeader(value="If-None-Match", defaultValue="") String ifNoneMatch,
+            HttpServletRequest request, HttpServletResponse response) {
         // this {id:.+} is a workaround for a spring bug that truncates path
         // variables containing a dot
-        byte[] image = imageService.getCompressedImage(id);
-        if (image == null) {
-            logger.info("Returning empty JPEG image");
-            throw new CustomNotFoundException("An image with this name does not exist "
-                    + "or you do not have permissions to access it.");
+        ImageMetadata meta = findForStreaming(id, ifModifiedSince, ifNoneMatch, response);
+        response.setContentType("image/jpeg");
+        if (RequestMethod.HEAD.name().equals(request.getMethod())) {
+            response.setHeader("Content-Length", String.valueOf(meta.getSize()));
+            return;
+        }
+        S3Object object = openForStreaming(id, meta);
+        response.setHeader("Content-Length", String.valueOf(object.getObjectMetadata().getContentLength()));
+        try {
+            imageService.writeCompressedImage(object, response.getOutputStream());
+            response.flushBuffer();
+        } catch (IOException ex) {
+            logger.error("Error writing JPEG image " + id + " to output stream");
+            throw new RuntimeException("IOError writing image to HTTP response", ex);
         }
-        logger.info("Returning JPEG image");
-        return image;
-        //HttpHeaders headers = new HttpHeaders();
-        //headers.setContentType(MediaType.IMAGE_JPEG);
-        //headers.setContentLength(image.length);
-        //return new HttpEntity<byte[]>(image, headers);
+        logger.info("Returning JPEG image " + id);
     }
 
     /**
      * GET|HEAD /image/compressedjson/{id}
      * 
-     * Returns image payload as a JPEG wrapped in JSON.
+     * Returns image payload as a JPEG wrapped in JSON (see S3Resource). The
+     * image is Base64 encoded into the response as it is read from Amazon S3,
+     * and not read at all if the client's copy is current.
      *
      * @param id the image name.
      * @param ifModifiedSince request mod date info.
-     * @return the image as JSON.
+     * @param ifNoneMatch request entity tags.
+     * @param request HTTP request.
+     * @param response HTTP response containing the JSON.
      */
     @Secured({"ROLE_CM", "ROLE_USER", "ROLE_ADMIN"})
     @RequestMapping(value = "/compressedjson/{id:.+}", 
             method = {RequestMethod.GET, RequestMethod.HEAD})
-    public @ResponseBody
-    HttpEntity<S3Resource> getCompressedAsJSON(@PathVariable String id, 
-            @RequestHeader(value="If-Modified-Since", defaultValue="") String ifModifiedSince) {
+    public void getCompressedAsJSON(@PathVariable String id, 
+            @RequestHeader(value="If-Modified-Since", defaultValue="") String ifModifiedSince,
+            @RequestHeader(value="If-None-Match", defaultValue="") String ifNoneMatch,
+            HttpServletRequest request, HttpServletResponse response) {
         // this {id:.+} is a workaround for a spring bug that truncates path
         // variables containing a dot
-        byte[] image = imageService.getCompressedImage(id);
+        ImageMetadata meta = findForStreaming(id, ifModifiedSince, ifNoneMatch, response);
+        response.setContentType("application/json");
+        response.addHeader("Vary", "Accept-Encoding");
+        if (RequestMethod.HEAD.name().equals(request.getMethod())) {
+            return;
+        }
+        // Opened before anything is written, so that a missing image is still a 404.
+        S3Object object = openForStreaming(id, meta);
+        boolean copying = false;
+        try {
+            OutputStream out = response.getOutputStream();
+            JsonGenerator gen = jsonFactory.createJsonGenerator(out, JsonEncoding.UTF8);
+            gen.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            gen.writeStartObject();
+            gen.writeStringField("contentType", "image/jpeg");
+            gen.writeNullField("contentEncoding");
+            gen.writeStringField("filename", id);
+            gen.writeNumberField("size", object.getObjectMetadata().getContentLength());
+            gen.writeFieldName("file");
+            // The Base64 string is written raw, straight to the response.
+            gen.writeRawValue("\"");
+            gen.flush();
+            Base64EncodingOutputStream base64 = new Base64EncodingOutputStream(out);
+            copying = true;
+            imageService.writeCompressedImage(object, base64);
+            base64.close();
+            gen.writeRaw("\"");
+            gen.writeEndObject();
+            gen.close();
+            response.flushBuffer();
+        } catch (IOException ex) {
+            if (!copying) {
+                abortQuietly(object);
+            }
+            logger.error("Error writing S3Resource image " + id + " to output stream");
+            throw new RuntimeException("IOError writing image to HTTP response", ex);
+        }
+        logger.info("Returning S3Resource image " + id);
+    }
+
+    // The stored contents described by the metadata of an image to stream.
+    // Throws if they are gone, e.g. if the image was deleted meanwhile.
+    private S3Object openForStreaming(String id, ImageMetadata meta) {
+        S3Object object = imageService.openCompressedImage(meta);
+        if (object == null) {
+            logger.info("Failed to return image " + id + ": contents missing");
+            throw new CustomNotFoundException("An image with this name does not exist or "
+                    + "you do not have permissions to access it.");
+        }
+        return object;
+    }
+
+    // Releases contents that are not copied, without draining them.
+    private static void abortQuietly(S3Object object) {
+        try {
+            object.getObjectContent().abort();
+        } catch (IOException ex) {
+            // Not read any further anyway.
+        }
+    }
+
+    // The metadata of an image to stream, with its validators set on the response.
+    // They also validate the tiles, thumbnails and regions derived from the image.
+    // Throws if there is no such image, or the client's copy is current.
+    private ImageMetadata findForStreaming(String id, String ifModifiedSince, String ifNoneMatch,
+            HttpServletResponse response) {
         ImageMetadata meta = imageService.getImageMetadata(id);
-        if (image == null || meta == null) {
-            logger.info("Returning empty S3Resource image");
+        if (meta == null) {
+            logger.info("Failed to return image " + id);
             throw new CustomNotFoundException("An image with this name does not exist or "
                     + "you do not have permissions to access it.");
         }
-        // Check if already newest.
+        response.addHeader("Cache-Control", "public, must-revalidate, no-transform");
+        response.addHeader("Last-modified", DateOperations.getHTTPDateSafely(meta.getLastModified()));
+        response.addHeader("ETag", meta.getEtag());
+        // Check if already newest. If-None-Match takes precedence.
+        if (!ifNoneMatch.isEmpty()) {
+            for (String tag : HTTPOperations.parseCommaList(ifNoneMatch)) {
+                if (tag.equals("*") || tag.replaceFirst("^W/", "").equals(meta.getEtag())) {
+                    logger.info("Not returning image " + id + " since not modified");
+                    throw new CustomNotModifiedException("This image has not been modified");
+                }
+            }
+            return meta;
+        }
         DateTime reqTime = DateOperations.parseHTTPDate(ifModifiedSince);
         if (reqTime != null) {
             DateTime resTime = meta.getLastModified() == null 
@@ -186,34 +320,191 @@ public class ImageController {
                     resTime.getDayOfMonth(), resTime.getHourOfDay(), 
                     resTime.getMinuteOfHour(), resTime.getSecondOfMinute());
             if (!resTime.isAfter(reqTime)) {
-                logger.info("Not returning S3Resource image " + id + " since not modified");
+                logger.info("Not returning image " + id + " since not modified");
                 throw new CustomNotModifiedException("This image has not been modified");
             }
         }
-        S3Resource wrapper = new S3Resource("image/jpeg", id, image);
-        HttpHeaders headers = new HttpHeaders();
-        headers.setContentType(MediaType.APPLICATION_JSON);
-        headers.add("Cache-Control", "public, must-revalidate, no-transform");
-        headers.add("Vary", "Accept-Encoding");
-        headers.add("Last-modified", DateOperations.getHTTPDateSafely(meta.getLastModified()));
-        HttpEntity<S3Resource> entity = new HttpEntity<>(wrapper, headers);
-        logger.info("Returning S3Resource image " + id);
-        return entity;
+        return meta;
+    }
+
+    /**
+     * GET|HEAD /image/{id}/tiles
+     *
+     * Returns the DZI descriptor of the Deep Zoom tile pyramid of an image
+     * (size, tile size, overlap and format), for tiled viewers. The pyramid is
+     * generated in the background after the image is added.
+     * @param id the image name.
+     * @param ifModifiedSince request mod date info.
+     * @param ifNoneMatch request entity tags.
+     * @param response HTTP response containing the XML.
+     */
+    @Secured({"ROLE_CM", "ROLE_USER", "ROLE_ADMIN"})
+    @RequestMapping(value = "/{id:.+}/tiles", method = {RequestMethod.GET, RequestMethod.HEAD})
+    public void getTilePyramid(@PathVariable String id,
+            @RequestHeader(value="If-Modified-Since", defaultValue="") String ifModifiedSince,
+            @RequestHeader(value="If-None-Match", defaultValue="") String ifNoneMatch,
+            HttpServletResponse response) {
+        ImageMetadata meta = findForStreaming(id, ifModifiedSince, ifNoneMatch, response);
+        S3Resource descriptor = imageTileService.findDescriptor(meta);
+        if (descriptor == null) {
+            logger.info("Failed to return tile pyramid for image " + id);
+            throw new CustomNotFoundException("A tile pyramid for an image with this name does not "
+                    + "exist (yet), or you dont have permissions to access it.");
+        }
+        writeImage(descriptor, response);
+        logger.info("Returning tile pyramid for image " + id);
+    }
+
+    /**
+     * GET|HEAD /image/{id}/tiles/{level}/{col}_{row}.jpg
+     *
+     * Returns a JPEG tile of an image. The finest level is the image at full
+     * resolution, and every level below halves it, down to level 0 of one pixel.
+     * @param id the image name.
+     * @param level the zoom level.
+     * @param col the tile column.
+     * @param row the tile row.
+     * @param ifModifiedSince request mod date info.
+     * @param ifNoneMatch request entity tags.
+     * @param response HTTP response containing the JPEG.
+     */
+    @Secured({"ROLE_CM", "ROLE_USER", "ROLE_ADMIN"})
+    @RequestMapping(value = "/{id:.+}/tiles/{level}/{col}_{row}.jpg", method = {RequestMethod.GET, RequestMethod.HEAD})
+    public void getTile(@PathVariable String id, @PathVariable int level, @PathVariable int col,
+            @PathVariable int row,
+            @RequestHeader(value="If-Modified-Since", defaultValue="") String ifModifiedSince,
+            @RequestHeader(value="If-None-Match", defaultValue="") String ifNoneMatch,
+            HttpServletResponse response) {
+        ImageMetadata meta = findForStreaming(id, ifModifiedSince, ifNoneMatch, response);
+        S3Resource tile = imageTileService.findTile(meta, level, col, row);
+        if (tile == null) {
+            logger.info("Failed to return tile " + level + "/" + col + "_" + row + " for image " + id);
+            throw new CustomNotFoundException("This tile does not exist, or you dont "
+                    + "have permissions to access it.");
+        }
+        writeImage(tile, response);
+        logger.info("Returning tile " + level + "/" + col + "_" + row + " for image " + id);
+    }
+
+    /**
+     * GET|HEAD /image/{id}/thumbnail?w={width}&h={height}
+     *
+     * Returns a JPEG copy of an image scaled down to fit in a box, keeping the
+     * aspect ratio, for previews. The box is 256 x 256 by default, and at most
+     * 2048 x 2048. Thumbnails are scaled from renditions precomputed when the
+     * image is added, so they are fast whatever the size of the image.
+     * @param id the image name.
+     * @param width the box width.
+     * @param height the box height.
+     * @param ifModifiedSince request mod date info.
+     * @param ifNoneMatch request entity tags.
+     * @param response HTTP response containing the JPEG.
+     */
+    @Secured({"ROLE_CM", "ROLE_USER", "ROLE_ADMIN"})
+    @RequestMapping(value = "/{id:.+}/thumbnail", method = {RequestMethod.GET, RequestMethod.HEAD})
+    public void getThumbnail(@PathVariable String id,
+            @RequestParam(value = "w", required = false, defaultValue = "256") int width,
+            @RequestParam(value = "h", required = false, defaultValue = "256") int height,
+            @RequestHeader(value="If-Modified-Since", defaultValue="") String ifModifiedSince,
+            @RequestHeader(value="If-None-Match", defaultValue="") String ifNoneMatch,
+            HttpServletResponse response) {
+        int[] sizes = ImageRenditionServiceImpl.RENDITION_SIZES;
+        int max = sizes[sizes.length - 1];
+        if (width < 1 || height < 1 || width > max || height > max) {
+            logger.info("Failed to return thumbnail of image " + id + ": invalid size");
+            throw new CustomBadRequestException("Thumbnail width and height must be between 1 and " + max + ".");
+        }
+        ImageMetadata meta = findForStreaming(id, ifModifiedSince, ifNoneMatch, response);
+        S3Resource thumbnail = imageRenditionService.findThumbnail(meta, width, height);
+        if (thumbnail == null) {
+            logger.info("Failed to return thumbnail of image " + id);
+            throw new CustomNotFoundException("An image with this name does not exist "
+                    + "or you do not have permissions to access it.");
+        }
+        writeImage(thumbnail, response);
+        logger.info("Returning " + width + "x" + height + " thumbnail of image " + id);
+    }
+
+    /**
+     * GET|HEAD /image/{id}/region?x={x}&y={y}&w={width}&h={height}&scale={scale}
+     *
+     * Returns a JPEG of a region of an image, for zooming into a part of it.
+     * The region is given in pixels of the image, and parts outside the image
+     * are left out. Only the region is decoded, subsampled to the scale, so it
+     * is fast and small even for very large images. The scaled region is at
+     * most 2048 x 2048.
+     * @param id the image name.
+     * @param x the left of the region.
+     * @param y the top of the region.
+     * @param width the region width.
+     * @param height the region height.
+     * @param scale the scale, greater than 0 and at most 1 (the default).
+     * @param ifModifiedSince request mod date info.
+     * @param ifNoneMatch request entity tags.
+     * @param response HTTP response containing the JPEG.
+     */
+    @Secured({"ROLE_CM", "ROLE_USER", "ROLE_ADMIN"})
+    @RequestMapping(value = "/{id:.+}/region", method = {RequestMethod.GET, RequestMethod.HEAD})
+    public void getRegion(@PathVariable String id,
+            @RequestParam("x") int x, @RequestParam("y") int y,
+            @RequestParam("w") int width, @RequestParam("h") int height,
+            @RequestParam(value = "scale", required = false, defaultValue = "1") double scale,
+            @RequestHeader(value="If-Modified-Since", defaultValue="") String ifModifiedSince,
+            @RequestHeader(value="If-None-Match", defaultValue="") String ifNoneMatch,
+            HttpServletResponse response) {
+        int max = ImageRenditionServiceImpl.MAX_REGION_SIZE;
+        if (x < 0 || y < 0 || width < 1 || height < 1 || !(scale > 0 && scale <= 1)
+                || Math.round(width * scale) > max || Math.round(height * scale) > max) {
+            logger.info("Failed to return region of image " + id + ": invalid region");
+            throw new CustomBadRequestException("Region must be inside the image, scale between 0 and 1, "
+                    + "and the scaled region at most " + max + " x " + max + ".");
+        }
+        ImageMetadata meta = findForStreaming(id, ifModifiedSince, ifNoneMatch, response);
+        S3Resource region;
+        try {
+            region = imageRenditionService.findRegion(meta, x, y, width, height, scale);
+        } catch (IllegalArgumentException ex) {
+            logger.info("Failed to return region of image " + id + ": " + ex.getMessage());
+            throw new CustomBadRequestException(ex.getMessage());
+        }
+        if (region == null) {
+            logger.info("Failed to return region of image " + id);
+            throw new CustomNotFoundException("An image with this name does not exist "
+                    + "or you do not have permissions to access it.");
+        }
+        writeImage(region, response);
+        logger.info("Returning region " + x + "," + y + "," + width + "x" + height
+                + " at scale " + scale + " of image " + id);
+    }
+
+    // Copies a stored tile, descriptor, thumbnail or region as is into the response.
+    // Their validators are those of the image, set by findForStreaming(), as
+    // the name of a deleted image can be reused for another one.
+    private void writeImage(S3Resource image, HttpServletResponse response) {
+        try {
+            response.setContentType(image.getContentType());
+            response.getOutputStream().write(image.getFile());
+            response.flushBuffer();
+        } catch (IOException ex) {
+            logger.error("Error writing " + image.getFilename() + " to output stream");
+            throw new RuntimeException("IOError writing image to HTTP response", ex);
+        }
     }
 
     /**
      * PUT /imagealignment/
      * 
-     * Adds an image as a BufferedImage.
+     * Adds an image in any format ImageIO reads, encoded as JPEG. The upload
+     * is decoded on the bounded pool of the ImageTranscoder.
      * NOTE: When possible use addAsJSON() instead.
      * 
      * @param id the image name.
-     * @param img the image.
+     * @param img the encoded image.
      */
     @Secured({"ROLE_CM", "ROLE_ADMIN"})
     @RequestMapping(value = "{id:.+}", method = RequestMethod.PUT)
     public @ResponseBody
-    void add(@PathVariable String id, @RequestBody BufferedImage img) {
+    void add(@PathVariable String id, @RequestBody byte[] img) {
         // this {id:.+} is a workaround for a spring bug that truncates path
         // variables containing a dot
         if (imageService.getImageMetadata(id) != null) {
@@ -222,7 +513,7 @@ public class ImageController {
                     "An image with this name exists already. Image names are unique.");
         }
         imageService.add(id, img);
-        logger.info("Succesfully added BufferedImage image " + id);
+        logger.info("Succesfully added decoded image " + id);
     }
 
     /**
@@ -298,6 +589,15 @@ public class ImageController {
         return new BadRequestResponse(ex.getMessage());
     }
 
+    @ExceptionHandler(CustomServiceUnavailableException.class)
+    @ResponseStatus(value = HttpStatus.SERVICE_UNAVAILABLE)
+    public @ResponseBody
+    ServiceUnavailableResponse handleServiceUnavailableException(CustomServiceUnavailableException ex,
+            HttpServletResponse response) {
+        response.setHeader("Retry-After", String.valueOf(ex.getRetryAfterSeconds()));
+        return new ServiceUnavailableResponse(ex.getMessage());
+    }
+
     @ExceptionHandler(RuntimeException.class)
     @ResponseStatus(value = HttpStatus.INTERNAL_SERVER_ERROR)
     public @ResponseBody
@@ -16,8 +16,17 @@ import com.st.serviceImpl.DatasetServiceImpl;
 import com.st.serviceImpl.MongoUserDetailsServiceImpl;
 import com.st.serviceImpl.SelectionServiceImpl;
 import com.st.util.DateOperations;
+import com.st.util.FieldProjection;
+import com.st.util.HTTPOperations;
+import com.st.util.JsonArrayWriter;
+import com.st.util.KeysetPage;
+import com.st.util.PageQuery;
+import java.io.IOException;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import javax.servlet.http.HttpServletResponse;
 import javax.validation.Valid;
 import org.apache.log4j.Logger;
 import org.joda.time.DateTime;
@@ -68,30 +77,48 @@ public class SelectionController {
      * GET|HEAD /selection/?task={taskId}
      * 
      * Enabled list / list for account / list for dataset / list for task.
+     * With summary=true, the selections are returned without gene hits.
+     * With fields=a,b,c only these fields are returned.
+     * Paginated with limit, sort and cursor, the next page cursor is returned
+     * in the X-Next-Cursor header. Without limit, at most PageQuery.LEGACY_LIMIT
+     * are returned.
      * @param accountId accout ID.
      * @param datasetId dataset ID.
-     * @return list.
+     * @param summary true to leave out the gene hits.
+     * @param fields the fields to return, or all.
+     * @param limit the page size, at most PageQuery.MAX_LIMIT.
+     * @param sort the sort field, "-" prefixed for descending order.
+     * @param cursor the X-Next-Cursor of the previous page.
+     * @return the page.
      */
     @Secured({"ROLE_USER", "ROLE_CM", "ROLE_ADMIN"})
     @RequestMapping(method = {RequestMethod.GET, RequestMethod.HEAD})
     public @ResponseBody
-    List<Selection> list(
+    HttpEntity<List<?>> list(
             @RequestParam(value = "account", required = false) String accountId,
-            @RequestParam(value = "dataset", required = false) String datasetId
+            @RequestParam(value = "dataset", required = false) String datasetId,
+            @RequestParam(value = "summary", required = false, defaultValue = "false") boolean summary,
+            @RequestParam(value = "fields", required = false) String fields,
+            @RequestParam(value = "limit", required = false) Integer limit,
+            @RequestParam(value = "sort", required = false) String sort,
+            @RequestParam(value = "cursor", required = false) String cursor
     ) {
-        List<Selection> selections = null;
+        FieldProjection projection = projection(fields, summary);
+        PageQuery page = pageQuery(limit, sort, cursor);
+        KeysetPage<Selection> selectionPage;
         if (accountId != null) {
             logger.info("Returning list of enabled user's selections for account " + accountId);
-            selections = selectionService.findByAccount(accountId);
+            selectionPage = selectionService.findByAccount(accountId, projection, page);
         } else if (datasetId != null) {
             logger.info("Returning list of enabled user's selections for dataset " + datasetId);
-            selections = selectionService.findByDataset(datasetId);
+            selectionPage = selectionService.findByDataset(datasetId, projection, page);
         }  else {
             // NOTE: Only current user's selections, even for admin.
             MongoUserDetails currentUser = customUserDetailsService.loadCurrentUser();
-            selections = selectionService.findByAccount(currentUser.getId());
+            selectionPage = selectionService.findByAccount(currentUser.getId(), projection, page);
             logger.info("Returning list of enabled user's selections");
         }
+        List<Selection> selections = selectionPage.getItems();
         if (selections == null) {
             logger.info("Returning empty list of enabled user's selections");
             throw new CustomNotFoundException("No selections found or you dont "
@@ -105,6 +132,47 @@ public class SelectionController {
                 i.remove();
             }
         }
+        return new HttpEntity<List<?>>(projection.filter(selections), selectionPage.headers());
+    }
+
+    /**
+     * GET|HEAD /selection/?ids={id1},{id2},...
+     *
+     * Finds several enabled selections in one request. Selections that are
+     * missing, disabled or not accessible are left out.
+     * @param ids comma-separated selection IDs.
+     * @return the list.
+     */
+    @Secured({"ROLE_USER", "ROLE_CM", "ROLE_ADMIN"})
+    @RequestMapping(method = {RequestMethod.GET, RequestMethod.HEAD}, params = "ids")
+    public @ResponseBody
+    List<Selection> getByIds(@RequestParam(value = "ids") String ids) {
+        List<String> idList = HTTPOperations.parseCommaList(ids);
+        if (idList.isEmpty() || idList.size() > PageQuery.MAX_LIMIT) {
+            logger.info("Failed to return selections by ID. Invalid number of IDs.");
+            throw new CustomBadRequestException("Between 1 and " + PageQuery.MAX_LIMIT
+                    + " comma-separated IDs must be given.");
+        }
+        List<Selection> selections = selectionService.findByIds(idList);
+        // The datasets of all selections in one query.
+        Set<String> datasetIds = new HashSet<>();
+        for (Selection sel : selections) {
+            datasetIds.add(sel.getDataset_id());
+        }
+        Set<String> enabledDatasetIds = new HashSet<>();
+        for (Dataset d : datasetService.findByIds(datasetIds)) {
+            if (d.getEnabled()) {
+                enabledDatasetIds.add(d.getId());
+            }
+        }
+        Iterator<Selection> i = selections.iterator();
+        while (i.hasNext()) {
+            Selection sel = i.next(); // must be called before you can call i.remove()
+            if (!sel.getEnabled() || !enabledDatasetIds.contains(sel.getDataset_id())) {
+                i.remove();
+            }
+        }
+        logger.info("Returning " + selections.size() + " enabled selections by ID");
         return selections;
     }
 
@@ -115,34 +183,99 @@ public class SelectionController {
      * GET|HEAD /selection/all/?task={taskId}
      * 
      * All list / list for account / list for dataset / list for task.
+     * With summary=true, the selections are returned without gene hits.
+     * With fields=a,b,c only these fields are returned.
+     * Paginated with limit, sort and cursor, the next page cursor is returned
+     * in the X-Next-Cursor header. Without limit, at most PageQuery.LEGACY_LIMIT
+     * are returned.
      * @param accountId accout ID.
      * @param datasetId dataset ID.
-     * @return list.
+     * @param summary true to leave out the gene hits.
+     * @param fields the fields to return, or all.
+     * @param limit the page size, at most PageQuery.MAX_LIMIT.
+     * @param sort the sort field, "-" prefixed for descending order.
+     * @param cursor the X-Next-Cursor of the previous page.
+     * @return the page.
      */
     @Secured({"ROLE_USER", "ROLE_CM", "ROLE_ADMIN"})
     @RequestMapping(value = "/all", method = {RequestMethod.GET, RequestMethod.HEAD})
     public @ResponseBody
-    List<Selection> listAll(
+    HttpEntity<List<?>> listAll(
             @RequestParam(value = "account", required = false) String accountId,
-            @RequestParam(value = "dataset", required = false) String datasetId
+            @RequestParam(value = "dataset", required = false) String datasetId,
+            @RequestParam(value = "summary", required = false, defaultValue = "false") boolean summary,
+            @RequestParam(value = "fields", required = false) String fields,
+            @RequestParam(value = "limit", required = false) Integer limit,
+            @RequestParam(value = "sort", required = false) String sort,
+            @RequestParam(value = "cursor", required = false) String cursor
     ) {
-        List<Selection> selections = null;
+        FieldProjection projection = projection(fields, summary);
+        PageQuery page = pageQuery(limit, sort, cursor);
+        KeysetPage<Selection> selectionPage;
         if (accountId != null) {
-            selections = selectionService.findByAccount(accountId);
+            selectionPage = selectionService.findByAccount(accountId, projection, page);
             logger.info("Returning list of all selections for account " + accountId);
         } else if (datasetId != null) {
-            selections = selectionService.findByDataset(datasetId);
+            selectionPage = selectionService.findByDataset(datasetId, projection, page);
             logger.info("Returning list of all selections for dataset " + datasetId);
         } else {
-            selections = selectionService.list();
+            selectionPage = selectionService.list(projection, page);
             logger.info("Returning list of all selections");
         }
+        List<Selection> selections = selectionPage.getItems();
         if (selections == null) {
             logger.info("Returning empty list of selections");
             throw new CustomNotFoundException("No selections found or you "
                     + "dont have permissions to access them.");
         }
-        return selections;
+        return new HttpEntity<List<?>>(projection.filter(selections), selectionPage.headers());
+    }
+
+    /**
+     * GET /selection/all/?stream=true
+     *
+     * Streams all selections as a JSON array for full exports, each written as soon
+     * as it is read from the database, without holding the list in memory.
+     * @param summary true to leave out the gene hits.
+     * @param fields the fields to return, or all.
+     * @param response HTTP response containing the array.
+     */
+    @Secured({"ROLE_USER", "ROLE_CM", "ROLE_ADMIN"})
+    @RequestMapping(value = "/all", method = RequestMethod.GET, params = "stream=true")
+    public void streamAll(
+            @RequestParam(value = "summary", required = false, defaultValue = "false") boolean summary,
+            @RequestParam(value = "fields", required = false) String fields,
+            HttpServletResponse response) {
+        FieldProjection projection = projection(fields, summary);
+        response.setContentType("application/json;charset=UTF-8");
+        response.addHeader("Cache-Control", "private, no-transform");
+        try {
+            JsonArrayWriter<Selection> writer = new JsonArrayWriter<>(response.getOutputStream(), projection);
+            if (!selectionService.stream(projection, writer)) {
+                logger.info("Failed to stream selections. Permission denied.");
+                throw new CustomNotFoundException("No selections found or you dont have permissions to access them.");
+            }
+            writer.close();
+            logger.info("Streamed " + writer.getCount() + " selections");
+            response.flushBuffer();
+        } catch (IOException ex) {
+            logger.error("Error streaming selections to output stream");
+            throw new RuntimeException("IOError writing selections to HTTP response", ex);
+        }
+    }
+
+    // Summary mode leaves out the gene hits.
+    private static FieldProjection projection(String fields, boolean summary) {
+        FieldProjection projection = FieldProjection.parse(fields);
+        return summary ? projection.exclude("gene_hits") : projection;
+    }
+
+    private static PageQuery pageQuery(Integer limit, String sort, String cursor) {
+        try {
+            return PageQuery.parse(limit, sort, cursor);
+        } catch (IllegalArgumentException ex) {
+            throw new CustomBadRequestException(ex.getMessage());
+        }
     }
 
     /**
@@ -235,6 +368,45 @@ public class SelectionController {
         return entity;
     }
 
+    /**
+     * GET|HEAD /selection/genehits/{id}?page={page}&size={size}&order={asc|desc}
+     *
+     * Returns a page of the gene hits of a selection, sorted by hits. The
+     * total number of rows is returned in the X-Total-Count header.
+     *
+     * @param id the selection ID.
+     * @param page the 0-based page number.
+     * @param size the page size.
+     * @param order "desc" for most hits first, or "asc".
+     * @return the page.
+     */
+    @Secured({"ROLE_USER", "ROLE_CM", "ROLE_ADMIN"})
+    @RequestMapping(value = "/genehits/{id}", method = {RequestMethod.GET, RequestMethod.HEAD})
+    public @ResponseBody
+    HttpEntity<List<String[]>> getGeneHits(@PathVariable String id,
+            @RequestParam(value = "page", required = false, defaultValue = "0") int page,
+            @RequestParam(value = "size", required = false, defaultValue = "100") int size,
+            @RequestParam(value = "order", required = false, defaultValue = "desc") String order) {
+        if (page < 0 || size < 1 || !(order.equals("asc") || order.equals("desc"))) {
+            logger.info("Failed to return gene hits of selection " + id + ". Invalid paging.");
+            throw new CustomBadRequestException("Page must be >= 0, size must be >= 1 "
+                    + "and order must be asc or desc.");
+        }
+        List<String[]> geneHits = selectionService.findGeneHits(id, order.equals("desc"));
+        if (geneHits == null) {
+            logger.info("Failed to return gene hits of selection " + id + ". Permission denied or missing.");
+            throw new CustomNotFoundException("A selection with this ID does not "
+                    + "exist or you dont have permissions to access it.");
+        }
+        long from = Math.min((long) page * size, geneHits.size());
+        long to = Math.min(from + size, geneHits.size());
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        headers.add("X-Total-Count", Integer.toString(geneHits.size()));
+        logger.info("Returning gene hits " + from + "-" + to + " of selection " + id);
+        return new HttpEntity<>(geneHits.subList((int) from, (int) to), headers);
+    }
+
     /**
      * GET|HEAD /selection/lastmodified/{id}
      *
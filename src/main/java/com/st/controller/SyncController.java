@@ -0,0 +1,71 @@
+package com.st.controller;
+
+import com.st.exceptions.CustomInternalServerErrorException;
+import com.st.exceptions.CustomInternalServerErrorResponse;
+import com.st.model.SyncManifest;
+import com.st.serviceImpl.SyncServiceImpl;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.security.access.annotation.Secured;
+import org.springframework.stereotype.Controller;
+import org.springframework.stereotype.Repository;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * This class is Spring MVC controller class for the API endpoint "rest/sync".
+ * It implements the methods available at this endpoint.
+ */
+@Repository
+@Controller
+@RequestMapping("/rest/sync")
+public class SyncController {
+
+    private static final Logger logger = Logger.getLogger(SyncController.class);
+
+    @Autowired
+    SyncServiceImpl syncService;
+
+    /**
+     * GET|HEAD /sync/manifest
+     *
+     * Returns the last modified time and version of every dataset, image
+     * alignment, chip, selection, image and features file visible to the
+     * user, for clients to revalidate their caches in one request instead of
+     * one per resource (see SyncManifestEntry).
+     * <p/>
+     * Removals and revoked grants make no entry newer, so the manifest has no
+     * Last-Modified and If-Modified-Since is not honoured. Clients revalidate
+     * it with If-None-Match, against the ETag the ETag filter computes from
+     * the manifest itself, which changes with any entry added or removed.
+     * @return the manifest.
+     */
+    @Secured({"ROLE_CM", "ROLE_USER", "ROLE_ADMIN"})
+    @RequestMapping(value = "manifest", method = {RequestMethod.GET, RequestMethod.HEAD})
+    public @ResponseBody HttpEntity<SyncManifest> getManifest() {
+        SyncManifest manifest = syncService.getManifest();
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        // Composed for the user.
+        headers.add("Cache-Control", "private, must-revalidate, no-transform");
+        headers.add("Vary", "Accept-Encoding");
+        logger.info("Returning sync manifest");
+        return new HttpEntity<>(manifest, headers);
+    }
+
+    @ExceptionHandler(RuntimeException.class)
+    @ResponseStatus(value = HttpStatus.INTERNAL_SERVER_ERROR)
+    public @ResponseBody
+    CustomInternalServerErrorResponse handleRuntimeException(CustomInternalServerErrorException ex) {
+        logger.error("Unknown error in sync controller: " + ex.getMessage());
+        return new CustomInternalServerErrorResponse(ex.getMessage());
+    }
+
+}
@@ -0,0 +1,37 @@
+package com.st.exceptions;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * This exception class returns a HTTP response "503 Service Unavailable"
+ * with a customized JSON response (see ServiceUnavailableResponse), and a
+ * Retry-After header with the number of seconds the client should wait.
+ * Used when the server is too busy to take on a request.
+ */
+@ResponseStatus(value = HttpStatus.SERVICE_UNAVAILABLE)
+public class CustomServiceUnavailableException extends RuntimeException {
+
+    /** Auto-gen ID. */
+    private static final long serialVersionUID = -4301298517305716853L;
+
+    private final int retryAfterSeconds;
+
+    /**
+     * Constructor.
+     * @param message message.
+     * @param retryAfterSeconds seconds the client should wait before retrying.
+     */
+    public CustomServiceUnavailableException(String message, int retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    /**
+     * Returns the seconds the client should wait before retrying.
+     * @return the seconds.
+     */
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
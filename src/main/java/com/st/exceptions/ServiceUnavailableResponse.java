@@ -0,0 +1,20 @@
+package com.st.exceptions;
+
+/**
+ * This class defines the JSON error response body for the CustomServiceUnavailableException
+ */
+public class ServiceUnavailableResponse {
+
+    public String error;
+    public String error_description;
+
+    /**
+     * Constructor.
+     * @param msg message.
+     */
+    public ServiceUnavailableResponse(String msg) {
+        this.error = "Service unavailable";
+        this.error_description = msg;
+    }
+
+}
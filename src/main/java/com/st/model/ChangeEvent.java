@@ -0,0 +1,72 @@
+package com.st.model;
+
+/**
+ * This class implements the ChangeEvent object. It is not stored, but pushed
+ * to the subscribers of the change feed.
+ *
+ * A change event tells that a resource has been added, updated or deleted.
+ * It holds the type and ID of the resource (the file name for images, the
+ * dataset ID for features), not the resource itself, which clients fetch
+ * again if they need it.
+ */
+public class ChangeEvent implements IChangeEvent {
+
+    public static final String DATASET = "dataset";
+    public static final String SELECTION = "selection";
+    public static final String IMAGE_ALIGNMENT = "imagealignment";
+    public static final String CHIP = "chip";
+    public static final String ACCOUNT = "account";
+    public static final String FEATURES = "features";
+    public static final String IMAGE = "image";
+
+    public static final String ADDED = "added";
+    public static final String UPDATED = "updated";
+    public static final String DELETED = "deleted";
+
+    String type;
+    String action;
+    String id;
+
+    /**
+     * Default constructor is needed by Jackson, in
+     * case other constructors are added.
+     */
+    public ChangeEvent() {}
+
+    public ChangeEvent(String type, String action, String id) {
+        this.type = type;
+        this.action = action;
+        this.id = id;
+    }
+
+    @Override
+    public String getType() {
+        return this.type;
+    }
+
+    @Override
+    public void setType(String type) {
+        this.type = type;
+    }
+
+    @Override
+    public String getAction() {
+        return this.action;
+    }
+
+    @Override
+    public void setAction(String action) {
+        this.action = action;
+    }
+
+    @Override
+    public String getId() {
+        return this.id;
+    }
+
+    @Override
+    public void setId(String id) {
+        this.id = id;
+    }
+
+}
@@ -36,10 +36,11 @@ public class Dataset implements IDataset {
     String species;
 
     @NotBlank(message = "Image alignment must not be blank.")
+    @Indexed(unique = false)
     String image_alignment_id;
 
     int overall_feature_count;
-    int overall_hit_count;
+    long overall_hit_count;
     int unique_gene_count;
     int unique_barcode_count;
     double[] overall_hit_quartiles;
@@ -145,12 +146,12 @@ public class Dataset implements IDataset {
     }
 
     @Override
-    public int getOverall_hit_count() {
+    public long getOverall_hit_count() {
         return this.overall_hit_count;
     }
 
     @Override
-    public void setOverall_hit_count(int count) {
+    public void setOverall_hit_count(long count) {
         this.overall_hit_count = count;
     }
 
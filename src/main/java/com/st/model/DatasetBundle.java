@@ -0,0 +1,67 @@
+package com.st.model;
+
+import java.util.List;
+
+/**
+ * This class implements the DatasetBundle object. It is not stored, but
+ * composed on request.
+ *
+ * A dataset bundle holds a dataset together with its image alignment, the
+ * chip of the alignment and the metadata of the alignment images, i.e.
+ * everything a client needs to open a dataset, so that they can be fetched
+ * in one request.
+ */
+public class DatasetBundle implements IDatasetBundle {
+
+    Dataset dataset;
+    ImageAlignment image_alignment;
+    Chip chip;
+    List<ImageMetadata> images;
+
+    /**
+     * Default constructor is needed by Jackson, in
+     * case other constructors are added.
+     */
+    public DatasetBundle() {}
+
+    @Override
+    public Dataset getDataset() {
+        return this.dataset;
+    }
+
+    @Override
+    public void setDataset(Dataset dataset) {
+        this.dataset = dataset;
+    }
+
+    @Override
+    public ImageAlignment getImage_alignment() {
+        return this.image_alignment;
+    }
+
+    @Override
+    public void setImage_alignment(ImageAlignment imal) {
+        this.image_alignment = imal;
+    }
+
+    @Override
+    public Chip getChip() {
+        return this.chip;
+    }
+
+    @Override
+    public void setChip(Chip chip) {
+        this.chip = chip;
+    }
+
+    @Override
+    public List<ImageMetadata> getImages() {
+        return this.images;
+    }
+
+    @Override
+    public void setImages(List<ImageMetadata> images) {
+        this.images = images;
+    }
+
+}
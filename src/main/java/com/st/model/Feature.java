@@ -0,0 +1,74 @@
+package com.st.model;
+
+/**
+ * This class implements the Feature object.
+ *
+ * A feature is a single entry of a features file: the number of hits of a gene
+ * at a spot (barcode) of the chip, together with the spot coordinates.
+ * Features are not stored in MongoDB, but as gzipped JSON arrays on Amazon S3.
+ */
+public class Feature implements IFeature {
+
+    String barcode;
+    String gene;
+    int hits;
+    double x;
+    double y;
+
+    /**
+     * Default constructor is needed by Jackson, in
+     * case other constructors are added.
+     */
+    public Feature() {}
+
+    @Override
+    public String getBarcode() {
+        return this.barcode;
+    }
+
+    @Override
+    public void setBarcode(String barcode) {
+        this.barcode = barcode;
+    }
+
+    @Override
+    public String getGene() {
+        return this.gene;
+    }
+
+    @Override
+    public void setGene(String gene) {
+        this.gene = gene;
+    }
+
+    @Override
+    public int getHits() {
+        return this.hits;
+    }
+
+    @Override
+    public void setHits(int hits) {
+        this.hits = hits;
+    }
+
+    @Override
+    public double getX() {
+        return this.x;
+    }
+
+    @Override
+    public void setX(double x) {
+        this.x = x;
+    }
+
+    @Override
+    public double getY() {
+        return this.y;
+    }
+
+    @Override
+    public void setY(double y) {
+        this.y = y;
+    }
+
+}
@@ -0,0 +1,56 @@
+package com.st.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class implements the FeaturesDelta object.
+ *
+ * A features delta holds the changes between two versions of a features file.
+ * Features are keyed by barcode and gene: removed features only need those two
+ * fields, whereas changed features replace the stored feature with the same key.
+ * Added features with a key that is already stored are treated as changed.
+ */
+public class FeaturesDelta implements IFeaturesDelta {
+
+    List<Feature> added = new ArrayList<>();
+    List<Feature> removed = new ArrayList<>();
+    List<Feature> changed = new ArrayList<>();
+
+    /**
+     * Default constructor is needed by Jackson, in
+     * case other constructors are added.
+     */
+    public FeaturesDelta() {}
+
+    @Override
+    public List<Feature> getAdded() {
+        return this.added;
+    }
+
+    @Override
+    public void setAdded(List<Feature> added) {
+        this.added = added;
+    }
+
+    @Override
+    public List<Feature> getRemoved() {
+        return this.removed;
+    }
+
+    @Override
+    public void setRemoved(List<Feature> removed) {
+        this.removed = removed;
+    }
+
+    @Override
+    public List<Feature> getChanged() {
+        return this.changed;
+    }
+
+    @Override
+    public void setChanged(List<Feature> changed) {
+        this.changed = changed;
+    }
+
+}
@@ -0,0 +1,53 @@
+package com.st.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * This class maps the Gene data model object into a MongoDB Document We use
+ * the @Document annotation of Spring Data for the mapping.
+ *
+ * A gene is an entry of the global gene dictionary, which maps gene names to
+ * stable integer IDs shared by all datasets. IDs are never reused.
+ */
+@Document(collection = "genedictionary")
+public class Gene implements IGene {
+
+    @Id
+    int id;
+
+    @Indexed(unique = true)
+    String name;
+
+    /**
+     * Default constructor is needed by Jackson, in
+     * case other constructors are added.
+     */
+    public Gene() {}
+
+    public Gene(int id, String name) {
+        this.id = id;
+        this.name = name;
+    }
+
+    @Override
+    public int getId() {
+        return id;
+    }
+
+    @Override
+    public void setId(int id) {
+        this.id = id;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public void setName(String name) {
+        this.name = name;
+    }
+}
@@ -0,0 +1,129 @@
+package com.st.model;
+
+import org.codehaus.jackson.annotate.JsonIgnore;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.Transient;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.CompoundIndexes;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * This class maps the GenePresence data model object into a MongoDB Document
+ * We use the @Document annotation of Spring Data for the mapping.
+ *
+ * A gene presence is an entry of the cross-dataset gene index: the total hits
+ * of a gene in a dataset and the number of spots it occurs in. The entries of
+ * a dataset are derived from its features file. Genes are stored by their
+ * gene dictionary ID; the name is filled in when entries are returned.
+ * The entries of a dataset are written together as a generation, which
+ * replaces the previous one; it is not returned.
+ */
+@Document(collection = "genepresence")
+@CompoundIndexes({
+    @CompoundIndex(name = "gene_id_1_dataset_id_1_generation_1",
+            def = "{'gene_id': 1, 'dataset_id': 1, 'generation': 1}", unique = true)
+})
+public class GenePresence implements IGenePresence {
+
+    @Id
+    String id;
+
+    int gene_id;
+
+    @Transient
+    String gene;
+
+    @Indexed(unique = false)
+    String dataset_id;
+
+    long hits;
+
+    int spots;
+
+    long generation;
+
+    /**
+     * Default constructor is needed by Jackson, in
+     * case other constructors are added.
+     */
+    public GenePresence() {}
+
+    public GenePresence(int geneId, String datasetId, long hits, int spots, long generation) {
+        this.gene_id = geneId;
+        this.dataset_id = datasetId;
+        this.hits = hits;
+        this.spots = spots;
+        this.generation = generation;
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    @Override
+    public int getGene_id() {
+        return gene_id;
+    }
+
+    @Override
+    public void setGene_id(int gene_id) {
+        this.gene_id = gene_id;
+    }
+
+    @Override
+    public String getGene() {
+        return gene;
+    }
+
+    @Override
+    public void setGene(String gene) {
+        this.gene = gene;
+    }
+
+    @Override
+    public String getDataset_id() {
+        return dataset_id;
+    }
+
+    @Override
+    public void setDataset_id(String dataset_id) {
+        this.dataset_id = dataset_id;
+    }
+
+    @Override
+    public long getHits() {
+        return hits;
+    }
+
+    @Override
+    public void setHits(long hits) {
+        this.hits = hits;
+    }
+
+    @Override
+    public int getSpots() {
+        return spots;
+    }
+
+    @Override
+    public void setSpots(int spots) {
+        this.spots = spots;
+    }
+
+    @JsonIgnore
+    public long getGeneration() {
+        return generation;
+    }
+
+    @JsonIgnore
+    public void setGeneration(long generation) {
+        this.generation = generation;
+    }
+}
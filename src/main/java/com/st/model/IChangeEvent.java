@@ -0,0 +1,21 @@
+package com.st.model;
+
+/**
+ * This interface defines the ChangeEvent model. Applications that use the
+ * API must implement the same model.
+ */
+public interface IChangeEvent {
+
+    public String getType();
+
+    public void setType(String type);
+
+    public String getAction();
+
+    public void setAction(String action);
+
+    public String getId();
+
+    public void setId(String id);
+
+}
@@ -33,9 +33,9 @@ public interface IDataset {
 
     public void setOverall_feature_count(int count);
 
-    public int getOverall_hit_count();
+    public long getOverall_hit_count();
 
-    public void setOverall_hit_count(int count);
+    public void setOverall_hit_count(long count);
 
     public int getUnique_gene_count();
 
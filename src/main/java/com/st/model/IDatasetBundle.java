@@ -0,0 +1,27 @@
+package com.st.model;
+
+import java.util.List;
+
+/**
+ * This interface defines the DatasetBundle model. Applications that use the
+ * API must implement the same model.
+ */
+public interface IDatasetBundle {
+
+    public Dataset getDataset();
+
+    public void setDataset(Dataset dataset);
+
+    public ImageAlignment getImage_alignment();
+
+    public void setImage_alignment(ImageAlignment imal);
+
+    public Chip getChip();
+
+    public void setChip(Chip chip);
+
+    public List<ImageMetadata> getImages();
+
+    public void setImages(List<ImageMetadata> images);
+
+}
@@ -0,0 +1,28 @@
+package com.st.model;
+
+/**
+ * This interface defines the Feature model. Applications that use the API must
+ * implement the same model.
+ */
+public interface IFeature {
+
+    public String getBarcode();
+
+    public void setBarcode(String barcode);
+
+    public String getGene();
+
+    public void setGene(String gene);
+
+    public int getHits();
+
+    public void setHits(int hits);
+
+    public double getX();
+
+    public void setX(double x);
+
+    public double getY();
+
+    public void setY(double y);
+}
@@ -0,0 +1,22 @@
+package com.st.model;
+
+import java.util.List;
+
+/**
+ * This interface defines the FeaturesDelta model. Applications that use the
+ * API must implement the same model.
+ */
+public interface IFeaturesDelta {
+
+    public List<Feature> getAdded();
+
+    public void setAdded(List<Feature> added);
+
+    public List<Feature> getRemoved();
+
+    public void setRemoved(List<Feature> removed);
+
+    public List<Feature> getChanged();
+
+    public void setChanged(List<Feature> changed);
+}
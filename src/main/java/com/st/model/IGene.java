@@ -0,0 +1,16 @@
+package com.st.model;
+
+/**
+ * This interface defines the Gene model. Applications that use the API must
+ * implement the same model.
+ */
+public interface IGene {
+
+    public int getId();
+
+    public void setId(int id);
+
+    public String getName();
+
+    public void setName(String name);
+}
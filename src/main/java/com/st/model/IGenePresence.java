@@ -0,0 +1,32 @@
+package com.st.model;
+
+/**
+ * This interface defines the GenePresence model. Applications that use the API
+ * must implement the same model.
+ */
+public interface IGenePresence {
+
+    public String getId();
+
+    public void setId(String id);
+
+    public int getGene_id();
+
+    public void setGene_id(int gene_id);
+
+    public String getGene();
+
+    public void setGene(String gene);
+
+    public String getDataset_id();
+
+    public void setDataset_id(String dataset_id);
+
+    public long getHits();
+
+    public void setHits(long hits);
+
+    public int getSpots();
+
+    public void setSpots(int spots);
+}
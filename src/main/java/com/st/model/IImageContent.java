@@ -0,0 +1,31 @@
+package com.st.model;
+
+import org.joda.time.DateTime;
+
+/**
+ * This interface defines the ImageContent model. Applications that use the
+ * API must implement the same model.
+ */
+public interface IImageContent {
+
+    public String getId();
+
+    public void setId(String id);
+
+    public String getState();
+
+    public void setState(String state);
+
+    public int getRefcount();
+
+    public void setRefcount(int refcount);
+
+    public long getSize();
+
+    public void setSize(long size);
+
+    public DateTime getCreated_at();
+
+    public void setCreated_at(DateTime created);
+
+}
@@ -1,5 +1,6 @@
 package com.st.model;
 
+import java.util.List;
 import org.joda.time.DateTime;
 
 /**
@@ -28,4 +29,32 @@ public interface IImageMetadata {
 
     public void setSize(long size);
 
+    public String getSha256();
+
+    public void setSha256(String sha256);
+
+    public String getOriginalSha256();
+
+    public void setOriginalSha256(String originalSha256);
+
+    public int getWidth();
+
+    public void setWidth(int width);
+
+    public int getHeight();
+
+    public void setHeight(int height);
+
+    public List<Integer> getRenditions();
+
+    public void setRenditions(List<Integer> renditions);
+
+    public boolean getTiles();
+
+    public void setTiles(boolean tiles);
+
+    public String getEtag();
+
+    public void setEtag(String etag);
+
 }
@@ -0,0 +1,53 @@
+package com.st.model;
+
+/**
+ * This interface defines the ImageTranscoderMetrics model. Applications that use the
+ * API must implement the same model.
+ */
+public interface IImageTranscoderMetrics {
+
+    public int getQueued();
+
+    public void setQueued(int queued);
+
+    public int getRunning();
+
+    public void setRunning(int running);
+
+    public long getMemory_budget();
+
+    public void setMemory_budget(long memoryBudget);
+
+    public long getMemory_reserved();
+
+    public void setMemory_reserved(long memoryReserved);
+
+    public long getCompleted();
+
+    public void setCompleted(long completed);
+
+    public long getFailed();
+
+    public void setFailed(long failed);
+
+    public long getRejected();
+
+    public void setRejected(long rejected);
+
+    public long getTimed_out();
+
+    public void setTimed_out(long timedOut);
+
+    public long getMean_wait_millis();
+
+    public void setMean_wait_millis(long meanWaitMillis);
+
+    public long getMean_run_millis();
+
+    public void setMean_run_millis(long meanRunMillis);
+
+    public long getMax_run_millis();
+
+    public void setMax_run_millis(long maxRunMillis);
+
+}
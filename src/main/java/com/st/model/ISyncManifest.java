@@ -0,0 +1,35 @@
+package com.st.model;
+
+import java.util.Map;
+
+/**
+ * This interface defines the SyncManifest model. Applications that use the
+ * API must implement the same model.
+ */
+public interface ISyncManifest {
+
+    public Map<String, SyncManifestEntry> getDatasets();
+
+    public void setDatasets(Map<String, SyncManifestEntry> datasets);
+
+    public Map<String, SyncManifestEntry> getImage_alignments();
+
+    public void setImage_alignments(Map<String, SyncManifestEntry> imals);
+
+    public Map<String, SyncManifestEntry> getChips();
+
+    public void setChips(Map<String, SyncManifestEntry> chips);
+
+    public Map<String, SyncManifestEntry> getSelections();
+
+    public void setSelections(Map<String, SyncManifestEntry> selections);
+
+    public Map<String, SyncManifestEntry> getImages();
+
+    public void setImages(Map<String, SyncManifestEntry> images);
+
+    public Map<String, SyncManifestEntry> getFeatures();
+
+    public void setFeatures(Map<String, SyncManifestEntry> features);
+
+}
@@ -0,0 +1,19 @@
+package com.st.model;
+
+import org.joda.time.DateTime;
+
+/**
+ * This interface defines the SyncManifestEntry model. Applications that use the
+ * API must implement the same model.
+ */
+public interface ISyncManifestEntry {
+
+    public DateTime getLast_modified();
+
+    public void setLast_modified(DateTime lastModified);
+
+    public String getEtag();
+
+    public void setEtag(String etag);
+
+}
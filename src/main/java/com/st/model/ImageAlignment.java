@@ -31,9 +31,11 @@ public class ImageAlignment implements IImageAlignment {
     String chip_id;
 
     @NotBlank(message = "Figure red must not be blank.")
+    @Indexed(unique = false)
     String figure_red;
 
     @NotBlank(message = "Figure blue must not be blank.")
+    @Indexed(unique = false)
     String figure_blue;
 
     // Not possible.
@@ -0,0 +1,98 @@
+package com.st.model;
+
+import org.joda.time.DateTime;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * This class maps the ImageContent data model object into a MongoDB Document.
+ *
+ * The contents of images are stored once on Amazon S3, under their SHA-256,
+ * however many image names refer to them. The image content counts the
+ * names, so that the contents are deleted along with the last one. The
+ * state tells whether the contents are being uploaded, are stored, or are
+ * being deleted; no name is added to contents being deleted.
+ */
+@Document(collection = "imagecontent")
+public class ImageContent implements IImageContent {
+
+    /** The contents are being uploaded. */
+    public static final String PENDING = "pending";
+
+    /** The contents are stored. Counts without a state are too. */
+    public static final String STORED = "stored";
+
+    /** The upload failed; the next reference uploads the contents. */
+    public static final String FAILED = "failed";
+
+    /** The contents are being deleted. */
+    public static final String DELETING = "deleting";
+
+    @Id
+    String id;      // Hex SHA-256 of the contents.
+
+    String state;
+
+    int refcount;
+
+    long size;
+
+    DateTime created_at;
+
+    /**
+     * Default constructor is needed by Jackson, in
+     * case other constructors are added.
+     */
+    public ImageContent() {}
+
+    @Override
+    public String getId() {
+        return this.id;
+    }
+
+    @Override
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    @Override
+    public String getState() {
+        return this.state;
+    }
+
+    @Override
+    public void setState(String state) {
+        this.state = state;
+    }
+
+    @Override
+    public int getRefcount() {
+        return this.refcount;
+    }
+
+    @Override
+    public void setRefcount(int refcount) {
+        this.refcount = refcount;
+    }
+
+    @Override
+    public long getSize() {
+        return this.size;
+    }
+
+    @Override
+    public void setSize(long size) {
+        this.size = size;
+    }
+
+    @Override
+    public DateTime getCreated_at() {
+        return this.created_at;
+    }
+
+    @Override
+    public void setCreated_at(DateTime created) {
+        this.created_at = created;
+    }
+
+}
@@ -1,21 +1,40 @@
 package com.st.model;
 
+import java.util.List;
 import org.joda.time.DateTime;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
 
 /**
- * This class implements the ImageMetadata object. It derives its properties
- * from Amazon S3.
+ * This class implements the ImageMetadata object. Images stored by content
+ * have their metadata, which maps the image name to the SHA-256 of the
+ * contents, stored in MongoDB along with their dimensions and which
+ * renditions and tiles exist. Older images are stored under their name, and
+ * their metadata has no SHA-256; it is recorded at startup if enabled, and
+ * until then derived from Amazon S3.
  *
  * Image metadata holds characterstics of a tissue microscopy image obtained
  * in an exeperiment. Images are stored on Amazon S3.
  */
+@Document(collection = "imagemetadata")
 public class ImageMetadata implements IImageMetadata {
 
     String imageType;
+    @Id
     String filename;
     DateTime lastModified;
     DateTime created;
     long size;       // No of bytes of file.
+    String etag;     // Quoted entity tag of the file.
+    @Indexed(unique = false)
+    String sha256;   // Hex SHA-256 of the file, null for images stored under their name.
+    @Indexed(unique = false)
+    String originalSha256; // Hex SHA-256 of the uploaded file, if re-encoded since.
+    int width;       // In pixels, 0 if not known.
+    int height;      // In pixels, 0 if not known.
+    List<Integer> renditions; // Sizes of the generated renditions.
+    boolean tiles;   // True if the tile pyramid is generated.
 
     /**
      * Default constructor is needed by Jackson, in
@@ -73,4 +92,74 @@ public class ImageMetadata implements IImageMetadata {
         this.size = size;
     }
 
+    @Override
+    public String getSha256() {
+        return this.sha256;
+    }
+
+    @Override
+    public void setSha256(String sha256) {
+        this.sha256 = sha256;
+    }
+
+    @Override
+    public String getOriginalSha256() {
+        return this.originalSha256;
+    }
+
+    @Override
+    public void setOriginalSha256(String originalSha256) {
+        this.originalSha256 = originalSha256;
+    }
+
+    @Override
+    public int getWidth() {
+        return this.width;
+    }
+
+    @Override
+    public void setWidth(int width) {
+        this.width = width;
+    }
+
+    @Override
+    public int getHeight() {
+        return this.height;
+    }
+
+    @Override
+    public void setHeight(int height) {
+        this.height = height;
+    }
+
+    @Override
+    public List<Integer> getRenditions() {
+        return this.renditions;
+    }
+
+    @Override
+    public void setRenditions(List<Integer> renditions) {
+        this.renditions = renditions;
+    }
+
+    @Override
+    public boolean getTiles() {
+        return this.tiles;
+    }
+
+    @Override
+    public void setTiles(boolean tiles) {
+        this.tiles = tiles;
+    }
+
+    @Override
+    public String getEtag() {
+        return this.etag;
+    }
+
+    @Override
+    public void setEtag(String etag) {
+        this.etag = etag;
+    }
+
 }
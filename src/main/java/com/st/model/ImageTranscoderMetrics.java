@@ -0,0 +1,142 @@
+package com.st.model;
+
+/**
+ * This class implements the ImageTranscoderMetrics object. It is not stored,
+ * but composed on request.
+ *
+ * The state of the pool that decodes and encodes images for requests: the
+ * tasks queued and running, the memory reserved by them out of the budget
+ * (in bytes), the counts of finished and refused tasks since startup, and the
+ * times tasks waited in the queue and ran.
+ */
+public class ImageTranscoderMetrics implements IImageTranscoderMetrics {
+
+    int queued;
+    int running;
+    long memory_budget;
+    long memory_reserved;
+    long completed;
+    long failed;
+    long rejected;
+    long timed_out;
+    long mean_wait_millis;
+    long mean_run_millis;
+    long max_run_millis;
+
+    /**
+     * Default constructor is needed by Jackson, in
+     * case other constructors are added.
+     */
+    public ImageTranscoderMetrics() {}
+
+    @Override
+    public int getQueued() {
+        return this.queued;
+    }
+
+    @Override
+    public void setQueued(int queued) {
+        this.queued = queued;
+    }
+
+    @Override
+    public int getRunning() {
+        return this.running;
+    }
+
+    @Override
+    public void setRunning(int running) {
+        this.running = running;
+    }
+
+    @Override
+    public long getMemory_budget() {
+        return this.memory_budget;
+    }
+
+    @Override
+    public void setMemory_budget(long memoryBudget) {
+        this.memory_budget = memoryBudget;
+    }
+
+    @Override
+    public long getMemory_reserved() {
+        return this.memory_reserved;
+    }
+
+    @Override
+    public void setMemory_reserved(long memoryReserved) {
+        this.memory_reserved = memoryReserved;
+    }
+
+    @Override
+    public long getCompleted() {
+        return this.completed;
+    }
+
+    @Override
+    public void setCompleted(long completed) {
+        this.completed = completed;
+    }
+
+    @Override
+    public long getFailed() {
+        return this.failed;
+    }
+
+    @Override
+    public void setFailed(long failed) {
+        this.failed = failed;
+    }
+
+    @Override
+    public long getRejected() {
+        return this.rejected;
+    }
+
+    @Override
+    public void setRejected(long rejected) {
+        this.rejected = rejected;
+    }
+
+    @Override
+    public long getTimed_out() {
+        return this.timed_out;
+    }
+
+    @Override
+    public void setTimed_out(long timedOut) {
+        this.timed_out = timedOut;
+    }
+
+    @Override
+    public long getMean_wait_millis() {
+        return this.mean_wait_millis;
+    }
+
+    @Override
+    public void setMean_wait_millis(long meanWaitMillis) {
+        this.mean_wait_millis = meanWaitMillis;
+    }
+
+    @Override
+    public long getMean_run_millis() {
+        return this.mean_run_millis;
+    }
+
+    @Override
+    public void setMean_run_millis(long meanRunMillis) {
+        this.mean_run_millis = meanRunMillis;
+    }
+
+    @Override
+    public long getMax_run_millis() {
+        return this.max_run_millis;
+    }
+
+    @Override
+    public void setMax_run_millis(long maxRunMillis) {
+        this.max_run_millis = maxRunMillis;
+    }
+
+}
@@ -9,8 +9,12 @@ import org.joda.time.DateTime;
 import org.springframework.data.annotation.CreatedDate;
 import org.springframework.data.annotation.Id;
 import org.springframework.data.annotation.LastModifiedDate;
+import org.springframework.data.annotation.Transient;
 import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.mapping.Field;
+import com.st.util.GeneHitsCodec;
+import org.codehaus.jackson.map.annotate.JsonSerialize;
 
 /**
  * This interface defines the Selection model. Applications that use the API
@@ -37,8 +41,17 @@ public class Selection implements ISelection {
     @NotBlank(message = "Account must not be blank.")
     String account_id;
 
+    // Set through the API, or unpacked from gene_hits_packed on first access.
+    @Transient
     @NotEmpty(message = "Gene nomenclatures with stats must not be empty.")
-    List<String[]> gene_hits = new ArrayList<>();
+    List<String[]> gene_hits;
+
+    // Gene hits as stored, packed by GeneHitsCodec.
+    byte[] gene_hits_packed;
+
+    // Documents stored before gene hits were packed hold them as string arrays.
+    @Field("gene_hits")
+    List<String[]> legacy_gene_hits;
 
     boolean enabled;
 
@@ -83,14 +96,28 @@ public class Selection implements ISelection {
         this.enabled = enabled;
     }
 
+    // Left out of JSON when empty, e.g. for selections listed in summary mode.
     @Override
+    @JsonSerialize(include = JsonSerialize.Inclusion.NON_EMPTY)
     public List<String[]> getGene_hits() {
+        if (gene_hits == null) {
+            if (gene_hits_packed != null) {
+                gene_hits = GeneHitsCodec.decode(gene_hits_packed);
+            } else if (legacy_gene_hits != null) {
+                gene_hits = legacy_gene_hits;
+            } else {
+                gene_hits = new ArrayList<>();
+            }
+        }
         return gene_hits;
     }
 
+    // Packs the gene hits right away, they are stored in packed form only.
     @Override
     public void setGene_hits(List<String[]> gene_hits) {
         this.gene_hits = gene_hits;
+        this.gene_hits_packed = (gene_hits == null) ? null : GeneHitsCodec.encode(gene_hits);
+        this.legacy_gene_hits = null;
     }
 
     @Override
@@ -0,0 +1,90 @@
+package com.st.model;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * This class implements the SyncManifest object. It is not stored, but
+ * composed on request.
+ *
+ * A sync manifest lists the version of every dataset, image alignment, chip,
+ * selection, image and features file visible to the user, keyed by ID (by
+ * file name for images, by dataset ID for features), so that a client can
+ * tell which of its cached copies are stale or removed with one request.
+ */
+public class SyncManifest implements ISyncManifest {
+
+    Map<String, SyncManifestEntry> datasets = new TreeMap<>();
+    Map<String, SyncManifestEntry> image_alignments = new TreeMap<>();
+    Map<String, SyncManifestEntry> chips = new TreeMap<>();
+    Map<String, SyncManifestEntry> selections = new TreeMap<>();
+    Map<String, SyncManifestEntry> images = new TreeMap<>();
+    Map<String, SyncManifestEntry> features = new TreeMap<>();
+
+    /**
+     * Default constructor is needed by Jackson, in
+     * case other constructors are added.
+     */
+    public SyncManifest() {}
+
+    @Override
+    public Map<String, SyncManifestEntry> getDatasets() {
+        return this.datasets;
+    }
+
+    @Override
+    public void setDatasets(Map<String, SyncManifestEntry> datasets) {
+        this.datasets = datasets;
+    }
+
+    @Override
+    public Map<String, SyncManifestEntry> getImage_alignments() {
+        return this.image_alignments;
+    }
+
+    @Override
+    public void setImage_alignments(Map<String, SyncManifestEntry> imals) {
+        this.image_alignments = imals;
+    }
+
+    @Override
+    public Map<String, SyncManifestEntry> getChips() {
+        return this.chips;
+    }
+
+    @Override
+    public void setChips(Map<String, SyncManifestEntry> chips) {
+        this.chips = chips;
+    }
+
+    @Override
+    public Map<String, SyncManifestEntry> getSelections() {
+        return this.selections;
+    }
+
+    @Override
+    public void setSelections(Map<String, SyncManifestEntry> selections) {
+        this.selections = selections;
+    }
+
+    @Override
+    public Map<String, SyncManifestEntry> getImages() {
+        return this.images;
+    }
+
+    @Override
+    public void setImages(Map<String, SyncManifestEntry> images) {
+        this.images = images;
+    }
+
+    @Override
+    public Map<String, SyncManifestEntry> getFeatures() {
+        return this.features;
+    }
+
+    @Override
+    public void setFeatures(Map<String, SyncManifestEntry> features) {
+        this.features = features;
+    }
+
+}
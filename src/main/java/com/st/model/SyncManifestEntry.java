@@ -0,0 +1,53 @@
+package com.st.model;
+
+import org.joda.time.DateTime;
+
+/**
+ * This class implements the SyncManifestEntry object. It is not stored, but
+ * composed on request.
+ *
+ * The version of one resource in a sync manifest: its last modified time
+ * and a tag that changes whenever the resource does. For images the tag is
+ * the ETag their compressed contents are served with. For the others it is
+ * an opaque version (the last modified time of documents, the MD5 of
+ * features files), to be compared with the tag of the previous manifest
+ * only; it is not the ETag the resource is served with, and is not to be
+ * sent in If-None-Match.
+ */
+public class SyncManifestEntry implements ISyncManifestEntry {
+
+    DateTime last_modified;
+    String etag;
+
+    /**
+     * Default constructor is needed by Jackson, in
+     * case other constructors are added.
+     */
+    public SyncManifestEntry() {}
+
+    public SyncManifestEntry(DateTime lastModified, String etag) {
+        this.last_modified = lastModified;
+        this.etag = etag;
+    }
+
+    @Override
+    public DateTime getLast_modified() {
+        return this.last_modified;
+    }
+
+    @Override
+    public void setLast_modified(DateTime lastModified) {
+        this.last_modified = lastModified;
+    }
+
+    @Override
+    public String getEtag() {
+        return this.etag;
+    }
+
+    @Override
+    public void setEtag(String etag) {
+        this.etag = etag;
+    }
+
+}
@@ -6,6 +6,10 @@ import org.springframework.stereotype.Service;
 
 import com.st.model.Account;
 import com.st.model.AccountId;
+import com.st.util.FieldProjection;
+import com.st.util.KeysetPage;
+import com.st.util.ModelHandler;
+import com.st.util.PageQuery;
 
 /**
  * Interface for the account service.
@@ -40,6 +44,30 @@ public interface AccountService {
      */
     public List<Account> list();
 
+    /**
+     * Finds all accounts, with only the projected fields read.
+     * @param projection the fields.
+     * @return the accounts.
+     */
+    public List<Account> list(FieldProjection projection);
+
+    /**
+     * Finds a page of accounts, with only the projected fields read.
+     * @param projection the fields.
+     * @param page the page, sort and cursor.
+     * @return the page.
+     */
+    public KeysetPage<Account> list(FieldProjection projection, PageQuery page);
+
+    /**
+     * Streams all accounts to a handler, one at a time as read from the
+     * database, with only the projected fields read.
+     * @param projection the fields.
+     * @param handler the handler.
+     * @return false if not permitted, in which case nothing is streamed.
+     */
+    public boolean stream(FieldProjection projection, ModelHandler<Account> handler);
+
     /**
      * Finds all accounts ids.
      * @return the accounts ids.
@@ -0,0 +1,27 @@
+package com.st.service;
+
+import com.st.model.Chip;
+import com.st.model.ImageAlignment;
+import com.st.model.ImageMetadata;
+import com.st.model.S3Resource;
+
+/**
+ * Interface for the aligned image service.
+ */
+public interface AlignedImageService {
+
+    /**
+     * Returns a figure of an image alignment warped into the coordinate space
+     * of its chip, by the alignment matrix, so that chip coordinates map
+     * linearly to its pixels.
+     * @param imal the image alignment.
+     * @param chip the chip of the alignment.
+     * @param figure the metadata of the red or blue figure of the alignment.
+     * @param size the longest side of the result, in pixels.
+     * @return the warped figure as JPEG, or null if the contents of the
+     * figure are gone.
+     * @throws IllegalArgumentException if the alignment matrix is not affine.
+     */
+    public S3Resource findAligned(ImageAlignment imal, Chip chip, ImageMetadata figure, int size);
+
+}
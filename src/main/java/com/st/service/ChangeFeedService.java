@@ -0,0 +1,34 @@
+package com.st.service;
+
+import com.st.model.MongoUserDetails;
+import java.util.Collection;
+import javax.servlet.AsyncContext;
+
+/**
+ * Interface for the change feed service.
+ */
+public interface ChangeFeedService {
+
+    /**
+     * Publishes a change to the subscribers that can see the resource. Called
+     * by the services after they have written it. Only the subscribers
+     * connected to this JVM receive it.
+     * @param type the resource type, see ChangeEvent.
+     * @param action added, updated or deleted, see ChangeEvent.
+     * @param id the resource ID.
+     * @param accounts accounts that can see the resource besides those found
+     * from the grants, e.g. the owner of a selection, or null.
+     */
+    public void publish(String type, String action, String id, Collection<String> accounts);
+
+    /**
+     * Sends the changes visible to a user as Server-Sent Events, until the
+     * request times out or the client goes away.
+     * @param async the started asynchronous request.
+     * @param user the user.
+     * @param lastEventId the ID of the last event the client received, from
+     * the Last-Event-ID header when it reconnects, or null.
+     */
+    public void subscribe(AsyncContext async, MongoUserDetails user, String lastEventId);
+
+}
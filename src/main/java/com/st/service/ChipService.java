@@ -1,10 +1,15 @@
 package com.st.service;
 
+import java.util.Collection;
 import java.util.List;
 
 import org.springframework.stereotype.Service;
 
 import com.st.model.Chip;
+import com.st.util.FieldProjection;
+import com.st.util.KeysetPage;
+import com.st.util.ModelHandler;
+import com.st.util.PageQuery;
 
 /**
  * Interface for the chip service.
@@ -19,6 +24,13 @@ public interface ChipService {
      */
     public Chip find(String id);
 
+    /**
+     * Finds several chips in one query.
+     * @param ids the IDs.
+     * @return the chips found, in no particular order. Missing IDs are left out.
+     */
+    public List<Chip> findByIds(Collection<String> ids);
+
     /**
      * Returns a chip by name.
      * @param name the name.
@@ -32,6 +44,30 @@ public interface ChipService {
      */
     public List<Chip> list();
 
+    /**
+     * Returns all chips, with only the projected fields read.
+     * @param projection the fields.
+     * @return the list.
+     */
+    public List<Chip> list(FieldProjection projection);
+
+    /**
+     * Returns a page of chips, with only the projected fields read.
+     * @param projection the fields.
+     * @param page the page, sort and cursor.
+     * @return the page.
+     */
+    public KeysetPage<Chip> list(FieldProjection projection, PageQuery page);
+
+    /**
+     * Streams all chips to a handler, one at a time as read from the
+     * database, with only the projected fields read.
+     * @param projection the fields.
+     * @param handler the handler.
+     * @return false if not permitted, in which case nothing is streamed.
+     */
+    public boolean stream(FieldProjection projection, ModelHandler<Chip> handler);
+
     /**
      * Adds a chip.
      * @param chip the chip.
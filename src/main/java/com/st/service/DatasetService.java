@@ -1,9 +1,14 @@
 package com.st.service;
 
+import java.util.Collection;
 import java.util.List;
 import org.springframework.stereotype.Service;
 import com.st.model.Dataset;
 import com.st.model.MongoUserDetails;
+import com.st.util.FieldProjection;
+import com.st.util.KeysetPage;
+import com.st.util.ModelHandler;
+import com.st.util.PageQuery;
 
 /**
  * Interface for the dataset service.
@@ -18,6 +23,13 @@ public interface DatasetService {
      */
     public Dataset find(String id);
 
+    /**
+     * Finds several datasets in one query.
+     * @param ids the IDs.
+     * @return the granted datasets found, in no particular order. Missing IDs are left out.
+     */
+    public List<Dataset> findByIds(Collection<String> ids);
+
     /**
      * Finds a dataset by name.
      * @param name the dataset name.
@@ -32,6 +44,23 @@ public interface DatasetService {
      */
     public List<Dataset> findByAccount(String accountId);
 
+    /**
+     * Finds all datasets of an account, with only the projected fields read.
+     * @param accountId the account ID.
+     * @param projection the fields.
+     * @return the list.
+     */
+    public List<Dataset> findByAccount(String accountId, FieldProjection projection);
+
+    /**
+     * Finds a page of datasets of an account, with only the projected fields read.
+     * @param accountId the account ID.
+     * @param projection the fields.
+     * @param page the page, sort and cursor.
+     * @return the page.
+     */
+    public KeysetPage<Dataset> findByAccount(String accountId, FieldProjection projection, PageQuery page);
+
     /**
      * Adds a dataset.
      * @param ds the dataset.
@@ -45,6 +74,30 @@ public interface DatasetService {
      */
     public List<Dataset> list();
 
+    /**
+     * Lists all datasets, with only the projected fields read.
+     * @param projection the fields.
+     * @return the list.
+     */
+    public List<Dataset> list(FieldProjection projection);
+
+    /**
+     * Lists a page of datasets, with only the projected fields read.
+     * @param projection the fields.
+     * @param page the page, sort and cursor.
+     * @return the page.
+     */
+    public KeysetPage<Dataset> list(FieldProjection projection, PageQuery page);
+
+    /**
+     * Streams all datasets to a handler, one at a time as read from the
+     * database, with only the projected fields read.
+     * @param projection the fields.
+     * @param handler the handler.
+     * @return false if not permitted, in which case nothing is streamed.
+     */
+    public boolean stream(FieldProjection projection, ModelHandler<Dataset> handler);
+
     /**
      * Updates a dataset.
      * @param ds the dataset.
@@ -71,6 +124,12 @@ public interface DatasetService {
      */
     public void setUnabledForImageAlignment(String imalId);
 
+    /**
+     * Disables all datasets referencing any of some image alignments, in one update.
+     * @param imalIds the image alignment IDs.
+     */
+    public void setUnabledForImageAlignments(Collection<String> imalIds);
+
     /**
      * Returns true if a user has access to a specific dataset.
      * @param datasetId the dataset ID.
@@ -1,5 +1,6 @@
 package com.st.service;
 
+import com.st.model.FeaturesDelta;
 import com.st.model.FeaturesMetadata;
 import com.st.model.MongoUserDetails;
 import java.io.InputStream;
@@ -32,19 +33,55 @@ public interface FeaturesService {
     public FeaturesMetadata getMetadata(String id);
     
     /**
-     * Adds or updates a features file.
+     * Adds or updates a features file. The statistics of the dataset
+     * (feature, hit, gene and barcode counts and hit quartiles) are
+     * computed from the file and updated accordingly.
      * @param id the dataset ID.
      * @param gzipfile the file, gzipped in BASE64-encoding.
      * @return true if file was updated; false if added.
      */
     public boolean addUpdate(String id, byte[] gzipfile);
     
+    /**
+     * Applies added, removed and changed features to a stored features file,
+     * producing a new version. The previous version is kept for rollback,
+     * and the statistics of the dataset are updated.
+     * @param id the dataset ID.
+     * @param delta the changes.
+     * @return true if patched; false if there is no features file.
+     */
+    public boolean patch(String id, FeaturesDelta delta);
+
+    /**
+     * Restores the previous version of a features file.
+     * @param id the dataset ID.
+     * @return true if restored; false if there is no previous version.
+     */
+    public boolean rollback(String id);
+
     /**
      * Finds a features file.
      * @param id the dataset ID.
      * @return the features file gzipped, as an input stream.
      */
     public InputStream find(String id);
+
+    /**
+     * Finds an alternative encoding of a features file, e.g. "xz". Alternative
+     * encodings are generated in the background after the file is stored.
+     * @param id the dataset ID.
+     * @param encoding the content encoding.
+     * @return the encoded features file as an input stream, or null if the
+     * encoding is not (yet) available for the current version of the file.
+     */
+    public InputStream find(String id, String encoding);
+
+    /**
+     * Generates the alternative encodings of a features file, replacing the
+     * existing ones.
+     * @param id the dataset ID.
+     */
+    public void encode(String id);
     
     /**
      * Deletes a features file.
@@ -0,0 +1,46 @@
+package com.st.service;
+
+import com.st.model.S3Resource;
+
+/**
+ * Interface for the features tile service.
+ */
+public interface FeaturesTileService {
+
+    /**
+     * Schedules the generation of the tile pyramid of a dataset's features
+     * in the background.
+     * @param id the dataset ID.
+     */
+    public void generateInBackground(String id);
+
+    /**
+     * Generates the tile pyramid of a dataset's features, replacing the
+     * existing one.
+     * @param id the dataset ID.
+     */
+    public void generate(String id);
+
+    /**
+     * Returns the description of a dataset's tile pyramid.
+     * @param id the dataset ID.
+     * @return the description as gzipped JSON.
+     */
+    public S3Resource findPyramid(String id);
+
+    /**
+     * Returns a tile.
+     * @param id the dataset ID.
+     * @param level the zoom level.
+     * @param x the tile column.
+     * @param y the tile row.
+     * @return the tile as gzipped JSON.
+     */
+    public S3Resource findTile(String id, int level, int x, int y);
+
+    /**
+     * Deletes the tile pyramid of a dataset.
+     * @param id the dataset ID.
+     */
+    public void delete(String id);
+}
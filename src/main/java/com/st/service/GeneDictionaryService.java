@@ -0,0 +1,39 @@
+package com.st.service;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Interface for the gene dictionary service, which maps gene names to stable
+ * integer IDs shared by all datasets.
+ */
+public interface GeneDictionaryService {
+
+    /**
+     * Returns the ID of a gene, assigning a new one if the gene is unknown.
+     * @param name the gene name.
+     * @return the ID.
+     */
+    public int getId(String name);
+
+    /**
+     * Returns the IDs of genes, assigning new ones to unknown genes in bulk.
+     * @param names the gene names.
+     * @return map of gene name to ID.
+     */
+    public Map<String, Integer> getIds(Collection<String> names);
+
+    /**
+     * Returns the ID of a gene without assigning one.
+     * @param name the gene name.
+     * @return the ID, or null if the gene is unknown.
+     */
+    public Integer findId(String name);
+
+    /**
+     * Returns the name of a gene.
+     * @param id the ID.
+     * @return the name, or null if there is no such ID.
+     */
+    public String getName(int id);
+}
@@ -0,0 +1,32 @@
+package com.st.service;
+
+import com.st.model.GenePresence;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Interface for the gene presence service, a cross-dataset index from gene to
+ * the datasets expressing it.
+ */
+public interface GenePresenceService {
+
+    /**
+     * Finds the datasets expressing a gene, most hits first.
+     * @param gene the gene.
+     * @return the index entries of the gene.
+     */
+    public List<GenePresence> findByGene(String gene);
+
+    /**
+     * Replaces the index entries of a dataset.
+     * @param datasetId the dataset ID.
+     * @param geneHits map of gene to {hits, spots}.
+     */
+    public void update(String datasetId, Map<String, long[]> geneHits);
+
+    /**
+     * Deletes the index entries of a dataset.
+     * @param datasetId the dataset ID.
+     */
+    public void delete(String datasetId);
+}
@@ -1,10 +1,16 @@
 package com.st.service;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Set;
 
 import org.springframework.stereotype.Service;
 
 import com.st.model.ImageAlignment;
+import com.st.util.FieldProjection;
+import com.st.util.KeysetPage;
+import com.st.util.ModelHandler;
+import com.st.util.PageQuery;
 
 /**
  * Interface for the imagealignment service.
@@ -19,6 +25,13 @@ public interface ImageAlignmentService {
      */
     public ImageAlignment find(String id);
 
+    /**
+     * Finds several alignments in one query.
+     * @param ids the IDs.
+     * @return the alignments found, in no particular order. Missing IDs are left out.
+     */
+    public List<ImageAlignment> findByIds(Collection<String> ids);
+
     /**
      * Finds an alignment by name.
      * @param name the alignment name.
@@ -33,12 +46,53 @@ public interface ImageAlignmentService {
      */
     public List<ImageAlignment> findByChip(String chipId);
 
+    /**
+     * Finds all alignments of a chip, with only the projected fields read.
+     * @param chipId the chip ID.
+     * @param projection the fields.
+     * @return the list.
+     */
+    public List<ImageAlignment> findByChip(String chipId, FieldProjection projection);
+
+    /**
+     * Finds a page of alignments of a chip, with only the projected fields read.
+     * @param chipId the chip ID.
+     * @param projection the fields.
+     * @param page the page, sort and cursor.
+     * @return the page.
+     */
+    public KeysetPage<ImageAlignment> findByChip(String chipId, FieldProjection projection, PageQuery page);
+
     /**
      * Finds all alignments.
      * @return the list.
      */
     public List<ImageAlignment> list();
 
+    /**
+     * Finds all alignments, with only the projected fields read.
+     * @param projection the fields.
+     * @return the list.
+     */
+    public List<ImageAlignment> list(FieldProjection projection);
+
+    /**
+     * Finds a page of alignments, with only the projected fields read.
+     * @param projection the fields.
+     * @param page the page, sort and cursor.
+     * @return the page.
+     */
+    public KeysetPage<ImageAlignment> list(FieldProjection projection, PageQuery page);
+
+    /**
+     * Streams all alignments to a handler, one at a time as read from the
+     * database, with only the projected fields read.
+     * @param projection the fields.
+     * @param handler the handler.
+     * @return false if not permitted, in which case nothing is streamed.
+     */
+    public boolean stream(FieldProjection projection, ModelHandler<ImageAlignment> handler);
+
     /**
      * Adds an alignment.
      * @param imal the alignment.
@@ -58,6 +112,13 @@ public interface ImageAlignmentService {
      */
     public void delete(String id);
 
+    /**
+     * Returns the images, of some, that are the figures of any alignment.
+     * @param filenames the image names.
+     * @return the referenced image names.
+     */
+    public Set<String> findReferencedFigures(Collection<String> filenames);
+
     /**
      * Deletes all alignment referencing a certain chip.
      * @param chipId the chip ID.
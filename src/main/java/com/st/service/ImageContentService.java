@@ -0,0 +1,108 @@
+package com.st.service;
+
+import com.st.model.ImageMetadata;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Interface for the image content service.
+ */
+public interface ImageContentService {
+
+    /**
+     * Returns the Amazon S3 key of the contents to decode an image from: the
+     * content key of the contents as uploaded if stored by content, else its
+     * name.
+     * @param filename the image name.
+     * @return the key.
+     */
+    public String findKey(String filename);
+
+    /**
+     * Returns the metadata of an image stored by content.
+     * @param filename the image name.
+     * @return the metadata, or null if the image is not stored by content.
+     */
+    public ImageMetadata find(String filename);
+
+    /**
+     * Lists the metadata of the images stored by content.
+     * @return the list.
+     */
+    public List<ImageMetadata> list();
+
+    /**
+     * Stores the contents of an image under a name. The contents are
+     * uploaded only if no other image has the same contents; if one has,
+     * the image takes over its renditions, tiles and re-encoding.
+     * @param filename the image name.
+     * @param contents the contents.
+     * @return the metadata of the image.
+     */
+    public ImageMetadata store(String filename, byte[] contents);
+
+    /**
+     * Replaces the contents of an image by a re-encoding of them. The
+     * original contents are kept, and deleted along with the image.
+     * @param filename the image name.
+     * @param sha256 the SHA-256 of the contents that were re-encoded.
+     * @param contents the re-encoded contents.
+     * @return the metadata of the image, or null if it has other contents
+     * by now, or was re-encoded already.
+     */
+    public ImageMetadata replace(String filename, String sha256, byte[] contents);
+
+    /**
+     * Replaces the contents of an image by the re-encoding of the same
+     * contents that another image has, if any.
+     * @param filename the image name.
+     * @param sha256 the SHA-256 of the contents of the image.
+     * @return the metadata of the image, or null if no other image has a
+     * re-encoding of the contents, or the image has other contents by now.
+     */
+    public ImageMetadata reuseReencoding(String filename, String sha256);
+
+    /**
+     * Records the renditions that exist of an image, and so of all images
+     * with the same contents as uploaded.
+     * @param image the image metadata.
+     * @param sizes the sizes of the renditions.
+     */
+    public void setRenditions(ImageMetadata image, List<Integer> sizes);
+
+    /**
+     * Records that a rendition of an image exists, and so of all images
+     * with the same contents as uploaded.
+     * @param image the image metadata.
+     * @param size the size of the rendition.
+     */
+    public void addRendition(ImageMetadata image, int size);
+
+    /**
+     * Records whether the tile pyramid of an image exists, and so of all
+     * images with the same contents as uploaded.
+     * @param image the image metadata.
+     * @param tiles true if it exists.
+     */
+    public void setTiles(ImageMetadata image, boolean tiles);
+
+    /**
+     * Records the metadata of an image stored under its name, from the
+     * header of the image. The image stays where it is.
+     * @param filename the image name.
+     * @return the metadata, or null if there is no such image, or it has
+     * metadata already.
+     * @throws IOException on read errors.
+     */
+    public ImageMetadata migrate(String filename) throws IOException;
+
+    /**
+     * Removes the name of an image. The contents, and their renditions and
+     * tiles, are deleted when no other name refers to them. Those of an image
+     * stored under its name with recorded metadata are deleted along with it.
+     * @param filename the image name.
+     * @return false if the image has no metadata.
+     */
+    public boolean delete(String filename);
+
+}
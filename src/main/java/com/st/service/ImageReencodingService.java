@@ -0,0 +1,21 @@
+package com.st.service;
+
+/**
+ * Interface for the image re-encoding service.
+ */
+public interface ImageReencodingService {
+
+    /**
+     * Schedules the re-encoding of an image as progressive JPEG in the
+     * background, if re-encoding is enabled.
+     * @param filename the image name.
+     */
+    public void reencodeInBackground(String filename);
+
+    /**
+     * Re-encodes an image as progressive JPEG, keeping the original. Images
+     * that are not sequential JPEG, or were re-encoded already, are left as is.
+     * @param filename the image name.
+     */
+    public void reencode(String filename);
+}
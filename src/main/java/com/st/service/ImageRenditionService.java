@@ -0,0 +1,61 @@
+package com.st.service;
+
+import com.st.model.ImageMetadata;
+import com.st.model.S3Resource;
+import java.util.List;
+
+/**
+ * Interface for the image rendition service.
+ */
+public interface ImageRenditionService {
+
+    /**
+     * Schedules the generation of the renditions of an image in the background.
+     * @param image the image metadata.
+     */
+    public void generateInBackground(ImageMetadata image);
+
+    /**
+     * Generates the renditions of an image, unless all of them exist for
+     * the same contents already.
+     * @param image the image metadata.
+     */
+    public void generate(ImageMetadata image);
+
+    /**
+     * Returns a downscaled copy of an image that fits in a box.
+     * @param image the image metadata.
+     * @param width the box width, at most the largest rendition size.
+     * @param height the box height, at most the largest rendition size.
+     * @return the thumbnail as JPEG, or null if there is no such image.
+     */
+    public S3Resource findThumbnail(ImageMetadata image, int width, int height);
+
+    /**
+     * Returns a region of an image, scaled down. Only the region is decoded.
+     * @param image the image metadata.
+     * @param x the left of the region, in pixels of the image.
+     * @param y the top of the region, in pixels of the image.
+     * @param width the region width, in pixels of the image.
+     * @param height the region height, in pixels of the image.
+     * @param scale the scale, greater than 0 and at most 1.
+     * @return the region as JPEG, or null if there is no such image.
+     * @throws IllegalArgumentException if the region is outside the image.
+     */
+    public S3Resource findRegion(ImageMetadata image, int x, int y, int width, int height, double scale);
+
+    /**
+     * Lists the stored renditions of an image.
+     * @param image the image metadata.
+     * @return the sizes of the renditions, ascending.
+     */
+    public List<Integer> findSizes(ImageMetadata image);
+
+    /**
+     * Deletes the renditions of an image stored under its name, and drops
+     * them from the cache. Those of images stored by content are deleted
+     * along with the contents.
+     * @param filename the image name.
+     */
+    public void delete(String filename);
+}
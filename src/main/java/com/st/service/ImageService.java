@@ -1,6 +1,8 @@
 package com.st.service;
 
-import java.awt.image.BufferedImage;
+import com.amazonaws.services.s3.model.S3Object;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.List;
 
 import com.st.model.ImageMetadata;
@@ -24,25 +26,37 @@ public interface ImageService {
     public ImageMetadata getImageMetadata(String filename);
 
     /**
-     * Returns an image as a BufferedImage.
+     * Returns an image decoded and encoded again as JPEG, at the default
+     * quality, as decompressed images have always been returned.
      * @param filename the image name.
-     * @return the image.
+     * @return the JPEG image.
      */
-    public BufferedImage getBufferedImage(String filename);
+    public byte[] getDecodedImage(String filename);
 
     /**
-     * Returns an image a JPEG stream.
-     * @param filename the image name.
-     * @return the image.
+     * Opens the stored contents (JPEG) of an image, to be copied with
+     * writeCompressedImage(). These are the contents the metadata describes,
+     * even if the image has been re-encoded since.
+     * @param meta the image metadata, from getImageMetadata().
+     * @return the object, or null if the contents are gone.
      */
-    public byte[] getCompressedImage(String filename);
+    public S3Object openCompressedImage(ImageMetadata meta);
 
     /**
-     * Adds a JPEG image via a BufferedImage.
+     * Copies opened image contents into a stream, without holding them in
+     * memory, and closes them.
+     * @param object the contents, from openCompressedImage().
+     * @param out the stream, which is not closed.
+     * @throws IOException on failure to read or write.
+     */
+    public void writeCompressedImage(S3Object object, OutputStream out) throws IOException;
+
+    /**
+     * Adds an image in any format ImageIO reads, encoded as JPEG.
      * @param filename the image name.
-     * @param img the image.
+     * @param img the encoded image.
      */
-    public void add(String filename, BufferedImage img);
+    public void add(String filename, byte[] img);
 
     /**
      * Adds an image as a JPEG.
@@ -56,4 +70,18 @@ public interface ImageService {
      * @param filename the image name.
      */
     public void delete(String filename);
+
+    /**
+     * Schedules recording the metadata of all images stored under their name
+     * in the background, if enabled by the property image.migrate. The
+     * images stay where they are.
+     */
+    public void migrateInBackground();
+
+    /**
+     * Tells whether images stored under their name may still have no
+     * metadata, i.e. no node has recorded all of it yet.
+     * @return true if there may be such images.
+     */
+    public boolean hasLegacyImages();
 }
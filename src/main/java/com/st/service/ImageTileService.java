@@ -0,0 +1,54 @@
+package com.st.service;
+
+import com.st.model.ImageMetadata;
+import com.st.model.S3Resource;
+
+/**
+ * Interface for the image tile service.
+ */
+public interface ImageTileService {
+
+    /**
+     * Schedules the generation of the tile pyramid of an image in the background.
+     * @param image the image metadata.
+     */
+    public void generateInBackground(ImageMetadata image);
+
+    /**
+     * Generates the tile pyramid of an image, unless it exists for the same
+     * contents already.
+     * @param image the image metadata.
+     */
+    public void generate(ImageMetadata image);
+
+    /**
+     * Returns the DZI descriptor of an image's tile pyramid.
+     * @param image the image metadata.
+     * @return the descriptor as XML, or null if there is no pyramid (yet).
+     */
+    public S3Resource findDescriptor(ImageMetadata image);
+
+    /**
+     * Returns a tile.
+     * @param image the image metadata.
+     * @param level the zoom level.
+     * @param col the tile column.
+     * @param row the tile row.
+     * @return the tile as JPEG, or null if it does not exist.
+     */
+    public S3Resource findTile(ImageMetadata image, int level, int col, int row);
+
+    /**
+     * Tells whether the tile pyramid of an image is stored.
+     * @param image the image metadata.
+     * @return true if it is stored.
+     */
+    public boolean exists(ImageMetadata image);
+
+    /**
+     * Deletes the tile pyramid of an image stored under its name. Those of
+     * images stored by content are deleted along with the contents.
+     * @param filename the image name.
+     */
+    public void delete(String filename);
+}
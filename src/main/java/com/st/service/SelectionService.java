@@ -1,10 +1,15 @@
 package com.st.service;
 
+import java.util.Collection;
 import java.util.List;
 
 import org.springframework.stereotype.Service;
 
 import com.st.model.Selection;
+import com.st.util.FieldProjection;
+import com.st.util.KeysetPage;
+import com.st.util.ModelHandler;
+import com.st.util.PageQuery;
 
 /**
  * Interface for the selection service.
@@ -19,6 +24,13 @@ public interface SelectionService {
      */
     public Selection find(String id);
 
+    /**
+     * Finds several selections in one query.
+     * @param ids the IDs.
+     * @return the accessible selections found, in no particular order. Missing IDs are left out.
+     */
+    public List<Selection> findByIds(Collection<String> ids);
+
     /**
      * Returns a selection by name.
      * @param name the selection name.
@@ -32,6 +44,30 @@ public interface SelectionService {
      */
     public List<Selection> list();
 
+    /**
+     * Returns all selections, with only the projected fields read.
+     * @param projection the fields, e.g. all but the gene hits.
+     * @return the list.
+     */
+    public List<Selection> list(FieldProjection projection);
+
+    /**
+     * Returns a page of selections, with only the projected fields read.
+     * @param projection the fields, e.g. all but the gene hits.
+     * @param page the page, sort and cursor.
+     * @return the page.
+     */
+    public KeysetPage<Selection> list(FieldProjection projection, PageQuery page);
+
+    /**
+     * Streams all selections to a handler, one at a time as read from the
+     * database, with only the projected fields read.
+     * @param projection the fields.
+     * @param handler the handler.
+     * @return false if not permitted, in which case nothing is streamed.
+     */
+    public boolean stream(FieldProjection projection, ModelHandler<Selection> handler);
+
     /**
      * Returns all selections for an account.
      * @param accountId the account ID.
@@ -39,6 +75,23 @@ public interface SelectionService {
      */
     public List<Selection> findByAccount(String accountId);
 
+    /**
+     * Returns all selections for an account, with only the projected fields read.
+     * @param accountId the account ID.
+     * @param projection the fields, e.g. all but the gene hits.
+     * @return the selections.
+     */
+    public List<Selection> findByAccount(String accountId, FieldProjection projection);
+
+    /**
+     * Returns a page of selections for an account, with only the projected fields read.
+     * @param accountId the account ID.
+     * @param projection the fields, e.g. all but the gene hits.
+     * @param page the page, sort and cursor.
+     * @return the page.
+     */
+    public KeysetPage<Selection> findByAccount(String accountId, FieldProjection projection, PageQuery page);
+
     /**
      * Returns all selections for a dataset.
      * @param datasetId the dataset ID.
@@ -46,6 +99,32 @@ public interface SelectionService {
      */
     public List<Selection> findByDataset(String datasetId);
 
+    /**
+     * Returns all selections for a dataset, with only the projected fields read.
+     * @param datasetId the dataset ID.
+     * @param projection the fields, e.g. all but the gene hits.
+     * @return the list.
+     */
+    public List<Selection> findByDataset(String datasetId, FieldProjection projection);
+
+    /**
+     * Returns a page of selections for a dataset, with only the projected fields read.
+     * @param datasetId the dataset ID.
+     * @param projection the fields, e.g. all but the gene hits.
+     * @param page the page, sort and cursor.
+     * @return the page.
+     */
+    public KeysetPage<Selection> findByDataset(String datasetId, FieldProjection projection, PageQuery page);
+
+    /**
+     * Returns the gene hits of a selection, sorted by hits (the second
+     * column of each row). Rows without numeric hits come last.
+     * @param id the selection ID.
+     * @param descending true for most hits first.
+     * @return the gene hits, or null if the selection is missing or not accessible.
+     */
+    public List<String[]> findGeneHits(String id, boolean descending);
+
     /**
      * Adds a selection.
      * @param sel the selection.
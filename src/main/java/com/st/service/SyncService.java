@@ -0,0 +1,16 @@
+package com.st.service;
+
+import com.st.model.SyncManifest;
+
+/**
+ * Interface for the sync service.
+ */
+public interface SyncService {
+
+    /**
+     * Returns the versions of all resources visible to the current user.
+     * @return the manifest.
+     */
+    public SyncManifest getManifest();
+
+}
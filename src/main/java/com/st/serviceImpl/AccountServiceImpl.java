@@ -1,6 +1,7 @@
 package com.st.serviceImpl;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -10,9 +11,15 @@ import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.stereotype.Service;
 import com.st.model.Account;
 import com.st.model.AccountId;
+import com.st.model.ChangeEvent;
 import com.st.model.DatasetInfo;
 import com.st.model.MongoUserDetails;
 import com.st.service.AccountService;
+import com.st.util.FieldProjection;
+import com.st.util.KeysetPage;
+import com.st.util.ModelDocumentHandler;
+import com.st.util.ModelHandler;
+import com.st.util.PageQuery;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -33,6 +40,9 @@ public class AccountServiceImpl implements AccountService {
     @Autowired
     MongoUserDetailsServiceImpl customUserDetailsService;
 
+    @Autowired
+    ChangeFeedServiceImpl changeFeedService;
+
     // ROLE_ADMIN: ok.
     // ROLE_CM:    own.
     // ROLE_USER:  own.
@@ -80,14 +90,42 @@ public class AccountServiceImpl implements AccountService {
     // ROLE_USER:  own.
     @Override
     public List<Account> list() {
+        return list(FieldProjection.all());
+    }
+
+    // ROLE_ADMIN: all.
+    // ROLE_CM:    own.
+    // ROLE_USER:  own.
+    @Override
+    public List<Account> list(FieldProjection projection) {
+        return list(projection, PageQuery.unbounded()).getItems();
+    }
+
+    // ROLE_ADMIN: all.
+    // ROLE_CM:    own.
+    // ROLE_USER:  own.
+    @Override
+    public KeysetPage<Account> list(FieldProjection projection, PageQuery page) {
         MongoUserDetails currentUser = customUserDetailsService.loadCurrentUser();
-        if (currentUser.isAdmin()) {
-            return mongoTemplateUserDB.findAll(Account.class);
-        }
-        ArrayList<Account> accounts = new ArrayList<>(1);
-        accounts.add(mongoTemplateUserDB.findOne(new 
-        Query(Criteria.where("id").is(currentUser.getId())), Account.class));
-        return accounts;
+        Query query = currentUser.isAdmin() ? new Query()
+                : new Query(Criteria.where("id").is(currentUser.getId()));
+        List<Account> accounts = mongoTemplateUserDB.find(page.apply(
+                projection.apply(query, "enabled", page.getSort())), Account.class);
+        return page.toPage(accounts, mongoTemplateUserDB.getConverter());
+    }
+
+    // ROLE_ADMIN: all.
+    // ROLE_CM:    own.
+    // ROLE_USER:  own.
+    @Override
+    public boolean stream(FieldProjection projection, ModelHandler<Account> handler) {
+        MongoUserDetails currentUser = customUserDetailsService.loadCurrentUser();
+        Query query = currentUser.isAdmin() ? new Query()
+                : new Query(Criteria.where("_id").is(currentUser.getId()));
+        mongoTemplateUserDB.executeQuery(projection.apply(query, "enabled"),
+                mongoTemplateUserDB.getCollectionName(Account.class),
+                new ModelDocumentHandler<>(Account.class, mongoTemplateUserDB.getConverter(), handler));
+        return true;
     }
     
     // ROLE_ADMIN: all.
@@ -125,6 +163,8 @@ public class AccountServiceImpl implements AccountService {
         }
         mongoTemplateUserDB.insert(account);
         logger.info("Added account " + account.getId() + " to MongoDB.");
+        changeFeedService.publish(ChangeEvent.ACCOUNT, ChangeEvent.ADDED, account.getId(),
+                Collections.singleton(account.getId()));
         return account;
     }
 
@@ -137,6 +177,8 @@ public class AccountServiceImpl implements AccountService {
         if (currentUser.isAdmin() || currentUser.getId().equals(account.getId())) {
             mongoTemplateUserDB.save(account);
             logger.info("Updated account " + account.getId() + " to MongoDB.");
+            changeFeedService.publish(ChangeEvent.ACCOUNT, ChangeEvent.UPDATED, account.getId(),
+                    Collections.singleton(account.getId()));
             return true;
         }
         return false;
@@ -151,6 +193,7 @@ public class AccountServiceImpl implements AccountService {
         if (currentUser.isAdmin() && find(id) != null) {
             mongoTemplateUserDB.remove(find(id));
             logger.info("Deleted account " + id + " from MongoDB.");
+            changeFeedService.publish(ChangeEvent.ACCOUNT, ChangeEvent.DELETED, id, Collections.singleton(id));
             return true;
         }
         return false;
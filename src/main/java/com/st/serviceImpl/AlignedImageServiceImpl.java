@@ -0,0 +1,216 @@
+package com.st.serviceImpl;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.st.component.ImageTranscoder;
+import com.st.model.Chip;
+import com.st.model.ImageAlignment;
+import com.st.model.ImageMetadata;
+import com.st.model.S3Resource;
+import com.st.service.AlignedImageService;
+import com.st.util.AffineResampler;
+import com.st.util.ByteLruCache;
+import com.st.util.ImageOperations;
+import com.st.util.S3Operations;
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * This class warps the figures of image alignments into the coordinate space
+ * of their chips, so that clients need not transform the images themselves.
+ * The result covers the total area of the chip, including its border. Only
+ * the part of the figure that covers the chip is decoded, subsampled to the
+ * resolution of the result, and it is resampled in parallel on the
+ * resamplerPool. Results are kept in an in-memory LRU cache, keyed by the
+ * entity tag of the result, which changes with the alignment, its chip and
+ * the contents of the figure, so that any of them updated is warped anew.
+ */
+@Service
+public class AlignedImageServiceImpl implements AlignedImageService {
+
+    private static final Logger logger = Logger.getLogger(AlignedImageServiceImpl.class);
+
+    /** Largest side of a warped figure, in pixels. */
+    public static final int MAX_SIZE = 2048;
+
+    /** JPEG quality of the warped figures. */
+    public static final float QUALITY = 0.85f;
+
+    /** Total size of the warped figures kept in memory. */
+    private static final long CACHE_BYTES = 32L * 1024 * 1024;
+
+    // Bytes buffered to read the dimensions of an image from its header.
+    private static final int HEADER_BYTES = 256 * 1024;
+
+    // Keyed by "{entity tag}/{size}".
+    private final ByteLruCache cache = new ByteLruCache(CACHE_BYTES);
+
+    @Autowired
+    AmazonS3Client s3Client;
+
+    @Autowired
+    ImageTranscoder imageTranscoder;
+
+    @Autowired
+    ForkJoinPool resamplerPool;
+
+    private @Value("${s3.imagebucket}")
+    String imageBucket;
+
+    // ROLE_ADMIN: ok.
+    // ROLE_CM:    ok.
+    // ROLE_USER:  ok.
+    @Override
+    public S3Resource findAligned(ImageAlignment imal, final Chip chip, final ImageMetadata figure,
+            final int size) {
+        final AffineTransform chipToImage = toTransform(imal.getAlignment_matrix());
+        String key = etag(imal, chip, figure) + "/" + size;
+        byte[] bytes = cache.get(key);
+        if (bytes == null) {
+            // The output, and the source decoded at about the same resolution.
+            try {
+                bytes = imageTranscoder.execute(5 * ImageTranscoder.estimateBytes(size, size),
+                        new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws IOException {
+                        return warp(figure, chip, chipToImage, size);
+                    }
+                });
+            } catch (AmazonClientException | IOException ex) {
+                logger.error("Failed to warp figure " + figure.getFilename() + " of image alignment "
+                        + imal.getId(), ex);
+                return null;
+            }
+            if (bytes == null) {
+                return null;
+            }
+            cache.put(key, bytes);
+        }
+        return new S3Resource("image/jpeg", figure.getFilename(), bytes);
+    }
+
+    /**
+     * Returns the entity tag of a warped figure, which changes with the
+     * alignment, its chip and the contents of the figure, but not the size.
+     * @param imal the image alignment.
+     * @param chip the chip of the alignment.
+     * @param figure the metadata of the figure.
+     * @return the tag, quoted.
+     */
+    public static String etag(ImageAlignment imal, Chip chip, ImageMetadata figure) {
+        // The SHA-256 of the contents, or the Amazon S3 ETag of images not in the content store.
+        String contents = (figure.getSha256() != null) ? figure.getSha256() : figure.getEtag().replace("\"", "");
+        return "\"" + contents + "-" + millis(imal.getLast_modified()) + "-" + millis(chip.getLast_modified()) + "\"";
+    }
+
+    private static long millis(DateTime time) {
+        return (time == null) ? 0 : time.getMillis();
+    }
+
+    // The figure warped into chip space as JPEG, or null if its contents are gone.
+    private byte[] warp(ImageMetadata figure, Chip chip, AffineTransform chipToImage, int size) throws IOException {
+        String filename = figure.getFilename();
+        long start = System.currentTimeMillis();
+        // The total area of the chip, or the area of the spots if the total is not set.
+        double x0 = chip.getX1_total();
+        double y0 = chip.getY1_total();
+        double chipWidth = chip.getX2_total() - x0;
+        double chipHeight = chip.getY2_total() - y0;
+        if (chipWidth <= 0 || chipHeight <= 0) {
+            x0 = chip.getX1();
+            y0 = chip.getY1();
+            chipWidth = chip.getX2() - x0;
+            chipHeight = chip.getY2() - y0;
+        }
+        if (chipWidth <= 0 || chipHeight <= 0) {
+            throw new IllegalArgumentException("The chip of the image alignment has no area.");
+        }
+        int width = (chipWidth >= chipHeight) ? size : Math.max(1, (int) Math.round(size * chipWidth / chipHeight));
+        int height = (chipHeight >= chipWidth) ? size : Math.max(1, (int) Math.round(size * chipHeight / chipWidth));
+        AffineTransform outToChip = new AffineTransform();
+        outToChip.translate(x0, y0);
+        outToChip.scale(chipWidth / width, chipHeight / height);
+        AffineTransform outToImage = new AffineTransform(chipToImage);
+        outToImage.concatenate(outToChip);
+
+        // As uploaded, so that only the region is decoded.
+        S3Object object = S3Operations.getObject(s3Client, imageBucket, ImageContentServiceImpl.sourceKey(figure));
+        if (object == null) {
+            return null;
+        }
+        S3ObjectInputStream in = object.getObjectContent();
+        BufferedImage src;
+        Rectangle region;
+        try {
+            BufferedInputStream bin = new BufferedInputStream(in, HEADER_BYTES);
+            bin.mark(HEADER_BYTES);
+            Dimension dims = ImageOperations.readSize(bin);
+            bin.reset();
+            if (dims == null) {
+                logger.error("Failed to warp image " + filename + ": not a readable image");
+                return null;
+            }
+            // The part of the image that covers the chip, with a pixel for interpolation.
+            Rectangle2D covered = outToImage.createTransformedShape(
+                    new Rectangle(0, 0, width, height)).getBounds2D();
+            region = covered.getBounds();
+            region.grow(1, 1);
+            region = region.intersection(new Rectangle(0, 0, dims.width, dims.height));
+            if (region.isEmpty()) {
+                src = null;
+            } else {
+                // Image pixels per output pixel.
+                double step = Math.sqrt(Math.abs(outToImage.getDeterminant()));
+                src = ImageOperations.readRegion(bin, region, Math.min(1, 1 / step));
+            }
+        } finally {
+            // Rows below the region are not read, so do not drain the rest of the image.
+            in.abort();
+        }
+        BufferedImage out;
+        if (src == null) {
+            // The image does not cover the chip.
+            out = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        } else {
+            AffineTransform outToSrc = new AffineTransform();
+            outToSrc.scale((double) src.getWidth() / region.width, (double) src.getHeight() / region.height);
+            outToSrc.translate(-region.x, -region.y);
+            outToSrc.concatenate(outToImage);
+            out = AffineResampler.resample(resamplerPool, src, outToSrc, width, height);
+        }
+        byte[] jpeg = ImageOperations.toJpeg(out, QUALITY);
+        logger.info("Warped image " + filename + " to " + width + "x" + height + " in "
+                + (System.currentTimeMillis() - start) + " ms");
+        return jpeg;
+    }
+
+    // The alignment matrix, 3 x 3 in the order m11, m12, m13, m21, ... m33
+    // of the clients, mapping chip coordinates (x, y) to image pixels
+    // (m11 x + m21 y + m31, m12 x + m22 y + m32).
+    private static AffineTransform toTransform(double[] m) {
+        if (m == null || m.length != 9 || Math.abs(m[2]) > 1e-9 || Math.abs(m[5]) > 1e-9
+                || Math.abs(m[8] - 1) > 1e-9) {
+            throw new IllegalArgumentException("The alignment matrix must be a 3 x 3 affine transform.");
+        }
+        AffineTransform t = new AffineTransform(m[0], m[1], m[3], m[4], m[6], m[7]);
+        if (t.getDeterminant() == 0) {
+            throw new IllegalArgumentException("The alignment matrix is not invertible.");
+        }
+        return t;
+    }
+
+}
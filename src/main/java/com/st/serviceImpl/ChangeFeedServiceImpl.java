@@ -0,0 +1,450 @@
+package com.st.serviceImpl;
+
+import com.st.model.ChangeEvent;
+import com.st.model.Dataset;
+import com.st.model.DatasetInfo;
+import com.st.model.ImageAlignment;
+import com.st.model.MongoUserDetails;
+import com.st.service.ChangeFeedService;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import javax.annotation.PostConstruct;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import org.apache.log4j.Logger;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.stereotype.Service;
+
+/**
+ * This class pushes the changes made through the services to the clients
+ * subscribed to the change feed, as Server-Sent Events. Subscriptions are
+ * asynchronous requests, so an idle subscriber holds no container thread.
+ *
+ * The accounts that can see a change are found from the grants when it is
+ * published, before e.g. the grants of a deleted dataset are removed. Events
+ * are dispatched by the single thread of the changeFeedScheduler, which keeps
+ * them in order, into a bounded queue per subscriber. The queues are written
+ * by the changeFeedWriterExecutor, at most one task per subscriber, so a slow
+ * client does not hold up the others. A subscriber whose queue fills up, or
+ * whose write has blocked for STALL_SECONDS, is disconnected and catches up
+ * when it reconnects. The last REPLAY_EVENTS events are kept, so that a
+ * client that reconnects with Last-Event-ID misses nothing. A client that has
+ * been away longer gets a "reset" event, after which it should resync, e.g.
+ * from the sync manifest.
+ *
+ * Subscribers only receive the changes published in the same JVM. When the
+ * application runs on several servers, clients must be routed to the server
+ * that makes the writes, or resync on their own.
+ */
+@Service
+public class ChangeFeedServiceImpl implements ChangeFeedService {
+
+    private static final Logger logger = Logger.getLogger(ChangeFeedServiceImpl.class);
+
+    /** Number of recent events kept for clients that reconnect. */
+    public static final int REPLAY_EVENTS = 1000;
+
+    /** Seconds between keep-alive comments, which also detect gone clients. */
+    public static final int KEEPALIVE_SECONDS = 20;
+
+    /** Minutes after which a subscription ends, and the client reconnects. */
+    public static final int TIMEOUT_MINUTES = 30;
+
+    /** Frames queued for a subscriber, beyond which it is disconnected. Holds a full replay. */
+    public static final int MAX_QUEUED_FRAMES = 2 * REPLAY_EVENTS;
+
+    /** Seconds a write to a subscriber may block before it is disconnected. */
+    public static final int STALL_SECONDS = 2 * KEEPALIVE_SECONDS;
+
+    private static final byte[] RETRY = "retry: 5000\n\n".getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] KEEPALIVE = ":\n\n".getBytes(StandardCharsets.UTF_8);
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    @Autowired
+    MongoOperations mongoTemplateAnalysisDB;
+
+    @Autowired
+    MongoOperations mongoTemplateUserDB;
+
+    @Autowired
+    ThreadPoolTaskScheduler changeFeedScheduler;
+
+    @Autowired
+    TaskExecutor changeFeedWriterExecutor;
+
+    // Event IDs count from the startup time, so IDs from before a restart are older than any kept.
+    private long lastId = System.currentTimeMillis();
+
+    // The recent events, guarded by itself.
+    private final Deque<Delivery> recent = new ArrayDeque<>();
+
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+
+    @PostConstruct
+    public void scheduleKeepAlive() {
+        changeFeedScheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                long now = System.currentTimeMillis();
+                for (Subscriber s : subscribers) {
+                    boolean stalled;
+                    boolean idle;
+                    synchronized (s.queue) {
+                        stalled = s.writeStarted != 0 && now - s.writeStarted > STALL_SECONDS * 1000L;
+                        idle = s.queue.isEmpty();
+                    }
+                    if (stalled) {
+                        logger.info("Disconnecting " + s.user.getUsername() + " from the change feed: write blocked");
+                        close(s);
+                    } else if (idle) {
+                        enqueue(s, KEEPALIVE);
+                    }
+                }
+            }
+        }, KEEPALIVE_SECONDS * 1000L);
+    }
+
+    // Runs with the user of the write.
+    @Override
+    public void publish(String type, String action, String id, Collection<String> accounts) {
+        try {
+            Audience audience = audience(type, id, accounts);
+            byte[] data = mapper.writeValueAsBytes(new ChangeEvent(type, action, id));
+            synchronized (recent) {
+                final Delivery delivery = new Delivery(++lastId, audience, data);
+                recent.addLast(delivery);
+                if (recent.size() > REPLAY_EVENTS) {
+                    recent.removeFirst();
+                }
+                changeFeedScheduler.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (Subscriber s : subscribers) {
+                            deliver(s, delivery);
+                        }
+                    }
+                });
+            }
+        } catch (IOException | RuntimeException ex) {
+            // The write itself has succeeded.
+            logger.error("Failed to publish change of " + type + " " + id, ex);
+        }
+    }
+
+    // ROLE_ADMIN: all changes.
+    // ROLE_CM:    granted datasets, own selections and account, all alignments, chips and images.
+    // ROLE_USER:  granted datasets, own selections and account, and the alignments, chips and images of the datasets.
+    @Override
+    public void subscribe(final AsyncContext async, MongoUserDetails user, String lastEventId) {
+        final Subscriber subscriber = new Subscriber(async, user);
+        long after;
+        synchronized (recent) {
+            after = lastId;
+        }
+        if (lastEventId != null) {
+            try {
+                after = Long.parseLong(lastEventId.trim());
+            } catch (NumberFormatException ex) {
+                after = -1;
+            }
+        }
+        async.setTimeout(TIMEOUT_MINUTES * 60 * 1000L);
+        async.addListener(new AsyncListener() {
+            @Override
+            public void onComplete(AsyncEvent event) {
+                close(subscriber);
+            }
+
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                close(subscriber);
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                close(subscriber);
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+        final long replayAfter = after;
+        changeFeedScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<Delivery> replay = new ArrayList<>();
+                long resetId = -1;
+                synchronized (recent) {
+                    long oldest = recent.isEmpty() ? lastId + 1 : recent.peekFirst().id;
+                    if (replayAfter < oldest - 1 || replayAfter > lastId) {
+                        resetId = lastId;
+                    } else {
+                        for (Delivery d : recent) {
+                            if (d.id > replayAfter) {
+                                replay.add(d);
+                            }
+                        }
+                    }
+                }
+                enqueue(subscriber, RETRY);
+                subscriber.lastSent = (resetId >= 0) ? resetId : replayAfter;
+                if (resetId >= 0) {
+                    enqueue(subscriber, ("id: " + resetId + "\nevent: reset\ndata: {}\n\n")
+                            .getBytes(StandardCharsets.UTF_8));
+                }
+                for (Delivery d : replay) {
+                    deliver(subscriber, d);
+                }
+                subscribers.add(subscriber);
+                if (subscriber.closed) {
+                    // Completed meanwhile, after the listener removed it.
+                    subscribers.remove(subscriber);
+                    return;
+                }
+                logger.info("Subscribed " + subscriber.user.getUsername() + " to the change feed");
+            }
+        });
+    }
+
+    // Queues an event unless it has been sent, or is not visible to the subscriber.
+    private void deliver(Subscriber s, Delivery d) {
+        if (d.id > s.lastSent && d.audience.includes(s.user)) {
+            s.lastSent = d.id;
+            enqueue(s, d.frame);
+        }
+    }
+
+    // Queues a frame, and starts writing the queue unless it is being written.
+    // Only called by the scheduler thread, so it never blocks on a client.
+    private void enqueue(final Subscriber s, byte[] frame) {
+        boolean tooSlow;
+        synchronized (s.queue) {
+            if (s.closed) {
+                return;
+            }
+            tooSlow = s.queue.size() >= MAX_QUEUED_FRAMES;
+            if (!tooSlow) {
+                s.queue.addLast(frame);
+                if (s.writing) {
+                    return;
+                }
+                s.writing = true;
+            }
+        }
+        if (tooSlow) {
+            logger.info("Disconnecting " + s.user.getUsername() + " from the change feed: too slow");
+            close(s);
+            return;
+        }
+        try {
+            changeFeedWriterExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    write(s);
+                }
+            });
+        } catch (TaskRejectedException ex) {
+            logger.error("Failed to write to the change feed of " + s.user.getUsername(), ex);
+            close(s);
+        }
+    }
+
+    // Writes the queued frames until the queue is empty, and ends the subscription if the client has gone.
+    private void write(Subscriber s) {
+        while (true) {
+            List<byte[]> frames;
+            synchronized (s.queue) {
+                if (s.closed || s.queue.isEmpty()) {
+                    s.writing = false;
+                    s.writeStarted = 0;
+                    return;
+                }
+                frames = new ArrayList<>(s.queue);
+                s.queue.clear();
+                s.writeStarted = System.currentTimeMillis();
+            }
+            try {
+                OutputStream out = s.async.getResponse().getOutputStream();
+                for (byte[] frame : frames) {
+                    out.write(frame);
+                }
+                out.flush();
+            } catch (IOException | IllegalStateException ex) {
+                synchronized (s.queue) {
+                    s.writing = false;
+                    s.writeStarted = 0;
+                }
+                close(s);
+                return;
+            }
+        }
+    }
+
+    // Ends a subscription.
+    private void close(Subscriber s) {
+        synchronized (s.queue) {
+            s.closed = true;
+            s.queue.clear();
+        }
+        subscribers.remove(s);
+        try {
+            s.async.complete();
+        } catch (IllegalStateException ex) {
+            // Already completed.
+        }
+    }
+
+    private Audience audience(String type, String id, Collection<String> accounts) {
+        Set<String> accountIds = new HashSet<>();
+        if (accounts != null) {
+            accountIds.addAll(accounts);
+        }
+        boolean contentManagers = false;
+        switch (type) {
+            case ChangeEvent.DATASET:
+            case ChangeEvent.FEATURES:
+                accountIds.addAll(grantedAccounts(Collections.singleton(id)));
+                break;
+            case ChangeEvent.IMAGE_ALIGNMENT:
+                contentManagers = true;
+                accountIds.addAll(grantedAccounts(datasetIds(Collections.singleton(id))));
+                break;
+            case ChangeEvent.CHIP:
+                contentManagers = true;
+                accountIds.addAll(grantedAccounts(datasetIds(
+                        imalIds(Criteria.where("chip_id").is(id)))));
+                break;
+            case ChangeEvent.IMAGE:
+                contentManagers = true;
+                accountIds.addAll(grantedAccounts(datasetIds(imalIds(new Criteria().orOperator(
+                        Criteria.where("figure_red").is(id), Criteria.where("figure_blue").is(id))))));
+                break;
+            default:
+                break;
+        }
+        return new Audience(contentManagers, accountIds);
+    }
+
+    private Set<String> imalIds(Criteria criteria) {
+        Query query = new Query(criteria);
+        query.fields().include("_id");
+        Set<String> ids = new HashSet<>();
+        for (ImageAlignment imal : mongoTemplateAnalysisDB.find(query, ImageAlignment.class)) {
+            ids.add(imal.getId());
+        }
+        return ids;
+    }
+
+    // The datasets of image alignments.
+    private Set<String> datasetIds(Set<String> imalIds) {
+        Set<String> ids = new HashSet<>();
+        if (imalIds.isEmpty()) {
+            return ids;
+        }
+        Query query = new Query(Criteria.where("image_alignment_id").in(imalIds));
+        query.fields().include("_id");
+        for (Dataset ds : mongoTemplateAnalysisDB.find(query, Dataset.class)) {
+            ids.add(ds.getId());
+        }
+        return ids;
+    }
+
+    private Set<String> grantedAccounts(Set<String> datasetIds) {
+        Set<String> ids = new HashSet<>();
+        if (datasetIds.isEmpty()) {
+            return ids;
+        }
+        Query query = new Query(Criteria.where("dataset_id").in(datasetIds));
+        query.fields().include("account_id");
+        for (DatasetInfo dsi : mongoTemplateUserDB.find(query, DatasetInfo.class)) {
+            ids.add(dsi.getAccount_id());
+        }
+        return ids;
+    }
+
+    // The accounts that can see a change. Administrators see all.
+    private static class Audience {
+
+        final boolean contentManagers;
+
+        final Set<String> accountIds;
+
+        Audience(boolean contentManagers, Set<String> accountIds) {
+            this.contentManagers = contentManagers;
+            this.accountIds = accountIds;
+        }
+
+        boolean includes(MongoUserDetails user) {
+            return user.isAdmin() || (contentManagers && user.isContentManager())
+                    || accountIds.contains(user.getId());
+        }
+    }
+
+    private static class Delivery {
+
+        final long id;
+
+        final Audience audience;
+
+        final byte[] frame;
+
+        Delivery(long id, Audience audience, byte[] data) {
+            this.id = id;
+            this.audience = audience;
+            byte[] head = ("id: " + id + "\ndata: ").getBytes(StandardCharsets.UTF_8);
+            this.frame = new byte[head.length + data.length + 2];
+            System.arraycopy(head, 0, frame, 0, head.length);
+            System.arraycopy(data, 0, frame, head.length, data.length);
+            frame[frame.length - 2] = '\n';
+            frame[frame.length - 1] = '\n';
+        }
+    }
+
+    private static class Subscriber {
+
+        final AsyncContext async;
+
+        final MongoUserDetails user;
+
+        // ID of the last event queued, only accessed by the scheduler thread.
+        long lastSent;
+
+        // Frames waiting to be written. Guards the fields below.
+        final Deque<byte[]> queue = new ArrayDeque<>();
+
+        // Whether a writer task is running.
+        boolean writing;
+
+        // When the running write started, or 0.
+        long writeStarted;
+
+        volatile boolean closed;
+
+        Subscriber(AsyncContext async, MongoUserDetails user) {
+            this.async = async;
+            this.user = user;
+        }
+    }
+
+}
@@ -1,5 +1,6 @@
 package com.st.serviceImpl;
 
+import java.util.Collection;
 import java.util.List;
 
 import org.apache.log4j.Logger;
@@ -9,9 +10,15 @@ import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.stereotype.Service;
 
+import com.st.model.ChangeEvent;
 import com.st.model.Chip;
 import com.st.model.MongoUserDetails;
 import com.st.service.ChipService;
+import com.st.util.FieldProjection;
+import com.st.util.KeysetPage;
+import com.st.util.ModelDocumentHandler;
+import com.st.util.ModelHandler;
+import com.st.util.PageQuery;
 
 /**
  * This class implements the store/retrieve logic to MongoDB for the data model
@@ -30,6 +37,9 @@ public class ChipServiceImpl implements ChipService {
     @Autowired
     MongoOperations mongoTemplateAnalysisDB;
 
+    @Autowired
+    ChangeFeedServiceImpl changeFeedService;
+
     // ROLE_ADMIN: ok.
     // ROLE_CM:    ok.
     // ROLE_USER:  ok.
@@ -38,6 +48,14 @@ public class ChipServiceImpl implements ChipService {
         return mongoTemplateAnalysisDB.findOne(new Query(Criteria.where("id").is(id)), Chip.class);
     }
 
+    // ROLE_ADMIN: ok.
+    // ROLE_CM:    ok.
+    // ROLE_USER:  ok.
+    @Override
+    public List<Chip> findByIds(Collection<String> ids) {
+        return mongoTemplateAnalysisDB.find(new Query(Criteria.where("id").in(ids)), Chip.class);
+    }
+
     // ROLE_ADMIN: ok.
     // ROLE_CM:    ok.
     // ROLE_USER:  ok.
@@ -51,11 +69,42 @@ public class ChipServiceImpl implements ChipService {
     // ROLE_USER:  nope.
     @Override
     public List<Chip> list() {
+        return list(FieldProjection.all());
+    }
+
+    // ROLE_ADMIN: ok.
+    // ROLE_CM:    ok.
+    // ROLE_USER:  nope.
+    @Override
+    public List<Chip> list(FieldProjection projection) {
+        return list(projection, PageQuery.unbounded()).getItems();
+    }
+
+    // ROLE_ADMIN: ok.
+    // ROLE_CM:    ok.
+    // ROLE_USER:  nope.
+    @Override
+    public KeysetPage<Chip> list(FieldProjection projection, PageQuery page) {
         List<Chip> chips = null;
         if (isValidUser()) {
-            chips = mongoTemplateAnalysisDB.findAll(Chip.class);
+            chips = mongoTemplateAnalysisDB.find(page.apply(
+                    projection.apply(new Query(), page.getSort())), Chip.class);
+        }
+        return page.toPage(chips, mongoTemplateAnalysisDB.getConverter());
+    }
+
+    // ROLE_ADMIN: ok.
+    // ROLE_CM:    ok.
+    // ROLE_USER:  nope.
+    @Override
+    public boolean stream(FieldProjection projection, ModelHandler<Chip> handler) {
+        if (!isValidUser()) {
+            return false;
         }
-        return chips;
+        mongoTemplateAnalysisDB.executeQuery(projection.apply(new Query()),
+                mongoTemplateAnalysisDB.getCollectionName(Chip.class),
+                new ModelDocumentHandler<>(Chip.class, mongoTemplateAnalysisDB.getConverter(), handler));
+        return true;
     }
 
     // ROLE_ADMIN: ok.
@@ -66,6 +115,7 @@ public class ChipServiceImpl implements ChipService {
         if (isValidUser()) {
             mongoTemplateAnalysisDB.insert(chip);
             logger.info("Added chip " + chip.getId() + " to MongoDB.");
+            changeFeedService.publish(ChangeEvent.CHIP, ChangeEvent.ADDED, chip.getId(), null);
             return chip;
         }
         return null;
@@ -79,6 +129,7 @@ public class ChipServiceImpl implements ChipService {
         if (isValidUser()) {
             mongoTemplateAnalysisDB.save(chip);
             logger.info("Updated chip " + chip.getId() + " to MongoDB.");
+            changeFeedService.publish(ChangeEvent.CHIP, ChangeEvent.UPDATED, chip.getId(), null);
         }
     }
 
@@ -88,6 +139,7 @@ public class ChipServiceImpl implements ChipService {
         if (deleteIsOkForCurrUser(id)) {
             mongoTemplateAnalysisDB.remove(find(id));
             logger.info("Deleted chip " + id + " from MongoDB.");
+            changeFeedService.publish(ChangeEvent.CHIP, ChangeEvent.DELETED, id, null);
         }
     }
 
@@ -1,17 +1,35 @@
 package com.st.serviceImpl;
 
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mapping.PropertyHandler;
 import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentProperty;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Service;
+import com.st.model.ChangeEvent;
 import com.st.model.Dataset;
 import com.st.model.DatasetInfo;
 import com.st.model.MongoUserDetails;
 import com.st.service.DatasetService;
+import com.st.util.FieldProjection;
+import com.st.util.KeysetPage;
+import com.st.util.ModelDocumentHandler;
+import com.st.util.ModelHandler;
+import com.st.util.PageQuery;
 
 /**
  * This class implements the store/retrieve logic to MongoDB for the data model
@@ -33,6 +51,14 @@ public class DatasetServiceImpl implements DatasetService {
     @Autowired
     MongoOperations mongoTemplateUserDB;
 
+    @Autowired
+    ChangeFeedServiceImpl changeFeedService;
+
+    // Fields computed from the features file (see FeaturesServiceImpl), not set by clients.
+    private static final Set<String> STATISTICS = new HashSet<>(Arrays.asList("overall_feature_count",
+            "overall_hit_count", "unique_gene_count", "unique_barcode_count", "overall_hit_quartiles",
+            "gene_pooled_hit_quartiles"));
+
     // ROLE_ADMIN: ok.
     // ROLE_CM:    ok.
     // ROLE_USER:  none.
@@ -42,6 +68,7 @@ public class DatasetServiceImpl implements DatasetService {
         if (currentUser.isAdmin() || currentUser.isContentManager()) {
             logger.info("Adding dataset");
             mongoTemplateAnalysisDB.insert(ds);
+            changeFeedService.publish(ChangeEvent.DATASET, ChangeEvent.ADDED, ds.getId(), ds.getGranted_accounts());
             return ds;
         }
         return null;
@@ -60,6 +87,20 @@ public class DatasetServiceImpl implements DatasetService {
         return null;
     }
 
+    // ROLE_ADMIN: all datasets.
+    // ROLE_CM:    granted datasets.
+    // ROLE_USER:  granted datasets.
+    @Override
+    public List<Dataset> findByIds(Collection<String> ids) {
+        MongoUserDetails currentUser = customUserDetailsService.loadCurrentUser();
+        List<String> granted = new ArrayList<>(ids);
+        if (!currentUser.isAdmin()) {
+            granted.retainAll(new HashSet<>(grantedIds(currentUser.getId())));
+        }
+        return mongoTemplateAnalysisDB.find(
+                new Query(Criteria.where("id").in(granted)), Dataset.class);
+    }
+
     // Helper method to check if a dataset is granted to an user
     @Override
     public boolean datasetIsGranted(String datasetId, MongoUserDetails user) {
@@ -107,11 +148,43 @@ public class DatasetServiceImpl implements DatasetService {
     // ROLE_USER:  granted datasets.
     @Override
     public List<Dataset> list() {
+        return list(FieldProjection.all());
+    }
+
+    // ROLE_ADMIN: all datasets.
+    // ROLE_CM:    granted datasets.
+    // ROLE_USER:  granted datasets.
+    @Override
+    public List<Dataset> list(FieldProjection projection) {
+        return list(projection, PageQuery.unbounded()).getItems();
+    }
+
+    // ROLE_ADMIN: all datasets.
+    // ROLE_CM:    granted datasets.
+    // ROLE_USER:  granted datasets.
+    @Override
+    public KeysetPage<Dataset> list(FieldProjection projection, PageQuery page) {
         MongoUserDetails currentUser = customUserDetailsService.loadCurrentUser();
         if (currentUser.isAdmin()) {
-            return mongoTemplateAnalysisDB.findAll(Dataset.class);
+            List<Dataset> datasets = mongoTemplateAnalysisDB.find(page.apply(
+                    projection.apply(new Query(), "enabled", page.getSort())), Dataset.class);
+            return page.toPage(datasets, mongoTemplateAnalysisDB.getConverter());
         }
-        return findByAccount(currentUser.getId());
+        return findByAccount(currentUser.getId(), projection, page);
+    }
+
+    // ROLE_ADMIN: all datasets.
+    // ROLE_CM:    granted datasets.
+    // ROLE_USER:  granted datasets.
+    @Override
+    public boolean stream(FieldProjection projection, ModelHandler<Dataset> handler) {
+        MongoUserDetails currentUser = customUserDetailsService.loadCurrentUser();
+        Query query = currentUser.isAdmin() ? new Query()
+                : new Query(Criteria.where("_id").in(grantedIds(currentUser.getId())));
+        mongoTemplateAnalysisDB.executeQuery(projection.apply(query, "enabled"),
+                mongoTemplateAnalysisDB.getCollectionName(Dataset.class),
+                new ModelDocumentHandler<>(Dataset.class, mongoTemplateAnalysisDB.getConverter(), handler));
+        return true;
     }
 
     // ROLE_ADMIN: all datasets.
@@ -122,7 +195,10 @@ public class DatasetServiceImpl implements DatasetService {
         MongoUserDetails currentUser = customUserDetailsService.loadCurrentUser();
         if (currentUser.isAdmin() || datasetIsGranted(ds.getId(), currentUser)) {
             logger.info("Updating dataset " + ds.getId());
-            mongoTemplateAnalysisDB.save(ds);
+            // Not a save, so that the statistics stay as computed from the features.
+            mongoTemplateAnalysisDB.updateFirst(new Query(Criteria.where("id").is(ds.getId())),
+                    updateOf(ds), Dataset.class);
+            changeFeedService.publish(ChangeEvent.DATASET, ChangeEvent.UPDATED, ds.getId(), ds.getGranted_accounts());
             return true;
         }
         return false;
@@ -140,6 +216,8 @@ public class DatasetServiceImpl implements DatasetService {
                 || (datasetIsGranted(id, currentUser)))) {
             logger.info("Deleting dataset " + id);
             mongoTemplateAnalysisDB.remove(dataset);
+            // Published while the grants of the dataset still exist.
+            changeFeedService.publish(ChangeEvent.DATASET, ChangeEvent.DELETED, id, null);
             return true;
         }
         return false;
@@ -150,44 +228,89 @@ public class DatasetServiceImpl implements DatasetService {
     // ROLE_USER:  granted datasets.
     @Override
     public List<Dataset> findByAccount(String accountId) {
+        return findByAccount(accountId, FieldProjection.all());
+    }
+
+    // ROLE_ADMIN: all datasets.
+    // ROLE_CM:    all datasets.
+    // ROLE_USER:  granted datasets.
+    @Override
+    public List<Dataset> findByAccount(String accountId, FieldProjection projection) {
+        return findByAccount(accountId, projection, PageQuery.unbounded()).getItems();
+    }
+
+    // ROLE_ADMIN: all datasets.
+    // ROLE_CM:    all datasets.
+    // ROLE_USER:  granted datasets.
+    @Override
+    public KeysetPage<Dataset> findByAccount(String accountId, FieldProjection projection, PageQuery page) {
         // In case of pre-login calls.
         if (!customUserDetailsService.isProperlyLoaded()) {
-            return null;
+            return new KeysetPage<>(null, null);
         } 
         // In case of pre-login calls.
         if (customUserDetailsService == null) {
-            return null;
+            return new KeysetPage<>(null, null);
         }   
         // In case of pre-login calls.
         MongoUserDetails currentUser = customUserDetailsService.loadCurrentUser();
         if (currentUser == null) {
-            return null;
+            return new KeysetPage<>(null, null);
         }                
 
         if (!currentUser.isAdmin() && !currentUser.getId().equals(accountId)) {
-            return null;
+            return new KeysetPage<>(null, null);
         }
         
         try {
-            // retrieve dataset_info objects by account
-            List<DatasetInfo> dat_infos = mongoTemplateUserDB.find(
-                    new Query(Criteria.where("account_id").is(accountId)), DatasetInfo.class);  
-            if (dat_infos == null) {
-                return null;
-            }
-                
-            List<String> strs = new ArrayList<>(dat_infos.size());
-            for (DatasetInfo dsi : dat_infos) {              
-                strs.add(dsi.getDataset_id());
-            }
-                
-            return mongoTemplateAnalysisDB.find(
-                    new Query(Criteria.where("id").in(strs)), Dataset.class);
+            List<String> strs = grantedIds(accountId);
+            List<Dataset> datasets = mongoTemplateAnalysisDB.find(page.apply(projection.apply(
+                    new Query(Criteria.where("id").in(strs)), "enabled", page.getSort())), Dataset.class);
+            return page.toPage(datasets, mongoTemplateAnalysisDB.getConverter());
             
         } catch (Exception e) {
             logger.info("There was an error retrieving datasets by account", e);
-            return null;
+            return new KeysetPage<>(null, null);
+        }
+    }
+
+    // The update replacing all fields of a dataset but the statistics.
+    private Update updateOf(Dataset ds) {
+        MongoConverter converter = mongoTemplateAnalysisDB.getConverter();
+        final DBObject dbo = new BasicDBObject();
+        converter.write(ds, dbo);
+        final Update update = new Update();
+        for (String field : dbo.keySet()) {
+            if (!field.equals("_id") && !STATISTICS.contains(field)) {
+                update.set(field, dbo.get(field));
+            }
+        }
+        // Fields left out are removed, as by a save, but for the audit dates.
+        converter.getMappingContext().getPersistentEntity(Dataset.class).doWithProperties(
+                new PropertyHandler<MongoPersistentProperty>() {
+            @Override
+            public void doWithPersistentProperty(MongoPersistentProperty property) {
+                String field = property.getFieldName();
+                if (!property.isIdProperty() && !dbo.containsField(field) && !STATISTICS.contains(field)
+                        && !field.equals("created_at") && !field.equals("last_modified")) {
+                    update.unset(field);
+                }
+            }
+        });
+        // Auditing only applies to saved entities.
+        update.set("last_modified", new DateTime());
+        return update;
+    }
+
+    // Helper method returning the IDs of the datasets granted to an account
+    private List<String> grantedIds(String accountId) {
+        List<DatasetInfo> dat_infos = mongoTemplateUserDB.find(
+                new Query(Criteria.where("account_id").is(accountId)), DatasetInfo.class);
+        List<String> strs = new ArrayList<>(dat_infos.size());
+        for (DatasetInfo dsi : dat_infos) {
+            strs.add(dsi.getDataset_id());
         }
+        return strs;
     }
 
     //helper function to set the account_id field to empty for datasets created
@@ -206,17 +329,30 @@ public class DatasetServiceImpl implements DatasetService {
 
     @Override
     public void setUnabledForImageAlignment(String imalId) {
-        List<Dataset> ds = list();
-        if (ds == null) {
+        setUnabledForImageAlignments(Collections.singleton(imalId));
+    }
+
+    // Runs on behalf of the deletion of the alignments, so all referencing
+    // datasets are disabled, not only those granted to the current user.
+    @Override
+    public void setUnabledForImageAlignments(Collection<String> imalIds) {
+        if (imalIds.isEmpty()) {
+            return;
+        }
+        // Served by the index on image_alignment_id.
+        Criteria referencing = Criteria.where("image_alignment_id").in(imalIds);
+        Query affected = new Query(referencing);
+        affected.fields().include("granted_accounts");
+        List<Dataset> ds = mongoTemplateAnalysisDB.find(affected, Dataset.class);
+        if (ds.isEmpty()) {
             return;
         }
+        // Auditing only applies to saved entities, so the modification date is set here.
+        mongoTemplateAnalysisDB.updateMulti(new Query(referencing), new Update().set("enabled", false)
+                .set("image_alignment_id", "").set("last_modified", new DateTime()), Dataset.class);
+        logger.info("Disabled " + ds.size() + " datasets referencing image alignments " + imalIds);
         for (Dataset d : ds) {
-            if (d.getImage_alignment_id() != null 
-                    && d.getImage_alignment_id().equals(imalId)) {
-                d.setEnabled(false);
-                d.setImage_alignment_id("");
-                update(d);
-            }
+            changeFeedService.publish(ChangeEvent.DATASET, ChangeEvent.UPDATED, d.getId(), d.getGranted_accounts());
         }
     }
 
@@ -2,29 +2,56 @@ package com.st.serviceImpl;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.s3.AmazonS3Client;
-import com.amazonaws.services.s3.model.ObjectListing;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectInputStream;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.st.component.S3ListingCache;
+import com.st.exceptions.CustomBadRequestException;
+import com.st.exceptions.CustomInternalServerErrorException;
+import com.st.model.ChangeEvent;
+import com.st.model.Dataset;
 import com.st.model.DatasetInfo;
+import com.st.model.Feature;
+import com.st.model.FeaturesDelta;
 import com.st.model.FeaturesMetadata;
 import com.st.model.MongoUserDetails;
 import com.st.service.FeaturesService;
+import com.st.util.FeaturesReader;
+import com.st.util.FeaturesStatistics;
+import com.st.util.FeaturesWriter;
+import com.st.util.S3Operations;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
 import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
 import org.joda.time.DateTime;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
 import org.springframework.data.mongodb.core.MongoOperations;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Service;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZOutputStream;
 
 /**
  * This class retrieves/stores feature files and features metadata from Amazon
@@ -40,14 +67,47 @@ public class FeaturesServiceImpl implements FeaturesService {
     @Autowired
     MongoOperations mongoTemplateUserDB;
 
+    @Autowired
+    MongoOperations mongoTemplateAnalysisDB;
+
     @Autowired
     MongoUserDetailsServiceImpl customUserDetailsService;
 
+    @Autowired
+    FeaturesTileServiceImpl featuresTileService;
+
+    @Autowired
+    GenePresenceServiceImpl genePresenceService;
+
+    @Autowired
+    TaskExecutor backgroundTaskExecutor;
+
+    @Autowired
+    S3ListingCache s3ListingCache;
+
+    @Autowired
+    ChangeFeedServiceImpl changeFeedService;
+
     private @Value("${s3.featuresbucket}")
     String featuresBucket;
 
     private static final Logger logger = Logger.getLogger(ImageServiceImpl.class);
 
+    /** Key prefix of the previous versions of features files, kept for rollback. */
+    private static final String VERSIONS_PREFIX = "versions/";
+
+    /** Key prefix of the alternative encodings of features files. */
+    private static final String ENCODINGS_PREFIX = "encodings/";
+
+    /**
+     * Alternative content encodings of features files, in order of preference.
+     * Features files are always available gzipped.
+     */
+    public static final String[] ALTERNATIVE_ENCODINGS = {"xz"};
+
+    /** User metadata holding the ETag of the gzipped file an encoding was made from. */
+    private static final String SOURCE_ETAG = "source-etag";
+
     @Override
     public boolean datasetIsGranted(String datasetId, MongoUserDetails user) {
         List<DatasetInfo> dsis = mongoTemplateUserDB.find(
@@ -62,17 +122,8 @@ public class FeaturesServiceImpl implements FeaturesService {
     @Override
     public List<FeaturesMetadata> listMetadata() {
         List<FeaturesMetadata> featuresMetadataList = new ArrayList<>();
-        ObjectListing objects = s3Client.listObjects(featuresBucket);
-        List<S3ObjectSummary> objs = objects.getObjectSummaries();
-        for (S3ObjectSummary o : objs) {
-            FeaturesMetadata fm = new FeaturesMetadata();
-            String fn = o.getKey();
-            fm.setFilename(fn);
-            fm.setDatasetId(fn.substring(0, fn.length() - 3)); // Remove .gz
-            fm.setLastModified(new DateTime(o.getLastModified()));
-            fm.setCreated(new DateTime(o.getLastModified()));
-            fm.setSize(o.getSize());
-            featuresMetadataList.add(fm);
+        for (S3ObjectSummary o : s3ListingCache.listTopLevelObjects(featuresBucket).values()) {
+            featuresMetadataList.add(toMetadata(o));
         }
         return featuresMetadataList;
     }
@@ -82,13 +133,19 @@ public class FeaturesServiceImpl implements FeaturesService {
     // ROLE_USER:  ok.
     @Override
     public FeaturesMetadata getMetadata(String id) {
-        List<FeaturesMetadata> featureList = this.listMetadata();
-        for (FeaturesMetadata fm : featureList) {
-            if (fm.getDatasetId().equals(id)) {
-                return fm;
-            }
-        }
-        return null;
+        S3ObjectSummary o = s3ListingCache.get(featuresBucket, id + ".gz");
+        return (o == null) ? null : toMetadata(o);
+    }
+
+    private static FeaturesMetadata toMetadata(S3ObjectSummary o) {
+        FeaturesMetadata fm = new FeaturesMetadata();
+        String fn = o.getKey();
+        fm.setFilename(fn);
+        fm.setDatasetId(fn.substring(0, fn.length() - 3)); // Remove .gz
+        fm.setLastModified(new DateTime(o.getLastModified()));
+        fm.setCreated(new DateTime(o.getLastModified()));
+        fm.setSize(o.getSize());
+        return fm;
     }
 
     // ROLE_ADMIN: all.
@@ -118,34 +175,288 @@ public class FeaturesServiceImpl implements FeaturesService {
         }
     }
 
+    // ROLE_ADMIN: all.
+    // ROLE_CM:    granted datasets.
+    // ROLE_USER:  granted datasets.
+    @Override
+    public InputStream find(String id, String encoding) {
+        if (!Arrays.asList(ALTERNATIVE_ENCODINGS).contains(encoding)) {
+            return null;
+        }
+        MongoUserDetails currentUser = customUserDetailsService.loadCurrentUser();
+        if (!currentUser.isAdmin() && !datasetIsGranted(id, currentUser)) {
+            return null;
+        }
+        try {
+            ObjectMetadata source = S3Operations.getObjectMetadata(s3Client, featuresBucket, id + ".gz");
+            S3Object encoded = S3Operations.getObject(s3Client, featuresBucket, encodedKey(id, encoding));
+            if (source == null || encoded == null) {
+                return null;
+            }
+            S3ObjectInputStream in = encoded.getObjectContent();
+            // An encoding made from an older version is stale until it is regenerated.
+            if (!source.getETag().equals(encoded.getObjectMetadata().getUserMetadata().get(SOURCE_ETAG))) {
+                in.abort();
+                return null;
+            }
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(20 * 1024 * 1024);
+            IOUtils.copy(in, bos);
+            in.close();   // ASAP!
+            return new ByteArrayInputStream(bos.toByteArray());
+        } catch (AmazonClientException | IOException ex) {
+            logger.error("Failed to download " + encoding + " features for dataset " + id, ex);
+            return null;
+        }
+    }
+
+    // Runs without a logged in user (background job).
+    @Override
+    public void encode(String id) {
+        long start = System.currentTimeMillis();
+        String encoding = ALTERNATIVE_ENCODINGS[0];
+        File encoded = null;
+        try {
+            S3Object source = S3Operations.getObject(s3Client, featuresBucket, id + ".gz");
+            if (source == null) {
+                return;
+            }
+            encoded = File.createTempFile("features-" + id, "." + encoding);
+            // Preset 6 bounds the encoder memory (~100 MB) while searching the longest matches.
+            LZMA2Options options = new LZMA2Options(6);
+            options.setNiceLen(LZMA2Options.NICE_LEN_MAX);
+            try (InputStream in = new GZIPInputStream(source.getObjectContent(), 64 * 1024);
+                    XZOutputStream out = new XZOutputStream(new BufferedOutputStream(
+                            new FileOutputStream(encoded), 64 * 1024), options)) {
+                IOUtils.copy(in, out);
+            }
+            ObjectMetadata om = new ObjectMetadata();
+            om.setContentType("application/json");
+            om.setContentEncoding(encoding);
+            om.setContentLength(encoded.length());
+            om.addUserMetadata(SOURCE_ETAG, source.getObjectMetadata().getETag());
+            try (InputStream is = new FileInputStream(encoded)) {
+                s3Client.putObject(featuresBucket, encodedKey(id, encoding), is, om);
+            }
+            logger.info("Encoded features for dataset " + id + " as " + encoding + " ("
+                    + source.getObjectMetadata().getContentLength() + " -> " + encoded.length()
+                    + " bytes) in " + (System.currentTimeMillis() - start) + " ms");
+        } catch (AmazonClientException | IOException ex) {
+            logger.error("Failed to encode features for dataset " + id + " as " + encoding, ex);
+        } finally {
+            if (encoded != null && !encoded.delete()) {
+                logger.warn("Could not delete temporary file " + encoded);
+            }
+        }
+    }
+
     // ROLE_ADMIN: ok.
     // ROLE_CM:    ok.
     // ROLE_USER:  nope.
     /**
      * Returns true if the file already existed and was updated, false if added.
+     * The dataset statistics are computed from the file and written back to
+     * the dataset.
      * @param file
      */
     @Override
     public boolean addUpdate(String id, byte[] file) {
-        
+        FeaturesStatistics stats = computeStatistics(id, file);
+
         ObjectMetadata om = new ObjectMetadata();
         om.setContentType("application/json");
         om.setContentEncoding("gzip");
+        om.setContentLength(file.length);
         InputStream is = new ByteArrayInputStream(file);
 
         String filename = id + ".gz";
         boolean exists = (getMetadata(id) != null);
         if (exists) {
-            s3Client.putObject(featuresBucket, filename, is, om);
-            logger.info("Updated features for dataset " + id + "on Amazon S3");
-            return true;
+            // Keep the current version for rollback, replacing any older one.
+            s3Client.copyObject(featuresBucket, filename, featuresBucket, VERSIONS_PREFIX + filename);
+        }
+        s3Client.putObject(featuresBucket, filename, is, om);
+        s3ListingCache.invalidate(featuresBucket);
+        if (exists) {
+            logger.info("Updated features for dataset " + id + " on Amazon S3");
         } else {
-            s3Client.putObject(featuresBucket, filename, is, om);
-            logger.info("Added features for dataset " + id + "on Amazon S3");
+            logger.info("Added features for dataset " + id + " on Amazon S3");
+        }
+        updateDatasetStatistics(id, stats);
+        changeFeedService.publish(ChangeEvent.FEATURES, exists ? ChangeEvent.UPDATED : ChangeEvent.ADDED, id, null);
+        featuresTileService.generateInBackground(id);
+        encodeInBackground(id);
+        return exists;
+    }
+
+    // ROLE_ADMIN: ok.
+    // ROLE_CM:    ok.
+    // ROLE_USER:  nope.
+    @Override
+    public boolean patch(String id, FeaturesDelta delta) {
+        if (getMetadata(id) == null) {
             return false;
         }
+        // Features are keyed by barcode and gene. Added features replace stored ones with the same key.
+        Set<String> removed = new HashSet<>();
+        for (Feature f : delta.getRemoved()) {
+            removed.add(featureKey(f));
+        }
+        Map<String, Feature> upserted = new HashMap<>();
+        for (Feature f : delta.getChanged()) {
+            upserted.put(featureKey(f), f);
+        }
+        for (Feature f : delta.getAdded()) {
+            upserted.put(featureKey(f), f);
+        }
+
+        String filename = id + ".gz";
+        FeaturesStatistics stats = new FeaturesStatistics();
+        File merged = null;
+        try {
+            // Streaming merge of the stored features with the delta into a temporary file.
+            merged = File.createTempFile("features-" + id, ".gz");
+            S3ObjectInputStream in = s3Client.getObject(featuresBucket, filename).getObjectContent();
+            try (FeaturesReader reader = FeaturesReader.fromGzip(in);
+                    FeaturesWriter writer = FeaturesWriter.toGzip(new FileOutputStream(merged))) {
+                Feature feature;
+                while ((feature = reader.next()) != null) {
+                    String key = featureKey(feature);
+                    if (removed.contains(key)) {
+                        continue;
+                    }
+                    Feature replacement = upserted.remove(key);
+                    if (replacement != null) {
+                        feature = replacement;
+                    }
+                    // Fields the delta does not know about are kept as stored.
+                    writer.write(feature, reader.getOtherFields());
+                    stats.add(feature);
+                }
+                for (Feature added : upserted.values()) {
+                    writer.write(added);
+                    stats.add(added);
+                }
+            }
+            // Keep the current version for rollback, then replace it.
+            s3Client.copyObject(featuresBucket, filename, featuresBucket, VERSIONS_PREFIX + filename);
+            ObjectMetadata om = new ObjectMetadata();
+            om.setContentType("application/json");
+            om.setContentEncoding("gzip");
+            om.setContentLength(merged.length());
+            try (InputStream is = new FileInputStream(merged)) {
+                s3Client.putObject(featuresBucket, filename, is, om);
+            }
+            s3ListingCache.invalidate(featuresBucket);
+            logger.info("Patched features for dataset " + id + " on Amazon S3");
+        } catch (IOException ex) {
+            logger.error("Failed to patch features for dataset " + id, ex);
+            throw new CustomBadRequestException("Failed to patch features for dataset " + id
+                    + ". Is the stored file a valid features file?");
+        } finally {
+            if (merged != null && !merged.delete()) {
+                logger.warn("Could not delete temporary file " + merged);
+            }
+        }
+        updateDatasetStatistics(id, stats);
+        changeFeedService.publish(ChangeEvent.FEATURES, ChangeEvent.UPDATED, id, null);
+        featuresTileService.generateInBackground(id);
+        encodeInBackground(id);
+        return true;
     }
-    
+
+    // ROLE_ADMIN: ok.
+    // ROLE_CM:    ok.
+    // ROLE_USER:  nope.
+    @Override
+    public boolean rollback(String id) {
+        String filename = id + ".gz";
+        String previous = VERSIONS_PREFIX + filename;
+        S3Object stored = S3Operations.getObject(s3Client, featuresBucket, previous);
+        if (stored == null) {
+            return false;
+        }
+        // The statistics must match the restored file, so it is read before it is restored.
+        FeaturesStatistics stats = new FeaturesStatistics();
+        try (FeaturesReader reader = FeaturesReader.fromGzip(stored.getObjectContent())) {
+            Feature feature;
+            while ((feature = reader.next()) != null) {
+                stats.add(feature);
+            }
+        } catch (IOException ex) {
+            logger.error("Failed to read previous features for dataset " + id, ex);
+            throw new CustomInternalServerErrorException("Failed to read the previous features for dataset "
+                    + id + ". Nothing was rolled back.");
+        }
+        s3Client.copyObject(featuresBucket, previous, featuresBucket, filename);
+        s3Client.deleteObject(featuresBucket, previous);
+        s3ListingCache.invalidate(featuresBucket);
+        changeFeedService.publish(ChangeEvent.FEATURES, ChangeEvent.UPDATED, id, null);
+        logger.info("Rolled back features for dataset " + id + " on Amazon S3");
+        updateDatasetStatistics(id, stats);
+        featuresTileService.generateInBackground(id);
+        encodeInBackground(id);
+        return true;
+    }
+
+    private void encodeInBackground(final String id) {
+        try {
+            backgroundTaskExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    encode(id);
+                }
+            });
+        } catch (TaskRejectedException ex) {
+            logger.error("Could not schedule encoding of features for dataset " + id, ex);
+        }
+    }
+
+    private static String encodedKey(String id, String encoding) {
+        return ENCODINGS_PREFIX + id + "." + encoding;
+    }
+
+    // Key of a feature in a features file.
+    private static String featureKey(Feature f) {
+        return f.getBarcode() + "\t" + f.getGene();
+    }
+
+    // Computes the dataset statistics in a single streaming pass over the gzipped JSON.
+    private FeaturesStatistics computeStatistics(String id, byte[] file) {
+        FeaturesStatistics stats = new FeaturesStatistics();
+        try (FeaturesReader reader = FeaturesReader.fromGzip(new ByteArrayInputStream(file))) {
+            Feature feature;
+            while ((feature = reader.next()) != null) {
+                stats.add(feature);
+            }
+        } catch (IOException ex) {
+            logger.error("Failed to parse features for dataset " + id, ex);
+            throw new CustomBadRequestException("The features file for dataset " + id
+                    + " is not a gzipped JSON array of features.");
+        }
+        return stats;
+    }
+
+    // Writes the statistics to the dataset in one atomic update, and the
+    // genes to the cross-dataset gene presence index.
+    private void updateDatasetStatistics(String id, FeaturesStatistics stats) {
+        int featureCount = (int) Math.min(stats.getFeatureCount(), Integer.MAX_VALUE);
+        if (featureCount < stats.getFeatureCount()) {
+            logger.warn("Feature count of dataset " + id + " clamped from " + stats.getFeatureCount());
+        }
+        Update update = new Update()
+                .set("overall_feature_count", featureCount)
+                .set("overall_hit_count", stats.getHitCount())
+                .set("unique_gene_count", stats.getUniqueGeneCount())
+                .set("unique_barcode_count", stats.getUniqueBarcodeCount())
+                .set("overall_hit_quartiles", stats.getOverallHitQuartiles())
+                .set("gene_pooled_hit_quartiles", stats.getGenePooledHitQuartiles())
+                .set("last_modified", new Date());
+        mongoTemplateAnalysisDB.updateFirst(new Query(Criteria.where("id").is(id)),
+                update, Dataset.class);
+        logger.info("Updated statistics of dataset " + id + " from its features");
+        genePresenceService.update(id, stats.getGeneHits());
+    }
+
     // ROLE_ADMIN: ok.
     // ROLE_CM:    ok.
     // ROLE_USER:  nope.
@@ -154,10 +465,18 @@ public class FeaturesServiceImpl implements FeaturesService {
         String filename = id + ".gz";
         try {
             s3Client.deleteObject(featuresBucket, filename);
+            s3Client.deleteObject(featuresBucket, VERSIONS_PREFIX + filename);
+            for (String encoding : ALTERNATIVE_ENCODINGS) {
+                s3Client.deleteObject(featuresBucket, encodedKey(id, encoding));
+            }
             logger.info("Deleted features for dataset " + id + " from Amazon S3");
         } catch(AmazonClientException e) {
             logger.info("Error deleting features for dataset " + id + " on Amazon S3.", e);
         }
+        s3ListingCache.invalidate(featuresBucket);
+        changeFeedService.publish(ChangeEvent.FEATURES, ChangeEvent.DELETED, id, null);
+        featuresTileService.delete(id);
+        genePresenceService.delete(id);
     }
 
 }
@@ -0,0 +1,289 @@
+package com.st.serviceImpl;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.st.model.Feature;
+import com.st.model.MongoUserDetails;
+import com.st.model.S3Resource;
+import com.st.service.FeaturesTileService;
+import com.st.util.FeaturesReader;
+import com.st.util.FeaturesTilePyramid;
+import com.st.util.S3Operations;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.stereotype.Service;
+
+/**
+ * This class generates and retrieves the level-of-detail tile pyramids of
+ * feature files. Tiles are generated in the background after a features file
+ * is uploaded, and are stored as gzipped JSON in the features bucket on Amazon
+ * S3 under "tiles/{datasetId}/{version}/{level}/{x}/{y}.json".
+ * 
+ * Every generation writes a new version next to the current one, and then
+ * switches to it by rewriting the pyramid description
+ * "tiles/{datasetId}/pyramid.json", which names the version. The tiles of the
+ * current version are therefore never missing while a dataset is regenerated.
+ * The previous version is kept until the next generation, since other nodes
+ * may still have its description cached.
+ */
+@Service
+public class FeaturesTileServiceImpl implements FeaturesTileService {
+
+    private static final Logger logger = Logger.getLogger(FeaturesTileServiceImpl.class);
+
+    /** Key prefix of the tile pyramids. */
+    private static final String TILES_PREFIX = "tiles/";
+
+    /** How long the version of a pyramid is reused before its description is read again. */
+    private static final long VERSION_TTL_MILLIS = 60 * 1000;
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    // Generations of the same dataset are serialized by one of these locks,
+    // picked by the dataset ID. This only covers generations in this JVM.
+    private final Object[] locks = new Object[32];
+
+    // The current version of each pyramid, by dataset ID.
+    private final Map<String, CachedVersion> versions = new ConcurrentHashMap<>();
+
+    public FeaturesTileServiceImpl() {
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    @Autowired
+    AmazonS3Client s3Client;
+
+    @Autowired
+    TaskExecutor backgroundTaskExecutor;
+
+    @Autowired
+    MongoUserDetailsServiceImpl customUserDetailsService;
+
+    @Autowired
+    DatasetServiceImpl datasetService;
+
+    private @Value("${s3.featuresbucket}")
+    String featuresBucket;
+
+    @Override
+    public void generateInBackground(final String id) {
+        try {
+            backgroundTaskExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    generate(id);
+                }
+            });
+        } catch (TaskRejectedException ex) {
+            logger.error("Could not schedule tile generation for dataset " + id, ex);
+        }
+    }
+
+    // Runs without a logged in user (background job).
+    @Override
+    public void generate(final String id) {
+        synchronized (locks[(id.hashCode() & Integer.MAX_VALUE) % locks.length]) {
+            doGenerate(id);
+        }
+    }
+
+    private void doGenerate(final String id) {
+        long start = System.currentTimeMillis();
+        FeaturesTilePyramid pyramid = new FeaturesTilePyramid();
+        try {
+            S3ObjectInputStream in = s3Client.getObject(featuresBucket, id + ".gz").getObjectContent();
+            try (FeaturesReader reader = FeaturesReader.fromGzip(in)) {
+                Feature feature;
+                while ((feature = reader.next()) != null) {
+                    pyramid.add(feature);
+                }
+            }
+            final String version = String.valueOf(System.currentTimeMillis());
+            String previous = readVersion(id);
+            final int[] count = {0};
+            pyramid.build(new FeaturesTilePyramid.TileHandler() {
+                @Override
+                public void handle(int level, int x, int y, byte[] json) throws IOException {
+                    putGzippedJson(tileKey(id, version, level, x, y), json);
+                    count[0]++;
+                }
+            });
+            String description = "{\"version\":\"" + version + "\""
+                    + ",\"levels\":" + (pyramid.getMaxLevel() + 1)
+                    + ",\"tile_bins\":" + FeaturesTilePyramid.TILE_BINS
+                    + ",\"top_genes\":" + FeaturesTilePyramid.TOP_GENES
+                    + ",\"origin_x\":" + pyramid.getOriginX()
+                    + ",\"origin_y\":" + pyramid.getOriginY() + "}";
+            putGzippedJson(pyramidKey(id), description.getBytes("UTF-8"));
+            versions.put(id, new CachedVersion(version));
+            // A delete of the dataset that ran meanwhile may have missed the new tiles.
+            // Deletes remove the features before the tiles, so checking here is enough.
+            if (S3Operations.getObjectMetadata(s3Client, featuresBucket, id + ".gz") == null) {
+                logger.info("Dataset " + id + " was deleted during tile generation");
+                delete(id);
+                return;
+            }
+            deleteVersionsExcept(id, version, previous);
+            logger.info("Generated " + count[0] + " tiles for dataset " + id + " in "
+                    + (System.currentTimeMillis() - start) + " ms");
+        } catch (AmazonClientException | IOException ex) {
+            logger.error("Failed to generate tiles for dataset " + id, ex);
+        }
+    }
+
+    // ROLE_ADMIN: all.
+    // ROLE_CM:    granted datasets.
+    // ROLE_USER:  granted datasets.
+    @Override
+    public S3Resource findPyramid(String id) {
+        if (!isGranted(id)) {
+            return null;
+        }
+        return find(pyramidKey(id));
+    }
+
+    // ROLE_ADMIN: all.
+    // ROLE_CM:    granted datasets.
+    // ROLE_USER:  granted datasets.
+    @Override
+    public S3Resource findTile(String id, int level, int x, int y) {
+        if (!isGranted(id)) {
+            return null;
+        }
+        CachedVersion cached = versions.get(id);
+        if (cached == null || System.currentTimeMillis() - cached.readAt > VERSION_TTL_MILLIS) {
+            try {
+                cached = new CachedVersion(readVersion(id));
+            } catch (AmazonClientException | IOException ex) {
+                logger.error("Failed to read the tile pyramid of dataset " + id + " from Amazon S3", ex);
+                return null;
+            }
+            versions.put(id, cached);
+        }
+        if (cached.version == null) {
+            return null;
+        }
+        return find(tileKey(id, cached.version, level, x, y));
+    }
+
+    // ROLE_ADMIN: ok.
+    // ROLE_CM:    ok.
+    // ROLE_USER:  nope.
+    @Override
+    public void delete(String id) {
+        versions.remove(id);
+        try {
+            int n = S3Operations.deleteObjects(s3Client, featuresBucket, TILES_PREFIX + id + "/");
+            logger.info("Deleted " + n + " tiles for dataset " + id + " from Amazon S3");
+        } catch (AmazonClientException ex) {
+            logger.error("Error deleting tiles for dataset " + id + " on Amazon S3.", ex);
+        }
+    }
+
+    private boolean isGranted(String id) {
+        MongoUserDetails currentUser = customUserDetailsService.loadCurrentUser();
+        return currentUser.isAdmin() || datasetService.datasetIsGranted(id, currentUser);
+    }
+
+    private S3Resource find(String key) {
+        try {
+            S3ObjectInputStream in = s3Client.getObject(featuresBucket, key).getObjectContent();
+            byte[] bytes = IOUtils.toByteArray(in);
+            in.close();
+            return new S3Resource("application/json", "gzip", key, bytes);
+        } catch (AmazonServiceException ex) {
+            if (ex.getStatusCode() != 404) {
+                logger.error("Failed to download " + key + " from Amazon S3", ex);
+            }
+            return null;
+        } catch (AmazonClientException | IOException ex) {
+            logger.error("Failed to download " + key + " from Amazon S3", ex);
+            return null;
+        }
+    }
+
+    private void putGzippedJson(String key, byte[] json) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(json.length / 4 + 64);
+        try (GZIPOutputStream gz = new GZIPOutputStream(bos)) {
+            gz.write(json);
+        }
+        byte[] bytes = bos.toByteArray();
+        ObjectMetadata om = new ObjectMetadata();
+        om.setContentType("application/json");
+        om.setContentEncoding("gzip");
+        om.setContentLength(bytes.length);
+        s3Client.putObject(featuresBucket, key, new ByteArrayInputStream(bytes), om);
+    }
+
+    // Returns the version named by the pyramid description, or null if there
+    // is no pyramid.
+    private String readVersion(String id) throws IOException {
+        S3Object o = S3Operations.getObject(s3Client, featuresBucket, pyramidKey(id));
+        if (o == null) {
+            return null;
+        }
+        try (GZIPInputStream in = new GZIPInputStream(o.getObjectContent())) {
+            return mapper.readTree(in).path("version").getTextValue();
+        }
+    }
+
+    // Deletes the tiles of all versions but the given ones.
+    private void deleteVersionsExcept(String id, String version, String previous) {
+        String prefix = TILES_PREFIX + id + "/";
+        List<String> keys = new ArrayList<>();
+        for (S3ObjectSummary o : S3Operations.listObjects(s3Client, featuresBucket, prefix)) {
+            String key = o.getKey();
+            int slash = key.indexOf('/', prefix.length());
+            if (slash < 0) {
+                continue;
+            }
+            String v = key.substring(prefix.length(), slash);
+            if (!v.equals(version) && !v.equals(previous)) {
+                keys.add(key);
+            }
+        }
+        S3Operations.deleteObjects(s3Client, featuresBucket, keys);
+        if (!keys.isEmpty()) {
+            logger.info("Deleted " + keys.size() + " outdated tiles for dataset " + id);
+        }
+    }
+
+    private static String pyramidKey(String id) {
+        return TILES_PREFIX + id + "/pyramid.json";
+    }
+
+    private static String tileKey(String id, String version, int level, int x, int y) {
+        return TILES_PREFIX + id + "/" + version + "/" + level + "/" + x + "/" + y + ".json";
+    }
+
+    private static class CachedVersion {
+        final String version;
+        final long readAt = System.currentTimeMillis();
+
+        CachedVersion(String version) {
+            this.version = version;
+        }
+    }
+
+}
@@ -0,0 +1,185 @@
+package com.st.serviceImpl;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.st.model.Gene;
+import com.st.service.GeneDictionaryService;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+
+/**
+ * This class implements the gene dictionary. Genes are persisted in MongoDB,
+ * and IDs are reserved from a counter in the "counters" collection with
+ * findAndModify, so that several servers can assign IDs concurrently. The
+ * dictionary is loaded once and kept in memory as a bidirectional map.
+ * <p/>
+ * If two servers add the same gene at the same time, the unique index on the
+ * name keeps the first one, and the other reads it back. The losing ID is
+ * simply left unused.
+ */
+@Service
+public class GeneDictionaryServiceImpl implements GeneDictionaryService {
+
+    private static final Logger logger = Logger.getLogger(GeneDictionaryServiceImpl.class);
+
+    private static final String COUNTERS_COLLECTION = "counters";
+    private static final String GENE_COUNTER = "gene";
+
+    @Autowired
+    MongoOperations mongoTemplateAnalysisDB;
+
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private final Map<Integer, String> names = new ConcurrentHashMap<>();
+    private volatile boolean loaded = false;
+
+    @Override
+    public int getId(String name) {
+        return getIds(Collections.singleton(name)).get(name);
+    }
+
+    @Override
+    public Map<String, Integer> getIds(Collection<String> geneNames) {
+        ensureLoaded();
+        Map<String, Integer> result = new HashMap<>(geneNames.size() * 2);
+        Set<String> missing = new LinkedHashSet<>();
+        for (String name : geneNames) {
+            Integer id = ids.get(name);
+            if (id != null) {
+                result.put(name, id);
+            } else {
+                missing.add(name);
+            }
+        }
+        if (!missing.isEmpty()) {
+            synchronized (this) {
+                add(missing);
+            }
+            for (String name : missing) {
+                result.put(name, ids.get(name));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Integer findId(String name) {
+        ensureLoaded();
+        Integer id = ids.get(name);
+        if (id == null) {
+            // May have been added by another server.
+            Gene gene = mongoTemplateAnalysisDB.findOne(
+                    new Query(Criteria.where("name").is(name)), Gene.class);
+            if (gene != null) {
+                cache(gene);
+                id = gene.getId();
+            }
+        }
+        return id;
+    }
+
+    @Override
+    public String getName(int id) {
+        ensureLoaded();
+        String name = names.get(id);
+        if (name == null) {
+            // May have been added by another server.
+            Gene gene = mongoTemplateAnalysisDB.findOne(
+                    new Query(Criteria.where("id").is(id)), Gene.class);
+            if (gene != null) {
+                cache(gene);
+                name = gene.getName();
+            }
+        }
+        return name;
+    }
+
+    // Adds unknown genes with a block of newly reserved IDs.
+    private void add(Set<String> missing) {
+        List<String> unknown = new ArrayList<>();
+        readBack(missing);
+        for (String name : missing) {
+            if (!ids.containsKey(name)) {
+                unknown.add(name);
+            }
+        }
+        if (unknown.isEmpty()) {
+            return;
+        }
+        int id = reserveIds(unknown.size());
+        List<Gene> genes = new ArrayList<>(unknown.size());
+        for (String name : unknown) {
+            genes.add(new Gene(id++, name));
+        }
+        try {
+            mongoTemplateAnalysisDB.insert(genes, Gene.class);
+        } catch (DuplicateKeyException ex) {
+            logger.info("Some genes were added concurrently, reading them back");
+        }
+        // The stored IDs win over the reserved ones.
+        readBack(unknown);
+        for (String name : unknown) {
+            if (!ids.containsKey(name)) {
+                // Not stored because the batch was interrupted by a duplicate.
+                Gene gene = new Gene(reserveIds(1), name);
+                try {
+                    mongoTemplateAnalysisDB.insert(gene);
+                } catch (DuplicateKeyException ex) {
+                    logger.info("Gene " + name + " was added concurrently, reading it back");
+                }
+                readBack(Collections.singleton(name));
+            }
+        }
+        logger.info("Added " + unknown.size() + " genes to the gene dictionary");
+    }
+
+    private void readBack(Collection<String> geneNames) {
+        List<Gene> genes = mongoTemplateAnalysisDB.find(
+                new Query(Criteria.where("name").in(geneNames)), Gene.class);
+        for (Gene gene : genes) {
+            cache(gene);
+        }
+    }
+
+    // Atomically reserves a block of IDs and returns the first one.
+    private int reserveIds(int count) {
+        DBObject counter = mongoTemplateAnalysisDB.getCollection(COUNTERS_COLLECTION).findAndModify(
+                new BasicDBObject("_id", GENE_COUNTER), null, null, false,
+                new BasicDBObject("$inc", new BasicDBObject("seq", count)), true, true);
+        return ((Number) counter.get("seq")).intValue() - count + 1;
+    }
+
+    private void cache(Gene gene) {
+        ids.put(gene.getName(), gene.getId());
+        names.put(gene.getId(), gene.getName());
+    }
+
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        synchronized (this) {
+            if (!loaded) {
+                for (Gene gene : mongoTemplateAnalysisDB.findAll(Gene.class)) {
+                    cache(gene);
+                }
+                loaded = true;
+                logger.info("Loaded " + ids.size() + " genes into the gene dictionary");
+            }
+        }
+    }
+
+}
@@ -0,0 +1,149 @@
+package com.st.serviceImpl;
+
+import com.st.model.DatasetInfo;
+import com.st.model.GenePresence;
+import com.st.model.MongoUserDetails;
+import com.st.service.GenePresenceService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.PostConstruct;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.IndexOperations;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.index.IndexInfo;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+
+/**
+ * This class implements the store/retrieve logic to MongoDB for the data model
+ * class "GenePresence". The index is maintained by FeaturesServiceImpl
+ * whenever a features file is stored or deleted. The entries of a dataset
+ * are inserted in one batch as a new generation, and only then are those of
+ * older generations removed, so readers never see the dataset without
+ * entries, and take the newest generation while both exist. The DB
+ * connection is handled in a MongoOperations object, which is configured in
+ * mvc-dispather-servlet.xml
+ */
+@Service
+public class GenePresenceServiceImpl implements GenePresenceService {
+
+    private static final Logger logger = Logger.getLogger(GenePresenceServiceImpl.class);
+
+    @Autowired
+    MongoUserDetailsServiceImpl customUserDetailsService;
+
+    @Autowired
+    MongoOperations mongoTemplateAnalysisDB;
+
+    @Autowired
+    MongoOperations mongoTemplateUserDB;
+
+    @Autowired
+    GeneDictionaryServiceImpl geneDictionaryService;
+
+    /** Name of the unique index of the entries before generations. */
+    private static final String UNGENERATED_INDEX = "gene_id_1_dataset_id_1";
+
+    // Updates of the same dataset are serialized by one of these locks, picked
+    // by the dataset ID, as each removes all generations but its own, so
+    // concurrent ones could remove each other's. This only covers this JVM.
+    private final Object[] locks = new Object[32];
+
+    public GenePresenceServiceImpl() {
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    // The index before generations is unique without them, so it would
+    // refuse a new generation next to the current one.
+    @PostConstruct
+    public void dropUngeneratedIndex() {
+        IndexOperations indexes = mongoTemplateAnalysisDB.indexOps(GenePresence.class);
+        for (IndexInfo index : indexes.getIndexInfo()) {
+            if (UNGENERATED_INDEX.equals(index.getName())) {
+                indexes.dropIndex(UNGENERATED_INDEX);
+                logger.info("Dropped index " + UNGENERATED_INDEX + " of the gene presence index");
+            }
+        }
+    }
+
+    // ROLE_ADMIN: all datasets.
+    // ROLE_CM:    granted datasets.
+    // ROLE_USER:  granted datasets.
+    @Override
+    public List<GenePresence> findByGene(String gene) {
+        MongoUserDetails currentUser = customUserDetailsService.loadCurrentUser();
+        Integer geneId = geneDictionaryService.findId(gene);
+        if (geneId == null) {
+            return new ArrayList<>();
+        }
+        Criteria criteria = Criteria.where("gene_id").is(geneId);
+        if (!currentUser.isAdmin()) {
+            List<DatasetInfo> dsis = mongoTemplateUserDB.find(
+                    new Query(Criteria.where("account_id").is(currentUser.getId())), DatasetInfo.class);
+            List<String> granted = new ArrayList<>();
+            for (DatasetInfo dsi : dsis) {
+                granted.add(dsi.getDataset_id());
+            }
+            criteria = criteria.and("dataset_id").in(granted);
+        }
+        Query query = new Query(criteria).with(new Sort(Sort.Direction.DESC, "hits"));
+        List<GenePresence> entries = mongoTemplateAnalysisDB.find(query, GenePresence.class);
+        // Only the newest generation of a dataset being updated.
+        Map<String, Long> generations = new HashMap<>();
+        for (GenePresence entry : entries) {
+            Long g = generations.get(entry.getDataset_id());
+            if (g == null || g < entry.getGeneration()) {
+                generations.put(entry.getDataset_id(), entry.getGeneration());
+            }
+        }
+        List<GenePresence> newest = new ArrayList<>(generations.size());
+        for (GenePresence entry : entries) {
+            if (entry.getGeneration() == generations.get(entry.getDataset_id())) {
+                entry.setGene(gene);
+                newest.add(entry);
+            }
+        }
+        return newest;
+    }
+
+    // ROLE_ADMIN: ok.
+    // ROLE_CM:    ok.
+    // ROLE_USER:  nope.
+    @Override
+    public void update(String datasetId, Map<String, long[]> geneHits) {
+        Map<String, Integer> geneIds = geneDictionaryService.getIds(geneHits.keySet());
+        synchronized (locks[(datasetId.hashCode() & Integer.MAX_VALUE) % locks.length]) {
+            long generation = System.currentTimeMillis();
+            List<GenePresence> entries = new ArrayList<>(geneHits.size());
+            for (Map.Entry<String, long[]> e : geneHits.entrySet()) {
+                entries.add(new GenePresence(geneIds.get(e.getKey()), datasetId, e.getValue()[0],
+                        (int) e.getValue()[1], generation));
+            }
+            if (!entries.isEmpty()) {
+                mongoTemplateAnalysisDB.insert(entries, GenePresence.class);
+            }
+            // Also removes the entries from before generations, which have none.
+            mongoTemplateAnalysisDB.remove(
+                    new Query(Criteria.where("dataset_id").is(datasetId).and("generation").ne(generation)),
+                    GenePresence.class);
+            logger.info("Indexed " + entries.size() + " genes of dataset " + datasetId);
+        }
+    }
+
+    // ROLE_ADMIN: ok.
+    // ROLE_CM:    ok.
+    // ROLE_USER:  nope.
+    @Override
+    public void delete(String datasetId) {
+        mongoTemplateAnalysisDB.remove(new Query(Criteria.where("dataset_id").is(datasetId)),
+                GenePresence.class);
+    }
+
+}
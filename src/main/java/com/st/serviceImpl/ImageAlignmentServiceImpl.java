@@ -1,9 +1,18 @@
 package com.st.serviceImpl;
 
+import com.st.model.ChangeEvent;
 import com.st.model.ImageAlignment;
 import com.st.model.MongoUserDetails;
 import com.st.service.ImageAlignmentService;
+import com.st.util.FieldProjection;
+import com.st.util.KeysetPage;
+import com.st.util.ModelDocumentHandler;
+import com.st.util.ModelHandler;
+import com.st.util.PageQuery;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.mongodb.core.MongoOperations;
@@ -27,6 +36,9 @@ public class ImageAlignmentServiceImpl implements ImageAlignmentService {
     @Autowired
     MongoOperations mongoTemplateAnalysisDB;
 
+    @Autowired
+    ChangeFeedServiceImpl changeFeedService;
+
     // ROLE_ADMIN: ok.
     // ROLE_CM:    ok.
     // ROLE_USER:  ok.
@@ -36,6 +48,15 @@ public class ImageAlignmentServiceImpl implements ImageAlignmentService {
                 ImageAlignment.class);
     }
 
+    // ROLE_ADMIN: ok.
+    // ROLE_CM:    ok.
+    // ROLE_USER:  ok.
+    @Override
+    public List<ImageAlignment> findByIds(Collection<String> ids) {
+        return mongoTemplateAnalysisDB.find(new Query(Criteria.where("id").in(ids)), 
+                ImageAlignment.class);
+    }
+
     // ROLE_ADMIN: ok.
     // ROLE_CM:    ok.
     // ROLE_USER:  ok.
@@ -50,9 +71,25 @@ public class ImageAlignmentServiceImpl implements ImageAlignmentService {
     // ROLE_USER:  ok.
     @Override
     public List<ImageAlignment> findByChip(String chipId) {
-        List<ImageAlignment> imals = mongoTemplateAnalysisDB.find(
-                new Query(Criteria.where("chip_id").is(chipId)), ImageAlignment.class);
-        return imals;
+        return findByChip(chipId, FieldProjection.all());
+    }
+
+    // ROLE_ADMIN: ok.
+    // ROLE_CM:    ok.
+    // ROLE_USER:  ok.
+    @Override
+    public List<ImageAlignment> findByChip(String chipId, FieldProjection projection) {
+        return findByChip(chipId, projection, PageQuery.unbounded()).getItems();
+    }
+
+    // ROLE_ADMIN: ok.
+    // ROLE_CM:    ok.
+    // ROLE_USER:  ok.
+    @Override
+    public KeysetPage<ImageAlignment> findByChip(String chipId, FieldProjection projection, PageQuery page) {
+        List<ImageAlignment> imals = mongoTemplateAnalysisDB.find(page.apply(projection.apply(
+                new Query(Criteria.where("chip_id").is(chipId)), page.getSort())), ImageAlignment.class);
+        return page.toPage(imals, mongoTemplateAnalysisDB.getConverter());
     }
 
     // ROLE_ADMIN: ok.
@@ -60,12 +97,44 @@ public class ImageAlignmentServiceImpl implements ImageAlignmentService {
     // ROLE_USER:  nope.
     @Override
     public List<ImageAlignment> list() {
+        return list(FieldProjection.all());
+    }
+
+    // ROLE_ADMIN: ok.
+    // ROLE_CM:    ok.
+    // ROLE_USER:  nope.
+    @Override
+    public List<ImageAlignment> list(FieldProjection projection) {
+        return list(projection, PageQuery.unbounded()).getItems();
+    }
+
+    // ROLE_ADMIN: ok.
+    // ROLE_CM:    ok.
+    // ROLE_USER:  nope.
+    @Override
+    public KeysetPage<ImageAlignment> list(FieldProjection projection, PageQuery page) {
         List<ImageAlignment> alignments = null;
         MongoUserDetails currentUser = customUserDetailsService.loadCurrentUser();
         if (currentUser.isAdmin() || currentUser.isContentManager()) {
-            alignments =  mongoTemplateAnalysisDB.findAll(ImageAlignment.class);
+            alignments =  mongoTemplateAnalysisDB.find(page.apply(
+                    projection.apply(new Query(), page.getSort())), ImageAlignment.class);
+        }
+        return page.toPage(alignments, mongoTemplateAnalysisDB.getConverter());
+    }
+
+    // ROLE_ADMIN: ok.
+    // ROLE_CM:    ok.
+    // ROLE_USER:  nope.
+    @Override
+    public boolean stream(FieldProjection projection, ModelHandler<ImageAlignment> handler) {
+        MongoUserDetails currentUser = customUserDetailsService.loadCurrentUser();
+        if (!currentUser.isAdmin() && !currentUser.isContentManager()) {
+            return false;
         }
-        return alignments;
+        mongoTemplateAnalysisDB.executeQuery(projection.apply(new Query()),
+                mongoTemplateAnalysisDB.getCollectionName(ImageAlignment.class),
+                new ModelDocumentHandler<>(ImageAlignment.class, mongoTemplateAnalysisDB.getConverter(), handler));
+        return true;
     }
 
     // ROLE_ADMIN: ok.
@@ -77,6 +146,7 @@ public class ImageAlignmentServiceImpl implements ImageAlignmentService {
         if (currentUser.isAdmin() || currentUser.isContentManager()) {
             mongoTemplateAnalysisDB.insert(imal);
             logger.info("Added image alignment " + imal.getId() + " to MongoDB.");
+            changeFeedService.publish(ChangeEvent.IMAGE_ALIGNMENT, ChangeEvent.ADDED, imal.getId(), null);
             return imal;
         } 
         return null;
@@ -91,6 +161,7 @@ public class ImageAlignmentServiceImpl implements ImageAlignmentService {
         if (currentUser.isAdmin() || currentUser.isContentManager()) {
             mongoTemplateAnalysisDB.save(imal);
             logger.info("Updated image alignment " + imal.getId() + " to MongoDB.");
+            changeFeedService.publish(ChangeEvent.IMAGE_ALIGNMENT, ChangeEvent.UPDATED, imal.getId(), null);
         }
     }
 
@@ -101,6 +172,7 @@ public class ImageAlignmentServiceImpl implements ImageAlignmentService {
         if (deleteIsOkForCurrUser(id)) {
             mongoTemplateAnalysisDB.remove(find(id));
             logger.info("Deleted image alignment " + id + " from MongoDB.");
+            changeFeedService.publish(ChangeEvent.IMAGE_ALIGNMENT, ChangeEvent.DELETED, id, null);
         }
     }
 
@@ -113,14 +185,41 @@ public class ImageAlignmentServiceImpl implements ImageAlignmentService {
         return (currentUser.isAdmin() || currentUser.isContentManager()) && find(id) != null;
     }
 
+    // ROLE_ADMIN: ok.
+    // ROLE_CM:    ok.
+    // ROLE_USER:  ok.
+    @Override
+    public Set<String> findReferencedFigures(Collection<String> filenames) {
+        // Served by the indexes on figure_red and figure_blue.
+        Query query = new Query(new Criteria().orOperator(Criteria.where("figure_red").in(filenames),
+                Criteria.where("figure_blue").in(filenames)));
+        query.fields().include("figure_red").include("figure_blue");
+        Set<String> referenced = new HashSet<>();
+        for (ImageAlignment imal : mongoTemplateAnalysisDB.find(query, ImageAlignment.class)) {
+            referenced.add(imal.getFigure_red());
+            referenced.add(imal.getFigure_blue());
+        }
+        referenced.retainAll(filenames);
+        return referenced;
+    }
+
+    // ROLE_ADMIN: ok.
+    // ROLE_CM:    ok.
+    // ROLE_USER:  nope.
     @Override
     public List<ImageAlignment> deleteForChip(String chipId) {
-        List<ImageAlignment> imals = findByChip(chipId);
-        if (imals == null) {
+        MongoUserDetails currentUser = customUserDetailsService.loadCurrentUser();
+        if (!currentUser.isAdmin() && !currentUser.isContentManager()) {
             return null;
         }
+        List<ImageAlignment> imals = findByChip(chipId);
+        if (imals == null || imals.isEmpty()) {
+            return imals;
+        }
+        mongoTemplateAnalysisDB.remove(new Query(Criteria.where("chip_id").is(chipId)), ImageAlignment.class);
+        logger.info("Deleted " + imals.size() + " image alignments for chip " + chipId + " from MongoDB.");
         for (ImageAlignment imal : imals) {
-            delete(imal.getId());
+            changeFeedService.publish(ChangeEvent.IMAGE_ALIGNMENT, ChangeEvent.DELETED, imal.getId(), null);
         }
         return imals;
     }
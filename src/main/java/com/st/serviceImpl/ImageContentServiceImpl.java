@@ -0,0 +1,498 @@
+package com.st.serviceImpl;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.st.exceptions.CustomServiceUnavailableException;
+import com.st.model.ImageContent;
+import com.st.model.ImageMetadata;
+import com.st.service.ImageContentService;
+import com.st.util.ImageOperations;
+import com.st.util.S3Operations;
+import java.awt.Dimension;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.security.crypto.codec.Hex;
+import org.springframework.stereotype.Service;
+
+/**
+ * This class stores the contents of images by content. The contents are
+ * stored once on Amazon S3, under "content/{sha256}", however many images
+ * have them, and the image metadata in MongoDB maps each image name to its
+ * contents. A reference count per contents, in MongoDB, tells when the last
+ * image with them is deleted. An image whose contents were re-encoded
+ * keeps a reference to its original contents too. Contents are uploaded by
+ * the first reference, and further ones wait until they are stored; they are
+ * marked as being deleted before they are, and references to them wait until
+ * they are gone, so that they are uploaded again. The renditions and tiles
+ * of an image are stored under the SHA-256 of its contents as uploaded (see
+ * derivedKey()), so an image added with the same contents as another takes
+ * over its renditions, tiles and re-encoding. Images added before are stored
+ * under their name, and have no metadata in MongoDB until it is recorded (see
+ * migrate()); their metadata has no SHA-256, and their contents, renditions
+ * and tiles stay under their name until they are replaced or deleted.
+ */
+@Service
+public class ImageContentServiceImpl implements ImageContentService {
+
+    private static final Logger logger = Logger.getLogger(ImageContentServiceImpl.class);
+
+    /** Key prefix of the image contents. */
+    public static final String CONTENT_PREFIX = "content/";
+
+    // Bytes buffered to read the format and dimensions of an image from its
+    // header, which comes after the EXIF data (at most 64 KiB) in JPEG files.
+    private static final int HEADER_BYTES = 256 * 1024;
+
+    /** Longest wait for contents another request uploads or deletes, in seconds. */
+    private static final int WAIT_SECONDS = 120;
+
+    private static final long POLL_MILLIS = 100;
+
+    @Autowired
+    AmazonS3Client s3Client;
+
+    @Autowired
+    MongoOperations mongoTemplateAnalysisDB;
+
+    private @Value("${s3.imagebucket}")
+    String imageBucket;
+
+    // ROLE_ADMIN: ok.
+    // ROLE_CM:    ok.
+    // ROLE_USER:  ok.
+    @Override
+    public String findKey(String filename) {
+        ImageMetadata im = find(filename);
+        return (im == null) ? filename : sourceKey(im);
+    }
+
+    // ROLE_ADMIN: ok.
+    // ROLE_CM:    ok.
+    // ROLE_USER:  ok.
+    @Override
+    public ImageMetadata find(String filename) {
+        return mongoTemplateAnalysisDB.findOne(new Query(Criteria.where("_id").is(filename)),
+                ImageMetadata.class);
+    }
+
+    // ROLE_ADMIN: ok.
+    // ROLE_CM:    ok.
+    // ROLE_USER:  nope.
+    @Override
+    public List<ImageMetadata> list() {
+        return mongoTemplateAnalysisDB.findAll(ImageMetadata.class);
+    }
+
+    // ROLE_ADMIN: ok.
+    // ROLE_CM:    ok.
+    // ROLE_USER:  nope.
+    @Override
+    public ImageMetadata store(String filename, byte[] contents) {
+        String sha256 = sha256(contents);
+        ImageMetadata existing = find(filename);
+        if (existing != null) {
+            // Also the upload of an image that was re-encoded since. An
+            // image stored under its name is deleted, to be stored by content.
+            if (sha256.equals(existing.getSha256()) || sha256.equals(existing.getOriginalSha256())) {
+                return existing;
+            }
+            delete(filename);
+        }
+        ImageMetadata im = describe(filename, sha256, contents, new DateTime());
+        retain(sha256, contents, im.getImageType(), filename);
+        ImageMetadata same = findSameSource(sha256);
+        if (same != null) {
+            if (same.getOriginalSha256() != null && retainStored(same.getSha256())) {
+                im.setSha256(same.getSha256());
+                im.setOriginalSha256(sha256);
+                im.setSize(same.getSize());
+                im.setEtag(same.getEtag());
+            }
+            im.setRenditions(same.getRenditions());
+            im.setTiles(same.getTiles());
+            logger.info("Image " + filename + " takes over the renditions, tiles and re-encoding of image "
+                    + same.getFilename() + ", which has the same contents");
+        }
+        mongoTemplateAnalysisDB.save(im);
+        return im;
+    }
+
+    // Runs without a logged in user (background job).
+    @Override
+    public ImageMetadata replace(String filename, String sha256, byte[] contents) {
+        String reencoded = sha256(contents);
+        retain(reencoded, contents, "jpeg", filename);
+        ImageMetadata im = mongoTemplateAnalysisDB.findAndModify(
+                new Query(Criteria.where("_id").is(filename).and("sha256").is(sha256)
+                        .and("originalSha256").is(null)),
+                new Update().set("sha256", reencoded).set("originalSha256", sha256).set("size", contents.length)
+                        .set("etag", etag(reencoded)).set("lastModified", new DateTime()),
+                new FindAndModifyOptions().returnNew(true), ImageMetadata.class);
+        if (im == null) {
+            // Replaced, deleted or re-encoded meanwhile.
+            release(reencoded);
+        }
+        return im;
+    }
+
+    // Runs without a logged in user (background job).
+    @Override
+    public ImageMetadata reuseReencoding(String filename, String sha256) {
+        ImageMetadata same = mongoTemplateAnalysisDB.findOne(
+                new Query(Criteria.where("originalSha256").is(sha256)), ImageMetadata.class);
+        if (same == null || !retainStored(same.getSha256())) {
+            return null;
+        }
+        ImageMetadata im = mongoTemplateAnalysisDB.findAndModify(
+                new Query(Criteria.where("_id").is(filename).and("sha256").is(sha256)
+                        .and("originalSha256").is(null)),
+                new Update().set("sha256", same.getSha256()).set("originalSha256", sha256)
+                        .set("size", same.getSize()).set("etag", same.getEtag())
+                        .set("lastModified", new DateTime()),
+                new FindAndModifyOptions().returnNew(true), ImageMetadata.class);
+        if (im == null) {
+            release(same.getSha256());
+        }
+        return im;
+    }
+
+    // Runs without a logged in user (background job).
+    @Override
+    public void setRenditions(ImageMetadata image, List<Integer> sizes) {
+        mongoTemplateAnalysisDB.updateMulti(sameSource(image), new Update().set("renditions", sizes),
+                ImageMetadata.class);
+    }
+
+    // Runs without a logged in user (background job).
+    @Override
+    public void addRendition(ImageMetadata image, int size) {
+        mongoTemplateAnalysisDB.updateMulti(sameSource(image), new Update().addToSet("renditions", size),
+                ImageMetadata.class);
+    }
+
+    // Runs without a logged in user (background job).
+    @Override
+    public void setTiles(ImageMetadata image, boolean tiles) {
+        mongoTemplateAnalysisDB.updateMulti(sameSource(image), new Update().set("tiles", tiles),
+                ImageMetadata.class);
+    }
+
+    // Runs without a logged in user (background job).
+    @Override
+    public ImageMetadata migrate(String filename) throws IOException {
+        if (find(filename) != null) {
+            return null;
+        }
+        S3Object legacy = S3Operations.getObject(s3Client, imageBucket, filename);
+        if (legacy == null) {
+            return null;
+        }
+        ObjectMetadata om = legacy.getObjectMetadata();
+        ImageMetadata im = new ImageMetadata();
+        im.setFilename(filename);
+        S3ObjectInputStream in = legacy.getObjectContent();
+        try {
+            BufferedInputStream bin = new BufferedInputStream(in, HEADER_BYTES);
+            bin.mark(HEADER_BYTES);
+            im.setImageType(ImageOperations.readFormat(bin));
+            bin.reset();
+            Dimension size = ImageOperations.readSize(bin);
+            if (size != null) {
+                im.setWidth(size.width);
+                im.setHeight(size.height);
+            }
+        } finally {
+            // Only the header is read, so do not download the rest of the image.
+            in.abort();
+        }
+        im.setSize(om.getContentLength());
+        im.setEtag("\"" + om.getETag() + "\"");
+        im.setCreated(new DateTime(om.getLastModified()));
+        im.setLastModified(new DateTime(om.getLastModified()));
+        try {
+            mongoTemplateAnalysisDB.insert(im);
+        } catch (DuplicateKeyException ex) {
+            // Added or recorded meanwhile.
+            return null;
+        }
+        // Deleted meanwhile, before there was metadata to delete with it.
+        if (S3Operations.getObjectMetadata(s3Client, imageBucket, filename) == null) {
+            mongoTemplateAnalysisDB.remove(new Query(Criteria.where("_id").is(filename).and("sha256").is(null)
+                    .and("etag").is(im.getEtag())), ImageMetadata.class);
+            return null;
+        }
+        logger.info("Recorded the metadata of image " + filename + ", stored under its name");
+        return im;
+    }
+
+    // ROLE_ADMIN: ok.
+    // ROLE_CM:    ok.
+    // ROLE_USER:  nope.
+    @Override
+    public boolean delete(String filename) {
+        ImageMetadata im = mongoTemplateAnalysisDB.findAndRemove(
+                new Query(Criteria.where("_id").is(filename)), ImageMetadata.class);
+        if (im == null) {
+            return false;
+        }
+        if (im.getSha256() == null) {
+            deleteStoredUnderName(filename);
+            return true;
+        }
+        release(im.getSha256());
+        if (im.getOriginalSha256() != null) {
+            release(im.getOriginalSha256());
+        }
+        return true;
+    }
+
+    // Deletes an image stored under its name, and its renditions and tiles.
+    private void deleteStoredUnderName(String filename) {
+        try {
+            s3Client.deleteObject(imageBucket, filename);
+            S3Operations.deleteObjects(s3Client, imageBucket,
+                    ImageRenditionServiceImpl.RENDITIONS_PREFIX + filename + "/");
+            S3Operations.deleteObjects(s3Client, imageBucket, ImageTileServiceImpl.TILES_PREFIX + filename + "/");
+        } catch (AmazonClientException ex) {
+            logger.error("Error deleting image " + filename + " from Amazon S3.", ex);
+        }
+    }
+
+    // The metadata of new contents, with the format and dimensions from their header.
+    private static ImageMetadata describe(String filename, String sha256, byte[] contents, DateTime created) {
+        ImageMetadata im = new ImageMetadata();
+        im.setFilename(filename);
+        try {
+            im.setImageType(ImageOperations.readFormat(new ByteArrayInputStream(contents)));
+            Dimension size = ImageOperations.readSize(new ByteArrayInputStream(contents));
+            if (size != null) {
+                im.setWidth(size.width);
+                im.setHeight(size.height);
+            }
+        } catch (IOException ex) {
+            logger.warn("Could not read the header of image " + filename, ex);
+        }
+        im.setSize(contents.length);
+        im.setSha256(sha256);
+        im.setEtag(etag(sha256));
+        im.setCreated(created);
+        im.setLastModified(created);
+        return im;
+    }
+
+    // The images with the same contents as uploaded, and so the same
+    // renditions and tiles, as an image.
+    private static Query sameSource(ImageMetadata image) {
+        if (image.getSha256() == null) {
+            return new Query(Criteria.where("_id").is(image.getFilename()));
+        }
+        String source = derivedKey(image);
+        return new Query(new Criteria().orOperator(Criteria.where("originalSha256").is(source),
+                Criteria.where("sha256").is(source).and("originalSha256").is(null)));
+    }
+
+    // An image with contents as uploaded, preferably one re-encoded already.
+    private ImageMetadata findSameSource(String sha256) {
+        ImageMetadata im = mongoTemplateAnalysisDB.findOne(
+                new Query(Criteria.where("originalSha256").is(sha256)), ImageMetadata.class);
+        if (im == null) {
+            im = mongoTemplateAnalysisDB.findOne(new Query(Criteria.where("sha256").is(sha256)
+                    .and("originalSha256").is(null)), ImageMetadata.class);
+        }
+        return im;
+    }
+
+    // Adds a reference to contents, and uploads them along with the first one.
+    // Returns once the contents are stored, also when another request uploads them.
+    private void retain(String sha256, byte[] contents, String imageType, String filename) {
+        long deadline = System.currentTimeMillis() + WAIT_SECONDS * 1000L;
+        ImageContent previous = null;
+        while (previous == null) {
+            try {
+                previous = mongoTemplateAnalysisDB.findAndModify(
+                        new Query(Criteria.where("_id").is(sha256).and("state").ne(ImageContent.DELETING)),
+                        new Update().inc("refcount", 1).setOnInsert("state", ImageContent.PENDING)
+                                .setOnInsert("size", contents.length).setOnInsert("created_at", new DateTime()),
+                        new FindAndModifyOptions().upsert(true).returnNew(false), ImageContent.class);
+            } catch (DuplicateKeyException ex) {
+                // Being deleted, so uploaded again once gone.
+                pause(sha256, deadline);
+                continue;
+            }
+            if (previous == null) {
+                upload(sha256, contents, imageType, filename);
+                return;
+            }
+        }
+        logger.info("Image " + filename + " has the same contents as " + previous.getRefcount()
+                + " other images, not uploading them again");
+        // Uploaded by another request meanwhile. If that fails, this one takes over.
+        String state = previous.getState();
+        while (ImageContent.PENDING.equals(state) || ImageContent.FAILED.equals(state)) {
+            if (ImageContent.FAILED.equals(state) && mongoTemplateAnalysisDB.findAndModify(
+                    new Query(Criteria.where("_id").is(sha256).and("state").is(ImageContent.FAILED)),
+                    new Update().set("state", ImageContent.PENDING), ImageContent.class) != null) {
+                upload(sha256, contents, imageType, filename);
+                return;
+            }
+            try {
+                pause(sha256, deadline);
+            } catch (CustomServiceUnavailableException ex) {
+                release(sha256);
+                throw ex;
+            }
+            state = mongoTemplateAnalysisDB.findOne(new Query(Criteria.where("_id").is(sha256)),
+                    ImageContent.class).getState();
+        }
+    }
+
+    // Adds a reference to contents that are stored. False if they are not.
+    private boolean retainStored(String sha256) {
+        return mongoTemplateAnalysisDB.findAndModify(new Query(Criteria.where("_id").is(sha256)
+                .and("state").nin(ImageContent.PENDING, ImageContent.FAILED, ImageContent.DELETING)),
+                new Update().inc("refcount", 1), ImageContent.class) != null;
+    }
+
+    // Uploads contents marked as pending, and marks them as stored.
+    private void upload(String sha256, byte[] contents, String imageType, String filename) {
+        ObjectMetadata om = new ObjectMetadata();
+        om.setContentType((imageType == null) ? "application/octet-stream" : "image/" + imageType);
+        om.setContentLength(contents.length);
+        try {
+            s3Client.putObject(imageBucket, contentKey(sha256), new ByteArrayInputStream(contents), om);
+        } catch (AmazonClientException ex) {
+            // Uploaded by the next reference, if any.
+            mongoTemplateAnalysisDB.updateFirst(new Query(Criteria.where("_id").is(sha256)),
+                    new Update().set("state", ImageContent.FAILED), ImageContent.class);
+            release(sha256);
+            throw ex;
+        }
+        mongoTemplateAnalysisDB.updateFirst(new Query(Criteria.where("_id").is(sha256)),
+                new Update().set("state", ImageContent.STORED), ImageContent.class);
+        logger.info("Stored contents " + sha256 + " of image " + filename + " on Amazon S3");
+    }
+
+    // Waits a little for another request that uploads or deletes contents.
+    private static void pause(String sha256, long deadline) {
+        if (System.currentTimeMillis() > deadline) {
+            throw new CustomServiceUnavailableException("The contents " + sha256
+                    + " are being uploaded or deleted by another request.", WAIT_SECONDS);
+        }
+        try {
+            Thread.sleep(POLL_MILLIS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new CustomServiceUnavailableException("Interrupted waiting for contents " + sha256, WAIT_SECONDS);
+        }
+    }
+
+    // Drops a reference to contents, and deletes them along with the last one.
+    private void release(String sha256) {
+        ImageContent content = mongoTemplateAnalysisDB.findAndModify(
+                new Query(Criteria.where("_id").is(sha256)), new Update().inc("refcount", -1),
+                new FindAndModifyOptions().returnNew(true), ImageContent.class);
+        if (content == null || content.getRefcount() > 0) {
+            return;
+        }
+        // Marked first, so that references added meanwhile wait until the
+        // contents are gone, rather than get contents about to be deleted.
+        ImageContent marked = mongoTemplateAnalysisDB.findAndModify(new Query(Criteria.where("_id").is(sha256)
+                .and("refcount").lte(0).and("state").nin(ImageContent.PENDING, ImageContent.DELETING)),
+                new Update().set("state", ImageContent.DELETING), ImageContent.class);
+        if (marked == null) {
+            return;
+        }
+        try {
+            if (!ImageContent.FAILED.equals(marked.getState())) {
+                s3Client.deleteObject(imageBucket, contentKey(sha256));
+                // Derived images of contents re-encoded since are stored under the original.
+                S3Operations.deleteObjects(s3Client, imageBucket,
+                        ImageRenditionServiceImpl.RENDITIONS_PREFIX + sha256 + "/");
+                S3Operations.deleteObjects(s3Client, imageBucket, ImageTileServiceImpl.TILES_PREFIX + sha256 + "/");
+                logger.info("Deleted contents " + sha256 + " from Amazon S3");
+            }
+        } catch (AmazonClientException ex) {
+            logger.error("Error deleting contents " + sha256 + " from Amazon S3.", ex);
+        } finally {
+            mongoTemplateAnalysisDB.remove(new Query(Criteria.where("_id").is(sha256)
+                    .and("state").is(ImageContent.DELETING)), ImageContent.class);
+        }
+    }
+
+    // The contents of a key never change, so their hash is a strong ETag.
+    private static String etag(String sha256) {
+        return "\"" + sha256 + "\"";
+    }
+
+    /**
+     * Returns the Amazon S3 key of contents.
+     * @param sha256 the SHA-256 of the contents.
+     * @return the key.
+     */
+    public static String contentKey(String sha256) {
+        return CONTENT_PREFIX + sha256;
+    }
+
+    /**
+     * Returns the Amazon S3 key of the contents of an image. Images not moved
+     * to the content store are stored under their name.
+     * @param im the image metadata.
+     * @return the key.
+     */
+    public static String contentKey(ImageMetadata im) {
+        return (im.getSha256() == null) ? im.getFilename() : contentKey(im.getSha256());
+    }
+
+    /**
+     * Returns the Amazon S3 key of the contents to decode an image from: the
+     * contents as uploaded, if re-encoded since. Progressive JPEG keeps all of
+     * its coefficients in memory until the last scan is read, whatever part
+     * or subsampling is asked for, whereas sequential JPEG is decoded row by
+     * row, so regions and subsampled reads of large images stay small.
+     * @param im the image metadata.
+     * @return the key.
+     */
+    public static String sourceKey(ImageMetadata im) {
+        return (im.getOriginalSha256() == null) ? contentKey(im) : contentKey(im.getOriginalSha256());
+    }
+
+    /**
+     * Returns the key under which the renditions and tiles of an image are
+     * stored: the SHA-256 of its contents as uploaded, which a re-encoding
+     * does not change, or the name of an image stored under its name.
+     * @param im the image metadata.
+     * @return the key.
+     */
+    public static String derivedKey(ImageMetadata im) {
+        if (im.getOriginalSha256() != null) {
+            return im.getOriginalSha256();
+        }
+        return (im.getSha256() == null) ? im.getFilename() : im.getSha256();
+    }
+
+    private static String sha256(byte[] contents) {
+        try {
+            return new String(Hex.encode(MessageDigest.getInstance("SHA-256").digest(contents)));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not supported", ex);
+        }
+    }
+
+}
@@ -0,0 +1,190 @@
+package com.st.serviceImpl;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.S3Object;
+import com.st.component.ImageTranscoder;
+import com.st.exceptions.CustomServiceUnavailableException;
+import com.st.model.ChangeEvent;
+import com.st.model.ImageMetadata;
+import com.st.service.ImageReencodingService;
+import com.st.util.ImageOperations;
+import com.st.util.S3Operations;
+import java.awt.Dimension;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Callable;
+import javax.imageio.ImageIO;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.stereotype.Service;
+
+/**
+ * This class re-encodes uploaded images as progressive JPEG in the
+ * background, so that clients on slow links can show the whole image
+ * coarsely after its first few percent have arrived. The uploaded contents
+ * are kept for archival (see ImageContentServiceImpl.replace), and regions,
+ * thumbnails, tiles and aligned figures are decoded from them, as progressive
+ * JPEG cannot be decoded in part. The uploaded image is downloaded to a
+ * temporary file, and decoded whole, as the progressive encoder needs all
+ * of it. Decoding reserves memory for the decoded image and the encoded
+ * result from the background budget of the ImageTranscoder, without a
+ * timeout, so that re-encoding neither takes memory from requests nor is
+ * given up on. Images that would need more than the whole budget are not
+ * re-encoded. An image with the same contents as one re-encoded already
+ * takes over that re-encoding, and re-encoding of the same contents is
+ * serialized, so that they are decoded only once. Enabled by the property
+ * image.progressive.
+ */
+@Service
+public class ImageReencodingServiceImpl implements ImageReencodingService {
+
+    private static final Logger logger = Logger.getLogger(ImageReencodingServiceImpl.class);
+
+    /** JPEG quality of the re-encoded images. */
+    public static final float QUALITY = 0.9f;
+
+    @Autowired
+    AmazonS3Client s3Client;
+
+    @Autowired
+    TaskExecutor backgroundTaskExecutor;
+
+    @Autowired
+    ImageTranscoder imageTranscoder;
+
+    @Autowired
+    ImageContentServiceImpl imageContentService;
+
+    @Autowired
+    ChangeFeedServiceImpl changeFeedService;
+
+    private @Value("${s3.imagebucket}")
+    String imageBucket;
+
+    private @Value("${image.progressive}")
+    boolean enabled;
+
+    // Serializes re-encoding the same contents.
+    private final Object[] locks = new Object[32];
+
+    public ImageReencodingServiceImpl() {
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    @Override
+    public void reencodeInBackground(final String filename) {
+        if (!enabled) {
+            return;
+        }
+        try {
+            backgroundTaskExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    reencode(filename);
+                }
+            });
+        } catch (TaskRejectedException ex) {
+            logger.error("Could not schedule re-encoding for image " + filename, ex);
+        }
+    }
+
+    // Runs without a logged in user (background job).
+    @Override
+    public void reencode(String filename) {
+        ImageMetadata im = imageContentService.find(filename);
+        // Images stored under their name are never rewritten.
+        if (im == null || im.getSha256() == null || im.getOriginalSha256() != null) {
+            return;
+        }
+        synchronized (locks[(im.getSha256().hashCode() & Integer.MAX_VALUE) % locks.length]) {
+            // Re-encoded or replaced meanwhile.
+            ImageMetadata current = imageContentService.find(filename);
+            if (current == null || !im.getSha256().equals(current.getSha256())) {
+                return;
+            }
+            if (imageContentService.reuseReencoding(filename, im.getSha256()) != null) {
+                logger.info("Image " + filename + " takes over the re-encoding of an image with the same contents");
+                changeFeedService.publish(ChangeEvent.IMAGE, ChangeEvent.UPDATED, filename, null);
+                return;
+            }
+            reencode(im);
+        }
+    }
+
+    private void reencode(ImageMetadata im) {
+        long start = System.currentTimeMillis();
+        String filename = im.getFilename();
+        File file = null;
+        try {
+            S3Object original = S3Operations.getObject(s3Client, imageBucket,
+                    ImageContentServiceImpl.contentKey(im.getSha256()));
+            if (original == null) {
+                return;
+            }
+            file = File.createTempFile("reencode-" + im.getSha256(), ".jpg");
+            try (InputStream in = original.getObjectContent()) {
+                Files.copy(in, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            try (InputStream in = new FileInputStream(file)) {
+                if (!ImageOperations.isSequentialJpeg(in)) {
+                    logger.info("Not re-encoding image " + filename + ": not a sequential JPEG");
+                    return;
+                }
+            }
+            Dimension size;
+            try (InputStream in = new FileInputStream(file)) {
+                size = ImageOperations.readSize(in);
+            }
+            if (size == null) {
+                logger.info("Not re-encoding image " + filename + ": not a readable image");
+                return;
+            }
+            // The decoded image, and the result as it grows, up to twice the
+            // original before it is found larger.
+            long estimate = ImageTranscoder.estimateBytes(size.width, size.height) + 2 * file.length();
+            if (estimate > imageTranscoder.getBackgroundMemoryBytes()) {
+                logger.info("Not re-encoding image " + filename + ": " + size.width + "x" + size.height
+                        + " would need " + (estimate >> 20) + " MiB");
+                return;
+            }
+            final File source = file;
+            byte[] progressive = imageTranscoder.executeInBackground(estimate, new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws IOException {
+                    return ImageOperations.toProgressiveJpeg(ImageIO.read(source), QUALITY);
+                }
+            });
+            // A larger file would take longer to arrive in full.
+            if (progressive.length > file.length()) {
+                logger.info("Not re-encoding image " + filename + ": " + progressive.length
+                        + " bytes as progressive JPEG, " + file.length() + " as uploaded");
+                return;
+            }
+            if (imageContentService.replace(filename, im.getSha256(), progressive) == null) {
+                return;
+            }
+            logger.info("Re-encoded image " + filename + " as progressive JPEG in "
+                    + (System.currentTimeMillis() - start) + " ms");
+            changeFeedService.publish(ChangeEvent.IMAGE, ChangeEvent.UPDATED, filename, null);
+        } catch (CustomServiceUnavailableException ex) {
+            logger.warn("Not re-encoding image " + filename + ": " + ex.getMessage());
+        } catch (AmazonClientException | IOException ex) {
+            logger.error("Failed to re-encode image " + filename, ex);
+        } finally {
+            if (file != null && !file.delete()) {
+                logger.warn("Could not delete temporary file " + file);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,334 @@
+package com.st.serviceImpl;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.st.component.ImageTranscoder;
+import com.st.model.ImageMetadata;
+import com.st.model.S3Resource;
+import com.st.service.ImageRenditionService;
+import com.st.util.ByteLruCache;
+import com.st.util.ImageOperations;
+import com.st.util.S3Operations;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import javax.imageio.ImageIO;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.stereotype.Service;
+
+/**
+ * This class generates and retrieves downscaled renditions and thumbnails of
+ * images. A fixed set of renditions is generated in the background after an
+ * image is added, and stored as JPEG in the image bucket on Amazon S3 under
+ * "renditions/{key}/{size}.jpg", where the key is the SHA-256 of the image as
+ * uploaded (see ImageContentServiceImpl.derivedKey()), so that images with
+ * the same contents share them, and they are deleted along with the
+ * contents. Thumbnails of any size are scaled from the smallest rendition
+ * that covers them. Regions are decoded from the original, as uploaded also
+ * when re-encoded since (see ImageContentServiceImpl.sourceKey()).
+ * Requests decode and encode on the bounded pool of the ImageTranscoder, so
+ * that concurrent requests cannot exhaust the heap. Originals are only read
+ * subsampled, or only the region, so their full resolution raster is never
+ * decoded into memory. Renditions, thumbnails and regions are kept in an
+ * in-memory LRU cache. The image metadata records which renditions exist.
+ */
+@Service
+public class ImageRenditionServiceImpl implements ImageRenditionService {
+
+    private static final Logger logger = Logger.getLogger(ImageRenditionServiceImpl.class);
+
+    /** Key prefix of the renditions. */
+    public static final String RENDITIONS_PREFIX = "renditions/";
+
+    /** Sizes of the renditions, as their longest side in pixels, ascending. */
+    public static final int[] RENDITION_SIZES = {128, 256, 512, 1024, 2048};
+
+    /** JPEG quality of the renditions and thumbnails. */
+    public static final float QUALITY = 0.85f;
+
+    /** Largest side of a region, in pixels after scaling. */
+    public static final int MAX_REGION_SIZE = 2048;
+
+    /** Total size of the renditions, thumbnails and regions kept in memory. */
+    private static final long CACHE_BYTES = 64L * 1024 * 1024;
+
+    // Keyed by "{key}/{size}" for renditions, "{key}/{width}x{height}" for
+    // thumbnails and "{key}/region/{x},{y},{width},{height},{scale}" for regions.
+    // Keys by content never go stale.
+    private final ByteLruCache cache = new ByteLruCache(CACHE_BYTES);
+
+    // Serializes generating the renditions of the same contents.
+    private final Object[] locks = new Object[32];
+
+    @Autowired
+    AmazonS3Client s3Client;
+
+    @Autowired
+    TaskExecutor backgroundTaskExecutor;
+
+    @Autowired
+    ImageTranscoder imageTranscoder;
+
+    @Autowired
+    ImageContentServiceImpl imageContentService;
+
+    private @Value("${s3.imagebucket}")
+    String imageBucket;
+
+    public ImageRenditionServiceImpl() {
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    @Override
+    public void generateInBackground(final ImageMetadata image) {
+        try {
+            backgroundTaskExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    generate(image);
+                }
+            });
+        } catch (TaskRejectedException ex) {
+            logger.error("Could not schedule rendition generation for image " + image.getFilename(), ex);
+        }
+    }
+
+    // Runs without a logged in user (background job).
+    @Override
+    public void generate(ImageMetadata image) {
+        long start = System.currentTimeMillis();
+        String filename = image.getFilename();
+        String key = ImageContentServiceImpl.derivedKey(image);
+        synchronized (locks[(key.hashCode() & Integer.MAX_VALUE) % locks.length]) {
+            try {
+                // Generated meanwhile for an image with the same contents.
+                List<Integer> sizes = findSizes(image);
+                if (sizes.size() == RENDITION_SIZES.length) {
+                    imageContentService.setRenditions(image, sizes);
+                    logger.info("Not generating renditions for image " + filename + ": they exist");
+                    return;
+                }
+                int largest = RENDITION_SIZES[RENDITION_SIZES.length - 1];
+                BufferedImage img = readOriginal(image, largest);
+                if (img == null) {
+                    logger.error("Failed to generate renditions for image " + filename + ": not a readable image");
+                    return;
+                }
+                // Each rendition is scaled from the next larger one.
+                sizes = new ArrayList<>(RENDITION_SIZES.length);
+                for (int i = RENDITION_SIZES.length - 1; i >= 0; i--) {
+                    img = ImageOperations.fit(img, RENDITION_SIZES[i], RENDITION_SIZES[i]);
+                    put(key, RENDITION_SIZES[i], ImageOperations.toJpeg(img, QUALITY));
+                    sizes.add(0, RENDITION_SIZES[i]);
+                }
+                imageContentService.setRenditions(image, sizes);
+                logger.info("Generated renditions for image " + filename + " in "
+                        + (System.currentTimeMillis() - start) + " ms");
+            } catch (AmazonClientException | IOException ex) {
+                logger.error("Failed to generate renditions for image " + filename, ex);
+            }
+        }
+    }
+
+    // ROLE_ADMIN: ok.
+    // ROLE_CM:    ok.
+    // ROLE_USER:  ok.
+    @Override
+    public S3Resource findThumbnail(ImageMetadata image, final int width, final int height) {
+        String filename = image.getFilename();
+        String key = ImageContentServiceImpl.derivedKey(image) + "/" + width + "x" + height;
+        byte[] bytes = cache.get(key);
+        try {
+            if (bytes == null) {
+                int size = renditionSize(Math.max(width, height));
+                // Fetched before admission, so the pool only decodes and encodes.
+                final byte[] rendition = findRendition(image, size);
+                if (rendition == null) {
+                    return null;
+                }
+                if (width == size && height == size) {
+                    bytes = rendition;
+                } else {
+                    bytes = imageTranscoder.execute(ImageTranscoder.estimateBytes(size, size),
+                            new Callable<byte[]>() {
+                        @Override
+                        public byte[] call() throws IOException {
+                            BufferedImage img = ImageIO.read(new ByteArrayInputStream(rendition));
+                            return ImageOperations.toJpeg(ImageOperations.fit(img, width, height), QUALITY);
+                        }
+                    });
+                }
+                cache.put(key, bytes);
+            }
+        } catch (AmazonClientException | IOException ex) {
+            logger.error("Failed to make thumbnail of image " + filename, ex);
+            return null;
+        }
+        return new S3Resource("image/jpeg", filename, bytes);
+    }
+
+    // ROLE_ADMIN: ok.
+    // ROLE_CM:    ok.
+    // ROLE_USER:  ok.
+    @Override
+    public S3Resource findRegion(final ImageMetadata image, final int x, final int y,
+            final int width, final int height, final double scale) {
+        String filename = image.getFilename();
+        String key = ImageContentServiceImpl.derivedKey(image) + "/region/" + x + "," + y + ","
+                + width + "," + height + "," + scale;
+        byte[] bytes = cache.get(key);
+        if (bytes == null) {
+            // The region is decoded subsampled by the whole part of 1 / scale.
+            int step = Math.max(1, (int) Math.floor(1 / scale));
+            long estimate = ImageTranscoder.estimateBytes(width / step + 1, height / step + 1);
+            try {
+                bytes = imageTranscoder.execute(estimate, new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws IOException {
+                        return cropRegion(image, new Rectangle(x, y, width, height), scale);
+                    }
+                });
+            } catch (AmazonClientException | IOException ex) {
+                logger.error("Failed to make region of image " + filename, ex);
+                return null;
+            }
+            if (bytes == null) {
+                return null;
+            }
+            cache.put(key, bytes);
+        }
+        return new S3Resource("image/jpeg", filename, bytes);
+    }
+
+    // Runs without a logged in user (background job).
+    @Override
+    public List<Integer> findSizes(ImageMetadata image) {
+        String key = ImageContentServiceImpl.derivedKey(image);
+        String prefix = RENDITIONS_PREFIX + key + "/";
+        List<Integer> sizes = new ArrayList<>();
+        for (S3ObjectSummary o : S3Operations.listObjects(s3Client, imageBucket, prefix)) {
+            for (int size : RENDITION_SIZES) {
+                if (o.getKey().equals(renditionKey(key, size))) {
+                    sizes.add(size);
+                }
+            }
+        }
+        Collections.sort(sizes);
+        return sizes;
+    }
+
+    // ROLE_ADMIN: ok.
+    // ROLE_CM:    ok.
+    // ROLE_USER:  nope.
+    @Override
+    public void delete(String filename) {
+        cache.removePrefix(filename + "/");
+        try {
+            int n = S3Operations.deleteObjects(s3Client, imageBucket, RENDITIONS_PREFIX + filename + "/");
+            logger.info("Deleted " + n + " renditions for image " + filename + " from Amazon S3");
+        } catch (AmazonClientException ex) {
+            logger.error("Error deleting renditions for image " + filename + " on Amazon S3.", ex);
+        }
+    }
+
+    // The smallest rendition covering a size, or the largest.
+    private static int renditionSize(int size) {
+        for (int s : RENDITION_SIZES) {
+            if (s >= size) {
+                return s;
+            }
+        }
+        return RENDITION_SIZES[RENDITION_SIZES.length - 1];
+    }
+
+    // A rendition from the cache or the bucket. Images added before renditions
+    // existed get theirs made on demand, on the pool of the ImageTranscoder.
+    private byte[] findRendition(final ImageMetadata image, final int size) throws IOException {
+        String derived = ImageContentServiceImpl.derivedKey(image);
+        String key = derived + "/" + size;
+        byte[] bytes = cache.get(key);
+        if (bytes != null) {
+            return bytes;
+        }
+        S3Object stored = S3Operations.getObject(s3Client, imageBucket, renditionKey(derived, size));
+        if (stored != null) {
+            try (InputStream in = stored.getObjectContent()) {
+                bytes = IOUtils.toByteArray(in);
+            }
+        } else {
+            // The original is read subsampled, at most twice the size.
+            bytes = imageTranscoder.execute(ImageTranscoder.estimateBytes(2 * size, 2 * size),
+                    new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws IOException {
+                    BufferedImage img = readOriginal(image, size);
+                    return (img == null) ? null : ImageOperations.toJpeg(ImageOperations.fit(img, size, size), QUALITY);
+                }
+            });
+            if (bytes == null) {
+                return null;
+            }
+            put(derived, size, bytes);
+            imageContentService.addRendition(image, size);
+        }
+        cache.put(key, bytes);
+        return bytes;
+    }
+
+    // The original, subsampled to about a size.
+    private BufferedImage readOriginal(ImageMetadata image, int size) throws IOException {
+        S3Object original = S3Operations.getObject(s3Client, imageBucket, ImageContentServiceImpl.sourceKey(image));
+        if (original == null) {
+            return null;
+        }
+        try (InputStream in = original.getObjectContent()) {
+            return ImageOperations.readSubsampled(in, size, size);
+        }
+    }
+
+    // A region of the original as JPEG, or null if there is no such image.
+    private byte[] cropRegion(ImageMetadata image, Rectangle region, double scale) throws IOException {
+        S3Object original = S3Operations.getObject(s3Client, imageBucket, ImageContentServiceImpl.sourceKey(image));
+        if (original == null) {
+            return null;
+        }
+        S3ObjectInputStream in = original.getObjectContent();
+        BufferedImage img;
+        try {
+            img = ImageOperations.readRegion(in, region, scale);
+        } finally {
+            // Rows below the region are not read, so do not drain the rest of the original.
+            in.abort();
+        }
+        return (img == null) ? null : ImageOperations.toJpeg(img, QUALITY);
+    }
+
+    private void put(String key, int size, byte[] jpeg) {
+        ObjectMetadata om = new ObjectMetadata();
+        om.setContentType("image/jpeg");
+        om.setContentLength(jpeg.length);
+        s3Client.putObject(imageBucket, renditionKey(key, size), new ByteArrayInputStream(jpeg), om);
+    }
+
+    private static String renditionKey(String key, int size) {
+        return RENDITIONS_PREFIX + key + "/" + size + ".jpg";
+    }
+
+}
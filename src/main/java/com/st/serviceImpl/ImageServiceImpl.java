@@ -1,32 +1,58 @@
 package com.st.serviceImpl;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.s3.AmazonS3Client;
-import com.amazonaws.services.s3.model.ObjectListing;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectInputStream;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.mongodb.BasicDBObject;
+import com.mongodb.MongoException;
+import com.st.component.ImageTranscoder;
+import com.st.component.S3ListingCache;
+import com.st.exceptions.CustomBadRequestException;
+import com.st.model.ChangeEvent;
 import com.st.model.ImageMetadata;
 import com.st.model.MongoUserDetails;
 import com.st.service.ImageService;
+import com.st.util.ImageOperations;
+import com.st.util.S3Operations;
+import java.awt.Dimension;
 import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 import javax.imageio.ImageIO;
 import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
 import org.joda.time.DateTime;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.data.mongodb.core.MongoOperations;
 import org.springframework.stereotype.Service;
 
 /**
  * This class retrieves/stores images and image metadata from Amazon S3. It uses
  * the Amazon AWS Java SDK, see http://aws.amazon.com/sdkforjava/ The
  * AmazonS3Client is configured in the mvc-dispatcher-servlet.xml
+ * Images are stored by content (see ImageContentServiceImpl), and their
+ * metadata is read from MongoDB. Images added before are stored under their
+ * name, where they stay; their metadata is recorded in MongoDB in the
+ * background at startup, if the property image.migrate is set, and until then
+ * it is derived from S3. A pass that records all of them writes a marker
+ * document, after which no node looks for them on S3 again.
+ * Images are decoded and encoded on the bounded pool of the ImageTranscoder.
+ * Added images are re-encoded as progressive JPEG in the background.
  */
 @Service
 public class ImageServiceImpl implements ImageService {
@@ -36,10 +62,58 @@ public class ImageServiceImpl implements ImageService {
     
     @Autowired
     MongoUserDetailsServiceImpl customUserDetailsService;
-    
+
+    @Autowired
+    S3ListingCache s3ListingCache;
+
+    @Autowired
+    ChangeFeedServiceImpl changeFeedService;
+
+    @Autowired
+    ImageTileServiceImpl imageTileService;
+
+    @Autowired
+    ImageRenditionServiceImpl imageRenditionService;
+
+    @Autowired
+    ImageTranscoder imageTranscoder;
+
+    @Autowired
+    ImageContentServiceImpl imageContentService;
+
+    @Autowired
+    ImageReencodingServiceImpl imageReencodingService;
+
+    @Autowired
+    TaskExecutor backgroundTaskExecutor;
+
+    @Autowired
+    MongoOperations mongoTemplateAnalysisDB;
+
+    /** Collection of the markers of completed migrations. */
+    private static final String MIGRATIONS_COLLECTION = "migrations";
+
+    /** ID of the marker written once the metadata of all images stored under their name is recorded. */
+    private static final String LEGACY_IMAGES_MARKER = "legacy_images";
+
+    // How often the marker is looked for until it is found.
+    private static final long MARKER_CHECK_MILLIS = 60 * 1000L;
+
+    // Cleared once the marker is found.
+    private volatile boolean legacyImages = true;
+
+    private volatile long markerCheckedAt = 0;
+
+    // Bytes buffered to read the dimensions of an image from its header,
+    // which comes after the EXIF data (at most 64 KiB) in JPEG files.
+    private static final int HEADER_BYTES = 256 * 1024;
+
     private @Value("${s3.imagebucket}")
     String imageBucket;
 
+    private @Value("${image.migrate}")
+    boolean migrationEnabled;
+
     private static final Logger logger = Logger
             .getLogger(ImageServiceImpl.class);
 
@@ -48,22 +122,31 @@ public class ImageServiceImpl implements ImageService {
     // ROLE_USER:  nope.
     @Override
     public List<ImageMetadata> list() {
-        List<ImageMetadata> imageMetadataList = new ArrayList<>();
+        Map<String, ImageMetadata> imageMetadataList = new LinkedHashMap<>();
         MongoUserDetails currentUser = customUserDetailsService.loadCurrentUser();
         if (currentUser.isAdmin() || currentUser.isContentManager()) {
-            ObjectListing objects = s3Client.listObjects(imageBucket);
-            List<S3ObjectSummary> objs = objects.getObjectSummaries();
-            for (S3ObjectSummary o : objs) {
+            for (ImageMetadata im : imageContentService.list()) {
+                imageMetadataList.put(im.getFilename(), im);
+            }
+            if (!hasLegacyImages()) {
+                return new ArrayList<>(imageMetadataList.values());
+            }
+            for (S3ObjectSummary o : s3ListingCache.listTopLevelObjects(imageBucket).values()) {
+                if (imageMetadataList.containsKey(o.getKey())) {
+                    continue;
+                }
                 ImageMetadata im = new ImageMetadata();
+                // The listing has no content types; images were only added as JPEG before.
                 im.setImageType("jpeg");
                 im.setFilename(o.getKey());
                 im.setLastModified(new DateTime(o.getLastModified()));
-                    im.setCreated(new DateTime(o.getLastModified()));
+                im.setCreated(new DateTime(o.getLastModified()));
                 im.setSize(o.getSize());
-                imageMetadataList.add(im);
+                im.setEtag("\"" + o.getETag() + "\"");
+                imageMetadataList.put(im.getFilename(), im);
             }
         }
-        return imageMetadataList;
+        return new ArrayList<>(imageMetadataList.values());
     }
 
     // ROLE_ADMIN: ok.
@@ -71,72 +154,144 @@ public class ImageServiceImpl implements ImageService {
     // ROLE_USER:  ok.
     @Override
     public ImageMetadata getImageMetadata(String filename) {
-        List<ImageMetadata> imList = this.list();
-        for (ImageMetadata im : imList) {
-            if (im.getFilename().equals(filename)) {
-                return im;
-            }
+        ImageMetadata stored = imageContentService.find(filename);
+        if (stored != null || !hasLegacyImages()) {
+            return stored;
+        }
+        // A HEAD request for the image, rather than listing the bucket.
+        ObjectMetadata om = S3Operations.getObjectMetadata(s3Client, imageBucket, filename);
+        if (om == null) {
+            return null;
+        }
+        ImageMetadata im = new ImageMetadata();
+        String contentType = om.getContentType();
+        if (contentType != null && contentType.startsWith("image/")) {
+            im.setImageType(contentType.substring("image/".length()));
         }
-        return null;
+        im.setFilename(filename);
+        im.setLastModified(new DateTime(om.getLastModified()));
+        im.setCreated(new DateTime(om.getLastModified()));
+        im.setSize(om.getContentLength());
+        im.setEtag("\"" + om.getETag() + "\"");
+        return im;
     }
 
     // ROLE_ADMIN: ok.
     // ROLE_CM:    ok.
     // ROLE_USER:  ok.
     @Override
-    public byte[] getCompressedImage(String filename) {
+    public S3Object openCompressedImage(ImageMetadata meta) {
+        return S3Operations.getObject(s3Client, imageBucket, ImageContentServiceImpl.contentKey(meta));
+    }
+
+    // ROLE_ADMIN: ok.
+    // ROLE_CM:    ok.
+    // ROLE_USER:  ok.
+    @Override
+    public void writeCompressedImage(S3Object object, OutputStream out) throws IOException {
+        S3ObjectInputStream in = object.getObjectContent();
+        boolean copied = false;
         try {
-            S3ObjectInputStream in = s3Client.getObject(imageBucket, filename).getObjectContent();
-            byte[] bytes = IOUtils.toByteArray(in);
-            in.close();   // As soon as possible.
-            return bytes;
-        } catch (IOException e) {
-            logger.error("Error getting JPEG " + filename + " from Amazon S3.", e);
-            return null;
+            IOUtils.copyLarge(in, out);
+            copied = true;
+        } finally {
+            // Closing drains the rest, so a client that has gone aborts instead.
+            if (copied) {
+                in.close();
+            } else {
+                in.abort();
+            }
         }
-
     }
 
     // ROLE_ADMIN: ok.
     // ROLE_CM:    ok.
     // ROLE_USER:  ok.
     @Override
-    public BufferedImage getBufferedImage(String filename) {
+    public byte[] getDecodedImage(String filename) {
+        S3Object object = S3Operations.getObject(s3Client, imageBucket, imageContentService.findKey(filename));
+        if (object == null) {
+            return null;
+        }
+        S3ObjectInputStream in = object.getObjectContent();
         try {
-            S3ObjectInputStream in = s3Client.getObject(imageBucket, filename).getObjectContent();
-            BufferedImage img = ImageIO.read(in);
-            in.close();   // As soon as possible.
-            return img;
+            try {
+                // The dimensions are read first, to reserve the memory of the
+                // raster and of the result, about the size of the contents.
+                final BufferedInputStream bin = new BufferedInputStream(in, HEADER_BYTES);
+                bin.mark(HEADER_BYTES);
+                Dimension size = ImageOperations.readSize(bin);
+                bin.reset();
+                long estimate = (size == null) ? Long.MAX_VALUE
+                        : ImageTranscoder.estimateBytes(size.width, size.height)
+                        + object.getObjectMetadata().getContentLength();
+                return imageTranscoder.execute(estimate, new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws IOException {
+                        return toDefaultJpeg(ImageIO.read(bin));
+                    }
+                });
+            } finally {
+                // As soon as possible, without draining what is left if refused.
+                in.abort();
+            }
         } catch (IOException e) {
-            logger.error("Error getting BufferedImage " + filename + " from Amazon S3.", e);
+            logger.error("Error getting decoded image " + filename + " from Amazon S3.", e);
             return null;
         }
-
     }
 
     // ROLE_ADMIN: ok.
     // ROLE_CM:    ok.
     // ROLE_USER:  nope.
     @Override
-    public void add(String filename, BufferedImage img) {
+    public void add(String filename, final byte[] img) {
         MongoUserDetails currentUser = customUserDetailsService.loadCurrentUser();
         if (currentUser.isUser()) {
             return;
         }
+        Dimension size;
         try {
-            ObjectMetadata om = new ObjectMetadata();
-            om.setContentType("image/jpeg");
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            ImageIO.write(img, "jpeg", baos);
-            InputStream is = new ByteArrayInputStream(baos.toByteArray());
-            s3Client.putObject(imageBucket, filename, is, om);
-            logger.info("Added image from BuffereedImage " + filename + " to Amazon S3.");
+            size = ImageOperations.readSize(new ByteArrayInputStream(img));
+        } catch (IOException e) {
+            size = null;
+        }
+        if (size == null) {
+            throw new CustomBadRequestException("The image " + filename + " is not in a readable format.");
+        }
+        try {
+            // The upload is decoded only once admitted, with the memory of the
+            // raster and of the result, about the size of the upload.
+            byte[] jpeg = imageTranscoder.execute(
+                    ImageTranscoder.estimateBytes(size.width, size.height) + img.length,
+                    new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws IOException {
+                    return toDefaultJpeg(ImageIO.read(new ByteArrayInputStream(img)));
+                }
+            });
+            ImageMetadata im = imageContentService.store(filename, jpeg);
+            logger.info("Added image from decoded image " + filename + " to Amazon S3.");
+            changeFeedService.publish(ChangeEvent.IMAGE, ChangeEvent.ADDED, filename, null);
+            generateInBackground(im);
         } catch (IOException e) {
             logger.error("Error adding image " + filename + " to Amazon S3:" + e.getMessage());
             throw new RuntimeException("Error adding image " + filename + " to Amazon S3", e);
         }
     }
 
+    // Encodes as JPEG at the default quality.
+    private static byte[] toDefaultJpeg(BufferedImage img) throws IOException {
+        if (img == null) {
+            throw new IOException("Not a readable image");
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        if (!ImageIO.write(img, "jpeg", baos)) {
+            throw new IOException("The image cannot be encoded as JPEG");
+        }
+        return baos.toByteArray();
+    }
+
     // ROLE_ADMIN: ok.
     // ROLE_CM:    ok.
     // ROLE_USER:  nope.
@@ -146,11 +301,23 @@ public class ImageServiceImpl implements ImageService {
         if (currentUser.isUser()) {
             return;
         }
-        ObjectMetadata om = new ObjectMetadata();
-        om.setContentType("image/jpeg");
-        InputStream is = new ByteArrayInputStream(img);
-        s3Client.putObject(imageBucket, filename, is, om);
+        ImageMetadata im = imageContentService.store(filename, img);
         logger.info("Added image from JPEG " + filename + " to Amazon S3.");
+        changeFeedService.publish(ChangeEvent.IMAGE, ChangeEvent.ADDED, filename, null);
+        generateInBackground(im);
+    }
+
+    // Schedules what an image with the same contents does not have already.
+    private void generateInBackground(ImageMetadata im) {
+        if (im.getRenditions() == null || im.getRenditions().isEmpty()) {
+            imageRenditionService.generateInBackground(im);
+        }
+        if (!im.getTiles()) {
+            imageTileService.generateInBackground(im);
+        }
+        if (im.getOriginalSha256() == null) {
+            imageReencodingService.reencodeInBackground(im.getFilename());
+        }
     }
 
     // ROLE_ADMIN: ok.
@@ -160,9 +327,99 @@ public class ImageServiceImpl implements ImageService {
     public void delete(String filename) {
         MongoUserDetails currentUser = customUserDetailsService.loadCurrentUser();
         if (currentUser.isAdmin() || currentUser.isContentManager()) {
-            s3Client.deleteObject(imageBucket, filename);
+            // The contents, renditions and tiles go with the last image that has them.
+            if (!imageContentService.delete(filename)) {
+                s3Client.deleteObject(imageBucket, filename);
+                imageTileService.delete(filename);
+                imageRenditionService.delete(filename);
+            }
+            if (hasLegacyImages()) {
+                s3ListingCache.invalidate(imageBucket);
+            }
             logger.info("Deleted image " + filename + " from Amazon S3.");
+            changeFeedService.publish(ChangeEvent.IMAGE, ChangeEvent.DELETED, filename, null);
+        }
+    }
+
+    @Override
+    public void migrateInBackground() {
+        if (!migrationEnabled) {
+            logger.info("Not recording the metadata of images stored under their name: disabled");
+            return;
+        }
+        if (!hasLegacyImages()) {
+            logger.info("Not recording the metadata of images stored under their name: recorded already");
+            return;
+        }
+        try {
+            backgroundTaskExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    migrate();
+                }
+            });
+        } catch (TaskRejectedException ex) {
+            logger.error("Could not schedule recording the metadata of images stored under their name", ex);
+        }
+    }
+
+    // Runs without a logged in user (background job).
+    @Override
+    public boolean hasLegacyImages() {
+        long now = System.currentTimeMillis();
+        if (legacyImages && now - markerCheckedAt > MARKER_CHECK_MILLIS) {
+            markerCheckedAt = now;
+            try {
+                legacyImages = mongoTemplateAnalysisDB.getCollection(MIGRATIONS_COLLECTION)
+                        .findOne(new BasicDBObject("_id", LEGACY_IMAGES_MARKER)) == null;
+            } catch (MongoException ex) {
+                logger.error("Failed to read the marker of recorded images stored under their name", ex);
+            }
+        }
+        return legacyImages;
+    }
+
+    // Runs without a logged in user (background job). The top level objects
+    // of the bucket are the images stored under their name.
+    private void migrate() {
+        long start = System.currentTimeMillis();
+        int recorded = 0;
+        int failed = 0;
+        List<S3ObjectSummary> legacy;
+        try {
+            legacy = S3Operations.listTopLevelObjects(s3Client, imageBucket);
+        } catch (AmazonClientException ex) {
+            logger.error("Failed to list images stored under their name on Amazon S3", ex);
+            return;
+        }
+        for (S3ObjectSummary o : legacy) {
+            String filename = o.getKey();
+            try {
+                ImageMetadata im = imageContentService.migrate(filename);
+                if (im != null) {
+                    // Renditions and tiles stay under the image name too.
+                    imageContentService.setRenditions(im, imageRenditionService.findSizes(im));
+                    imageContentService.setTiles(im, imageTileService.exists(im));
+                    recorded++;
+                }
+            } catch (AmazonClientException | IOException ex) {
+                failed++;
+                logger.error("Failed to record the metadata of image " + filename, ex);
+            }
+        }
+        s3ListingCache.invalidate(imageBucket);
+        if (failed == 0) {
+            try {
+                mongoTemplateAnalysisDB.getCollection(MIGRATIONS_COLLECTION).save(
+                        new BasicDBObject("_id", LEGACY_IMAGES_MARKER).append("completed", new Date())
+                        .append("recorded", recorded));
+                legacyImages = false;
+            } catch (MongoException ex) {
+                logger.error("Failed to write the marker of recorded images stored under their name", ex);
+            }
         }
+        logger.info("Recorded the metadata of " + recorded + " images stored under their name in "
+                + (System.currentTimeMillis() - start) + " ms, " + failed + " failed");
     }
 
 }
@@ -0,0 +1,283 @@
+package com.st.serviceImpl;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.st.component.ImageTranscoder;
+import com.st.model.ImageMetadata;
+import com.st.model.S3Resource;
+import com.st.service.ImageTileService;
+import com.st.util.ImageOperations;
+import com.st.util.ImageTilePyramid;
+import com.st.util.S3Operations;
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Callable;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.stereotype.Service;
+
+/**
+ * This class generates and retrieves the Deep Zoom tile pyramids of images.
+ * Tiles are generated in the background after an image is uploaded, and are
+ * stored as JPEG in the image bucket on Amazon S3 under
+ * "tiles/{key}/{level}/{col}_{row}.jpg", with the DZI descriptor in
+ * "tiles/{key}/image.dzi", where the key is the SHA-256 of the image as
+ * uploaded (see ImageContentServiceImpl.derivedKey()), so that images with
+ * the same contents share them, and they are deleted along with the
+ * contents. The descriptor is written last, so an image has a complete
+ * pyramid once it exists. The image metadata records whether it exists.
+ * <p/>
+ * The image is downloaded to a temporary file, and the finest level is cut
+ * from strips of its rows, so that large scans are never decoded at once.
+ * Sequential JPEG, as most scans are, is decoded once from top to bottom.
+ * Other images are read in at most MAX_REGION_STRIPS regions, each of which
+ * decodes the image from the top down to it, so they take up to about
+ * (MAX_REGION_STRIPS + 1) / 2 decodes of the whole image. The memory needed
+ * is reserved from the background budget of the ImageTranscoder.
+ */
+@Service
+public class ImageTileServiceImpl implements ImageTileService {
+
+    private static final Logger logger = Logger.getLogger(ImageTileServiceImpl.class);
+
+    /** Key prefix of the tile pyramids. */
+    public static final String TILES_PREFIX = "tiles/";
+
+    /** Maximum number of regions an image that is not sequential JPEG is read in. */
+    public static final int MAX_REGION_STRIPS = 8;
+
+    @Autowired
+    AmazonS3Client s3Client;
+
+    @Autowired
+    TaskExecutor backgroundTaskExecutor;
+
+    @Autowired
+    ImageContentServiceImpl imageContentService;
+
+    @Autowired
+    ImageTranscoder imageTranscoder;
+
+    private @Value("${s3.imagebucket}")
+    String imageBucket;
+
+    // Serializes generating the pyramids of the same contents.
+    private final Object[] locks = new Object[32];
+
+    public ImageTileServiceImpl() {
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    @Override
+    public void generateInBackground(final ImageMetadata image) {
+        try {
+            backgroundTaskExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    generate(image);
+                }
+            });
+        } catch (TaskRejectedException ex) {
+            logger.error("Could not schedule tile generation for image " + image.getFilename(), ex);
+        }
+    }
+
+    // Runs without a logged in user (background job).
+    @Override
+    public void generate(ImageMetadata image) {
+        String key = ImageContentServiceImpl.derivedKey(image);
+        synchronized (locks[(key.hashCode() & Integer.MAX_VALUE) % locks.length]) {
+            // Generated meanwhile for an image with the same contents.
+            if (exists(image)) {
+                imageContentService.setTiles(image, true);
+                logger.info("Not generating tiles for image " + image.getFilename() + ": they exist");
+                return;
+            }
+            build(image, key);
+        }
+    }
+
+    private void build(ImageMetadata image, final String key) {
+        long start = System.currentTimeMillis();
+        String filename = image.getFilename();
+        File file = null;
+        try {
+            // The encoded image is kept on disk, not in memory, while it is read.
+            file = File.createTempFile("tiles-" + key, null);
+            try (InputStream in = s3Client.getObject(imageBucket,
+                    ImageContentServiceImpl.sourceKey(image)).getObjectContent()) {
+                Files.copy(in, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            final Dimension size;
+            final boolean sequential;
+            try (InputStream in = new FileInputStream(file)) {
+                size = ImageOperations.readSize(in);
+            }
+            if (size == null) {
+                logger.error("Failed to generate tiles for image " + filename + ": not a readable image");
+                return;
+            }
+            try (InputStream in = new FileInputStream(file)) {
+                sequential = ImageOperations.isSequentialJpeg(in);
+            }
+            long estimate = ImageTilePyramid.estimateRowBytes(size.width, size.height);
+            if (!sequential) {
+                estimate += ImageTranscoder.estimateBytes(size.width, regionRows(size.width, size.height));
+            }
+            final File source = file;
+            final ImageTilePyramid pyramid = new ImageTilePyramid(size.width, size.height,
+                    new ImageTilePyramid.RowSource() {
+                        @Override
+                        public void read(ImageOperations.RowHandler handler) throws IOException {
+                            if (sequential) {
+                                try (InputStream in = new BufferedInputStream(new FileInputStream(source))) {
+                                    ImageOperations.readRows(in, handler);
+                                }
+                            } else {
+                                readRegions(source, size, handler);
+                            }
+                        }
+                    });
+            final int[] count = {0};
+            imageTranscoder.executeInBackground(estimate, new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    pyramid.build(new ImageTilePyramid.TileHandler() {
+                        @Override
+                        public void handle(int level, int col, int row, byte[] jpeg) throws IOException {
+                            put(tileKey(key, level, col, row), "image/jpeg", jpeg);
+                            count[0]++;
+                        }
+                    });
+                    return null;
+                }
+            });
+            put(descriptorKey(key), "application/xml", pyramid.getDescriptor().getBytes("UTF-8"));
+            imageContentService.setTiles(image, true);
+            logger.info("Generated " + count[0] + " tiles for image " + filename + " ("
+                    + (sequential ? "sequential" : "regions") + ") in "
+                    + (System.currentTimeMillis() - start) + " ms");
+        } catch (AmazonClientException | IOException | IllegalArgumentException ex) {
+            logger.error("Failed to generate tiles for image " + filename, ex);
+        } finally {
+            if (file != null && !file.delete()) {
+                logger.warn("Could not delete temporary file " + file);
+            }
+        }
+    }
+
+    // Rows of the regions an image that is not sequential JPEG is read in.
+    private static int regionRows(int width, int height) {
+        return Math.min(height, Math.max(ImageTilePyramid.stripRows(width, height),
+                (height + MAX_REGION_STRIPS - 1) / MAX_REGION_STRIPS));
+    }
+
+    // Reads the rows of an image region by region, each decoding the image
+    // from the top down to it.
+    private static void readRegions(File file, Dimension size, ImageOperations.RowHandler handler)
+            throws IOException {
+        int rows = regionRows(size.width, size.height);
+        int[] rgb = new int[size.width];
+        for (int top = 0; top < size.height; top += rows) {
+            int h = Math.min(rows, size.height - top);
+            BufferedImage region;
+            try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+                region = ImageOperations.readRegion(in, new Rectangle(0, top, size.width, h), 1);
+            }
+            for (int y = 0; y < h; y++) {
+                region.getRGB(0, y, size.width, 1, rgb, 0, size.width);
+                for (int x = 0; x < rgb.length; x++) {
+                    rgb[x] &= 0xffffff;
+                }
+                handler.handle(top + y, rgb);
+            }
+        }
+    }
+
+    // ROLE_ADMIN: ok.
+    // ROLE_CM:    ok.
+    // ROLE_USER:  ok.
+    @Override
+    public S3Resource findDescriptor(ImageMetadata image) {
+        return find(descriptorKey(ImageContentServiceImpl.derivedKey(image)), "application/xml");
+    }
+
+    // ROLE_ADMIN: ok.
+    // ROLE_CM:    ok.
+    // ROLE_USER:  ok.
+    @Override
+    public S3Resource findTile(ImageMetadata image, int level, int col, int row) {
+        return find(tileKey(ImageContentServiceImpl.derivedKey(image), level, col, row), "image/jpeg");
+    }
+
+    // Runs without a logged in user (background job).
+    @Override
+    public boolean exists(ImageMetadata image) {
+        String key = descriptorKey(ImageContentServiceImpl.derivedKey(image));
+        return S3Operations.getObjectMetadata(s3Client, imageBucket, key) != null;
+    }
+
+    // ROLE_ADMIN: ok.
+    // ROLE_CM:    ok.
+    // ROLE_USER:  nope.
+    @Override
+    public void delete(String filename) {
+        try {
+            int n = S3Operations.deleteObjects(s3Client, imageBucket, TILES_PREFIX + filename + "/");
+            logger.info("Deleted " + n + " tiles for image " + filename + " from Amazon S3");
+        } catch (AmazonClientException ex) {
+            logger.error("Error deleting tiles for image " + filename + " on Amazon S3.", ex);
+        }
+    }
+
+    private S3Resource find(String key, String contentType) {
+        try {
+            S3ObjectInputStream in = s3Client.getObject(imageBucket, key).getObjectContent();
+            byte[] bytes = IOUtils.toByteArray(in);
+            in.close();
+            return new S3Resource(contentType, key, bytes);
+        } catch (AmazonServiceException ex) {
+            if (ex.getStatusCode() != 404) {
+                logger.error("Failed to download " + key + " from Amazon S3", ex);
+            }
+            return null;
+        } catch (AmazonClientException | IOException ex) {
+            logger.error("Failed to download " + key + " from Amazon S3", ex);
+            return null;
+        }
+    }
+
+    private void put(String key, String contentType, byte[] bytes) {
+        ObjectMetadata om = new ObjectMetadata();
+        om.setContentType(contentType);
+        om.setContentLength(bytes.length);
+        s3Client.putObject(imageBucket, key, new ByteArrayInputStream(bytes), om);
+    }
+
+    private static String descriptorKey(String key) {
+        return TILES_PREFIX + key + "/image.dzi";
+    }
+
+    private static String tileKey(String key, int level, int col, int row) {
+        return TILES_PREFIX + key + "/" + level + "/" + col + "_" + row + ".jpg";
+    }
+
+}
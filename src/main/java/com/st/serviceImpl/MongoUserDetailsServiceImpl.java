@@ -10,6 +10,8 @@ import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.security.core.userdetails.UserDetailsService;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.stereotype.Service;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
 
 import com.st.model.MongoUserDetails;
 
@@ -30,6 +32,8 @@ public class MongoUserDetailsServiceImpl implements UserDetailsService {
 
     private final String DB_COLLECTION_NAME = "account";
 
+    private static final String CURRENT_USER_ATTRIBUTE = MongoUserDetailsServiceImpl.class.getName() + ".currentUser";
+
     private boolean isProperlyLoaded = false;
 
     @Override
@@ -48,9 +52,28 @@ public class MongoUserDetailsServiceImpl implements UserDetailsService {
         return result;
     }
 
+    /**
+     * Returns the user of the current request. The user is read once per
+     * request and kept as a request attribute, since the services check it
+     * on every call.
+     * @return the user.
+     */
     public MongoUserDetails loadCurrentUser() {
         Authentication a = SecurityContextHolder.getContext().getAuthentication();
-        return loadUserByUsername(a.getName());
+        RequestAttributes request = RequestContextHolder.getRequestAttributes();
+        if (request != null) {
+            Object cached = request.getAttribute(CURRENT_USER_ATTRIBUTE, RequestAttributes.SCOPE_REQUEST);
+            if (cached instanceof MongoUserDetails
+                    && ((MongoUserDetails) cached).getUsername().equals(a.getName())) {
+                isProperlyLoaded = true;
+                return (MongoUserDetails) cached;
+            }
+        }
+        MongoUserDetails user = loadUserByUsername(a.getName());
+        if (request != null) {
+            request.setAttribute(CURRENT_USER_ATTRIBUTE, user, RequestAttributes.SCOPE_REQUEST);
+        }
+        return user;
     }
 
     public boolean isProperlyLoaded() {
@@ -1,6 +1,9 @@
 package com.st.serviceImpl;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Collection;
 import java.util.List;
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -8,9 +11,15 @@ import org.springframework.data.mongodb.core.MongoOperations;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.stereotype.Service;
+import com.st.model.ChangeEvent;
 import com.st.model.MongoUserDetails;
 import com.st.model.Selection;
 import com.st.service.SelectionService;
+import com.st.util.FieldProjection;
+import com.st.util.KeysetPage;
+import com.st.util.ModelDocumentHandler;
+import com.st.util.ModelHandler;
+import com.st.util.PageQuery;
 
 /**
  * This class implements the store/retrieve logic to MongoDB for the data model
@@ -35,6 +44,9 @@ public class SelectionServiceImpl implements SelectionService {
     @Autowired
     DatasetServiceImpl datasetService;
 
+    @Autowired
+    ChangeFeedServiceImpl changeFeedService;
+
     // ROLE_ADMIN: all.
     // ROLE_CM:    own account.
     // ROLE_USER:  own account.
@@ -45,6 +57,20 @@ public class SelectionServiceImpl implements SelectionService {
         return checkCredentials(selection);
     }
 
+    // ROLE_ADMIN: all.
+    // ROLE_CM:    own account.
+    // ROLE_USER:  own account.
+    @Override
+    public List<Selection> findByIds(Collection<String> ids) {
+        MongoUserDetails currentUser = customUserDetailsService.loadCurrentUser();
+        Query query = new Query(Criteria.where("id").in(ids));
+        if (!currentUser.isAdmin()) {
+            // CM or USER role can only see the selections they made
+            query.addCriteria(Criteria.where("account_id").is(currentUser.getId()));
+        }
+        return mongoTemplateExperimentDB.find(query, Selection.class);
+    }
+
     // ROLE_ADMIN: all.
     // ROLE_CM:    own account.
     // ROLE_USER:  own account.
@@ -60,21 +86,44 @@ public class SelectionServiceImpl implements SelectionService {
     // ROLE_USER:  own account.
     @Override
     public List<Selection> list() {
-        // get all the selections
-        List<Selection> selections = mongoTemplateExperimentDB.findAll(Selection.class);
-        // Filter based on user.
+        return list(FieldProjection.all());
+    }
+
+    // ROLE_ADMIN: all.
+    // ROLE_CM:    own account.
+    // ROLE_USER:  own account.
+    @Override
+    public List<Selection> list(FieldProjection projection) {
+        return list(projection, PageQuery.unbounded()).getItems();
+    }
+
+    // ROLE_ADMIN: all.
+    // ROLE_CM:    own account.
+    // ROLE_USER:  own account.
+    @Override
+    public KeysetPage<Selection> list(FieldProjection projection, PageQuery page) {
         MongoUserDetails currentUser = customUserDetailsService.loadCurrentUser();
-        if (!currentUser.isAdmin()) {
-            // CM or USER role can only see the selections they made
-            ArrayList<Selection> filtered = new ArrayList<>(selections.size());
-            for (Selection sel : selections) {
-                if (sel.getAccount_id().equals(currentUser.getId())) {
-                    filtered.add(sel);
-                }
-            }
-            return filtered;
-        }
-        return selections;
+        // CM or USER role can only see the selections they made
+        Query query = currentUser.isAdmin() ? new Query()
+                : new Query(Criteria.where("account_id").is(currentUser.getId()));
+        List<Selection> selections = mongoTemplateExperimentDB.find(
+                selectionQuery(query, projection, page), Selection.class);
+        return page.toPage(selections, mongoTemplateExperimentDB.getConverter());
+    }
+
+    // ROLE_ADMIN: all.
+    // ROLE_CM:    own account.
+    // ROLE_USER:  own account.
+    @Override
+    public boolean stream(FieldProjection projection, ModelHandler<Selection> handler) {
+        MongoUserDetails currentUser = customUserDetailsService.loadCurrentUser();
+        // CM or USER role can only see the selections they made
+        Query query = currentUser.isAdmin() ? new Query()
+                : new Query(Criteria.where("account_id").is(currentUser.getId()));
+        mongoTemplateExperimentDB.executeQuery(selectionQuery(query, projection, PageQuery.unbounded()),
+                mongoTemplateExperimentDB.getCollectionName(Selection.class),
+                new ModelDocumentHandler<>(Selection.class, mongoTemplateExperimentDB.getConverter(), handler));
+        return true;
     }
 
     // ROLE_ADMIN: all.
@@ -86,6 +135,8 @@ public class SelectionServiceImpl implements SelectionService {
         if (selection != null) {
             mongoTemplateExperimentDB.insert(selection);
             logger.info("Added selection " + selection.getId() + " to MongoDB.");
+            changeFeedService.publish(ChangeEvent.SELECTION, ChangeEvent.ADDED, selection.getId(),
+                    Collections.singleton(selection.getAccount_id()));
         }
         return selection;
     }
@@ -99,6 +150,8 @@ public class SelectionServiceImpl implements SelectionService {
         if (selection != null) {
             mongoTemplateExperimentDB.save(selection);
             logger.info("Updated selection " + selection.getId() + " to MongoDB.");
+            changeFeedService.publish(ChangeEvent.SELECTION, ChangeEvent.UPDATED, selection.getId(),
+                    Collections.singleton(selection.getAccount_id()));
         }
     }
 
@@ -111,6 +164,8 @@ public class SelectionServiceImpl implements SelectionService {
         if (selection != null) {
             mongoTemplateExperimentDB.remove(selection);
             logger.info("Deleted account " + id + " from MongoDB.");
+            changeFeedService.publish(ChangeEvent.SELECTION, ChangeEvent.DELETED, id,
+                    Collections.singleton(selection.getAccount_id()));
         }
     }
 
@@ -119,12 +174,29 @@ public class SelectionServiceImpl implements SelectionService {
     // ROLE_USER:  own account.
     @Override
     public List<Selection> findByAccount(String accountId) {
+        return findByAccount(accountId, FieldProjection.all());
+    }
+
+    // ROLE_ADMIN: all.
+    // ROLE_CM:    own account.
+    // ROLE_USER:  own account.
+    @Override
+    public List<Selection> findByAccount(String accountId, FieldProjection projection) {
+        return findByAccount(accountId, projection, PageQuery.unbounded()).getItems();
+    }
+
+    // ROLE_ADMIN: all.
+    // ROLE_CM:    own account.
+    // ROLE_USER:  own account.
+    @Override
+    public KeysetPage<Selection> findByAccount(String accountId, FieldProjection projection, PageQuery page) {
         MongoUserDetails currentUser = customUserDetailsService.loadCurrentUser();
         if (currentUser.isAdmin() || currentUser.getId().equals(accountId)) {
-            return mongoTemplateExperimentDB.find(
-                    new Query(Criteria.where("account_id").is(accountId)), Selection.class);
+            List<Selection> selections = mongoTemplateExperimentDB.find(selectionQuery(
+                    new Query(Criteria.where("account_id").is(accountId)), projection, page), Selection.class);
+            return page.toPage(selections, mongoTemplateExperimentDB.getConverter());
         }
-        return null;
+        return new KeysetPage<>(null, null);
     }
 
     // ROLE_ADMIN: all.
@@ -132,14 +204,83 @@ public class SelectionServiceImpl implements SelectionService {
     // ROLE_USER:  own account.
     @Override
     public List<Selection> findByDataset(String datasetId) {
+        return findByDataset(datasetId, FieldProjection.all());
+    }
+
+    // ROLE_ADMIN: all.
+    // ROLE_CM:    own account.
+    // ROLE_USER:  own account.
+    @Override
+    public List<Selection> findByDataset(String datasetId, FieldProjection projection) {
+        return findByDataset(datasetId, projection, PageQuery.unbounded()).getItems();
+    }
+
+    // ROLE_ADMIN: all.
+    // ROLE_CM:    own account.
+    // ROLE_USER:  own account.
+    @Override
+    public KeysetPage<Selection> findByDataset(String datasetId, FieldProjection projection, PageQuery page) {
         MongoUserDetails currentUser = customUserDetailsService.loadCurrentUser();
+        Query query;
         if (currentUser.isAdmin()) {
-            return mongoTemplateExperimentDB.find(
-                    new Query(Criteria.where("dataset_id").is(datasetId)), Selection.class);
+            query = new Query(Criteria.where("dataset_id").is(datasetId));
+        } else {
+            // CM or USER role can only see the selections they made
+            query = new Query(Criteria.where("account_id").is(currentUser.getId()));
         }
-        // CM or USER role can only see the selections they made
-        return mongoTemplateExperimentDB.find(
-                new Query(Criteria.where("account_id").is(currentUser.getId())), Selection.class);
+        List<Selection> selections = mongoTemplateExperimentDB.find(
+                selectionQuery(query, projection, page), Selection.class);
+        return page.toPage(selections, mongoTemplateExperimentDB.getConverter());
+    }
+
+    // ROLE_ADMIN: all.
+    // ROLE_CM:    own account.
+    // ROLE_USER:  own account.
+    @Override
+    public List<String[]> findGeneHits(String id, boolean descending) {
+        Selection selection = find(id);
+        if (selection == null) {
+            return null;
+        }
+        List<String[]> geneHits = new ArrayList<>(selection.getGene_hits());
+        final int sign = descending ? -1 : 1;
+        Collections.sort(geneHits, new Comparator<String[]>() {
+            @Override
+            public int compare(String[] a, String[] b) {
+                Double x = hits(a);
+                Double y = hits(b);
+                if (x == null || y == null) {
+                    // Rows without numeric hits come last in both directions.
+                    return (x == null ? 1 : 0) - (y == null ? 1 : 0);
+                }
+                return sign * Double.compare(x, y);
+            }
+        });
+        return geneHits;
+    }
+
+    // Hits of a gene hits row, or null if the row has no numeric hits.
+    private static Double hits(String[] row) {
+        if (row == null || row.length < 2 || row[1] == null) {
+            return null;
+        }
+        try {
+            double hits = Double.parseDouble(row[1]);
+            return Double.isNaN(hits) ? null : hits;
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    // Projects the selection fields needed for filtering and paging, and the
+    // gene hits in all stored forms.
+    private static Query selectionQuery(Query query, FieldProjection projection, PageQuery page) {
+        if (projection.includes("gene_hits")) {
+            return page.apply(projection.apply(query, "enabled", "dataset_id", "account_id",
+                    "gene_hits_packed", page.getSort()));
+        }
+        return page.apply(projection.exclude("gene_hits_packed").apply(query,
+                "enabled", "dataset_id", "account_id", page.getSort()));
     }
 
 
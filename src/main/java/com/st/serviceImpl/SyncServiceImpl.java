@@ -0,0 +1,147 @@
+package com.st.serviceImpl;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.st.component.S3ListingCache;
+import com.st.model.Chip;
+import com.st.model.Dataset;
+import com.st.model.DatasetInfo;
+import com.st.model.ImageAlignment;
+import com.st.model.ImageMetadata;
+import com.st.model.MongoUserDetails;
+import com.st.model.Selection;
+import com.st.model.SyncManifest;
+import com.st.model.SyncManifestEntry;
+import com.st.service.SyncService;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import org.joda.time.DateTime;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+
+/**
+ * This class composes the sync manifest. Only the IDs, references and last
+ * modified times of the documents are read from MongoDB, as is the metadata
+ * of images stored by content. Older images not moved yet and the features
+ * files are taken from the cached bucket listings, so the manifest
+ * costs a few small queries however many resources there are.
+ */
+@Service
+public class SyncServiceImpl implements SyncService {
+
+    @Autowired
+    MongoUserDetailsServiceImpl customUserDetailsService;
+
+    @Autowired
+    MongoOperations mongoTemplateAnalysisDB;
+
+    @Autowired
+    MongoOperations mongoTemplateUserDB;
+
+    @Autowired
+    MongoOperations mongoTemplateExperimentDB;
+
+    @Autowired
+    S3ListingCache s3ListingCache;
+
+    @Autowired
+    ImageServiceImpl imageService;
+
+    private @Value("${s3.imagebucket}")
+    String imageBucket;
+
+    private @Value("${s3.featuresbucket}")
+    String featuresBucket;
+
+    // ROLE_ADMIN: all.
+    // ROLE_CM:    granted datasets, own selections, all alignments, chips and images.
+    // ROLE_USER:  granted datasets, own selections, and the alignments, chips and images of the datasets.
+    @Override
+    public SyncManifest getManifest() {
+        MongoUserDetails currentUser = customUserDetailsService.loadCurrentUser();
+        boolean all = currentUser.isAdmin() || currentUser.isContentManager();
+        SyncManifest manifest = new SyncManifest();
+
+        Query query = currentUser.isAdmin() ? new Query()
+                : new Query(Criteria.where("_id").in(grantedIds(currentUser.getId())));
+        query.fields().include("image_alignment_id").include("last_modified");
+        Set<String> imalIds = new HashSet<>();
+        for (Dataset ds : mongoTemplateAnalysisDB.find(query, Dataset.class)) {
+            manifest.getDatasets().put(ds.getId(), entry(ds.getLast_modified()));
+            imalIds.add(ds.getImage_alignment_id());
+        }
+
+        query = all ? new Query() : new Query(Criteria.where("_id").in(imalIds));
+        query.fields().include("chip_id").include("figure_red").include("figure_blue").include("last_modified");
+        Set<String> chipIds = new HashSet<>();
+        Set<String> figures = new HashSet<>();
+        for (ImageAlignment imal : mongoTemplateAnalysisDB.find(query, ImageAlignment.class)) {
+            manifest.getImage_alignments().put(imal.getId(), entry(imal.getLast_modified()));
+            chipIds.add(imal.getChip_id());
+            figures.add(imal.getFigure_red());
+            figures.add(imal.getFigure_blue());
+        }
+
+        query = all ? new Query() : new Query(Criteria.where("_id").in(chipIds));
+        query.fields().include("last_modified");
+        for (Chip chip : mongoTemplateAnalysisDB.find(query, Chip.class)) {
+            manifest.getChips().put(chip.getId(), entry(chip.getLast_modified()));
+        }
+
+        query = currentUser.isAdmin() ? new Query()
+                : new Query(Criteria.where("account_id").is(currentUser.getId()));
+        query.fields().include("last_modified");
+        for (Selection selection : mongoTemplateExperimentDB.find(query, Selection.class)) {
+            manifest.getSelections().put(selection.getId(), entry(selection.getLast_modified()));
+        }
+
+        query = all ? new Query() : new Query(Criteria.where("_id").in(figures));
+        query.fields().include("lastModified").include("etag");
+        for (ImageMetadata im : mongoTemplateAnalysisDB.find(query, ImageMetadata.class)) {
+            manifest.getImages().put(im.getFilename(), new SyncManifestEntry(im.getLastModified(), im.getEtag()));
+        }
+        if (imageService.hasLegacyImages()) {
+            for (S3ObjectSummary o : s3ListingCache.listTopLevelObjects(imageBucket).values()) {
+                if ((all || figures.contains(o.getKey())) && !manifest.getImages().containsKey(o.getKey())) {
+                    manifest.getImages().put(o.getKey(), entry(o));
+                }
+            }
+        }
+
+        Map<String, SyncManifestEntry> datasets = manifest.getDatasets();
+        for (S3ObjectSummary o : s3ListingCache.listTopLevelObjects(featuresBucket).values()) {
+            String fn = o.getKey();
+            if (fn.endsWith(".gz") && datasets.containsKey(fn.substring(0, fn.length() - 3))) {
+                manifest.getFeatures().put(fn.substring(0, fn.length() - 3), entry(o));
+            }
+        }
+        return manifest;
+    }
+
+    // Documents are versioned by their last modified time, opaquely (see
+    // SyncManifestEntry).
+    private static SyncManifestEntry entry(DateTime lastModified) {
+        long millis = (lastModified == null) ? 0 : lastModified.getMillis();
+        return new SyncManifestEntry(lastModified, "\"" + Long.toHexString(millis) + "\"");
+    }
+
+    // S3 objects by their own ETag, which is the MD5 of the content, opaquely.
+    private static SyncManifestEntry entry(S3ObjectSummary o) {
+        return new SyncManifestEntry(new DateTime(o.getLastModified()), "\"" + o.getETag() + "\"");
+    }
+
+    private Set<String> grantedIds(String accountId) {
+        Query query = new Query(Criteria.where("account_id").is(accountId));
+        query.fields().include("dataset_id");
+        Set<String> ids = new HashSet<>();
+        for (DatasetInfo dsi : mongoTemplateUserDB.find(query, DatasetInfo.class)) {
+            ids.add(dsi.getDataset_id());
+        }
+        return ids;
+    }
+
+}
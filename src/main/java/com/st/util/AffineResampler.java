@@ -0,0 +1,143 @@
+package com.st.util;
+
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Resamples an image through an affine transform, with bilinear
+ * interpolation. The output is split into tiles that are resampled in
+ * parallel on a fork-join pool. Each output pixel is mapped back to the
+ * source, so every output pixel is written exactly once; those that map
+ * outside the source are black.
+ */
+public class AffineResampler {
+
+    /** Output pixels of a tile, below which it is not split further. */
+    public static final int TILE_PIXELS = 128 * 128;
+
+    /**
+     * Resamples an image.
+     * @param pool the pool to run the tiles on.
+     * @param src the source image.
+     * @param outToSrc the transform from output to source pixel coordinates,
+     * where pixel (x, y) covers [x, x + 1) x [y, y + 1).
+     * @param width the output width.
+     * @param height the output height.
+     * @return the output image, as TYPE_INT_RGB.
+     */
+    public static BufferedImage resample(ForkJoinPool pool, BufferedImage src, AffineTransform outToSrc,
+            int width, int height) {
+        int[] srcPixels = rgbPixels(src);
+        BufferedImage out = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] outPixels = ((DataBufferInt) out.getRaster().getDataBuffer()).getData();
+        pool.invoke(new Tile(srcPixels, src.getWidth(), src.getHeight(), outToSrc,
+                outPixels, width, 0, 0, width, height));
+        return out;
+    }
+
+    // The pixels of an image as RGB, without a copy if it is TYPE_INT_RGB already.
+    private static int[] rgbPixels(BufferedImage img) {
+        if (img.getType() == BufferedImage.TYPE_INT_RGB) {
+            return ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+        }
+        return img.getRGB(0, 0, img.getWidth(), img.getHeight(), null, 0, img.getWidth());
+    }
+
+    private static class Tile extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int[] src;
+        private final int srcWidth;
+        private final int srcHeight;
+        private final AffineTransform outToSrc;
+        private final int[] out;
+        private final int outWidth;
+        private final int x0;
+        private final int y0;
+        private final int x1;
+        private final int y1;
+
+        Tile(int[] src, int srcWidth, int srcHeight, AffineTransform outToSrc,
+                int[] out, int outWidth, int x0, int y0, int x1, int y1) {
+            this.src = src;
+            this.srcWidth = srcWidth;
+            this.srcHeight = srcHeight;
+            this.outToSrc = outToSrc;
+            this.out = out;
+            this.outWidth = outWidth;
+            this.x0 = x0;
+            this.y0 = y0;
+            this.x1 = x1;
+            this.y1 = y1;
+        }
+
+        @Override
+        protected void compute() {
+            int w = x1 - x0;
+            int h = y1 - y0;
+            if ((long) w * h <= TILE_PIXELS) {
+                resample();
+            } else if (w >= h) {
+                int mid = x0 + w / 2;
+                invokeAll(new Tile(src, srcWidth, srcHeight, outToSrc, out, outWidth, x0, y0, mid, y1),
+                        new Tile(src, srcWidth, srcHeight, outToSrc, out, outWidth, mid, y0, x1, y1));
+            } else {
+                int mid = y0 + h / 2;
+                invokeAll(new Tile(src, srcWidth, srcHeight, outToSrc, out, outWidth, x0, y0, x1, mid),
+                        new Tile(src, srcWidth, srcHeight, outToSrc, out, outWidth, x0, mid, x1, y1));
+            }
+        }
+
+        private void resample() {
+            // The source position moves by (dx, dy) per output column.
+            double dx = outToSrc.getScaleX();
+            double dy = outToSrc.getShearY();
+            double[] p = new double[2];
+            for (int y = y0; y < y1; y++) {
+                // Output pixel centres to source pixel centres.
+                p[0] = x0 + 0.5;
+                p[1] = y + 0.5;
+                outToSrc.transform(p, 0, p, 0, 1);
+                double sx = p[0] - 0.5;
+                double sy = p[1] - 0.5;
+                int row = y * outWidth;
+                for (int x = x0; x < x1; x++) {
+                    out[row + x] = sample(sx, sy);
+                    sx += dx;
+                    sy += dy;
+                }
+            }
+        }
+
+        private int sample(double sx, double sy) {
+            if (sx < -0.5 || sy < -0.5 || sx > srcWidth - 0.5 || sy > srcHeight - 0.5) {
+                return 0;
+            }
+            int ix = (int) Math.floor(sx);
+            int iy = (int) Math.floor(sy);
+            double fx = sx - ix;
+            double fy = sy - iy;
+            // Edge pixels are extended by half a pixel.
+            int xa = Math.max(ix, 0);
+            int xb = Math.min(ix + 1, srcWidth - 1);
+            int ya = Math.max(iy, 0) * srcWidth;
+            int yb = Math.min(iy + 1, srcHeight - 1) * srcWidth;
+            int p00 = src[ya + xa];
+            int p10 = src[ya + xb];
+            int p01 = src[yb + xa];
+            int p11 = src[yb + xb];
+            int rgb = 0;
+            for (int shift = 16; shift >= 0; shift -= 8) {
+                double top = ((p00 >> shift) & 0xff) * (1 - fx) + ((p10 >> shift) & 0xff) * fx;
+                double bottom = ((p01 >> shift) & 0xff) * (1 - fx) + ((p11 >> shift) & 0xff) * fx;
+                rgb |= ((int) (top * (1 - fy) + bottom * fy + 0.5)) << shift;
+            }
+            return rgb;
+        }
+    }
+
+}
@@ -0,0 +1,72 @@
+package com.st.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import org.springframework.security.crypto.codec.Base64;
+
+/**
+ * Encodes what is written to it as Base64 into another stream, one chunk at
+ * a time, so that large files can be embedded in JSON without holding them
+ * in memory. Chunks are a multiple of 3 bytes, so that their encodings join
+ * up without padding. Closing writes the padded end, but does not close the
+ * other stream.
+ */
+public class Base64EncodingOutputStream extends FilterOutputStream {
+
+    private static final int CHUNK_BYTES = 3 * 16 * 1024;
+
+    private final byte[] chunk = new byte[CHUNK_BYTES];
+
+    private int length = 0;
+
+    /**
+     * Constructor.
+     * @param out the stream of the encoding, which is not closed.
+     */
+    public Base64EncodingOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        chunk[length++] = (byte) b;
+        if (length == CHUNK_BYTES) {
+            writeChunk();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, CHUNK_BYTES - length);
+            System.arraycopy(b, off, chunk, length, n);
+            length += n;
+            off += n;
+            len -= n;
+            if (length == CHUNK_BYTES) {
+                writeChunk();
+            }
+        }
+    }
+
+    /**
+     * Writes the encoding of the bytes left, padded, and flushes.
+     * @throws IOException on failure to write.
+     */
+    @Override
+    public void close() throws IOException {
+        writeChunk();
+        out.flush();
+    }
+
+    private void writeChunk() throws IOException {
+        if (length > 0) {
+            byte[] bytes = new byte[length];
+            System.arraycopy(chunk, 0, bytes, 0, length);
+            out.write(Base64.encode(bytes));
+            length = 0;
+        }
+    }
+
+}
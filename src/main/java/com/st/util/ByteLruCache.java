@@ -0,0 +1,71 @@
+package com.st.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-memory least recently used cache of byte arrays, bounded by their total
+ * size. Thread-safe.
+ */
+public class ByteLruCache {
+
+    private final long maxBytes;
+
+    private long bytes = 0;
+
+    // In access order, least recently used first.
+    private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Constructor.
+     * @param maxBytes the total size of the entries kept.
+     */
+    public ByteLruCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns an entry, which becomes the most recently used.
+     * @param key the key.
+     * @return the bytes, or null if not cached.
+     */
+    public synchronized byte[] get(String key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Adds an entry, evicting the least recently used ones to make room.
+     * Entries larger than the cache are not kept.
+     * @param key the key.
+     * @param value the bytes, which must not be modified afterwards.
+     */
+    public synchronized void put(String key, byte[] value) {
+        if (value.length > maxBytes) {
+            return;
+        }
+        byte[] old = entries.put(key, value);
+        bytes += value.length - (old == null ? 0 : old.length);
+        Iterator<byte[]> it = entries.values().iterator();
+        while (bytes > maxBytes) {
+            bytes -= it.next().length;
+            it.remove();
+        }
+    }
+
+    /**
+     * Removes all entries whose keys start with a prefix.
+     * @param prefix the prefix.
+     */
+    public synchronized void removePrefix(String prefix) {
+        Iterator<Map.Entry<String, byte[]>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, byte[]> e = it.next();
+            if (e.getKey().startsWith(prefix)) {
+                bytes -= e.getValue().length;
+                it.remove();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,207 @@
+package com.st.util;
+
+import com.st.model.Feature;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+
+/**
+ * Converts a features file into a sparse gene-by-spot matrix of hits, with
+ * genes as rows and spots (barcodes) as columns, both in sorted order.
+ * <p/>
+ * The conversion makes two streaming passes over the gzipped features: the
+ * first collects the genes, spots and number of non-zero entries, and the
+ * second writes the entries. The dense matrix is never built. Supported
+ * output formats are MatrixMarket coordinate text and CSR as JSON (the
+ * indptr, indices and data arrays of e.g. scipy.sparse.csr_matrix).
+ */
+public class FeaturesMatrixWriter {
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    private final Set<String> geneSubset;
+    private final Set<String> spotSubset;
+
+    // Collected in the first pass.
+    private final TreeMap<String, int[]> genes = new TreeMap<>();
+    private final TreeMap<String, double[]> spots = new TreeMap<>();
+    private long nnz = 0;
+
+    // Row and column indices, assigned in sorted order after the first pass.
+    private final Map<String, Integer> geneIndex = new HashMap<>();
+    private final Map<String, Integer> spotIndex = new HashMap<>();
+
+    /**
+     * Constructor.
+     * @param geneSubset the genes to include, or null for all.
+     * @param spotSubset the barcodes of the spots to include, or null for all.
+     */
+    public FeaturesMatrixWriter(Set<String> geneSubset, Set<String> spotSubset) {
+        this.geneSubset = geneSubset;
+        this.spotSubset = spotSubset;
+    }
+
+    /**
+     * Writes the matrix in MatrixMarket coordinate format. Gene and spot
+     * names are written as comment lines ("%gene row name" and
+     * "%spot column barcode x y") before the size line. Indices are 1-based.
+     * @param in the gzipped features, read twice, so it must support mark and
+     * reset like the buffered streams returned by FeaturesService.find().
+     * @param out the stream to write to.
+     * @throws IOException on malformed input or write errors.
+     */
+    public void writeMatrixMarket(InputStream in, OutputStream out) throws IOException {
+        collect(in);
+        Writer w = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), 64 * 1024);
+        w.write("%%MatrixMarket matrix coordinate integer general\n");
+        for (String gene : genes.keySet()) {
+            w.write("%gene " + geneIndex.get(gene) + " " + gene + "\n");
+        }
+        for (Map.Entry<String, double[]> spot : spots.entrySet()) {
+            w.write("%spot " + spotIndex.get(spot.getKey()) + " " + spot.getKey() + " "
+                    + formatCoordinate(spot.getValue()[0]) + " "
+                    + formatCoordinate(spot.getValue()[1]) + "\n");
+        }
+        w.write(genes.size() + " " + spots.size() + " " + nnz + "\n");
+        try (FeaturesReader reader = FeaturesReader.fromGzip(in)) {
+            Feature feature;
+            while ((feature = reader.next()) != null) {
+                if (included(feature)) {
+                    w.write(geneIndex.get(feature.getGene()) + " "
+                            + spotIndex.get(feature.getBarcode()) + " " + feature.getHits() + "\n");
+                }
+            }
+        }
+        w.flush();
+    }
+
+    /**
+     * Writes the matrix in CSR format as JSON: shape, genes, spots (barcode,
+     * x, y), indptr, indices and data. Indices are 0-based and sorted within
+     * each row. Only the non-zero entries are held in memory.
+     * @param in the gzipped features, read twice, so it must support mark and
+     * reset like the buffered streams returned by FeaturesService.find().
+     * @param out the stream to write to.
+     * @throws IOException on malformed input or write errors.
+     */
+    public void writeCsr(InputStream in, OutputStream out) throws IOException {
+        collect(in);
+        // Row pointers from the per gene counts, then a counting sort of the entries into rows.
+        int[] indptr = new int[genes.size() + 1];
+        int row = 0;
+        for (int[] count : genes.values()) {
+            indptr[row + 1] = indptr[row] + count[0];
+            row++;
+        }
+        int[] next = Arrays.copyOf(indptr, genes.size());
+        long[] entries = new long[(int) nnz];
+        try (FeaturesReader reader = FeaturesReader.fromGzip(in)) {
+            Feature feature;
+            while ((feature = reader.next()) != null) {
+                if (included(feature)) {
+                    int r = geneIndex.get(feature.getGene()) - 1;
+                    long column = spotIndex.get(feature.getBarcode()) - 1;
+                    entries[next[r]++] = (column << 32) | (feature.getHits() & 0xffffffffL);
+                }
+            }
+        }
+        for (int r = 0; r < genes.size(); r++) {
+            Arrays.sort(entries, indptr[r], indptr[r + 1]);
+        }
+
+        JsonGenerator gen = jsonFactory.createJsonGenerator(out, JsonEncoding.UTF8);
+        gen.writeStartObject();
+        gen.writeArrayFieldStart("shape");
+        gen.writeNumber(genes.size());
+        gen.writeNumber(spots.size());
+        gen.writeEndArray();
+        gen.writeArrayFieldStart("genes");
+        for (String gene : genes.keySet()) {
+            gen.writeString(gene);
+        }
+        gen.writeEndArray();
+        gen.writeArrayFieldStart("spots");
+        for (Map.Entry<String, double[]> spot : spots.entrySet()) {
+            gen.writeStartObject();
+            gen.writeStringField("barcode", spot.getKey());
+            gen.writeNumberField("x", spot.getValue()[0]);
+            gen.writeNumberField("y", spot.getValue()[1]);
+            gen.writeEndObject();
+        }
+        gen.writeEndArray();
+        gen.writeArrayFieldStart("indptr");
+        for (int p : indptr) {
+            gen.writeNumber(p);
+        }
+        gen.writeEndArray();
+        gen.writeArrayFieldStart("indices");
+        for (long e : entries) {
+            gen.writeNumber((int) (e >>> 32));
+        }
+        gen.writeEndArray();
+        gen.writeArrayFieldStart("data");
+        for (long e : entries) {
+            gen.writeNumber((int) e);
+        }
+        gen.writeEndArray();
+        gen.writeEndObject();
+        gen.flush();
+    }
+
+    // First pass: collects genes, spots and entry counts, then assigns indices.
+    private void collect(InputStream in) throws IOException {
+        in.mark(Integer.MAX_VALUE);
+        try (FeaturesReader reader = FeaturesReader.fromGzip(in)) {
+            Feature feature;
+            while ((feature = reader.next()) != null) {
+                if (!included(feature)) {
+                    continue;
+                }
+                int[] count = genes.get(feature.getGene());
+                if (count == null) {
+                    genes.put(feature.getGene(), new int[] {1});
+                } else {
+                    count[0]++;
+                }
+                if (!spots.containsKey(feature.getBarcode())) {
+                    spots.put(feature.getBarcode(), new double[] {feature.getX(), feature.getY()});
+                }
+                nnz++;
+            }
+        }
+        if (nnz > Integer.MAX_VALUE) {
+            throw new IOException("Too many features for a sparse matrix: " + nnz);
+        }
+        in.reset();
+        int i = 1;
+        for (String gene : genes.keySet()) {
+            geneIndex.put(gene, i++);
+        }
+        i = 1;
+        for (String spot : spots.keySet()) {
+            spotIndex.put(spot, i++);
+        }
+    }
+
+    private boolean included(Feature feature) {
+        return feature.getGene() != null && feature.getBarcode() != null
+                && (geneSubset == null || geneSubset.contains(feature.getGene()))
+                && (spotSubset == null || spotSubset.contains(feature.getBarcode()));
+    }
+
+    private static String formatCoordinate(double value) {
+        return (value == Math.rint(value)) ? Long.toString((long) value) : Double.toString(value);
+    }
+
+}
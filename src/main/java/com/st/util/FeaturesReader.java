@@ -0,0 +1,127 @@
+package com.st.util;
+
+import com.st.model.Feature;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.map.MappingJsonFactory;
+
+/**
+ * Streaming reader for features files. A features file is a JSON array of
+ * feature objects (barcode, gene, hits, x, y). Features are parsed one at a
+ * time, so that files of any size can be processed in constant memory. Other
+ * fields of a feature are kept as JSON trees, so that files can be rewritten
+ * without losing them.
+ */
+public class FeaturesReader implements Closeable {
+
+    // Mapping, to read the other fields as trees.
+    private static final JsonFactory jsonFactory = new MappingJsonFactory();
+
+    private final JsonParser parser;
+
+    private Map<String, JsonNode> otherFields = new LinkedHashMap<>();
+
+    /**
+     * Constructor.
+     * @param in the uncompressed JSON stream.
+     * @throws IOException if the stream does not start with a JSON array.
+     */
+    public FeaturesReader(InputStream in) throws IOException {
+        this.parser = jsonFactory.createJsonParser(in);
+        if (parser.nextToken() != JsonToken.START_ARRAY) {
+            throw new JsonParseException("Features file must be a JSON array",
+                    parser.getCurrentLocation());
+        }
+    }
+
+    /**
+     * Returns a reader of a gzipped features file.
+     * @param in the gzipped JSON stream.
+     * @return the reader.
+     * @throws IOException on malformed input.
+     */
+    public static FeaturesReader fromGzip(InputStream in) throws IOException {
+        return new FeaturesReader(new GZIPInputStream(in, 64 * 1024));
+    }
+
+    /**
+     * Reads the next feature.
+     * @return the feature, or null when the end of the array is reached.
+     * @throws IOException on malformed input.
+     */
+    public Feature next() throws IOException {
+        JsonToken token = parser.nextToken();
+        if (token == null || token == JsonToken.END_ARRAY) {
+            return null;
+        }
+        if (token != JsonToken.START_OBJECT) {
+            throw new JsonParseException("Features must be JSON objects",
+                    parser.getCurrentLocation());
+        }
+        Feature feature = new Feature();
+        otherFields = new LinkedHashMap<>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if (value == JsonToken.VALUE_NULL && isFeatureField(field)) {
+                continue;
+            }
+            switch (field) {
+                case "barcode":
+                    feature.setBarcode(parser.getText());
+                    break;
+                case "gene":
+                    feature.setGene(parser.getText());
+                    break;
+                case "hits":
+                    feature.setHits(parser.getValueAsInt());
+                    break;
+                case "x":
+                    feature.setX(parser.getValueAsDouble());
+                    break;
+                case "y":
+                    feature.setY(parser.getValueAsDouble());
+                    break;
+                default:
+                    otherFields.put(field, parser.<JsonNode>readValueAsTree());
+            }
+        }
+        return feature;
+    }
+
+    /**
+     * Returns the fields of the last feature read other than those of Feature.
+     * @return the fields, in the order read.
+     */
+    public Map<String, JsonNode> getOtherFields() {
+        return otherFields;
+    }
+
+    private static boolean isFeatureField(String field) {
+        switch (field) {
+            case "barcode":
+            case "gene":
+            case "hits":
+            case "x":
+            case "y":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        parser.close();
+    }
+
+}
@@ -0,0 +1,139 @@
+package com.st.util;
+
+import com.st.model.Feature;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Accumulates the dataset statistics of a features file in a single pass,
+ * one feature at a time.
+ * <p/>
+ * Hits are integer read counts with a small number of distinct values, so
+ * instead of keeping every hit value the overall quartiles are computed from a
+ * value histogram. This is exact and its size only depends on the number of
+ * distinct hit values. Gene pooled quartiles are computed from the per-gene
+ * sums, whose number is bounded by the number of genes.
+ * <p/>
+ * Quartiles are returned as five numbers: minimum, first quartile, median,
+ * third quartile and maximum, linearly interpolated between ranks.
+ */
+public class FeaturesStatistics {
+
+    private long featureCount = 0;
+    private long hitCount = 0;
+    private final TreeMap<Integer, long[]> hitHistogram = new TreeMap<>();
+    private final Map<String, long[]> geneHits = new HashMap<>();
+    private final Set<String> barcodes = new HashSet<>();
+
+    /**
+     * Adds a feature to the statistics.
+     * @param feature the feature.
+     */
+    public void add(Feature feature) {
+        featureCount++;
+        int hits = feature.getHits();
+        hitCount += hits;
+        long[] count = hitHistogram.get(hits);
+        if (count == null) {
+            hitHistogram.put(hits, new long[] {1});
+        } else {
+            count[0]++;
+        }
+        if (feature.getGene() != null) {
+            long[] gene = geneHits.get(feature.getGene());
+            if (gene == null) {
+                geneHits.put(feature.getGene(), new long[] {hits, 1});
+            } else {
+                gene[0] += hits;
+                gene[1]++;
+            }
+        }
+        if (feature.getBarcode() != null) {
+            barcodes.add(feature.getBarcode());
+        }
+    }
+
+    public long getFeatureCount() {
+        return featureCount;
+    }
+
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    public int getUniqueGeneCount() {
+        return geneHits.size();
+    }
+
+    public int getUniqueBarcodeCount() {
+        return barcodes.size();
+    }
+
+    /**
+     * Returns the summed hits and the number of spots of every gene.
+     * @return map of gene to {hits, spots}.
+     */
+    public Map<String, long[]> getGeneHits() {
+        return geneHits;
+    }
+
+    /**
+     * Returns the quartiles of the hits of all features.
+     * @return min, Q1, median, Q3, max.
+     */
+    public double[] getOverallHitQuartiles() {
+        double[] quartiles = new double[5];
+        if (featureCount == 0) {
+            return quartiles;
+        }
+        for (int i = 0; i < 5; i++) {
+            double rank = (featureCount - 1) * i / 4.0;
+            long lower = (long) Math.floor(rank);
+            double lowerValue = valueAtRank(lower);
+            double upperValue = valueAtRank((long) Math.ceil(rank));
+            quartiles[i] = lowerValue + (upperValue - lowerValue) * (rank - lower);
+        }
+        return quartiles;
+    }
+
+    /**
+     * Returns the quartiles of the summed hits per gene.
+     * @return min, Q1, median, Q3, max.
+     */
+    public double[] getGenePooledHitQuartiles() {
+        long[] sums = new long[geneHits.size()];
+        int n = 0;
+        for (long[] gene : geneHits.values()) {
+            sums[n++] = gene[0];
+        }
+        Arrays.sort(sums);
+        double[] quartiles = new double[5];
+        if (n == 0) {
+            return quartiles;
+        }
+        for (int i = 0; i < 5; i++) {
+            double rank = (n - 1) * i / 4.0;
+            int lower = (int) Math.floor(rank);
+            int upper = (int) Math.ceil(rank);
+            quartiles[i] = sums[lower] + (sums[upper] - sums[lower]) * (rank - lower);
+        }
+        return quartiles;
+    }
+
+    // Returns the hit value at a given 0-based rank of the sorted hits.
+    private double valueAtRank(long rank) {
+        long seen = 0;
+        for (Map.Entry<Integer, long[]> e : hitHistogram.entrySet()) {
+            seen += e.getValue()[0];
+            if (rank < seen) {
+                return e.getKey();
+            }
+        }
+        return hitHistogram.lastKey();
+    }
+
+}
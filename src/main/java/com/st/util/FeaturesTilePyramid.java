@@ -0,0 +1,248 @@
+package com.st.util;
+
+import com.st.model.Feature;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+
+/**
+ * Builds a level-of-detail tile pyramid of a features file.
+ * <p/>
+ * Features are aggregated into square spatial bins. At the finest level a bin
+ * is one unit of the chip coordinate space, and every coarser level merges
+ * 2x2 bins of the level below, up to level 0 where one bin covers the whole
+ * dataset. Each level is cut into tiles of TILE_BINS x TILE_BINS bins. A bin
+ * holds its summed hits and its genes with the most hits.
+ */
+public class FeaturesTilePyramid {
+
+    /** Number of bins along each side of a tile. */
+    public static final int TILE_BINS = 16;
+
+    /** Number of genes with the most hits kept per bin. */
+    public static final int TOP_GENES = 10;
+
+    /**
+     * Receives the tiles of a pyramid as they are built.
+     */
+    public interface TileHandler {
+
+        /**
+         * Handles a tile.
+         * @param level the zoom level.
+         * @param x the tile column.
+         * @param y the tile row.
+         * @param json the tile, as uncompressed JSON.
+         * @throws IOException on write errors.
+         */
+        public void handle(int level, int x, int y, byte[] json) throws IOException;
+    }
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    // Bins of the current level, keyed by packed bin column and row.
+    private Map<Long, Bin> bins = new HashMap<>();
+    private long minX = Long.MAX_VALUE;
+    private long minY = Long.MAX_VALUE;
+    private long maxX = Long.MIN_VALUE;
+    private long maxY = Long.MIN_VALUE;
+
+    /**
+     * Adds a feature to the pyramid.
+     * @param feature the feature.
+     */
+    public void add(Feature feature) {
+        long cx = (long) Math.floor(feature.getX());
+        long cy = (long) Math.floor(feature.getY());
+        minX = Math.min(minX, cx);
+        minY = Math.min(minY, cy);
+        maxX = Math.max(maxX, cx);
+        maxY = Math.max(maxY, cy);
+        Bin bin = bins.get(pack(cx, cy));
+        if (bin == null) {
+            bin = new Bin();
+            bins.put(pack(cx, cy), bin);
+        }
+        bin.add(feature.getGene(), feature.getHits());
+    }
+
+    /**
+     * Returns the number of the finest level, or -1 if the pyramid is empty.
+     * @return the level.
+     */
+    public int getMaxLevel() {
+        if (minX > maxX) {
+            return -1;
+        }
+        long extent = Math.max(maxX - minX, maxY - minY) + 1;
+        int level = 0;
+        while ((1L << level) < extent) {
+            level++;
+        }
+        return level;
+    }
+
+    public long getOriginX() {
+        return minX;
+    }
+
+    public long getOriginY() {
+        return minY;
+    }
+
+    /**
+     * Builds all tiles, from the finest level to level 0. The aggregated bins
+     * are consumed, so this may only be called once.
+     * @param handler receives the tiles.
+     * @throws IOException on write errors.
+     */
+    public void build(TileHandler handler) throws IOException {
+        int maxLevel = getMaxLevel();
+        if (maxLevel < 0) {
+            return;
+        }
+        // Re-key the unit bins relative to the origin.
+        Map<Long, Bin> level = new HashMap<>(bins.size());
+        for (Map.Entry<Long, Bin> e : bins.entrySet()) {
+            long cx = unpackX(e.getKey()) - minX;
+            long cy = unpackY(e.getKey()) - minY;
+            level.put(pack(cx, cy), e.getValue());
+        }
+        bins = null;
+        for (int z = maxLevel; z >= 0; z--) {
+            writeLevel(z, 1L << (maxLevel - z), level, handler);
+            if (z > 0) {
+                level = mergeLevel(level);
+            }
+        }
+    }
+
+    // Groups the bins of a level into tiles and writes them.
+    private void writeLevel(int z, long binSize, Map<Long, Bin> level, TileHandler handler)
+            throws IOException {
+        Map<Long, List<Long>> tiles = new HashMap<>();
+        for (Long key : level.keySet()) {
+            long tile = pack(unpackX(key) / TILE_BINS, unpackY(key) / TILE_BINS);
+            List<Long> keys = tiles.get(tile);
+            if (keys == null) {
+                keys = new ArrayList<>();
+                tiles.put(tile, keys);
+            }
+            keys.add(key);
+        }
+        for (Map.Entry<Long, List<Long>> tile : tiles.entrySet()) {
+            int tx = (int) unpackX(tile.getKey());
+            int ty = (int) unpackY(tile.getKey());
+            handler.handle(z, tx, ty, writeTile(z, tx, ty, binSize, tile.getValue(), level));
+        }
+    }
+
+    private byte[] writeTile(int z, int tx, int ty, long binSize, List<Long> keys,
+            Map<Long, Bin> level) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        JsonGenerator gen = jsonFactory.createJsonGenerator(bos, JsonEncoding.UTF8);
+        gen.writeStartObject();
+        gen.writeNumberField("level", z);
+        gen.writeNumberField("x", tx);
+        gen.writeNumberField("y", ty);
+        gen.writeNumberField("bin_size", binSize);
+        gen.writeArrayFieldStart("bins");
+        for (Long key : keys) {
+            Bin bin = level.get(key);
+            gen.writeStartObject();
+            gen.writeNumberField("x", minX + unpackX(key) * binSize);
+            gen.writeNumberField("y", minY + unpackY(key) * binSize);
+            gen.writeNumberField("hits", bin.hits);
+            gen.writeNumberField("genes", bin.genes.size());
+            gen.writeArrayFieldStart("top_genes");
+            for (Map.Entry<String, long[]> gene : bin.topGenes()) {
+                gen.writeStartObject();
+                gen.writeStringField("gene", gene.getKey());
+                gen.writeNumberField("hits", gene.getValue()[0]);
+                gen.writeEndObject();
+            }
+            gen.writeEndArray();
+            gen.writeEndObject();
+        }
+        gen.writeEndArray();
+        gen.writeEndObject();
+        gen.close();
+        return bos.toByteArray();
+    }
+
+    // Merges 2x2 bins into the bins of the next coarser level.
+    private static Map<Long, Bin> mergeLevel(Map<Long, Bin> level) {
+        Map<Long, Bin> parents = new HashMap<>();
+        for (Map.Entry<Long, Bin> e : level.entrySet()) {
+            long parent = pack(unpackX(e.getKey()) >> 1, unpackY(e.getKey()) >> 1);
+            Bin bin = parents.get(parent);
+            if (bin == null) {
+                parents.put(parent, e.getValue());
+            } else {
+                bin.merge(e.getValue());
+            }
+        }
+        return parents;
+    }
+
+    private static long pack(long x, long y) {
+        return (x << 32) | (y & 0xffffffffL);
+    }
+
+    private static long unpackX(long key) {
+        return key >> 32;
+    }
+
+    private static long unpackY(long key) {
+        return (int) key;
+    }
+
+    // A spatial bin with summed hits per gene.
+    private static class Bin {
+
+        long hits = 0;
+        final Map<String, long[]> genes = new HashMap<>();
+
+        void add(String gene, long geneHits) {
+            hits += geneHits;
+            long[] sum = genes.get(gene);
+            if (sum == null) {
+                genes.put(gene, new long[] {geneHits});
+            } else {
+                sum[0] += geneHits;
+            }
+        }
+
+        void merge(Bin other) {
+            hits += other.hits;
+            for (Map.Entry<String, long[]> e : other.genes.entrySet()) {
+                long[] sum = genes.get(e.getKey());
+                if (sum == null) {
+                    genes.put(e.getKey(), e.getValue());
+                } else {
+                    sum[0] += e.getValue()[0];
+                }
+            }
+        }
+
+        List<Map.Entry<String, long[]>> topGenes() {
+            List<Map.Entry<String, long[]>> sorted = new ArrayList<>(genes.entrySet());
+            Collections.sort(sorted, new Comparator<Map.Entry<String, long[]>>() {
+                @Override
+                public int compare(Map.Entry<String, long[]> a, Map.Entry<String, long[]> b) {
+                    return Long.compare(b.getValue()[0], a.getValue()[0]);
+                }
+            });
+            return sorted.subList(0, Math.min(TOP_GENES, sorted.size()));
+        }
+    }
+
+}
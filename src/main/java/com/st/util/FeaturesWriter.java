@@ -0,0 +1,95 @@
+package com.st.util;
+
+import com.st.model.Feature;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.MappingJsonFactory;
+
+/**
+ * Streaming writer for features files, the counterpart of FeaturesReader.
+ * Features are written one at a time into a JSON array.
+ */
+public class FeaturesWriter implements Closeable {
+
+    // Mapping, to write the other fields from trees.
+    private static final JsonFactory jsonFactory = new MappingJsonFactory();
+
+    private final JsonGenerator generator;
+
+    /**
+     * Constructor.
+     * @param out the stream to write uncompressed JSON to.
+     * @throws IOException on write errors.
+     */
+    public FeaturesWriter(OutputStream out) throws IOException {
+        this.generator = jsonFactory.createJsonGenerator(out, JsonEncoding.UTF8);
+        generator.writeStartArray();
+    }
+
+    /**
+     * Returns a writer producing a gzipped features file.
+     * @param out the stream to write gzipped JSON to.
+     * @return the writer.
+     * @throws IOException on write errors.
+     */
+    public static FeaturesWriter toGzip(OutputStream out) throws IOException {
+        return new FeaturesWriter(new GZIPOutputStream(out, 64 * 1024));
+    }
+
+    /**
+     * Writes a feature.
+     * @param feature the feature.
+     * @throws IOException on write errors.
+     */
+    public void write(Feature feature) throws IOException {
+        write(feature, Collections.<String, JsonNode>emptyMap());
+    }
+
+    /**
+     * Writes a feature with other fields, as read by FeaturesReader.
+     * @param feature the feature.
+     * @param otherFields the other fields.
+     * @throws IOException on write errors.
+     */
+    public void write(Feature feature, Map<String, JsonNode> otherFields) throws IOException {
+        generator.writeStartObject();
+        generator.writeStringField("barcode", feature.getBarcode());
+        generator.writeStringField("gene", feature.getGene());
+        generator.writeNumberField("hits", feature.getHits());
+        writeCoordinate("x", feature.getX());
+        writeCoordinate("y", feature.getY());
+        for (Map.Entry<String, JsonNode> field : otherFields.entrySet()) {
+            generator.writeFieldName(field.getKey());
+            generator.writeTree(field.getValue());
+        }
+        generator.writeEndObject();
+    }
+
+    // Integral coordinates are written as integers, as in the uploaded files.
+    private void writeCoordinate(String name, double value) throws IOException {
+        if (value == Math.rint(value) && Math.abs(value) < Integer.MAX_VALUE) {
+            generator.writeNumberField(name, (int) value);
+        } else {
+            generator.writeNumberField(name, value);
+        }
+    }
+
+    /**
+     * Ends the array and closes the underlying stream.
+     * @throws IOException on write errors.
+     */
+    @Override
+    public void close() throws IOException {
+        generator.writeEndArray();
+        generator.close();
+    }
+
+}
@@ -0,0 +1,158 @@
+package com.st.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.springframework.data.mongodb.core.query.Query;
+
+/**
+ * A sparse fieldset of a model, e.g. from a "?fields=name,enabled" request
+ * parameter. It is applied twice: as a field projection of the MongoDB query,
+ * so that unused fields are neither read nor mapped, and as a filter of the
+ * JSON objects returned, so that only the requested fields are sent. The id
+ * is always included. Field names are the JSON names, which are the same as
+ * the MongoDB field names in this API.
+ */
+public class FieldProjection {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    // Requested fields, or null for all fields.
+    private final Set<String> included;
+
+    // Fields never returned.
+    private final Set<String> excluded;
+
+    private FieldProjection(Set<String> included, Set<String> excluded) {
+        this.included = included;
+        this.excluded = excluded;
+    }
+
+    /**
+     * Returns the projection of all fields.
+     * @return the projection.
+     */
+    public static FieldProjection all() {
+        return new FieldProjection(null, Collections.<String>emptySet());
+    }
+
+    /**
+     * Parses a comma-separated list of fields.
+     * @param fields the fields, or null or blank for all fields.
+     * @return the projection.
+     */
+    public static FieldProjection parse(String fields) {
+        if (fields == null || fields.trim().isEmpty()) {
+            return all();
+        }
+        Set<String> included = new LinkedHashSet<>();
+        for (String field : fields.split(",")) {
+            if (!field.trim().isEmpty()) {
+                included.add(field.trim());
+            }
+        }
+        return new FieldProjection(included, Collections.<String>emptySet());
+    }
+
+    /**
+     * Returns this projection without some fields, even if they are requested.
+     * @param fields the fields to exclude.
+     * @return the new projection.
+     */
+    public FieldProjection exclude(String... fields) {
+        Set<String> e = new HashSet<>(excluded);
+        e.addAll(Arrays.asList(fields));
+        return new FieldProjection(included, e);
+    }
+
+    /**
+     * Returns true if all fields are projected.
+     * @return true if nothing is left out.
+     */
+    public boolean isAll() {
+        return included == null && excluded.isEmpty();
+    }
+
+    /**
+     * Returns true if a field is projected.
+     * @param field the field.
+     * @return true if included.
+     */
+    public boolean includes(String field) {
+        return !excluded.contains(field)
+                && (included == null || included.contains(field) || field.equals("id"));
+    }
+
+    /**
+     * Sets the field projection of a MongoDB query.
+     * @param query the query.
+     * @param required fields needed by the service itself, e.g. for
+     * filtering, which are read even if they are not requested.
+     * @return the query.
+     */
+    public Query apply(Query query, String... required) {
+        if (included != null) {
+            // MongoDB does not allow mixing included and excluded fields.
+            query.fields().include("id");
+            for (String field : included) {
+                if (!excluded.contains(field)) {
+                    query.fields().include(field);
+                }
+            }
+            for (String field : required) {
+                query.fields().include(field);
+            }
+        } else {
+            for (String field : excluded) {
+                query.fields().exclude(field);
+            }
+        }
+        return query;
+    }
+
+    /**
+     * Filters model objects to their projected fields for serialization.
+     * @param objects the model objects.
+     * @return the objects themselves if all fields are projected, otherwise
+     * JSON maps holding only the projected fields.
+     */
+    public List<?> filter(List<?> objects) {
+        if (objects == null || isAll()) {
+            return objects;
+        }
+        List<Object> maps = new ArrayList<>(objects.size());
+        for (Object o : objects) {
+            maps.add(filter(o));
+        }
+        return maps;
+    }
+
+    /**
+     * Filters a model object to its projected fields for serialization.
+     * @param object the model object.
+     * @return the object itself if all fields are projected, otherwise a
+     * JSON map holding only the projected fields.
+     */
+    public Object filter(Object object) {
+        if (object == null || isAll()) {
+            return object;
+        }
+        @SuppressWarnings("unchecked")
+        Map<String, Object> map = mapper.convertValue(object, Map.class);
+        Iterator<String> it = map.keySet().iterator();
+        while (it.hasNext()) {
+            if (!includes(it.next())) {
+                it.remove();
+            }
+        }
+        return map;
+    }
+
+}
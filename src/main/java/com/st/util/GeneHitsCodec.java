@@ -0,0 +1,180 @@
+package com.st.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Packs a gene hits table (rows of strings, e.g. gene name followed by
+ * numbers) into a compact, deflated binary form and back.
+ * <p/>
+ * Every cell is stored with a type tag. Cells holding integers or decimals
+ * are stored as long or double values, but only if the number prints back to
+ * exactly the same text, so that decoding always restores the original
+ * strings. Other strings are stored once in a string table and referenced by
+ * index afterwards, which removes repeated gene names.
+ */
+public class GeneHitsCodec {
+
+    private static final int VERSION = 1;
+
+    private static final int NULL = 0;
+    private static final int NEW_STRING = 1;
+    private static final int STRING_REF = 2;
+    private static final int LONG = 3;
+    private static final int DOUBLE = 4;
+
+    /**
+     * Packs a table.
+     * @param rows the rows.
+     * @return the packed table.
+     */
+    public static byte[] encode(List<String[]> rows) {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(
+                    new DeflaterOutputStream(bos, new Deflater(Deflater.BEST_COMPRESSION)));
+            out.writeByte(VERSION);
+            out.writeInt(rows.size());
+            Map<String, Integer> strings = new HashMap<>();
+            for (String[] row : rows) {
+                if (row == null) {
+                    out.writeInt(-1);
+                    continue;
+                }
+                out.writeInt(row.length);
+                for (String cell : row) {
+                    writeCell(out, cell, strings);
+                }
+            }
+            out.close();
+            return bos.toByteArray();
+        } catch (IOException ex) {
+            // Only in-memory streams are involved.
+            throw new IllegalStateException("Failed to pack gene hits", ex);
+        }
+    }
+
+    /**
+     * Unpacks a table.
+     * @param packed the packed table.
+     * @return the rows.
+     */
+    public static List<String[]> decode(byte[] packed) {
+        try (DataInputStream in = new DataInputStream(
+                new InflaterInputStream(new ByteArrayInputStream(packed)))) {
+            int version = in.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IllegalStateException("Unknown packed gene hits version " + version);
+            }
+            int n = in.readInt();
+            List<String[]> rows = new ArrayList<>(n);
+            List<String> strings = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                int length = in.readInt();
+                if (length < 0) {
+                    rows.add(null);
+                    continue;
+                }
+                String[] row = new String[length];
+                for (int j = 0; j < length; j++) {
+                    row[j] = readCell(in, strings);
+                }
+                rows.add(row);
+            }
+            return rows;
+        } catch (IOException ex) {
+            throw new IllegalStateException("Failed to unpack gene hits", ex);
+        }
+    }
+
+    private static void writeCell(DataOutputStream out, String cell, Map<String, Integer> strings)
+            throws IOException {
+        if (cell == null) {
+            out.writeByte(NULL);
+            return;
+        }
+        Long l = parseLong(cell);
+        if (l != null) {
+            out.writeByte(LONG);
+            out.writeLong(l);
+            return;
+        }
+        Double d = parseDouble(cell);
+        if (d != null) {
+            out.writeByte(DOUBLE);
+            out.writeDouble(d);
+            return;
+        }
+        Integer index = strings.get(cell);
+        if (index != null) {
+            out.writeByte(STRING_REF);
+            out.writeInt(index);
+        } else {
+            strings.put(cell, strings.size());
+            out.writeByte(NEW_STRING);
+            byte[] utf8 = cell.getBytes("UTF-8");
+            out.writeInt(utf8.length);
+            out.write(utf8);
+        }
+    }
+
+    private static String readCell(DataInputStream in, List<String> strings) throws IOException {
+        int tag = in.readUnsignedByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case NEW_STRING:
+                byte[] utf8 = new byte[in.readInt()];
+                in.readFully(utf8);
+                String s = new String(utf8, "UTF-8");
+                strings.add(s);
+                return s;
+            case STRING_REF:
+                return strings.get(in.readInt());
+            case LONG:
+                return Long.toString(in.readLong());
+            case DOUBLE:
+                return Double.toString(in.readDouble());
+            default:
+                throw new IOException("Unknown cell type " + tag);
+        }
+    }
+
+    // Returns the value if the text is exactly the canonical form of a long.
+    private static Long parseLong(String s) {
+        if (s.isEmpty() || s.length() > 20) {
+            return null;
+        }
+        try {
+            long l = Long.parseLong(s);
+            return Long.toString(l).equals(s) ? l : null;
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    // Returns the value if the text is exactly the canonical form of a double.
+    private static Double parseDouble(String s) {
+        char c = s.isEmpty() ? 'x' : s.charAt(s.length() - 1);
+        if (!Character.isDigit(c)) {
+            return null;   // Skips e.g. names, "NaN" and "1d".
+        }
+        try {
+            double d = Double.parseDouble(s);
+            return Double.toString(d).equals(s) ? d : null;
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+}
@@ -5,8 +5,11 @@ import org.springframework.http.HttpHeaders;
 import org.joda.time.DateTime;
 import org.springframework.http.MediaType;
 
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Misc operations for HTTP operations, mainly related to caching
@@ -44,4 +47,58 @@ public class HTTPOperations {
 
         return headers;
     }
+
+    /**
+     * Returns true if an Accept-Encoding header accepts a content encoding,
+     * either by name or by "*", with a non-zero quality value.
+     * @param acceptEncodingHeader the header, may be null or empty.
+     * @param encoding the content encoding, e.g. "gzip".
+     * @return true if accepted.
+     */
+    public static boolean acceptsEncoding(String acceptEncodingHeader, String encoding) {
+        if (acceptEncodingHeader == null) {
+            return false;
+        }
+        Double wildcard = null;
+        for (String part : parseAcceptHeader(acceptEncodingHeader)) {
+            String[] params = part.split(";");
+            String coding = params[0].trim();
+            double q = 1.0;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Double.parseDouble(param.substring(2).trim());
+                    } catch (NumberFormatException ex) {
+                        q = 0.0;
+                    }
+                }
+            }
+            if (coding.equalsIgnoreCase(encoding)) {
+                return q > 0.0;
+            }
+            if (coding.equals("*")) {
+                wildcard = q;
+            }
+        }
+        return wildcard != null && wildcard > 0.0;
+    }
+
+    /**
+     * Parses a comma-separated request parameter, e.g. "?ids=a,b,c", into
+     * its distinct non-blank values, in order.
+     * @param param the parameter, or null.
+     * @return the values, empty if none.
+     */
+    public static List<String> parseCommaList(String param) {
+        Set<String> values = new LinkedHashSet<>();
+        if (param != null) {
+            for (String value : param.split(",")) {
+                if (!value.trim().isEmpty()) {
+                    values.add(value.trim());
+                }
+            }
+        }
+        return new ArrayList<>(values);
+    }
 }
@@ -0,0 +1,509 @@
+package com.st.util;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.event.IIOReadUpdateListener;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import org.w3c.dom.NodeList;
+
+/**
+ * Misc operations for scaling and encoding images.
+ */
+public class ImageOperations {
+
+    /**
+     * Receives the rows of an image as they are decoded.
+     */
+    public interface RowHandler {
+
+        /**
+         * Handles a row.
+         * @param y the row.
+         * @param rgb the pixels of the row as packed RGB, reused for the next row.
+         * @throws IOException on errors.
+         */
+        public void handle(int y, int[] rgb) throws IOException;
+    }
+
+    // Rows the decoder writes before a row is handed over; sequential JPEG
+    // is written one row at a time.
+    private static final int RING_ROWS = 16;
+
+    /**
+     * Reads the dimensions of an image from its header, without decoding it.
+     * @param in the encoded image, which is not closed.
+     * @return the dimensions, or null if the image is not in a readable format.
+     * @throws IOException on read errors.
+     */
+    public static Dimension readSize(InputStream in) throws IOException {
+        try (ImageInputStream iis = ImageIO.createImageInputStream(in)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                return new Dimension(reader.getWidth(0), reader.getHeight(0));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Reads the format of an image from its header.
+     * @param in the encoded image, which is not closed.
+     * @return the format name in lower case (e.g. "jpeg"), or null if the
+     * image is not in a readable format.
+     * @throws IOException on read errors.
+     */
+    public static String readFormat(InputStream in) throws IOException {
+        try (ImageInputStream iis = ImageIO.createImageInputStream(in)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                return reader.getFormatName().toLowerCase();
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Tells from its header whether an image is a JPEG that is not progressive.
+     * @param in the encoded image, which is not closed.
+     * @return true if the image is a baseline or extended sequential JPEG.
+     * @throws IOException on read errors.
+     */
+    public static boolean isSequentialJpeg(InputStream in) throws IOException {
+        try (ImageInputStream iis = ImageIO.createImageInputStream(in)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                return false;
+            }
+            ImageReader reader = readers.next();
+            try {
+                if (!"jpeg".equalsIgnoreCase(reader.getFormatName())) {
+                    return false;
+                }
+                reader.setInput(iis, true, false);
+                IIOMetadata metadata = reader.getImageMetadata(0);
+                IIOMetadataNode tree = (IIOMetadataNode) metadata.getAsTree(metadata.getNativeMetadataFormatName());
+                // The start of frame marker, whose process is 2 for progressive.
+                NodeList sof = tree.getElementsByTagName("sof");
+                return sof.getLength() > 0
+                        && !"2".equals(((IIOMetadataNode) sof.item(0)).getAttribute("process"));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Reads an image subsampled to about the size of a box, so that the full
+     * resolution raster is never held in memory. The result is at most twice
+     * the box along each side, and still fills the box along the side that
+     * limits fitting into it (unless the whole image is smaller).
+     * @param in the encoded image, which is not closed.
+     * @param maxWidth the box width.
+     * @param maxHeight the box height.
+     * @return the image, or null if it is not in a readable format.
+     * @throws IOException on read errors.
+     */
+    public static BufferedImage readSubsampled(InputStream in, int maxWidth, int maxHeight)
+            throws IOException {
+        try (ImageInputStream iis = ImageIO.createImageInputStream(in)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                int step = Math.max(1, Math.max(reader.getWidth(0) / maxWidth,
+                        reader.getHeight(0) / maxHeight));
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(step, step, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Reads a region of an image at a scale. Only the region is decoded, and
+     * subsampled to about the scale, so neither the whole image nor the full
+     * resolution region is held in memory. Rows below the region are not read.
+     * @param in the encoded image, which is not closed.
+     * @param region the region, in pixels of the image. Parts outside the image are left out.
+     * @param scale the scale, greater than 0 and at most 1.
+     * @return the region, or null if the image is not in a readable format.
+     * @throws IOException on read errors.
+     * @throws IllegalArgumentException if the region is outside the image.
+     */
+    public static BufferedImage readRegion(InputStream in, Rectangle region, double scale)
+            throws IOException {
+        try (ImageInputStream iis = ImageIO.createImageInputStream(in)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                Rectangle clipped = region.intersection(
+                        new Rectangle(0, 0, reader.getWidth(0), reader.getHeight(0)));
+                if (clipped.isEmpty()) {
+                    throw new IllegalArgumentException("The region is outside the image.");
+                }
+                int step = Math.max(1, (int) Math.floor(1 / scale));
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceRegion(clipped);
+                param.setSourceSubsampling(step, step, 0, 0);
+                BufferedImage img = reader.read(0, param);
+                return fit(img, Math.max(1, (int) Math.round(clipped.width * scale)),
+                        Math.max(1, (int) Math.round(clipped.height * scale)));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Decodes a sequential JPEG once from top to bottom, and hands over each
+     * row as soon as it is decoded. Only a few rows are held in memory, so
+     * this takes as long as decoding the image once, whatever its size. The
+     * decoder writes into a few rows of storage that its rows wrap around.
+     * @param in the encoded image, which is not closed.
+     * @param handler receives the rows, in order.
+     * @return false if the image is not in a readable format.
+     * @throws IOException on read errors, or thrown by the handler.
+     * @throws IllegalArgumentException if the image is not decoded row by
+     * row, e.g. progressive JPEG.
+     */
+    public static boolean readRows(InputStream in, final RowHandler handler) throws IOException {
+        try (ImageInputStream iis = ImageIO.createImageInputStream(in)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                return false;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                final int width = reader.getWidth(0);
+                final RowRingSampleModel model = new RowRingSampleModel(width, reader.getHeight(0));
+                final WritableRaster raster = new RowRingRaster(model);
+                final int[] row = new int[width];
+                reader.addIIOReadUpdateListener(new IIOReadUpdateListener() {
+                    private int next = 0;
+
+                    @Override
+                    public void imageUpdate(ImageReader source, BufferedImage theImage, int minX, int minY,
+                            int w, int h, int periodX, int periodY, int[] bands) {
+                        if (minY != next || h > RING_ROWS || periodY != 1) {
+                            throw new IllegalArgumentException("The image is not decoded row by row.");
+                        }
+                        for (int y = minY; y < minY + h; y++) {
+                            raster.getDataElements(0, y, width, 1, row);
+                            try {
+                                handler.handle(y, row);
+                            } catch (IOException ex) {
+                                throw new RowHandlerException(ex);
+                            }
+                        }
+                        next = minY + h;
+                    }
+
+                    @Override
+                    public void passStarted(ImageReader source, BufferedImage theImage, int pass, int minPass,
+                            int maxPass, int minX, int minY, int periodX, int periodY, int[] bands) {
+                        if (pass > 0) {
+                            throw new IllegalArgumentException("The image is not decoded row by row.");
+                        }
+                    }
+
+                    @Override
+                    public void passComplete(ImageReader source, BufferedImage theImage) {
+                    }
+
+                    @Override
+                    public void thumbnailPassStarted(ImageReader source, BufferedImage theThumbnail, int pass,
+                            int minPass, int maxPass, int minX, int minY, int periodX, int periodY, int[] bands) {
+                    }
+
+                    @Override
+                    public void thumbnailUpdate(ImageReader source, BufferedImage theThumbnail, int minX,
+                            int minY, int w, int h, int periodX, int periodY, int[] bands) {
+                    }
+
+                    @Override
+                    public void thumbnailPassComplete(ImageReader source, BufferedImage theThumbnail) {
+                    }
+                });
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setDestination(new BufferedImage(
+                        new DirectColorModel(24, 0xff0000, 0xff00, 0xff), raster, false, null));
+                try {
+                    reader.read(0, param);
+                } catch (RowHandlerException ex) {
+                    throw ex.getCause();
+                }
+                return true;
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    // Carries an exception of a row handler out of the decoder.
+    private static class RowHandlerException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        RowHandlerException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+
+    // Packed RGB pixels of an image, whose rows wrap around RING_ROWS rows
+    // of storage. Blocks of rows must not wrap.
+    private static class RowRingSampleModel extends SinglePixelPackedSampleModel {
+
+        RowRingSampleModel(int width, int height) {
+            super(DataBuffer.TYPE_INT, width, height, new int[] {0xff0000, 0xff00, 0xff});
+        }
+
+        private static int ring(int y, int h) {
+            int r = y % RING_ROWS;
+            if (r + h > RING_ROWS) {
+                throw new IllegalArgumentException("The image is not decoded row by row.");
+            }
+            return r;
+        }
+
+        @Override
+        public DataBuffer createDataBuffer() {
+            return new DataBufferInt(getWidth() * RING_ROWS);
+        }
+
+        @Override
+        public SampleModel createSubsetSampleModel(int[] bands) {
+            for (int b = 0; b < bands.length; b++) {
+                if (bands[b] != b) {
+                    throw new UnsupportedOperationException("Bands cannot be reordered.");
+                }
+            }
+            return this;
+        }
+
+        @Override
+        public Object getDataElements(int x, int y, Object obj, DataBuffer data) {
+            return super.getDataElements(x, ring(y, 1), obj, data);
+        }
+
+        @Override
+        public void setDataElements(int x, int y, Object obj, DataBuffer data) {
+            super.setDataElements(x, ring(y, 1), obj, data);
+        }
+
+        @Override
+        public Object getDataElements(int x, int y, int w, int h, Object obj, DataBuffer data) {
+            return super.getDataElements(x, ring(y, h), w, h, obj, data);
+        }
+
+        @Override
+        public void setDataElements(int x, int y, int w, int h, Object obj, DataBuffer data) {
+            super.setDataElements(x, ring(y, h), w, h, obj, data);
+        }
+
+        @Override
+        public int[] getPixel(int x, int y, int[] iArray, DataBuffer data) {
+            return super.getPixel(x, ring(y, 1), iArray, data);
+        }
+
+        @Override
+        public void setPixel(int x, int y, int[] iArray, DataBuffer data) {
+            super.setPixel(x, ring(y, 1), iArray, data);
+        }
+
+        @Override
+        public int[] getPixels(int x, int y, int w, int h, int[] iArray, DataBuffer data) {
+            return super.getPixels(x, ring(y, h), w, h, iArray, data);
+        }
+
+        @Override
+        public void setPixels(int x, int y, int w, int h, int[] iArray, DataBuffer data) {
+            super.setPixels(x, ring(y, h), w, h, iArray, data);
+        }
+
+        @Override
+        public int getSample(int x, int y, int b, DataBuffer data) {
+            return super.getSample(x, ring(y, 1), b, data);
+        }
+
+        @Override
+        public void setSample(int x, int y, int b, int s, DataBuffer data) {
+            super.setSample(x, ring(y, 1), b, s, data);
+        }
+
+        @Override
+        public int[] getSamples(int x, int y, int w, int h, int b, int[] iArray, DataBuffer data) {
+            return super.getSamples(x, ring(y, h), w, h, b, iArray, data);
+        }
+
+        @Override
+        public void setSamples(int x, int y, int w, int h, int b, int[] iArray, DataBuffer data) {
+            super.setSamples(x, ring(y, h), w, h, b, iArray, data);
+        }
+    }
+
+    // A raster on a RowRingSampleModel; rasters of the known sample models
+    // would address their storage directly.
+    private static class RowRingRaster extends WritableRaster {
+
+        RowRingRaster(SampleModel model) {
+            super(model, model.createDataBuffer(), new Point(0, 0));
+        }
+    }
+
+    /**
+     * Scales an image down to fit in a box, keeping the aspect ratio. Larger
+     * reductions are made in halving steps, which average all pixels.
+     * @param img the image.
+     * @param maxWidth the box width.
+     * @param maxHeight the box height.
+     * @return the scaled image, or the image itself if it fits.
+     */
+    public static BufferedImage fit(BufferedImage img, int maxWidth, int maxHeight) {
+        double scale = Math.min((double) maxWidth / img.getWidth(), (double) maxHeight / img.getHeight());
+        if (scale >= 1) {
+            return img;
+        }
+        int w = Math.max(1, (int) Math.round(img.getWidth() * scale));
+        int h = Math.max(1, (int) Math.round(img.getHeight() * scale));
+        while (img.getWidth() >= 2 * w && img.getHeight() >= 2 * h) {
+            img = halve(img);
+        }
+        return scale(img, w, h);
+    }
+
+    /**
+     * Scales an image down to half its size, rounding up.
+     * @param img the image.
+     * @return the scaled image.
+     */
+    public static BufferedImage halve(BufferedImage img) {
+        return scale(img, (img.getWidth() + 1) / 2, (img.getHeight() + 1) / 2);
+    }
+
+    // Bilinear at half size or more averages each 2x2 block of pixels.
+    private static BufferedImage scale(BufferedImage img, int w, int h) {
+        BufferedImage scaled = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = scaled.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(img, 0, 0, w, h, null);
+        } finally {
+            g.dispose();
+        }
+        return scaled;
+    }
+
+    /**
+     * Encodes an image as JPEG.
+     * @param img the image.
+     * @param quality the quality, from 0 to 1.
+     * @return the JPEG.
+     * @throws IOException on encoding errors.
+     */
+    public static byte[] toJpeg(BufferedImage img, float quality) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        try {
+            return toJpeg(img, quality, writer);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * Encodes an image as JPEG with a given writer, to reuse it for many images.
+     * @param img the image.
+     * @param quality the quality, from 0 to 1.
+     * @param writer the JPEG writer, which is reset.
+     * @return the JPEG.
+     * @throws IOException on encoding errors.
+     */
+    public static byte[] toJpeg(BufferedImage img, float quality, ImageWriter writer) throws IOException {
+        return encodeJpeg(img, quality, writer, false);
+    }
+
+    /**
+     * Encodes an image as progressive JPEG. Its first scans hold the whole
+     * image coarsely, so that clients can show it before all of it arrived.
+     * @param img the image.
+     * @param quality the quality, from 0 to 1.
+     * @return the JPEG.
+     * @throws IOException on encoding errors.
+     */
+    public static byte[] toProgressiveJpeg(BufferedImage img, float quality) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        try {
+            return encodeJpeg(img, quality, writer, true);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    private static byte[] encodeJpeg(BufferedImage img, float quality, ImageWriter writer, boolean progressive)
+            throws IOException {
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality);
+        if (progressive) {
+            // The default scans of the writer: DC first, then AC in bands.
+            param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(32 * 1024);
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(bos)) {
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(img, null, null), param);
+        } finally {
+            writer.reset();
+        }
+        return bos.toByteArray();
+    }
+
+}
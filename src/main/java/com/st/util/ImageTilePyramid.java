@@ -0,0 +1,253 @@
+package com.st.util;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+
+/**
+ * Builds a Deep Zoom (DZI) tile pyramid of an image.
+ * <p/>
+ * The finest level is the image itself, and every coarser level halves the
+ * width and height (rounding up), down to level 0 which is a single pixel.
+ * Each level is cut into JPEG tiles of TILE_SIZE x TILE_SIZE pixels, which
+ * overlap their neighbours by OVERLAP pixels so that viewers draw no seams.
+ * <p/>
+ * A pyramid is built either from a decoded image, or from a source of its
+ * rows, from top to bottom. In the latter case the rows are gathered into
+ * strips, the finest level is cut strip by strip, and only a strip and the
+ * next level (a quarter of the pixels) are held in memory, so very large
+ * images are never decoded at once, and are read only once.
+ */
+public class ImageTilePyramid {
+
+    /** Number of pixels along each side of a tile, not counting the overlap. */
+    public static final int TILE_SIZE = 256;
+
+    /** Number of pixels a tile overlaps each of its neighbours. */
+    public static final int OVERLAP = 1;
+
+    /** JPEG quality of the tiles. */
+    public static final float QUALITY = 0.85f;
+
+    /** Approximate maximum size of a decoded strip, in bytes. */
+    public static final long STRIP_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * Reads the rows of the full resolution image.
+     */
+    public interface RowSource {
+
+        /**
+         * Reads the image once.
+         * @param handler receives all rows, from top to bottom.
+         * @throws IOException on read errors, or thrown by the handler.
+         */
+        public void read(ImageOperations.RowHandler handler) throws IOException;
+    }
+
+    /**
+     * Receives the tiles of a pyramid as they are built.
+     */
+    public interface TileHandler {
+
+        /**
+         * Handles a tile.
+         * @param level the zoom level.
+         * @param col the tile column.
+         * @param row the tile row.
+         * @param jpeg the tile, as JPEG.
+         * @throws IOException on write errors.
+         */
+        public void handle(int level, int col, int row, byte[] jpeg) throws IOException;
+    }
+
+    private BufferedImage image;
+
+    private RowSource source;
+
+    private final int width;
+
+    private final int height;
+
+    /**
+     * Constructor.
+     * @param image the full resolution image.
+     */
+    public ImageTilePyramid(BufferedImage image) {
+        this.image = image;
+        this.width = image.getWidth();
+        this.height = image.getHeight();
+    }
+
+    /**
+     * Constructor for building from rows.
+     * @param width the image width.
+     * @param height the image height.
+     * @param source reads the rows.
+     */
+    public ImageTilePyramid(int width, int height, RowSource source) {
+        this.source = source;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Returns the estimated memory of building a pyramid from rows: the
+     * next to finest level, a strip and its halved copy. The memory of
+     * reading the rows is not included.
+     * @param width the image width.
+     * @param height the image height.
+     * @return the estimate, in bytes.
+     */
+    public static long estimateRowBytes(int width, int height) {
+        long half = (long) ((width + 1) / 2) * ((height + 1) / 2);
+        long strip = (long) width * (stripRows(width, height) + 2 * OVERLAP);
+        return 4 * (half + strip + strip / 4);
+    }
+
+    /**
+     * Returns the number of rows the finest level is cut at a time, so
+     * that a strip takes about STRIP_BYTES.
+     * @param width the image width.
+     * @param height the image height.
+     * @return the rows, a multiple of TILE_SIZE.
+     */
+    public static int stripRows(int width, int height) {
+        long tiles = Math.max(1, STRIP_BYTES / (4L * width * TILE_SIZE));
+        return (int) Math.min(tiles * TILE_SIZE, ((height + TILE_SIZE - 1) / TILE_SIZE) * TILE_SIZE);
+    }
+
+    /**
+     * Returns the number of the finest level.
+     * @return the level.
+     */
+    public int getMaxLevel() {
+        int extent = Math.max(width, height);
+        int level = 0;
+        while ((1L << level) < extent) {
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Returns the DZI descriptor of the pyramid, to be stored next to the tiles.
+     * @return the descriptor, as XML.
+     */
+    public String getDescriptor() {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<Image xmlns=\"http://schemas.microsoft.com/deepzoom/2008\" Format=\"jpg\" Overlap=\""
+                + OVERLAP + "\" TileSize=\"" + TILE_SIZE + "\">\n"
+                + "  <Size Width=\"" + width + "\" Height=\"" + height + "\"/>\n"
+                + "</Image>\n";
+    }
+
+    /**
+     * Builds all tiles, from the finest level to level 0. The image is
+     * released as the levels are scaled down, so this may only be called once.
+     * @param handler receives the tiles.
+     * @throws IOException on read or write errors.
+     */
+    public void build(TileHandler handler) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        try {
+            int z = getMaxLevel();
+            BufferedImage level = image;
+            image = null;
+            if (level == null) {
+                level = buildFromRows(z, writer, handler);
+                z--;
+            }
+            for (; z >= 0; z--) {
+                writeRows(z, level, 0, 0, level.getHeight(), writer, handler);
+                if (z > 0) {
+                    level = ImageOperations.halve(level);
+                }
+            }
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    // Writes the finest level strip by strip as the rows are read, and
+    // returns the next level.
+    private BufferedImage buildFromRows(final int z, final ImageWriter writer, final TileHandler handler)
+            throws IOException {
+        final BufferedImage half = new BufferedImage((width + 1) / 2, (height + 1) / 2, BufferedImage.TYPE_INT_RGB);
+        final int rows = stripRows(width, height);
+        // The strip includes the rows the tiles overlap.
+        final BufferedImage strip = new BufferedImage(width, Math.min(height, rows + 2 * OVERLAP),
+                BufferedImage.TYPE_INT_RGB);
+        final WritableRaster raster = strip.getRaster();
+        final int[] next = {0};
+        source.read(new ImageOperations.RowHandler() {
+            // The first row of the strip that is cut, and the row at the top of the buffer.
+            private int top = 0;
+            private int y0 = 0;
+
+            @Override
+            public void handle(int y, int[] rgb) throws IOException {
+                if (y != next[0]) {
+                    throw new IOException("Row " + y + " was read instead of row " + next[0]);
+                }
+                next[0]++;
+                raster.setDataElements(0, y - y0, width, 1, rgb);
+                int bottom = Math.min(height, top + rows);
+                if (y < Math.min(height, bottom + OVERLAP) - 1) {
+                    return;
+                }
+                writeRows(z, strip.getSubimage(0, 0, width, y + 1 - y0), y0, top, bottom, writer, handler);
+                BufferedImage halved = ImageOperations.halve(strip.getSubimage(0, top - y0, width, bottom - top));
+                Graphics2D g = half.createGraphics();
+                try {
+                    g.drawImage(halved, 0, top / 2, null);
+                } finally {
+                    g.dispose();
+                }
+                // Keeps the rows the tiles of the next strip overlap.
+                if (bottom < height) {
+                    int keep = y + 1 - (bottom - OVERLAP);
+                    Object kept = raster.getDataElements(0, bottom - OVERLAP - y0, width, keep, null);
+                    raster.setDataElements(0, 0, width, keep, kept);
+                    y0 = bottom - OVERLAP;
+                    top = bottom;
+                }
+            }
+        });
+        if (next[0] != height) {
+            throw new IOException("Only " + next[0] + " of " + height + " rows were read");
+        }
+        return half;
+    }
+
+    // Writes the tiles of the rows from top to bottom of a level, from an
+    // image of the rows of the level from y0 on.
+    private void writeRows(int z, BufferedImage img, int y0, int top, int bottom,
+            ImageWriter writer, TileHandler handler) throws IOException {
+        int w = img.getWidth();
+        int h = levelHeight(z);
+        for (int row = top / TILE_SIZE; row * TILE_SIZE < bottom; row++) {
+            int ty0 = Math.max(0, row * TILE_SIZE - OVERLAP);
+            int ty1 = Math.min(h, (row + 1) * TILE_SIZE + OVERLAP);
+            for (int col = 0; col * TILE_SIZE < w; col++) {
+                int x0 = Math.max(0, col * TILE_SIZE - OVERLAP);
+                int x1 = Math.min(w, (col + 1) * TILE_SIZE + OVERLAP);
+                BufferedImage tile = img.getSubimage(x0, ty0 - y0, x1 - x0, ty1 - ty0);
+                handler.handle(z, col, row, ImageOperations.toJpeg(tile, QUALITY, writer));
+            }
+        }
+    }
+
+    // The height of a level, halving and rounding up from the finest.
+    private int levelHeight(int z) {
+        int h = height;
+        for (int l = getMaxLevel(); l > z; l--) {
+            h = (h + 1) / 2;
+        }
+        return h;
+    }
+
+}
@@ -0,0 +1,88 @@
+package com.st.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ * Writes streamed models as a JSON array, one element at a time, flushing
+ * every FLUSH_INTERVAL elements so that the client receives the first ones
+ * while the rest are still read. The array is opened on the first element,
+ * or on close, so nothing is written if the listing fails before it starts.
+ * @param <T> the model type.
+ */
+public class JsonArrayWriter<T> implements ModelHandler<T>, Closeable {
+
+    /** Number of elements written between flushes. */
+    public static final int FLUSH_INTERVAL = 100;
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private final JsonGenerator gen;
+
+    private final FieldProjection projection;
+
+    private int count = 0;
+
+    private boolean started = false;
+
+    /**
+     * Constructor.
+     * @param out the stream, which is not closed.
+     * @param projection the fields to write.
+     * @throws IOException on failure to create the generator.
+     */
+    public JsonArrayWriter(OutputStream out, FieldProjection projection) throws IOException {
+        this.gen = mapper.getJsonFactory().createJsonGenerator(out, JsonEncoding.UTF8);
+        this.gen.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        this.projection = projection;
+    }
+
+    /**
+     * Writes a model.
+     * @param model the model.
+     * @throws RuntimeException wrapping the IOException if the client has gone.
+     */
+    @Override
+    public void handle(T model) {
+        try {
+            start();
+            gen.writeObject(projection.filter(model));
+            if (++count % FLUSH_INTERVAL == 0) {
+                gen.flush();
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException("IOError writing JSON array to output stream", ex);
+        }
+    }
+
+    /**
+     * Returns the number of models written.
+     * @return the count.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Ends the array and flushes.
+     * @throws IOException on failure to write.
+     */
+    @Override
+    public void close() throws IOException {
+        start();
+        gen.writeEndArray();
+        gen.close();
+    }
+
+    private void start() throws IOException {
+        if (!started) {
+            gen.writeStartArray();
+            started = true;
+        }
+    }
+
+}
@@ -0,0 +1,57 @@
+package com.st.util;
+
+import java.util.List;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+
+/**
+ * A page of a listing paginated by PageQuery, and the cursor of the next page.
+ * @param <T> the document type.
+ */
+public class KeysetPage<T> {
+
+    private final List<T> items;
+
+    private final String next;
+
+    /**
+     * Constructor.
+     * @param items the documents of the page.
+     * @param next the cursor of the next page, or null if this is the last.
+     */
+    public KeysetPage(List<T> items, String next) {
+        this.items = items;
+        this.next = next;
+    }
+
+    /**
+     * Returns the documents of the page.
+     * @return the documents.
+     */
+    public List<T> getItems() {
+        return items;
+    }
+
+    /**
+     * Returns the cursor of the next page.
+     * @return the cursor, or null if this is the last page.
+     */
+    public String getNext() {
+        return next;
+    }
+
+    /**
+     * Returns the headers of a JSON response with the page, the cursor of
+     * the next page in X-Next-Cursor.
+     * @return the headers.
+     */
+    public HttpHeaders headers() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        if (next != null) {
+            headers.add("X-Next-Cursor", next);
+        }
+        return headers;
+    }
+
+}
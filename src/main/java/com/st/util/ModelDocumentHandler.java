@@ -0,0 +1,38 @@
+package com.st.util;
+
+import com.mongodb.DBObject;
+import org.springframework.data.mongodb.core.DocumentCallbackHandler;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+
+/**
+ * Converts the documents of a MongoDB cursor to models and passes them on
+ * to a ModelHandler, so that a listing is never held in memory as a whole.
+ * Use with MongoTemplate.executeQuery().
+ * @param <T> the model type.
+ */
+public class ModelDocumentHandler<T> implements DocumentCallbackHandler {
+
+    private final Class<T> type;
+
+    private final MongoConverter converter;
+
+    private final ModelHandler<T> handler;
+
+    /**
+     * Constructor.
+     * @param type the model class.
+     * @param converter the converter of the documents.
+     * @param handler the handler of the models.
+     */
+    public ModelDocumentHandler(Class<T> type, MongoConverter converter, ModelHandler<T> handler) {
+        this.type = type;
+        this.converter = converter;
+        this.handler = handler;
+    }
+
+    @Override
+    public void processDocument(DBObject dbObject) {
+        handler.handle(converter.read(type, dbObject));
+    }
+
+}
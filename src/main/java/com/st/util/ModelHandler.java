@@ -0,0 +1,16 @@
+package com.st.util;
+
+/**
+ * Receives the models of a streamed listing, one at a time, as they are read
+ * from the MongoDB cursor.
+ * @param <T> the model type.
+ */
+public interface ModelHandler<T> {
+
+    /**
+     * Handles a model.
+     * @param model the model.
+     */
+    public void handle(T model);
+
+}
@@ -0,0 +1,203 @@
+package com.st.util;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+import com.mongodb.util.JSONParseException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.regex.Pattern;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.security.crypto.codec.Base64;
+
+/**
+ * Keyset (cursor) pagination of a MongoDB listing. Documents are sorted by a
+ * field and then by ID, and a page continues after the sort value and ID of
+ * the last document of the previous page, which are carried in an opaque
+ * cursor. Unlike skip/limit, this reads only the documents of the page and
+ * is stable while documents are added or removed.
+ */
+public class PageQuery {
+
+    /** Largest page size a client may ask for. */
+    public static final int MAX_LIMIT = 1000;
+
+    /** Page size for clients that do not paginate. */
+    public static final int LEGACY_LIMIT = 5000;
+
+    private static final Pattern FIELD = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+    // Page size, or 0 for all documents.
+    private final int limit;
+
+    private final String sort;
+
+    private final boolean descending;
+
+    // Sort value and ID of the last document of the previous page, or null for the first page.
+    private final DBObject after;
+
+    private PageQuery(int limit, String sort, boolean descending, DBObject after) {
+        this.limit = limit;
+        this.sort = sort;
+        this.descending = descending;
+        this.after = after;
+    }
+
+    /**
+     * Returns the query of all documents, in no particular order.
+     * @return the query.
+     */
+    public static PageQuery unbounded() {
+        return new PageQuery(0, "id", false, null);
+    }
+
+    /**
+     * Parses the paging request parameters.
+     * @param limit the page size, or null for clients that do not paginate,
+     * which get at most LEGACY_LIMIT documents.
+     * @param sort the sort field, prefixed with "-" for descending order, or
+     * null for ID order. Must match the cursor, if any.
+     * @param cursor the cursor returned with the previous page, or null for the first page.
+     * @return the query.
+     * @throws IllegalArgumentException if any parameter is invalid.
+     */
+    public static PageQuery parse(Integer limit, String sort, String cursor) {
+        if (limit != null && (limit < 1 || limit > MAX_LIMIT)) {
+            throw new IllegalArgumentException("Limit must be between 1 and " + MAX_LIMIT + ".");
+        }
+        int lim = (limit == null) ? LEGACY_LIMIT : limit;
+        String field = "id";
+        boolean desc = false;
+        if (sort != null && !sort.trim().isEmpty()) {
+            desc = sort.trim().startsWith("-");
+            field = desc ? sort.trim().substring(1) : sort.trim();
+            if (!FIELD.matcher(field).matches()) {
+                throw new IllegalArgumentException("Invalid sort field: " + field);
+            }
+        }
+        if (cursor == null || cursor.isEmpty()) {
+            return new PageQuery(lim, field, desc, null);
+        }
+        DBObject after = decode(cursor);
+        String cursorField = (String) after.get("s");
+        boolean cursorDesc = Boolean.TRUE.equals(after.get("d"));
+        if (sort != null && !sort.trim().isEmpty()
+                && (!field.equals(cursorField) || desc != cursorDesc)) {
+            throw new IllegalArgumentException("Sort does not match the cursor.");
+        }
+        return new PageQuery(lim, cursorField, cursorDesc, after);
+    }
+
+    /**
+     * Returns the sort field, which must be read for the cursor.
+     * @return the field.
+     */
+    public String getSort() {
+        return sort;
+    }
+
+    /**
+     * Restricts a query to the page: the documents after the cursor, in
+     * order, one more than the page size to tell if there are more.
+     * @param query the query of all documents.
+     * @return the query.
+     */
+    public Query apply(Query query) {
+        if (limit == 0) {
+            return query;
+        }
+        Sort.Direction dir = descending ? Sort.Direction.DESC : Sort.Direction.ASC;
+        query.with(sort.equals("id") ? new Sort(dir, "id") : new Sort(dir, sort).and(new Sort(dir, "id")));
+        if (after != null) {
+            Object value = after.get("v");
+            Object id = after.get("i");
+            Criteria next;
+            if (sort.equals("id")) {
+                next = after("id", id);
+            } else if (value == null) {
+                // Missing values sort lowest.
+                next = new Criteria().andOperator(Criteria.where(sort).is(null), after("id", id));
+                if (!descending) {
+                    next = new Criteria().orOperator(next, Criteria.where(sort).ne(null));
+                }
+            } else if (descending) {
+                // $lt never matches missing values, which come last.
+                next = new Criteria().orOperator(after(sort, value),
+                        new Criteria().andOperator(Criteria.where(sort).is(value), after("id", id)),
+                        Criteria.where(sort).is(null));
+            } else {
+                next = new Criteria().orOperator(after(sort, value),
+                        new Criteria().andOperator(Criteria.where(sort).is(value), after("id", id)));
+            }
+            // Wrapped, since the query may have criteria on the same fields.
+            query.addCriteria(new Criteria().andOperator(next));
+        }
+        query.limit(limit + 1);
+        return query;
+    }
+
+    // Field after value in the sort order.
+    private Criteria after(String field, Object value) {
+        return descending ? Criteria.where(field).lt(value) : Criteria.where(field).gt(value);
+    }
+
+    /**
+     * Returns the page of the documents found by an applied query.
+     * @param <T> the document type.
+     * @param found the documents found.
+     * @param converter the converter of the documents to MongoDB, to read the
+     * sort value of the last one as stored.
+     * @return the page.
+     */
+    public <T> KeysetPage<T> toPage(List<T> found, MongoConverter converter) {
+        if (found == null || limit == 0 || found.size() <= limit) {
+            return new KeysetPage<>(found, null);
+        }
+        List<T> items = found.subList(0, limit);
+        DBObject last = new BasicDBObject();
+        converter.write(items.get(limit - 1), last);
+        DBObject cursor = new BasicDBObject("s", sort)
+                .append("d", descending)
+                .append("v", last.get(sort.equals("id") ? "_id" : sort))
+                .append("i", last.get("_id"));
+        return new KeysetPage<>(items, encode(cursor));
+    }
+
+    private static String encode(DBObject cursor) {
+        byte[] bytes = Base64.encode(JSON.serialize(cursor).getBytes(StandardCharsets.UTF_8));
+        String token = new String(bytes, StandardCharsets.US_ASCII);
+        return token.replace('+', '-').replace('/', '_').replace("=", "");
+    }
+
+    private static DBObject decode(String token) {
+        StringBuilder b64 = new StringBuilder(token.replace('-', '+').replace('_', '/'));
+        while (b64.length() % 4 != 0) {
+            b64.append('=');
+        }
+        byte[] bytes = b64.toString().getBytes(StandardCharsets.US_ASCII);
+        Object parsed = null;
+        if (Base64.isBase64(bytes)) {
+            try {
+                parsed = JSON.parse(new String(Base64.decode(bytes), StandardCharsets.UTF_8));
+            } catch (JSONParseException | IllegalArgumentException ex) {
+                parsed = null;
+            }
+        }
+        // Only plain values, which cannot be taken for query operators.
+        if (!(parsed instanceof DBObject)) {
+            throw new IllegalArgumentException("Invalid cursor.");
+        }
+        DBObject cursor = (DBObject) parsed;
+        if (!(cursor.get("s") instanceof String) || !FIELD.matcher((String) cursor.get("s")).matches()
+                || cursor.get("v") instanceof DBObject || cursor.get("i") == null
+                || cursor.get("i") instanceof DBObject) {
+            throw new IllegalArgumentException("Invalid cursor.");
+        }
+        return cursor;
+    }
+
+}
@@ -0,0 +1,126 @@
+package com.st.util;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Misc operations on Amazon S3 buckets.
+ */
+public class S3Operations {
+
+    /**
+     * Lists all objects at the top level of a bucket. Objects stored under a
+     * prefix (e.g. "versions/") are not included. Unlike a single
+     * listObjects() call, this is not truncated at 1000 objects.
+     * @param s3Client the client.
+     * @param bucket the bucket.
+     * @return the object summaries.
+     */
+    public static List<S3ObjectSummary> listTopLevelObjects(AmazonS3Client s3Client, String bucket) {
+        return listObjects(s3Client, bucket, null, "/");
+    }
+
+    /**
+     * Lists all objects of a bucket under a prefix.
+     * @param s3Client the client.
+     * @param bucket the bucket.
+     * @param prefix the key prefix.
+     * @return the object summaries.
+     */
+    public static List<S3ObjectSummary> listObjects(AmazonS3Client s3Client, String bucket, String prefix) {
+        return listObjects(s3Client, bucket, prefix, null);
+    }
+
+    /**
+     * Deletes all objects of a bucket under a prefix, in batches of at most
+     * 1000 keys per request.
+     * @param s3Client the client.
+     * @param bucket the bucket.
+     * @param prefix the key prefix.
+     * @return the number of deleted objects.
+     */
+    public static int deleteObjects(AmazonS3Client s3Client, String bucket, String prefix) {
+        List<String> keys = new ArrayList<>();
+        for (S3ObjectSummary o : listObjects(s3Client, bucket, prefix)) {
+            keys.add(o.getKey());
+        }
+        deleteObjects(s3Client, bucket, keys);
+        return keys.size();
+    }
+
+    /**
+     * Deletes objects of a bucket by key, in batches of at most 1000 keys per
+     * request.
+     * @param s3Client the client.
+     * @param bucket the bucket.
+     * @param keys the object keys.
+     */
+    public static void deleteObjects(AmazonS3Client s3Client, String bucket, List<String> keys) {
+        for (int i = 0; i < keys.size(); i += 1000) {
+            List<KeyVersion> batch = new ArrayList<>();
+            for (String key : keys.subList(i, Math.min(i + 1000, keys.size()))) {
+                batch.add(new KeyVersion(key));
+            }
+            s3Client.deleteObjects(new DeleteObjectsRequest(bucket).withKeys(batch));
+        }
+    }
+
+    /**
+     * Returns the metadata of an object without fetching its contents.
+     * @param s3Client the client.
+     * @param bucket the bucket.
+     * @param key the object key.
+     * @return the metadata, or null if there is no such object.
+     */
+    public static ObjectMetadata getObjectMetadata(AmazonS3Client s3Client, String bucket, String key) {
+        try {
+            return s3Client.getObjectMetadata(bucket, key);
+        } catch (AmazonServiceException ex) {
+            if (ex.getStatusCode() == 404) {
+                return null;
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Returns an object, whose content stream must be closed by the caller.
+     * @param s3Client the client.
+     * @param bucket the bucket.
+     * @param key the object key.
+     * @return the object, or null if there is no such object.
+     */
+    public static S3Object getObject(AmazonS3Client s3Client, String bucket, String key) {
+        try {
+            return s3Client.getObject(bucket, key);
+        } catch (AmazonServiceException ex) {
+            if (ex.getStatusCode() == 404) {
+                return null;
+            }
+            throw ex;
+        }
+    }
+
+    private static List<S3ObjectSummary> listObjects(AmazonS3Client s3Client, String bucket,
+            String prefix, String delimiter) {
+        List<S3ObjectSummary> summaries = new ArrayList<>();
+        ObjectListing listing = s3Client.listObjects(
+                new ListObjectsRequest(bucket, prefix, null, delimiter, null));
+        summaries.addAll(listing.getObjectSummaries());
+        while (listing.isTruncated()) {
+            listing = s3Client.listNextBatchOfObjects(listing);
+            summaries.addAll(listing.getObjectSummaries());
+        }
+        return summaries;
+    }
+
+}
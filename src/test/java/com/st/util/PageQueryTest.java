@@ -0,0 +1,228 @@
+package com.st.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import com.mongodb.DBObject;
+import com.mongodb.DBRef;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import org.junit.Test;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.convert.DbRefResolver;
+import org.springframework.data.mongodb.core.convert.DbRefResolverCallback;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentEntity;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentProperty;
+import org.springframework.data.mongodb.core.query.Query;
+
+/**
+ * Tests the keyset pagination of PageQuery, by running its queries against an
+ * in-memory collection with the MongoDB semantics of the operators it uses:
+ * comparisons never match missing values, and missing values sort lowest.
+ */
+public class PageQueryTest {
+
+    public static class Doc {
+        @Id
+        String id;
+        Integer n;
+
+        Doc(String id, Integer n) {
+            this.id = id;
+            this.n = n;
+        }
+    }
+
+    private static final List<Doc> DOCS = Arrays.asList(
+            new Doc("a", 2), new Doc("b", null), new Doc("c", 1), new Doc("d", 2),
+            new Doc("e", null), new Doc("f", 3), new Doc("g", 1), new Doc("h", null));
+
+    private static final List<String> ASCENDING = Arrays.asList("b", "e", "h", "c", "g", "a", "d", "f");
+
+    private static final List<String> DESCENDING = Arrays.asList("f", "d", "a", "g", "c", "h", "e", "b");
+
+    private final MappingMongoConverter converter = converter();
+
+    @Test
+    public void testAscendingAfterValue() {
+        assertEquals(ASCENDING.subList(4, 8), rest("n", "c"));
+    }
+
+    @Test
+    public void testAscendingAfterNull() {
+        assertEquals(ASCENDING.subList(2, 8), rest("n", "e"));
+        assertEquals(ASCENDING.subList(3, 8), rest("n", "h"));
+    }
+
+    @Test
+    public void testDescendingAfterValue() {
+        assertEquals(DESCENDING.subList(3, 8), rest("-n", "a"));
+        assertEquals(DESCENDING.subList(5, 8), rest("-n", "c"));
+    }
+
+    @Test
+    public void testDescendingAfterNull() {
+        assertEquals(DESCENDING.subList(7, 8), rest("-n", "e"));
+    }
+
+    @Test
+    public void testAllPageSizes() {
+        for (int limit = 1; limit <= DOCS.size() + 1; limit++) {
+            assertEquals(ASCENDING, walk("n", limit));
+            assertEquals(DESCENDING, walk("-n", limit));
+            assertEquals(Arrays.asList("a", "b", "c", "d", "e", "f", "g", "h"), walk(null, limit));
+        }
+    }
+
+    // The IDs of all documents, read in pages.
+    private List<String> walk(String sort, int limit) {
+        List<String> ids = new ArrayList<>();
+        String cursor = null;
+        do {
+            KeysetPage<Doc> page = page(sort, limit, cursor);
+            for (Doc d : page.getItems()) {
+                ids.add(d.id);
+            }
+            cursor = page.getNext();
+        } while (cursor != null);
+        return ids;
+    }
+
+    // The IDs of the documents after one, read from the cursor of a page ending with it.
+    private List<String> rest(String sort, String afterId) {
+        String cursor = null;
+        while (true) {
+            KeysetPage<Doc> page = page(sort, 1, cursor);
+            cursor = page.getNext();
+            assertNotNull(cursor);
+            if (page.getItems().get(0).id.equals(afterId)) {
+                break;
+            }
+        }
+        List<String> ids = new ArrayList<>();
+        for (Doc d : page(sort, PageQuery.MAX_LIMIT, cursor).getItems()) {
+            ids.add(d.id);
+        }
+        return ids;
+    }
+
+    private KeysetPage<Doc> page(String sort, int limit, String cursor) {
+        PageQuery pq = PageQuery.parse(limit, sort, cursor);
+        Query query = pq.apply(new Query());
+        final DBObject order = query.getSortObject();
+        List<Doc> found = new ArrayList<>();
+        for (Doc d : DOCS) {
+            if (matches(query.getQueryObject(), d)) {
+                found.add(d);
+            }
+        }
+        Collections.sort(found, new Comparator<Doc>() {
+            @Override
+            public int compare(Doc x, Doc y) {
+                for (String field : order.keySet()) {
+                    int c = compareValues(value(x, field), value(y, field));
+                    if (c != 0) {
+                        return ((Number) order.get(field)).intValue() * c;
+                    }
+                }
+                return 0;
+            }
+        });
+        return pq.toPage(found.subList(0, Math.min(query.getLimit(), found.size())), converter);
+    }
+
+    private static boolean matches(DBObject query, Doc d) {
+        for (String key : query.keySet()) {
+            Object cond = query.get(key);
+            if (key.equals("$or") || key.equals("$and")) {
+                boolean any = false;
+                boolean all = true;
+                for (Object sub : (List<?>) cond) {
+                    boolean m = matches((DBObject) sub, d);
+                    any |= m;
+                    all &= m;
+                }
+                if (key.equals("$or") ? !any : !all) {
+                    return false;
+                }
+            } else if (!matchesField(value(d, key), cond)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean matchesField(Object value, Object cond) {
+        if (!(cond instanceof DBObject)) {
+            return (cond == null) ? value == null : cond.equals(value);
+        }
+        DBObject ops = (DBObject) cond;
+        for (String op : ops.keySet()) {
+            Object arg = ops.get(op);
+            boolean m;
+            switch (op) {
+                case "$ne":
+                    m = (arg == null) ? value != null : !arg.equals(value);
+                    break;
+                case "$lt":
+                    m = value != null && compareValues(value, arg) < 0;
+                    break;
+                case "$gt":
+                    m = value != null && compareValues(value, arg) > 0;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported operator " + op);
+            }
+            if (!m) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Object value(Doc d, String field) {
+        switch (field) {
+            case "id":
+            case "_id":
+                return d.id;
+            case "n":
+                return d.n;
+            default:
+                throw new IllegalArgumentException("Unknown field " + field);
+        }
+    }
+
+    // Missing values sort lowest.
+    @SuppressWarnings("unchecked")
+    private static int compareValues(Object x, Object y) {
+        if (x == null || y == null) {
+            return (x == null ? 0 : 1) - (y == null ? 0 : 1);
+        }
+        return ((Comparable<Object>) x).compareTo(y);
+    }
+
+    private static MappingMongoConverter converter() {
+        DbRefResolver noRefs = new DbRefResolver() {
+            @Override
+            public Object resolveDbRef(MongoPersistentProperty property, DBRef dbref,
+                    DbRefResolverCallback callback) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public DBRef createDbRef(org.springframework.data.mongodb.core.mapping.DBRef annotation,
+                    MongoPersistentEntity<?> entity, Object id) {
+                throw new UnsupportedOperationException();
+            }
+        };
+        MappingMongoConverter converter = new MappingMongoConverter(noRefs, new MongoMappingContext());
+        converter.afterPropertiesSet();
+        return converter;
+    }
+
+}